@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.scale7.cassandra.pelops;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe Bloom filter of byte keys (typically row keys), used to tell that a key is definitely absent without
+ * making a round trip to Cassandra.  {@link #mightContain(ByteBuffer)} never returns false for a key that has been
+ * added, but may return true for a key that hasn't (at roughly the false positive rate given to the constructor once
+ * the expected number of keys has been added).
+ * <p>Keys are hashed using MurmurHash3, the bits are derived from the two halves of the hash by double hashing.
+ */
+public class BloomFilter {
+    private final AtomicLongArray words;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * Create a new empty filter.
+     * @param expectedKeys the number of keys that are expected to be added
+     * @param falsePositiveRate the desired false positive rate once the expected number of keys has been added
+     */
+    public BloomFilter(long expectedKeys, double falsePositiveRate) {
+        if (expectedKeys < 1) throw new IllegalArgumentException("expectedKeys must be at least 1");
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("falsePositiveRate must be greater than 0 and less than 1");
+
+        long bits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int wordCount = (int) Math.min(Integer.MAX_VALUE, (Math.max(64, bits) + 63) / 64);
+        this.words = new AtomicLongArray(wordCount);
+        this.bitCount = wordCount * 64L;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedKeys * Math.log(2)));
+    }
+
+    /**
+     * Adds the key to the filter.
+     * @param key the key
+     */
+    public void add(ByteBuffer key) {
+        long[] hash = TokenRing.murmur3(key, key.position(), key.remaining(), 0);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = bit(hash, i);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long value;
+            do {
+                value = words.get(word);
+                if ((value & mask) != 0)
+                    break;
+            } while (!words.compareAndSet(word, value, value | mask));
+        }
+    }
+
+    /**
+     * Adds the key to the filter.
+     * @param key the key
+     */
+    public void add(Bytes key) {
+        add(key.getBytes());
+    }
+
+    /**
+     * Determines if the key might have been added to the filter.
+     * @param key the key
+     * @return false if the key definitely hasn't been added
+     */
+    public boolean mightContain(ByteBuffer key) {
+        long[] hash = TokenRing.murmur3(key, key.position(), key.remaining(), 0);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = bit(hash, i);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Determines if the key might have been added to the filter.
+     * @param key the key
+     * @return false if the key definitely hasn't been added
+     */
+    public boolean mightContain(Bytes key) {
+        return mightContain(key.getBytes());
+    }
+
+    private long bit(long[] hash, int i) {
+        return ((hash[0] + i * hash[1]) & Long.MAX_VALUE) % bitCount;
+    }
+
+    /**
+     * The number of bits of the filter.
+     * @return the number of bits
+     */
+    public long getBitCount() {
+        return bitCount;
+    }
+
+    /**
+     * The number of bits set for each key.
+     * @return the number of hash functions
+     */
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    @Override
+    public String toString() {
+        return "BloomFilter{" +
+                "bitCount=" + bitCount +
+                ", hashCount=" + hashCount +
+                '}';
+    }
+}
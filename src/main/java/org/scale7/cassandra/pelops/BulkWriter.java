@@ -0,0 +1,631 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.scale7.cassandra.pelops;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Mutation;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+import org.scale7.cassandra.pelops.pool.IThriftPool;
+import org.scale7.portability.SystemProxy;
+import org.slf4j.Logger;
+
+/**
+ * A thread safe, buffered writer built on top of {@link Mutator}.  Writes from any number of threads are collected
+ * into a shared batch which is flushed automatically once it holds {@link Policy#getMaxMutations()} mutations,
+ * reaches {@link Policy#getMaxBytes()} (estimated) bytes or is older than {@link Policy#getFlushIntervalMillis()}.
+ * <p>Flushes are executed by {@link Policy#getFlushThreads()} background threads.  When
+ * {@link Policy#getMaxPendingFlushes()} flushes are already queued or running, writers block until one completes
+ * (back-pressure).  The outcome of each flush is reported to the {@link IFlushListener} (if any) and reflected in the
+ * writers statistics, which are also exposed via JMX.
+ * <p>The writer must be {@link #close() closed} to flush the remaining mutations and stop the background threads.
+ * <pre>
+ * BulkWriter writer = new BulkWriter("loader", pool, ConsistencyLevel.ONE, new BulkWriter.Policy(), null);
+ * writer.writeColumn("CF", rowKey, column); // from any thread
+ * ...
+ * writer.close();
+ * </pre>
+ */
+public class BulkWriter implements BulkWriterMBean {
+    private static final Logger logger = SystemProxy.getLoggerFromFactory(BulkWriter.class);
+
+    private final String name;
+    private final IThriftPool pool;
+    private final ConsistencyLevel cLevel;
+    private final Policy policy;
+    private final IFlushListener listener;
+
+    private final Object lock = new Object();
+    private Mutator mutator;
+    private long mutatorCreated;
+    private boolean closed = false;
+    private int batchesAwaitingSubmission = 0;
+
+    private final Semaphore pendingFlushes;
+    private final ExecutorService flushExecutor;
+    private final ScheduledExecutorService scheduledExecutor;
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushesFailed = new AtomicLong();
+    private final AtomicLong mutationsFlushed = new AtomicLong();
+    private final AtomicLong mutationsFailed = new AtomicLong();
+    private final AtomicLong flushMillisTotal = new AtomicLong();
+    private final AtomicLong lastFlushMillis = new AtomicLong();
+
+    /**
+     * Create a new writer.
+     * @param name the name of the writer (used to register the MBean)
+     * @param pool the pool used to create the underlying mutators
+     * @param cLevel the consistency level used to flush the mutations
+     * @param policy the writer config (if null the defaults are used)
+     * @param listener notified of the outcome of each flush (may be null)
+     */
+    public BulkWriter(String name, IThriftPool pool, ConsistencyLevel cLevel, Policy policy, IFlushListener listener) {
+        if (name == null) throw new IllegalArgumentException("name is a required argument");
+        if (pool == null) throw new IllegalArgumentException("pool is a required argument");
+        if (cLevel == null) throw new IllegalArgumentException("cLevel is a required argument");
+        this.name = name;
+        this.pool = pool;
+        this.cLevel = cLevel;
+        this.policy = policy != null ? policy : new Policy();
+        this.listener = listener;
+
+        logger.info("Initialising bulk writer '{}' with configuration policy: {}", name, this.policy);
+
+        this.pendingFlushes = new Semaphore(this.policy.getMaxPendingFlushes());
+        this.flushExecutor = Executors.newFixedThreadPool(this.policy.getFlushThreads(), new NamedThreadFactory("pelops-bulk-writer-" + name));
+
+        this.mutator = newMutator();
+
+        if (this.policy.getFlushIntervalMillis() > 0) {
+            scheduledExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("pelops-bulk-writer-timer-" + name));
+            long period = Math.max(1, this.policy.getFlushIntervalMillis() / 2);
+            scheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flushIfExpired();
+                    } catch (Exception e) {
+                        logger.warn("An exception was thrown while flushing expired mutations", e);
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            scheduledExecutor = null;
+        }
+
+        String beanName = getMBeanName();
+        if (JmxMBeanManager.getInstance().isRegistered(beanName)) {
+            logger.warn("MBean '{}' is already registered, removing...", beanName);
+            JmxMBeanManager.getInstance().unregisterMBean(beanName);
+        }
+
+        logger.info("Registering MBean '{}'...", beanName);
+        JmxMBeanManager.getInstance().registerMBean(this, beanName);
+    }
+
+    /**
+     * Write a column value.
+     * @param colFamily                 The column family
+     * @param rowKey                    The key of the row to modify
+     * @param column                    The value of the column
+     * @throws PelopsException if the writer has been closed
+     */
+    public void writeColumn(final String colFamily, final Bytes rowKey, final Column column) throws PelopsException {
+        write(new IWrite() {
+            @Override
+            public void write(Mutator mutator) {
+                mutator.writeColumn(colFamily, rowKey, column);
+            }
+        });
+    }
+
+    /**
+     * Write a list of columns to a key.
+     * @param colFamily                 The column family
+     * @param rowKey                    The key of the row to modify
+     * @param columns                   The list of columns to write
+     * @throws PelopsException if the writer has been closed
+     */
+    public void writeColumns(final String colFamily, final Bytes rowKey, final List<Column> columns) throws PelopsException {
+        write(new IWrite() {
+            @Override
+            public void write(Mutator mutator) {
+                mutator.writeColumns(colFamily, rowKey, columns);
+            }
+        });
+    }
+
+    /**
+     * Write multiple sub-column values to a super column.
+     * @param colFamily                 The column family
+     * @param rowKey                    The key of the row to modify
+     * @param colName                   The name of the super column
+     * @param subColumns                A list of the sub-columns to write
+     * @throws PelopsException if the writer has been closed
+     */
+    public void writeSubColumns(final String colFamily, final Bytes rowKey, final Bytes colName, final List<Column> subColumns) throws PelopsException {
+        write(new IWrite() {
+            @Override
+            public void write(Mutator mutator) {
+                mutator.writeSubColumns(colFamily, rowKey, colName, subColumns);
+            }
+        });
+    }
+
+    /**
+     * Delete a list of columns.
+     * @param colFamily                 The column family
+     * @param rowKey                    The key of the row to modify
+     * @param colNames                  The column names to delete
+     * @throws PelopsException if the writer has been closed
+     */
+    public void deleteColumns(final String colFamily, final Bytes rowKey, final List<Bytes> colNames) throws PelopsException {
+        write(new IWrite() {
+            @Override
+            public void write(Mutator mutator) {
+                mutator.deleteColumns(colFamily, rowKey, colNames);
+            }
+        });
+    }
+
+    /**
+     * Adds arbitrary mutations to the shared batch.  The mutator passed to the write must only be used for the
+     * duration of the call.
+     * @param write the write
+     * @throws PelopsException if the writer has been closed
+     */
+    public void write(IWrite write) throws PelopsException {
+        Mutator batch = null;
+        synchronized (lock) {
+            if (closed)
+                throw new PelopsException("The bulk writer has been closed");
+
+            write.write(mutator);
+
+            if (mutator.getMutationCount() >= policy.getMaxMutations() || mutator.getBatchSizeEstimate() >= policy.getMaxBytes())
+                batch = detachBatch();
+        }
+        if (batch != null)
+            submitFlush(batch);
+    }
+
+    /**
+     * Flushes the buffered mutations and waits for all pending flushes to complete.
+     * @throws PelopsException if the thread is interrupted while waiting
+     */
+    public void flush() throws PelopsException {
+        Mutator batch = null;
+        synchronized (lock) {
+            if (mutator.getMutationCount() > 0)
+                batch = detachBatch();
+        }
+        if (batch != null)
+            submitFlush(batch);
+        awaitPendingFlushes();
+    }
+
+    /**
+     * Flushes the buffered mutations, waits for all pending flushes to complete and stops the background threads.
+     * Calling this method after the writer has been closed has no affect.
+     */
+    public void close() {
+        Mutator batch = null;
+        synchronized (lock) {
+            if (closed)
+                return;
+            closed = true;
+
+            if (mutator.getMutationCount() > 0)
+                batch = detachBatch();
+        }
+
+        if (scheduledExecutor != null)
+            scheduledExecutor.shutdownNow();
+
+        try {
+            if (batch != null)
+                submitFlush(batch);
+            // batches detached by other threads must be handed to the flush threads before they are stopped
+            awaitBatchesSubmitted();
+        } catch (PelopsException e) {
+            logger.warn("Interrupted while flushing the remaining mutations", e);
+        }
+
+        flushExecutor.shutdown();
+        try {
+            while (!flushExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.info("Still waiting for pending flushes to complete...");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        String beanName = getMBeanName();
+        logger.info("Removing MBean '{}'...", beanName);
+        if (JmxMBeanManager.getInstance().isRegistered(beanName))
+            JmxMBeanManager.getInstance().unregisterMBean(beanName);
+    }
+
+    private void flushIfExpired() {
+        Mutator batch = null;
+        synchronized (lock) {
+            if (!closed && mutator.getMutationCount() > 0 &&
+                    System.currentTimeMillis() - mutatorCreated >= policy.getFlushIntervalMillis())
+                batch = detachBatch();
+        }
+        if (batch != null)
+            submitFlush(batch);
+    }
+
+    private void awaitPendingFlushes() throws PelopsException {
+        awaitBatchesSubmitted();
+        int permits = policy.getMaxPendingFlushes();
+        try {
+            pendingFlushes.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PelopsException("Interrupted while waiting for pending flushes", e);
+        }
+        pendingFlushes.release(permits);
+    }
+
+    private void awaitBatchesSubmitted() throws PelopsException {
+        synchronized (lock) {
+            try {
+                while (batchesAwaitingSubmission > 0)
+                    lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PelopsException("Interrupted while waiting for batches to be submitted", e);
+            }
+        }
+    }
+
+    /**
+     * Replaces the current batch with an empty one.  Must be called while holding the lock, the returned batch must
+     * then be passed to {@link #submitFlush(Mutator)}.
+     */
+    private Mutator detachBatch() {
+        Mutator batch = mutator;
+        mutator = newMutator();
+        batchesAwaitingSubmission++;
+        return batch;
+    }
+
+    /**
+     * Hands the batch to the flush threads, blocking while the max number of flushes are pending.  Must not be called
+     * while holding the lock so that other writers and the getters aren't stalled by a slow flush.
+     */
+    private void submitFlush(final Mutator batch) throws PelopsException {
+        try {
+            try {
+                pendingFlushes.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mutationsFailed.addAndGet(batch.getMutationCount());
+                throw new PelopsException("Interrupted while waiting to flush mutations", e);
+            }
+
+            try {
+                flushExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            executeFlush(batch);
+                        } finally {
+                            pendingFlushes.release();
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                pendingFlushes.release();
+                throw e;
+            }
+        } finally {
+            synchronized (lock) {
+                batchesAwaitingSubmission--;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void executeFlush(Mutator batch) {
+        int mutations = batch.getMutationCount();
+        long bytes = batch.getBatchSizeEstimate();
+        long start = System.currentTimeMillis();
+        try {
+            batch.execute(cLevel);
+
+            long millis = System.currentTimeMillis() - start;
+            flushes.incrementAndGet();
+            mutationsFlushed.addAndGet(mutations);
+            flushMillisTotal.addAndGet(millis);
+            lastFlushMillis.set(millis);
+
+            if (listener != null)
+                listener.flushed(mutations, bytes, millis);
+        } catch (Exception e) {
+            flushesFailed.incrementAndGet();
+            mutationsFailed.addAndGet(mutations);
+            logger.warn(String.format("Failed to flush %s mutations (~%s bytes)", mutations, bytes), e);
+
+            if (listener != null)
+                listener.flushFailed(batch.getBatch(), mutations, e);
+        }
+    }
+
+    private Mutator newMutator() {
+        Mutator mutator = pool.createMutator();
+        mutator.setTrafficClass(policy.getTrafficClass());
+        mutatorCreated = System.currentTimeMillis();
+        return mutator;
+    }
+
+    /**
+     * The number of mutations waiting to be flushed (excluding the ones being flushed).
+     * @return the number of mutations
+     */
+    @Override
+    public int getMutationsBuffered() {
+        synchronized (lock) {
+            return mutator.getMutationCount();
+        }
+    }
+
+    @Override
+    public int getPendingFlushes() {
+        return policy.getMaxPendingFlushes() - pendingFlushes.availablePermits();
+    }
+
+    @Override
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    @Override
+    public long getFlushesFailed() {
+        return flushesFailed.get();
+    }
+
+    @Override
+    public long getMutationsFlushed() {
+        return mutationsFlushed.get();
+    }
+
+    @Override
+    public long getMutationsFailed() {
+        return mutationsFailed.get();
+    }
+
+    @Override
+    public long getFlushMillisTotal() {
+        return flushMillisTotal.get();
+    }
+
+    @Override
+    public long getLastFlushMillis() {
+        return lastFlushMillis.get();
+    }
+
+    @Override
+    public int getMaxMutations() {
+        return policy.getMaxMutations();
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return policy.getMaxBytes();
+    }
+
+    @Override
+    public long getFlushIntervalMillis() {
+        return policy.getFlushIntervalMillis();
+    }
+
+    @Override
+    public int getFlushThreads() {
+        return policy.getFlushThreads();
+    }
+
+    @Override
+    public int getMaxPendingFlushes() {
+        return policy.getMaxPendingFlushes();
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private String getMBeanName() {
+        return JMX_MBEAN_OBJ_NAME + "-" + name;
+    }
+
+    /**
+     * Adds mutations to the shared batch.
+     */
+    public interface IWrite {
+        /**
+         * Called with the mutator holding the shared batch.
+         * @param mutator the mutator
+         */
+        void write(Mutator mutator);
+    }
+
+    /**
+     * Notified of the outcome of each flush.  Invoked from the flush threads.
+     */
+    public interface IFlushListener {
+        /**
+         * Called when a flush succeeds.
+         * @param mutations the number of mutations flushed
+         * @param bytes the estimated size of the mutations
+         * @param millis the time taken by the flush
+         */
+        void flushed(int mutations, long bytes, long millis);
+
+        /**
+         * Called when a flush fails.
+         * @param batch the batch that failed (so that it can be retried or logged)
+         * @param mutations the number of mutations in the batch
+         * @param e the cause of the failure
+         */
+        void flushFailed(Map<ByteBuffer, Map<String, List<Mutation>>> batch, int mutations, Exception e);
+    }
+
+    public static class Policy {
+        private int maxMutations = 1000;
+        private long maxBytes = 1024 * 1024;
+        private long flushIntervalMillis = 1000;
+        private int flushThreads = 2;
+        private int maxPendingFlushes = 4;
+        private TrafficClass trafficClass = TrafficClass.INTERACTIVE;
+
+        public Policy() {
+        }
+
+        /**
+         * @see #setMaxMutations(int)
+         */
+        public int getMaxMutations() {
+            return maxMutations;
+        }
+
+        /**
+         * The number of buffered mutations that triggers a flush.
+         * @param maxMutations the number of mutations
+         */
+        public void setMaxMutations(int maxMutations) {
+            this.maxMutations = maxMutations;
+        }
+
+        /**
+         * @see #setMaxBytes(long)
+         */
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        /**
+         * The (estimated) size of the buffered mutations that triggers a flush.
+         * @param maxBytes the number of bytes
+         */
+        public void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @see #setFlushIntervalMillis(long)
+         */
+        public long getFlushIntervalMillis() {
+            return flushIntervalMillis;
+        }
+
+        /**
+         * The max age of the buffered mutations before they are flushed.  When less than or equal to 0, mutations
+         * are only flushed based on their count and size.
+         * @param flushIntervalMillis the max age in milliseconds
+         */
+        public void setFlushIntervalMillis(long flushIntervalMillis) {
+            this.flushIntervalMillis = flushIntervalMillis;
+        }
+
+        /**
+         * @see #setFlushThreads(int)
+         */
+        public int getFlushThreads() {
+            return flushThreads;
+        }
+
+        /**
+         * The number of threads executing flushes in parallel.
+         * @param flushThreads the number of threads
+         */
+        public void setFlushThreads(int flushThreads) {
+            if (flushThreads < 1) throw new IllegalArgumentException("flushThreads must be at least 1");
+            this.flushThreads = flushThreads;
+        }
+
+        /**
+         * @see #setMaxPendingFlushes(int)
+         */
+        public int getMaxPendingFlushes() {
+            return maxPendingFlushes;
+        }
+
+        /**
+         * The max number of flushes queued or running before writers are blocked.
+         * @param maxPendingFlushes the number of flushes
+         */
+        public void setMaxPendingFlushes(int maxPendingFlushes) {
+            if (maxPendingFlushes < 1) throw new IllegalArgumentException("maxPendingFlushes must be at least 1");
+            this.maxPendingFlushes = maxPendingFlushes;
+        }
+
+        /**
+         * @see #setTrafficClass(TrafficClass)
+         */
+        public TrafficClass getTrafficClass() {
+            return trafficClass;
+        }
+
+        /**
+         * The class of traffic used to flush the mutations.
+         * @param trafficClass the traffic class
+         */
+        public void setTrafficClass(TrafficClass trafficClass) {
+            this.trafficClass = trafficClass;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("Config");
+            sb.append("{maxMutations=").append(maxMutations);
+            sb.append(", maxBytes=").append(maxBytes);
+            sb.append(", flushIntervalMillis=").append(flushIntervalMillis);
+            sb.append(", flushThreads=").append(flushThreads);
+            sb.append(", maxPendingFlushes=").append(maxPendingFlushes);
+            sb.append(", trafficClass=").append(trafficClass);
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+}
@@ -62,4 +62,19 @@ public class ClusterManager extends ManagerOperand {
         return tryOperation(operation);
     }
 
+    /**
+     * Get the class name of the partitioner used by the cluster to distribute rows around the ring.
+     * @return					The partitioner class name e.g. org.apache.cassandra.dht.Murmur3Partitioner
+     * @throws Exception
+     */
+    public String getPartitioner() throws Exception {
+        IManagerOperation<String> operation = new IManagerOperation<String>() {
+            @Override
+            public String execute(Client conn) throws Exception {
+                return conn.describe_partitioner();
+            }
+        };
+        return tryOperation(operation);
+    }
+
 }
@@ -51,4 +51,9 @@ public class ColumnIterator extends PageOfIterator<Column> {
     protected Bytes nextStartBeyondName(List<Column> batch) {
         return batch.isEmpty() ? Bytes.NULL : Bytes.fromByteArray(batch.get(batch.size() - 1).getName());
     }
+
+    @Override
+    protected long estimateSize(Column column) {
+        return Mutator.estimateSize(column);
+    }
 }
@@ -0,0 +1,365 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.scale7.cassandra.pelops;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import org.apache.cassandra.thrift.Column;
+
+/**
+ * An indexed, read only view over the columns of a row that finds columns by name without scanning the list.
+ * <p>Lookups use a hash index by name that is built the first time it is needed.  When the columns are known to be
+ * sorted by the column family comparator, a view created with that comparator uses a binary search over the list
+ * instead and never builds the index, which is the cheaper choice when only a few columns are read from a wide row.
+ * <p>The typed accessors decode straight from the column value and the <code>String</code> name overloads encode
+ * the name once per call, so unlike the {@link Selector#getColumnValue(List, String)} family of helpers no
+ * intermediate {@link Bytes} instances are created.
+ * <p>The view is not thread safe while the index is being built and must not be used after the underlying list has
+ * been modified.
+ */
+public class ColumnMap implements Iterable<Column> {
+    /**
+     * Orders names as unsigned bytes, which is the order of the <code>BytesType</code>, <code>AsciiType</code> and
+     * <code>UTF8Type</code> comparators.
+     */
+    public static final Comparator<ByteBuffer> BYTES_ORDER = new Comparator<ByteBuffer>() {
+        @Override
+        public int compare(ByteBuffer a, ByteBuffer b) {
+            int aPosition = a.position();
+            int bPosition = b.position();
+            int length = Math.min(a.remaining(), b.remaining());
+            for (int i = 0; i < length; i++) {
+                int result = (a.get(aPosition + i) & 0xff) - (b.get(bPosition + i) & 0xff);
+                if (result != 0)
+                    return result;
+            }
+            return a.remaining() - b.remaining();
+        }
+    };
+
+    /**
+     * Orders names as signed longs, which is the order of the <code>LongType</code> comparator.
+     */
+    public static final Comparator<ByteBuffer> LONG_ORDER = new Comparator<ByteBuffer>() {
+        @Override
+        public int compare(ByteBuffer a, ByteBuffer b) {
+            if (a.remaining() == 0 || b.remaining() == 0)
+                return a.remaining() - b.remaining();
+            long aValue = readLong(a);
+            long bValue = readLong(b);
+            return aValue < bValue ? -1 : (aValue == bValue ? 0 : 1);
+        }
+    };
+
+    private final List<Column> columns;
+    private final Comparator<ByteBuffer> comparator;
+    private Map<ByteBuffer, Column> index;
+
+    /**
+     * Creates a view that finds columns using a hash index by name.
+     * @param columns                       The columns of the row
+     */
+    public ColumnMap(List<Column> columns) {
+        this(columns, null);
+    }
+
+    /**
+     * Creates a view over columns sorted by the given comparator that finds columns using a binary search.  Pass
+     * <code>Collections.reverseOrder(comparator)</code> for slices read in reversed order.
+     * @param columns                       The columns of the row
+     * @param comparator                    The order of the column names, or null to use a hash index
+     */
+    public ColumnMap(List<Column> columns, Comparator<ByteBuffer> comparator) {
+        if (comparator != null && !(columns instanceof RandomAccess))
+            columns = new ArrayList<Column>(columns);
+        this.columns = Collections.unmodifiableList(columns);
+        this.comparator = comparator;
+    }
+
+    /**
+     * Get a column by name.
+     * @param colName                       The name of the column
+     * @return                              The column, or null if the row does not contain a column with the name
+     */
+    public Column getColumn(ByteBuffer colName) {
+        if (colName == null)
+            return null;
+        if (comparator != null)
+            return search(colName);
+        if (index == null)
+            index = buildIndex();
+        return index.get(colName);
+    }
+
+    /**
+     * Get a column by name.
+     * @param colName                       The name of the column
+     * @return                              The column, or null if the row does not contain a column with the name
+     */
+    public Column getColumn(Bytes colName) {
+        return getColumn(Bytes.nullSafeGet(colName));
+    }
+
+    /**
+     * Get a column by name.
+     * @param colName                       The name of the column
+     * @return                              The column, or null if the row does not contain a column with the name
+     */
+    public Column getColumn(String colName) {
+        return getColumn(encode(colName));
+    }
+
+    /**
+     * Determines if the row contains a column with a particular name.
+     * @param colName                       The name of the column
+     * @return                              Whether the column is present
+     */
+    public boolean columnExists(Bytes colName) {
+        return getColumn(colName) != null;
+    }
+
+    /**
+     * Determines if the row contains a column with a particular name.
+     * @param colName                       The name of the column
+     * @return                              Whether the column is present
+     */
+    public boolean columnExists(String colName) {
+        return getColumn(colName) != null;
+    }
+
+    /**
+     * Get the value of a column.
+     * @param colName                       The name of the column
+     * @return                              The column value
+     * @throws ArrayIndexOutOfBoundsException    Thrown if the row does not contain a column with the specified name
+     */
+    public Bytes getColumnValue(Bytes colName) throws ArrayIndexOutOfBoundsException {
+        return Bytes.fromByteBuffer(getExistingColumn(getColumn(colName)).bufferForValue());
+    }
+
+    /**
+     * Get the value of a column.
+     * @param colName                       The name of the column
+     * @return                              The column value
+     * @throws ArrayIndexOutOfBoundsException    Thrown if the row does not contain a column with the specified name
+     */
+    public Bytes getColumnValue(String colName) throws ArrayIndexOutOfBoundsException {
+        return Bytes.fromByteBuffer(getExistingColumn(getColumn(colName)).bufferForValue());
+    }
+
+    /**
+     * Get the value of a column.
+     * @param colName                       The name of the column
+     * @param defaultValue                  A default value to return if the row does not contain a column with the name
+     * @return                              The column value
+     */
+    public Bytes getColumnValue(String colName, Bytes defaultValue) {
+        Column column = getColumn(colName);
+        return column == null ? defaultValue : Bytes.fromByteBuffer(column.bufferForValue());
+    }
+
+    /**
+     * Get the value of a column as a UTF8 string.
+     * @param colName                       The name of the column
+     * @return                              The column value as a <code>String</code>
+     * @throws ArrayIndexOutOfBoundsException    Thrown if the row does not contain a column with the specified name
+     */
+    public String getColumnStringValue(Bytes colName) throws ArrayIndexOutOfBoundsException {
+        return Bytes.toUTF8(getExistingColumn(getColumn(colName)).bufferForValue());
+    }
+
+    /**
+     * Get the value of a column as a UTF8 string.
+     * @param colName                       The name of the column
+     * @return                              The column value as a <code>String</code>
+     * @throws ArrayIndexOutOfBoundsException    Thrown if the row does not contain a column with the specified name
+     */
+    public String getColumnStringValue(String colName) throws ArrayIndexOutOfBoundsException {
+        return Bytes.toUTF8(getExistingColumn(getColumn(colName)).bufferForValue());
+    }
+
+    /**
+     * Get the value of a column as a UTF8 string.
+     * @param colName                       The name of the column
+     * @param defaultValue                  A default value to return if the row does not contain a column with the name
+     * @return                              The column value as a <code>String</code>
+     */
+    public String getColumnStringValue(String colName, String defaultValue) {
+        Column column = getColumn(colName);
+        return column == null ? defaultValue : Bytes.toUTF8(column.bufferForValue());
+    }
+
+    /**
+     * Get the value of a column as a long.
+     * @param colName                       The name of the column
+     * @return                              The column value as a <code>long</code>
+     * @throws ArrayIndexOutOfBoundsException    Thrown if the row does not contain a column with the specified name
+     * @throws IllegalStateException        Thrown if the value is shorter than a long
+     */
+    public long getColumnLongValue(String colName) throws ArrayIndexOutOfBoundsException, IllegalStateException {
+        return readLong(getExistingColumn(getColumn(colName)).bufferForValue());
+    }
+
+    /**
+     * Get the value of a column as a long.
+     * @param colName                       The name of the column
+     * @param defaultValue                  A default value to return if the row does not contain a column with the name
+     * @return                              The column value as a <code>long</code>
+     * @throws IllegalStateException        Thrown if the value is shorter than a long
+     */
+    public long getColumnLongValue(String colName, long defaultValue) throws IllegalStateException {
+        Column column = getColumn(colName);
+        return column == null ? defaultValue : readLong(column.bufferForValue());
+    }
+
+    /**
+     * Get the value of a column as an int.
+     * @param colName                       The name of the column
+     * @return                              The column value as an <code>int</code>
+     * @throws ArrayIndexOutOfBoundsException    Thrown if the row does not contain a column with the specified name
+     * @throws IllegalStateException        Thrown if the value is shorter than an int
+     */
+    public int getColumnIntValue(String colName) throws ArrayIndexOutOfBoundsException, IllegalStateException {
+        return readInt(getExistingColumn(getColumn(colName)).bufferForValue());
+    }
+
+    /**
+     * Get the value of a column as an int.
+     * @param colName                       The name of the column
+     * @param defaultValue                  A default value to return if the row does not contain a column with the name
+     * @return                              The column value as an <code>int</code>
+     * @throws IllegalStateException        Thrown if the value is shorter than an int
+     */
+    public int getColumnIntValue(String colName, int defaultValue) throws IllegalStateException {
+        Column column = getColumn(colName);
+        return column == null ? defaultValue : readInt(column.bufferForValue());
+    }
+
+    /**
+     * Get the time stamp of a column.
+     * @param colName                       The name of the column
+     * @return                              The time stamp (the <code>Mutator</code> object uses time stamps as microseconds)
+     * @throws ArrayIndexOutOfBoundsException    Thrown if the row does not contain a column with the specified name
+     */
+    public long getColumnTimestamp(Bytes colName) throws ArrayIndexOutOfBoundsException {
+        return getExistingColumn(getColumn(colName)).getTimestamp();
+    }
+
+    /**
+     * Get the time stamp of a column.
+     * @param colName                       The name of the column
+     * @return                              The time stamp (the <code>Mutator</code> object uses time stamps as microseconds)
+     * @throws ArrayIndexOutOfBoundsException    Thrown if the row does not contain a column with the specified name
+     */
+    public long getColumnTimestamp(String colName) throws ArrayIndexOutOfBoundsException {
+        return getExistingColumn(getColumn(colName)).getTimestamp();
+    }
+
+    /**
+     * The columns of the row, in the order they were read.
+     * @return                              An unmodifiable list of the columns
+     */
+    public List<Column> getColumns() {
+        return columns;
+    }
+
+    /**
+     * The number of columns in the row.
+     * @return                              The number of columns
+     */
+    public int size() {
+        return columns.size();
+    }
+
+    /**
+     * Whether the row has no columns.
+     * @return                              True if the row has no columns
+     */
+    public boolean isEmpty() {
+        return columns.isEmpty();
+    }
+
+    @Override
+    public Iterator<Column> iterator() {
+        return columns.iterator();
+    }
+
+    private Column search(ByteBuffer colName) {
+        int low = 0;
+        int high = columns.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Column column = columns.get(mid);
+            int result = comparator.compare(column.bufferForName(), colName);
+            if (result < 0)
+                low = mid + 1;
+            else if (result > 0)
+                high = mid - 1;
+            else
+                return column;
+        }
+        return null;
+    }
+
+    private Map<ByteBuffer, Column> buildIndex() {
+        Map<ByteBuffer, Column> built = new HashMap<ByteBuffer, Column>(columns.size() * 4 / 3 + 1);
+        // the first of any duplicates wins, as it does when the list is scanned
+        for (int i = columns.size() - 1; i >= 0; i--) {
+            Column column = columns.get(i);
+            built.put(column.bufferForName(), column);
+        }
+        return built;
+    }
+
+    private static Column getExistingColumn(Column column) throws ArrayIndexOutOfBoundsException {
+        if (column == null)
+            throw new ArrayIndexOutOfBoundsException();
+        return column;
+    }
+
+    private static ByteBuffer encode(String colName) {
+        return colName == null ? null : ByteBuffer.wrap(colName.getBytes(Bytes.BufferHelper.UTF8));
+    }
+
+    private static long readLong(ByteBuffer value) throws IllegalStateException {
+        if (value == null || value.remaining() < Bytes.BufferHelper.SIZEOF_LONG)
+            throw new IllegalStateException("Failed to read value due to invalid format.");
+        return value.getLong(value.position());
+    }
+
+    private static int readInt(ByteBuffer value) throws IllegalStateException {
+        if (value == null || value.remaining() < Bytes.BufferHelper.SIZEOF_INT)
+            throw new IllegalStateException("Failed to read value due to invalid format.");
+        return value.getInt(value.position());
+    }
+}
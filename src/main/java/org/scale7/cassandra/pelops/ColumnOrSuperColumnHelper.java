@@ -31,6 +31,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 
 import org.apache.cassandra.thrift.Column;
@@ -48,7 +49,7 @@ import org.apache.cassandra.thrift.SuperColumn;
  */
 public class ColumnOrSuperColumnHelper {
 
-    private static abstract class FieldAdapter<T> {
+    static abstract class FieldAdapter<T> {
 
         private final String description;
 
@@ -106,6 +107,25 @@ public class ColumnOrSuperColumnHelper {
         return result;
     }
 
+    /**
+     * Transforms the rows one at a time and hands them to the handler.  Each row is removed from the list before it
+     * is handed over, so the raw rows that have been handled can be garbage collected while the following rows are
+     * being handled.
+     * @param keySlices the rows (emptied of its elements by the call)
+     * @param fieldAdapter the adapter used to transform the columns
+     * @param handler the handler
+     * @return the number of rows handled
+     */
+    public static <T> int transformKeySlices(List<KeySlice> keySlices, FieldAdapter<T> fieldAdapter, IRowHandler<T> handler) {
+        int rows = 0;
+        for (ListIterator<KeySlice> iterator = keySlices.listIterator(); iterator.hasNext(); rows++) {
+            KeySlice ks = iterator.next();
+            iterator.set(null);
+            handler.handle(fromByteBuffer(ks.key), transform(ks.columns, fieldAdapter));
+        }
+        return rows;
+    }
+
     public static <T> LinkedHashMap<String, List<T>> transformKeySlicesUtf8(List<KeySlice> keySlices, FieldAdapter<T> fieldAdapter) {
         LinkedHashMap<String, List<T>> result = new LinkedHashMap<String, List<T>>();
         for (KeySlice ks : keySlices)
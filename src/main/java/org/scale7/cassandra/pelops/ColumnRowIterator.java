@@ -42,4 +42,9 @@ public class ColumnRowIterator extends RowIterator<Column> {
                 this.columnFamily, Selector.newKeyRange(this.startBeyondKey, Bytes.EMPTY, this.batchSize), this.colPredicate, this.cLevel
         );
     }
+
+    @Override
+    protected long estimateSize(Column column) {
+        return Mutator.estimateSize(column);
+    }
 }
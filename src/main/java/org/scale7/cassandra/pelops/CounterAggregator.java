@@ -0,0 +1,523 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.scale7.cassandra.pelops;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+import org.scale7.cassandra.pelops.pool.IThriftPool;
+import org.scale7.portability.SystemProxy;
+import org.slf4j.Logger;
+
+/**
+ * A thread safe aggregator of counter increments.  Rather than sending each increment to Cassandra, increments of the
+ * same counter column are summed locally and the totals are written in a single batch every
+ * {@link Policy#getFlushIntervalMillis()}, or sooner once {@link Policy#getMaxCounters()} distinct counters are
+ * pending.  Thousands of +1 increments of a hot counter per second become a single increment per flush.
+ * <p>Increments are lock free: each counter starts as a single atomic value and is split into several striped cells
+ * when concurrent increments contend for it.
+ * <p>A failed flush isn't retried, since counter increments aren't idempotent (the increments of a batch that timed
+ * out may have been applied), the totals are logged instead.  The aggregator must be {@link #close() closed} to flush
+ * the remaining increments.
+ * <pre>
+ * CounterAggregator aggregator = new CounterAggregator(pool, ConsistencyLevel.ONE, null);
+ * aggregator.writeCounterColumn("PageViews", pageKey, Bytes.fromUTF8("views"), 1); // from any thread
+ * ...
+ * aggregator.close();
+ * </pre>
+ */
+public class CounterAggregator {
+    private static final Logger logger = SystemProxy.getLoggerFromFactory(CounterAggregator.class);
+
+    // the number of array elements between stripes, so that each stripe sits in its own cache line
+    private static final int PADDING = 16;
+
+    private final IThriftPool pool;
+    private final ConsistencyLevel cLevel;
+    private final Policy policy;
+    private final int stripeMask;
+
+    private volatile Generation current;
+    private volatile boolean closed = false;
+    private final Object flushLock = new Object();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final ScheduledExecutorService scheduledExecutor;
+
+    private final AtomicLong incrementsReceived = new AtomicLong();
+    private final AtomicLong incrementsFlushed = new AtomicLong();
+    private final AtomicLong countersFlushed = new AtomicLong();
+    private final AtomicLong incrementsFailed = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushesFailed = new AtomicLong();
+
+    /**
+     * Create a new aggregator.
+     * @param pool the pool used to create the mutators that write the totals
+     * @param cLevel the consistency level used to write the totals
+     * @param policy the aggregator config (if null the defaults are used)
+     */
+    public CounterAggregator(IThriftPool pool, ConsistencyLevel cLevel, Policy policy) {
+        if (pool == null) throw new IllegalArgumentException("pool is a required argument");
+        if (cLevel == null) throw new IllegalArgumentException("cLevel is a required argument");
+        this.pool = pool;
+        this.cLevel = cLevel;
+        this.policy = policy != null ? policy : new Policy();
+
+        logger.info("Initialising counter aggregator configuration policy: {}", this.policy);
+
+        int stripes = Integer.highestOneBit(Math.max(1, this.policy.getStripes()) * 2 - 1);
+        this.stripeMask = stripes - 1;
+        this.current = new Generation();
+
+        scheduledExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("pelops-counter-aggregator-" + pool.getKeyspace()));
+        if (this.policy.getFlushIntervalMillis() > 0) {
+            long period = this.policy.getFlushIntervalMillis();
+            scheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flushQuietly();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Increment a counter column.
+     * @param colFamily                 The column family
+     * @param rowKey                    The key of the row to modify
+     * @param colName                   The name of the counter column
+     * @param value                     The value to add to the counter (may be negative)
+     * @throws PelopsException if the aggregator has been closed
+     */
+    public void writeCounterColumn(String colFamily, String rowKey, String colName, long value) throws PelopsException {
+        writeCounterColumn(colFamily, Bytes.fromUTF8(rowKey), Bytes.fromUTF8(colName), value);
+    }
+
+    /**
+     * Increment a counter column.
+     * @param colFamily                 The column family
+     * @param rowKey                    The key of the row to modify
+     * @param colName                   The name of the counter column
+     * @param value                     The value to add to the counter (may be negative)
+     * @throws PelopsException if the aggregator has been closed
+     */
+    public void writeCounterColumn(String colFamily, Bytes rowKey, Bytes colName, long value) throws PelopsException {
+        increment(new CounterKey(colFamily, rowKey, null, colName), value);
+    }
+
+    /**
+     * Increment a sub-counter-column.
+     * @param colFamily                 The column family
+     * @param rowKey                    The key of the row to modify
+     * @param colName                   The name of the super column
+     * @param subColName                The name of the sub-counter-column
+     * @param value                     The value to add to the counter (may be negative)
+     * @throws PelopsException if the aggregator has been closed
+     */
+    public void writeSubCounterColumn(String colFamily, Bytes rowKey, Bytes colName, Bytes subColName, long value) throws PelopsException {
+        if (colName == null) throw new IllegalArgumentException("colName is a required argument");
+        increment(new CounterKey(colFamily, rowKey, colName, subColName), value);
+    }
+
+    private void increment(CounterKey key, long value) throws PelopsException {
+        if (closed)
+            throw new PelopsException("The counter aggregator has been closed");
+
+        int stripe = stripe();
+        while (true) {
+            Generation generation = current;
+            // announce the write before checking if the generation has been sealed, the flush waits for announced
+            // writes to complete before summing the counters
+            generation.writers.incrementAndGet(stripe * PADDING);
+            try {
+                if (generation.sealed) {
+                    // the final generation is sealed for good, the increment would never be flushed
+                    if (closed)
+                        throw new PelopsException("The counter aggregator has been closed");
+                    continue;
+                }
+
+                Counter counter = generation.counters.get(key);
+                if (counter == null) {
+                    Counter created = new Counter();
+                    counter = generation.counters.putIfAbsent(key, created);
+                    if (counter == null) {
+                        counter = created;
+                        if (generation.size.incrementAndGet() >= policy.getMaxCounters())
+                            requestFlush();
+                    }
+                }
+                counter.add(value, stripe);
+                generation.increments.incrementAndGet(stripe * PADDING);
+                break;
+            } finally {
+                generation.writers.decrementAndGet(stripe * PADDING);
+            }
+        }
+        incrementsReceived.incrementAndGet();
+    }
+
+    /**
+     * Writes the totals of the pending increments to Cassandra.
+     * @throws PelopsException if the totals couldn't be written
+     */
+    public void flush() throws PelopsException {
+        synchronized (flushLock) {
+            Generation generation = current;
+            Generation next = new Generation();
+            // once closed increments that raced with close are rejected rather than added to a generation that's
+            // never flushed
+            if (closed)
+                next.sealed = true;
+            current = next;
+            generation.seal();
+
+            Mutator mutator = pool.createMutator();
+            mutator.setTrafficClass(policy.getTrafficClass());
+            int counters = 0;
+            for (Map.Entry<CounterKey, Counter> entry : generation.counters.entrySet()) {
+                long total = entry.getValue().sum();
+                if (total == 0)
+                    continue;
+
+                CounterKey key = entry.getKey();
+                if (key.superColName == null)
+                    mutator.writeCounterColumn(key.colFamily, key.rowKey, mutator.newCounterColumn(key.colName, total));
+                else
+                    mutator.writeSubCounterColumn(key.colFamily, key.rowKey, key.superColName, mutator.newCounterColumn(key.colName, total));
+                counters++;
+            }
+
+            long increments = sum(generation.increments);
+            if (increments == 0)
+                return;
+
+            try {
+                if (counters > 0)
+                    mutator.execute(cLevel);
+                flushes.incrementAndGet();
+                incrementsFlushed.addAndGet(increments);
+                countersFlushed.addAndGet(counters);
+            } catch (PelopsException e) {
+                flushesFailed.incrementAndGet();
+                incrementsFailed.addAndGet(increments);
+                logger.error(String.format("Failed to flush %s counters (%s increments), the increments are lost: %s",
+                        counters, increments, mutator.getBatch()), e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Flushes the pending increments and stops the background thread.  Calling this method after the aggregator has
+     * been closed has no affect.
+     * @throws PelopsException if the totals couldn't be written
+     */
+    public void close() throws PelopsException {
+        synchronized (flushLock) {
+            if (closed)
+                return;
+            closed = true;
+        }
+
+        scheduledExecutor.shutdownNow();
+        try {
+            scheduledExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        flush();
+    }
+
+    private void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            try {
+                scheduledExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushRequested.set(false);
+                        flushQuietly();
+                    }
+                });
+            } catch (RuntimeException e) {
+                // closing, the remaining increments are flushed by close
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            logger.warn("An exception was thrown while flushing counters", e);
+        }
+    }
+
+    private int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) & stripeMask;
+    }
+
+    private static long sum(AtomicLongArray cells) {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING)
+            sum += cells.get(i);
+        return sum;
+    }
+
+    /**
+     * The number of distinct counters waiting to be flushed.
+     * @return the number of counters
+     */
+    public int getCountersPending() {
+        return current.size.get();
+    }
+
+    public long getIncrementsReceived() {
+        return incrementsReceived.get();
+    }
+
+    public long getIncrementsFlushed() {
+        return incrementsFlushed.get();
+    }
+
+    public long getIncrementsFailed() {
+        return incrementsFailed.get();
+    }
+
+    public long getCountersFlushed() {
+        return countersFlushed.get();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public long getFlushesFailed() {
+        return flushesFailed.get();
+    }
+
+    /**
+     * The average number of increments combined into each counter mutation written to Cassandra.
+     * @return the ratio (0 if nothing has been flushed yet)
+     */
+    public double getCoalescingRatio() {
+        long counters = countersFlushed.get();
+        return counters == 0 ? 0 : (double) incrementsFlushed.get() / counters;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * The counters incremented between two flushes.
+     */
+    private class Generation {
+        private final ConcurrentMap<CounterKey, Counter> counters = new ConcurrentHashMap<CounterKey, Counter>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicIntegerArray writers = new AtomicIntegerArray((stripeMask + 1) * PADDING);
+        private final AtomicLongArray increments = new AtomicLongArray((stripeMask + 1) * PADDING);
+        private volatile boolean sealed = false;
+
+        /**
+         * Stops further increments and waits for the ones in progress to complete.
+         */
+        private void seal() {
+            sealed = true;
+            for (int i = 0; i < writers.length(); i += PADDING) {
+                while (writers.get(i) > 0)
+                    Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * A counter that starts as a single value and is striped once concurrent increments contend for it.
+     */
+    private class Counter {
+        private final AtomicLong base = new AtomicLong();
+        private final AtomicReference<AtomicLongArray> cells = new AtomicReference<AtomicLongArray>();
+
+        private void add(long value, int stripe) {
+            AtomicLongArray striped = cells.get();
+            if (striped == null) {
+                long current = base.get();
+                if (base.compareAndSet(current, current + value))
+                    return;
+                cells.compareAndSet(null, new AtomicLongArray((stripeMask + 1) * PADDING));
+                striped = cells.get();
+            }
+            striped.addAndGet(stripe * PADDING, value);
+        }
+
+        private long sum() {
+            AtomicLongArray striped = cells.get();
+            return base.get() + (striped != null ? CounterAggregator.sum(striped) : 0);
+        }
+    }
+
+    private static class CounterKey {
+        private final String colFamily;
+        private final Bytes rowKey;
+        private final Bytes superColName;
+        private final Bytes colName;
+        private final int hashCode;
+
+        private CounterKey(String colFamily, Bytes rowKey, Bytes superColName, Bytes colName) {
+            if (colFamily == null) throw new IllegalArgumentException("colFamily is a required argument");
+            if (rowKey == null) throw new IllegalArgumentException("rowKey is a required argument");
+            if (colName == null) throw new IllegalArgumentException("colName is a required argument");
+            this.colFamily = colFamily;
+            this.rowKey = rowKey;
+            this.superColName = superColName;
+            this.colName = colName;
+            int result = colFamily.hashCode();
+            result = 31 * result + rowKey.hashCode();
+            result = 31 * result + (superColName != null ? superColName.hashCode() : 0);
+            result = 31 * result + colName.hashCode();
+            this.hashCode = result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CounterKey)) return false;
+
+            CounterKey that = (CounterKey) o;
+            return hashCode == that.hashCode && colFamily.equals(that.colFamily) && rowKey.equals(that.rowKey) &&
+                    (superColName != null ? superColName.equals(that.superColName) : that.superColName == null) &&
+                    colName.equals(that.colName);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * The aggregator configuration.
+     */
+    public static class Policy {
+        private long flushIntervalMillis = 1000;
+        private int maxCounters = 10000;
+        private int stripes = Runtime.getRuntime().availableProcessors();
+        private TrafficClass trafficClass = TrafficClass.BATCH;
+
+        public Policy() {
+        }
+
+        /**
+         * @see #setFlushIntervalMillis(long)
+         */
+        public long getFlushIntervalMillis() {
+            return flushIntervalMillis;
+        }
+
+        /**
+         * How often the pending increments are flushed.
+         * @param flushIntervalMillis the interval in milliseconds (0 to only flush when the max counters is reached
+         * or when {@link CounterAggregator#flush()} is called)
+         */
+        public void setFlushIntervalMillis(long flushIntervalMillis) {
+            this.flushIntervalMillis = flushIntervalMillis;
+        }
+
+        /**
+         * @see #setMaxCounters(int)
+         */
+        public int getMaxCounters() {
+            return maxCounters;
+        }
+
+        /**
+         * The number of distinct pending counters that triggers a flush, which bounds the memory used by the
+         * aggregator and the size of the batches.
+         * @param maxCounters the number of counters
+         */
+        public void setMaxCounters(int maxCounters) {
+            this.maxCounters = maxCounters;
+        }
+
+        /**
+         * @see #setStripes(int)
+         */
+        public int getStripes() {
+            return stripes;
+        }
+
+        /**
+         * The number of cells a contended counter is split into (rounded up to a power of two).
+         * <p>Note: defaults to the number of processors.
+         * @param stripes the number of cells
+         */
+        public void setStripes(int stripes) {
+            this.stripes = stripes;
+        }
+
+        /**
+         * @see #setTrafficClass(TrafficClass)
+         */
+        public TrafficClass getTrafficClass() {
+            return trafficClass;
+        }
+
+        /**
+         * The class of traffic used to write the totals.
+         * <p>Note: defaults to {@link TrafficClass#BATCH}.
+         * @param trafficClass the traffic class
+         */
+        public void setTrafficClass(TrafficClass trafficClass) {
+            this.trafficClass = trafficClass;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("Config");
+            sb.append("{flushIntervalMillis=").append(flushIntervalMillis);
+            sb.append(", maxCounters=").append(maxCounters);
+            sb.append(", stripes=").append(stripes);
+            sb.append(", trafficClass=").append(trafficClass);
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+}
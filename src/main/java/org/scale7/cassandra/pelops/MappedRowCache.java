@@ -0,0 +1,984 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.scale7.cassandra.pelops;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.CounterColumn;
+import org.apache.cassandra.thrift.CounterSuperColumn;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SliceRange;
+import org.apache.cassandra.thrift.SuperColumn;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+import org.scale7.portability.SystemProxy;
+import org.slf4j.Logger;
+
+/**
+ * A second level cache of the rows read by {@link Selector}s, held off-heap in memory mapped segment files so that
+ * it can be much larger than the heap and survives process restarts.  It sits behind the {@link NearCache} (when
+ * there is one): reads that miss the near cache are looked up in this cache before being sent to Cassandra.  Like the
+ * near cache it's keyed on the keyspace, column family (and super column), row key and slice predicate of the read.
+ * <p>The slices are written in a compact binary form to a log of {@link Policy#getSegmentSize() fixed size}
+ * segments, located through an in-memory hash index (about 32 bytes per slice) that is rebuilt by scanning the
+ * segments when the cache is reopened.  Once {@link Policy#getMaxSegments()} segments are full the oldest segment is
+ * recycled using the clock (second chance) algorithm: the slices that have been read since they were written are
+ * copied to the start of the segment, which is then rewritten in place as the most recent segment, the others are
+ * evicted.
+ * <p>Only the column families that have been given a {@link #setColumnFamilyTtlMillis(String, long) time to live}
+ * are cached.  Since the cache outlives the process the time to live is typically long and the cache best suited to
+ * reference data that rarely changes: rows written or deleted through a {@link Mutator} or {@link RowDeletor} of a
+ * pool that uses the cache are invalidated, but writes made by other processes are only seen once the slices expire.
+ * A directory must only be used by one cache at a time.
+ * <pre>
+ * MappedRowCache rowCache = new MappedRowCache(keyspace, new File("/var/cache/myapp/rows"), null);
+ * rowCache.setColumnFamilyTtlMillis("Countries", 24 * 60 * 60 * 1000);
+ * OperandPolicy operandPolicy = new OperandPolicy().setMappedRowCache(rowCache);
+ * ...
+ * rowCache.close();
+ * </pre>
+ */
+public class MappedRowCache extends RowCache implements MappedRowCacheMBean {
+    private static final Logger logger = SystemProxy.getLoggerFromFactory(MappedRowCache.class);
+
+    // segment layout: id of the segment (long, the segments are ordered by id), records
+    static final int SEGMENT_HEADER_SIZE = 8;
+    // record layout: payload length (int), state (byte), referenced (byte), payload checksum (int), expires at (long),
+    // key hash (long), row hash (long), location of the previous record of the row (long), key length (int), payload
+    static final int RECORD_HEADER_SIZE = 46;
+    private static final int STATE_OFFSET = 4;
+    private static final int REFERENCED_OFFSET = 5;
+    private static final int CHECKSUM_OFFSET = 6;
+    private static final int EXPIRES_AT_OFFSET = 10;
+    private static final int KEY_HASH_OFFSET = 18;
+    private static final int ROW_HASH_OFFSET = 26;
+    private static final int PREVIOUS_OFFSET = 34;
+    private static final int KEY_LENGTH_OFFSET = 42;
+    private static final byte STATE_VALID = 1;
+    private static final byte STATE_INVALID = 2;
+    private static final long NO_LOCATION = -1;
+
+    private static final byte TYPE_COLUMN = 1;
+    private static final byte TYPE_SUPER_COLUMN = 2;
+    private static final byte TYPE_COUNTER_COLUMN = 3;
+    private static final byte TYPE_COUNTER_SUPER_COLUMN = 4;
+
+    private static final String SEGMENT_PREFIX = "rows-";
+    private static final String SEGMENT_SUFFIX = ".db";
+
+    private final File directory;
+    private final Policy policy;
+
+    // guarded by the lock of this object
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private final Map<Long, Segment> segmentsById = new HashMap<Long, Segment>();
+    private final LongIndex keyIndex = new LongIndex();
+    private final LongIndex rowIndex = new LongIndex();
+    private long nextSegmentId;
+    private boolean closed = false;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong secondChances = new AtomicLong();
+
+    /**
+     * Opens the cache in the directory, loading the slices cached by a previous cache.
+     * @param name the name of the cache (used to register the MBean)
+     * @param directory the directory that holds the segments (created if required)
+     * @param policy the cache config (if null the defaults are used)
+     * @throws PelopsException if the cache couldn't be opened
+     */
+    public MappedRowCache(String name, File directory, Policy policy) throws PelopsException {
+        super(name, JMX_MBEAN_OBJ_NAME);
+        if (directory == null) throw new IllegalArgumentException("directory is a required argument");
+        this.directory = directory;
+        this.policy = policy != null ? policy : new Policy();
+
+        logger.info("Initialising mapped row cache '{}' in '{}' with configuration policy: {}", new Object[] {name, directory, this.policy});
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new PelopsException("Failed to create cache directory '" + directory + "'");
+
+        try {
+            loadSegments();
+        } catch (IOException e) {
+            throw new PelopsException("Failed to open the cache in '" + directory + "'", e);
+        }
+
+        registerMBean();
+    }
+
+    /**
+     * Forces the segments to disk and closes them.  The cached slices are loaded when a cache is next opened on the
+     * same directory.
+     */
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            segment.close();
+        }
+        segments.clear();
+        segmentsById.clear();
+        keyIndex.clear();
+        rowIndex.clear();
+
+        unregisterMBean();
+    }
+
+    /**
+     * Serializes the key of a slice of a row.
+     * @param keyspace the keyspace
+     * @param colParent the column family (and super column) of the slice
+     * @param rowKey the row key
+     * @param colPredicate the predicate of the slice
+     * @return the key
+     */
+    static byte[] newKey(String keyspace, ColumnParent colParent, ByteBuffer rowKey, SlicePredicate colPredicate) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeUTF(keyspace);
+            out.writeUTF(colParent.getColumn_family());
+            writeBytes(out, colParent.isSetSuper_column() ? colParent.bufferForSuper_column() : null);
+            writeBytes(out, rowKey);
+            if (colPredicate.isSetColumn_names()) {
+                out.writeByte(1);
+                out.writeInt(colPredicate.getColumn_names().size());
+                for (ByteBuffer colName : colPredicate.getColumn_names())
+                    writeBytes(out, colName);
+            } else {
+                SliceRange range = colPredicate.getSlice_range();
+                out.writeByte(2);
+                writeBytes(out, range.bufferForStart());
+                writeBytes(out, range.bufferForFinish());
+                out.writeBoolean(range.isReversed());
+                out.writeInt(range.getCount());
+            }
+        } catch (IOException e) {
+            throw new PelopsException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    List<ColumnOrSuperColumn> read(String keyspace, ColumnParent colParent, ByteBuffer rowKey, SlicePredicate colPredicate, ISliceReader source) throws PelopsException {
+        byte[] key = newKey(keyspace, colParent, rowKey, colPredicate);
+        List<ColumnOrSuperColumn> result = get(key);
+        if (result != null)
+            return result;
+
+        long generation = getGeneration(keyspace, colParent.getColumn_family(), rowKey);
+        result = source.read();
+        put(key, keyspace, colParent.getColumn_family(), rowKey, result, generation);
+        return result;
+    }
+
+    /**
+     * Returns the cached slice.
+     * @param key the key of the slice (see {@link #newKey})
+     * @return the slice or null if it isn't cached (or has expired)
+     */
+    List<ColumnOrSuperColumn> get(byte[] key) {
+        long keyHash = hash(ByteBuffer.wrap(key));
+        byte[] value = null;
+        synchronized (this) {
+            long location = keyIndex.get(keyHash);
+            if (location != NO_LOCATION && !closed) {
+                Segment segment = segmentsById.get(location >>> 32);
+                int position = (int) location;
+                if (segment.buffer.getLong(position + EXPIRES_AT_OFFSET) <= System.currentTimeMillis()) {
+                    invalidate(segment, position);
+                    expirations.incrementAndGet();
+                } else if (Arrays.equals(key, segment.getKey(position))) {
+                    value = segment.getValue(position);
+                    segment.buffer.put(position + REFERENCED_OFFSET, (byte) 1);
+                }
+            }
+        }
+
+        if (value == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return deserialize(value);
+    }
+
+    /**
+     * Caches the slice unless the row has been invalidated since the read of the slice started.
+     * @param key the key of the slice (see {@link #newKey})
+     * @param keyspace the keyspace
+     * @param columnFamily the column family
+     * @param rowKey the row key
+     * @param value the slice
+     * @param generation the generation of the row before it was read (see {@link #getGeneration})
+     */
+    void put(byte[] key, String keyspace, String columnFamily, ByteBuffer rowKey, List<ColumnOrSuperColumn> value, long generation) {
+        long ttlMillis = getColumnFamilyTtlMillis(columnFamily);
+        if (ttlMillis <= 0)
+            return;
+
+        byte[] serialized = serialize(value);
+        int length = key.length + serialized.length;
+        if (RECORD_HEADER_SIZE + length > policy.getSegmentSize())
+            return;
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.putInt(length);
+        record.put(STATE_VALID);
+        record.put((byte) 0);
+        CRC32 checksum = new CRC32();
+        checksum.update(key);
+        checksum.update(serialized);
+        record.putInt((int) checksum.getValue());
+        record.putLong(System.currentTimeMillis() + ttlMillis);
+        record.putLong(hash(ByteBuffer.wrap(key)));
+        record.putLong(rowHash(keyspace, columnFamily, rowKey));
+        record.putLong(NO_LOCATION);
+        record.putInt(key.length);
+        record.put(key);
+        record.put(serialized);
+
+        synchronized (this) {
+            if (closed || getGeneration(keyspace, columnFamily, rowKey) != generation)
+                return;
+
+            try {
+                append(record.array());
+            } catch (IOException e) {
+                logger.warn("Failed to write to mapped row cache '{}'. Cause of failure is {}", getName(), e);
+            }
+        }
+    }
+
+    @Override
+    void invalidateRow(String keyspace, String columnFamily, ByteBuffer rowKey) {
+        long rowHash = rowHash(keyspace, columnFamily, rowKey);
+        synchronized (this) {
+            // follow the chain of records of the row from the most recent one
+            long location = rowIndex.remove(rowHash);
+            while (location != NO_LOCATION) {
+                Segment segment = segmentsById.get(location >>> 32);
+                int position = (int) location;
+                if (segment == null || position >= segment.writePosition || segment.buffer.getLong(position + ROW_HASH_OFFSET) != rowHash)
+                    break;
+                if (segment.buffer.get(position + STATE_OFFSET) == STATE_VALID) {
+                    invalidate(segment, position);
+                    invalidations.incrementAndGet();
+                }
+                location = segment.buffer.getLong(position + PREVIOUS_OFFSET);
+            }
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        invalidateGenerations();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                for (int position = SEGMENT_HEADER_SIZE; position < segment.writePosition; position += RECORD_HEADER_SIZE + segment.buffer.getInt(position)) {
+                    if (segment.buffer.get(position + STATE_OFFSET) == STATE_VALID) {
+                        segment.buffer.put(position + STATE_OFFSET, STATE_INVALID);
+                        invalidations.incrementAndGet();
+                    }
+                }
+            }
+            keyIndex.clear();
+            rowIndex.clear();
+        }
+    }
+
+    /**
+     * Marks the record invalid (so that it isn't loaded again when the cache is reopened) and removes it from the
+     * indexes.
+     */
+    private void invalidate(Segment segment, int position) {
+        segment.buffer.put(position + STATE_OFFSET, STATE_INVALID);
+        unindex(segment, position);
+    }
+
+    /**
+     * Removes the record from the key index, and from the row index if it's the most recent record of its row in
+     * which case the previous record of the row (if its segment is still in use) becomes the most recent one.
+     */
+    private void unindex(Segment segment, int position) {
+        long location = location(segment, position);
+        long keyHash = segment.buffer.getLong(position + KEY_HASH_OFFSET);
+        if (keyIndex.get(keyHash) == location)
+            keyIndex.remove(keyHash);
+
+        long rowHash = segment.buffer.getLong(position + ROW_HASH_OFFSET);
+        if (rowIndex.get(rowHash) == location) {
+            long previous = segment.buffer.getLong(position + PREVIOUS_OFFSET);
+            if (previous != NO_LOCATION && segmentsById.containsKey(previous >>> 32))
+                rowIndex.put(rowHash, previous);
+            else
+                rowIndex.remove(rowHash);
+        }
+    }
+
+    /**
+     * Appends the record to the active segment, recycling the oldest segment if the active segment is full.
+     */
+    private void append(byte[] record) throws IOException {
+        for (int attempt = 0; attempt <= policy.getMaxSegments(); attempt++) {
+            Segment active = segments.isEmpty() ? null : segments.getLast();
+            if (active != null && active.writePosition + record.length <= active.buffer.capacity()) {
+                write(active, record);
+                return;
+            }
+
+            if (segments.size() < policy.getMaxSegments())
+                createSegment();
+            else
+                recycleOldestSegment();
+        }
+        logger.debug("Failed to make room for a record of {} bytes in mapped row cache '{}'", record.length, getName());
+    }
+
+    private void write(Segment segment, byte[] record) {
+        int position = segment.writePosition;
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(position);
+        buffer.put(record);
+        segment.writePosition += record.length;
+        // marks the end of the records in case the segment is being rewritten
+        if (segment.writePosition + 4 <= segment.buffer.capacity())
+            segment.buffer.putInt(segment.writePosition, 0);
+
+        long location = location(segment, position);
+        long keyHash = segment.buffer.getLong(position + KEY_HASH_OFFSET);
+        long rowHash = segment.buffer.getLong(position + ROW_HASH_OFFSET);
+        index(keyHash, rowHash, location, segment, position);
+    }
+
+    /**
+     * Adds the record to the indexes, invalidating the record it replaces and linking it to the previous record of
+     * its row.
+     */
+    private void index(long keyHash, long rowHash, long location, Segment segment, int position) {
+        long replaced = keyIndex.put(keyHash, location);
+        if (replaced != NO_LOCATION) {
+            Segment replacedSegment = segmentsById.get(replaced >>> 32);
+            if (replacedSegment != null)
+                replacedSegment.buffer.put((int) replaced + STATE_OFFSET, STATE_INVALID);
+        }
+        segment.buffer.putLong(position + PREVIOUS_OFFSET, rowIndex.put(rowHash, location));
+    }
+
+    private void createSegment() throws IOException {
+        File file = new File(directory, SEGMENT_PREFIX + nextSegmentId + SEGMENT_SUFFIX);
+        Segment segment = new Segment(file, policy.getSegmentSize());
+        segment.rewrite(nextSegmentId++);
+        segments.add(segment);
+        segmentsById.put(segment.id, segment);
+        logger.debug("Created mapped row cache segment '{}'", file);
+    }
+
+    /**
+     * Rewrites the oldest segment in place as the most recent segment, giving the slices that have been read since
+     * they were written a second chance by copying them to the start of the segment.  The segment is given a new id
+     * so that the locations of its previous records aren't mistaken for the locations of the new ones.
+     */
+    private void recycleOldestSegment() throws IOException {
+        Segment oldest = segments.removeFirst();
+        segmentsById.remove(oldest.id);
+        List<byte[]> survivors = new ArrayList<byte[]>();
+        long now = System.currentTimeMillis();
+        for (int position = SEGMENT_HEADER_SIZE; position < oldest.writePosition; position += RECORD_HEADER_SIZE + oldest.buffer.getInt(position)) {
+            unindex(oldest, position);
+            if (oldest.buffer.get(position + STATE_OFFSET) != STATE_VALID)
+                continue;
+
+            if (oldest.buffer.getLong(position + EXPIRES_AT_OFFSET) <= now) {
+                expirations.incrementAndGet();
+            } else if (oldest.buffer.get(position + REFERENCED_OFFSET) != 0) {
+                byte[] record = new byte[RECORD_HEADER_SIZE + oldest.buffer.getInt(position)];
+                ByteBuffer buffer = oldest.buffer.duplicate();
+                buffer.position(position);
+                buffer.get(record);
+                record[REFERENCED_OFFSET] = 0;
+                survivors.add(record);
+            } else {
+                evictions.incrementAndGet();
+            }
+        }
+
+        oldest.rewrite(nextSegmentId++);
+        segments.add(oldest);
+        segmentsById.put(oldest.id, oldest);
+        for (byte[] record : survivors)
+            write(oldest, record);
+        secondChances.addAndGet(survivors.size());
+    }
+
+    /**
+     * Loads the segments left by a previous cache and rebuilds the indexes.
+     */
+    private void loadSegments() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        // the files are named after the id of the segment when it was created, the id changes when it's rewritten
+        final Map<File, Long> ids = new HashMap<File, Long>();
+        List<File> segmentFiles = new ArrayList<File>();
+        for (File file : files) {
+            if (file.length() != policy.getSegmentSize()) {
+                logger.info("Deleting mapped row cache segment '{}' written with a different segment size", file);
+                if (!file.delete())
+                    logger.warn("Failed to delete mapped row cache segment '{}'", file);
+                continue;
+            }
+            long id = Segment.readId(file);
+            ids.put(file, id);
+            segmentFiles.add(file);
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+        }
+        Collections.sort(segmentFiles, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return ids.get(a).compareTo(ids.get(b));
+            }
+        });
+
+        // only keep the most recent segments if the max number of segments has been reduced
+        while (segmentFiles.size() > policy.getMaxSegments()) {
+            File file = segmentFiles.remove(0);
+            if (!file.delete())
+                logger.warn("Failed to delete mapped row cache segment '{}'", file);
+        }
+
+        int records = 0;
+        long now = System.currentTimeMillis();
+        for (File file : segmentFiles) {
+            Segment segment = new Segment(file, policy.getSegmentSize());
+            segments.add(segment);
+            segmentsById.put(segment.id, segment);
+            segment.scan();
+            for (int position = SEGMENT_HEADER_SIZE; position < segment.writePosition; position += RECORD_HEADER_SIZE + segment.buffer.getInt(position)) {
+                if (segment.buffer.get(position + STATE_OFFSET) != STATE_VALID)
+                    continue;
+                if (segment.buffer.getLong(position + EXPIRES_AT_OFFSET) <= now) {
+                    segment.buffer.put(position + STATE_OFFSET, STATE_INVALID);
+                    continue;
+                }
+                // the row hash index is restored from the links written with the records
+                long location = location(segment, position);
+                long replaced = keyIndex.put(segment.buffer.getLong(position + KEY_HASH_OFFSET), location);
+                if (replaced != NO_LOCATION)
+                    segmentsById.get(replaced >>> 32).buffer.put((int) replaced + STATE_OFFSET, STATE_INVALID);
+                else
+                    records++;
+                rowIndex.put(segment.buffer.getLong(position + ROW_HASH_OFFSET), location);
+            }
+        }
+        if (!segmentFiles.isEmpty())
+            logger.info("Loaded {} slices from {} mapped row cache segments", records, segmentFiles.size());
+    }
+
+    private static long location(Segment segment, int position) {
+        return (segment.id << 32) | position;
+    }
+
+    private static long hash(ByteBuffer bytes) {
+        long hash = TokenRing.murmur3(bytes, bytes.position(), bytes.remaining(), 0)[0];
+        return hash != LongIndex.EMPTY ? hash : 1;
+    }
+
+    private static long rowHash(String keyspace, String columnFamily, ByteBuffer rowKey) {
+        byte[] ks = Bytes.fromUTF8(keyspace).toByteArray();
+        byte[] cf = Bytes.fromUTF8(columnFamily).toByteArray();
+        ByteBuffer bytes = ByteBuffer.allocate(ks.length + 1 + cf.length + 1 + rowKey.remaining());
+        bytes.put(ks).put((byte) 0).put(cf).put((byte) 0).put(rowKey.duplicate());
+        bytes.flip();
+        return hash(bytes);
+    }
+
+    static byte[] serialize(List<ColumnOrSuperColumn> value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(value.size());
+            for (ColumnOrSuperColumn cosc : value) {
+                if (cosc.isSetColumn()) {
+                    out.writeByte(TYPE_COLUMN);
+                    writeColumn(out, cosc.getColumn());
+                } else if (cosc.isSetSuper_column()) {
+                    SuperColumn superColumn = cosc.getSuper_column();
+                    out.writeByte(TYPE_SUPER_COLUMN);
+                    writeBytes(out, superColumn.bufferForName());
+                    out.writeInt(superColumn.getColumns().size());
+                    for (Column column : superColumn.getColumns())
+                        writeColumn(out, column);
+                } else if (cosc.isSetCounter_column()) {
+                    out.writeByte(TYPE_COUNTER_COLUMN);
+                    writeBytes(out, cosc.getCounter_column().bufferForName());
+                    out.writeLong(cosc.getCounter_column().getValue());
+                } else {
+                    CounterSuperColumn superColumn = cosc.getCounter_super_column();
+                    out.writeByte(TYPE_COUNTER_SUPER_COLUMN);
+                    writeBytes(out, superColumn.bufferForName());
+                    out.writeInt(superColumn.getColumns().size());
+                    for (CounterColumn column : superColumn.getColumns()) {
+                        writeBytes(out, column.bufferForName());
+                        out.writeLong(column.getValue());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new PelopsException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static List<ColumnOrSuperColumn> deserialize(byte[] value) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+        try {
+            int count = in.readInt();
+            List<ColumnOrSuperColumn> result = new ArrayList<ColumnOrSuperColumn>(count);
+            for (int i = 0; i < count; i++) {
+                byte type = in.readByte();
+                if (type == TYPE_COLUMN) {
+                    result.add(new ColumnOrSuperColumn().setColumn(readColumn(in)));
+                } else if (type == TYPE_SUPER_COLUMN) {
+                    ByteBuffer superColName = readBytes(in);
+                    int columnCount = in.readInt();
+                    List<Column> columns = new ArrayList<Column>(columnCount);
+                    for (int j = 0; j < columnCount; j++)
+                        columns.add(readColumn(in));
+                    result.add(new ColumnOrSuperColumn().setSuper_column(new SuperColumn(superColName, columns)));
+                } else if (type == TYPE_COUNTER_COLUMN) {
+                    ByteBuffer colName = readBytes(in);
+                    result.add(new ColumnOrSuperColumn().setCounter_column(new CounterColumn(colName, in.readLong())));
+                } else {
+                    ByteBuffer superColName = readBytes(in);
+                    int columnCount = in.readInt();
+                    List<CounterColumn> columns = new ArrayList<CounterColumn>(columnCount);
+                    for (int j = 0; j < columnCount; j++) {
+                        ByteBuffer colName = readBytes(in);
+                        columns.add(new CounterColumn(colName, in.readLong()));
+                    }
+                    result.add(new ColumnOrSuperColumn().setCounter_super_column(new CounterSuperColumn(superColName, columns)));
+                }
+            }
+            return result;
+        } catch (IOException e) {
+            throw new PelopsException(e);
+        }
+    }
+
+    private static void writeColumn(DataOutputStream out, Column column) throws IOException {
+        writeBytes(out, column.bufferForName());
+        writeBytes(out, column.isSetValue() ? column.bufferForValue() : null);
+        out.writeBoolean(column.isSetTimestamp());
+        if (column.isSetTimestamp())
+            out.writeLong(column.getTimestamp());
+        out.writeInt(column.isSetTtl() ? column.getTtl() : -1);
+    }
+
+    private static Column readColumn(DataInputStream in) throws IOException {
+        Column column = new Column(readBytes(in));
+        ByteBuffer value = readBytes(in);
+        if (value != null)
+            column.setValue(value);
+        if (in.readBoolean())
+            column.setTimestamp(in.readLong());
+        int ttl = in.readInt();
+        if (ttl >= 0)
+            column.setTtl(ttl);
+        return column;
+    }
+
+    private static void writeBytes(DataOutputStream out, ByteBuffer bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.remaining());
+        if (bytes.hasArray()) {
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        } else {
+            byte[] copy = new byte[bytes.remaining()];
+            bytes.duplicate().get(copy);
+            out.write(copy);
+        }
+    }
+
+    private static ByteBuffer readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hits = getHits();
+        long requests = hits + getMisses();
+        return requests > 0 ? (double) hits / requests : 0;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public long getSecondChances() {
+        return secondChances.get();
+    }
+
+    @Override
+    public synchronized int getSize() {
+        return keyIndex.size();
+    }
+
+    @Override
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * The number of rows in the row index, the rows with at least one slice cached.
+     */
+    synchronized int getIndexedRowCount() {
+        return rowIndex.size();
+    }
+
+    @Override
+    public synchronized long getUsedBytes() {
+        long usedBytes = 0;
+        for (Segment segment : segments)
+            usedBytes += segment.writePosition;
+        return usedBytes;
+    }
+
+    @Override
+    public int getSegmentSize() {
+        return policy.getSegmentSize();
+    }
+
+    @Override
+    public int getMaxSegments() {
+        return policy.getMaxSegments();
+    }
+
+    /**
+     * A memory mapped segment of the cache.
+     */
+    private static class Segment {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private long id;
+        private int writePosition;
+
+        private Segment(File file, int size) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            if (raf.length() < size)
+                raf.setLength(size);
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            this.id = buffer.getLong(0);
+        }
+
+        /**
+         * Reads the id of the segment in the file without mapping it.
+         */
+        private static long readId(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                return raf.readLong();
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * Empties the segment and gives it a new id.
+         */
+        private void rewrite(long id) {
+            this.id = id;
+            buffer.putLong(0, id);
+            buffer.putInt(SEGMENT_HEADER_SIZE, 0);
+            writePosition = SEGMENT_HEADER_SIZE;
+        }
+
+        /**
+         * Finds the end of the segment.  A record with an invalid length or checksum (a partially written record)
+         * marks the end of the segment.
+         */
+        private void scan() {
+            int position = SEGMENT_HEADER_SIZE;
+            while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + RECORD_HEADER_SIZE + length > buffer.capacity())
+                    break;
+
+                byte[] payload = new byte[length];
+                ByteBuffer payloadBuffer = buffer.duplicate();
+                payloadBuffer.position(position + RECORD_HEADER_SIZE);
+                payloadBuffer.get(payload);
+                CRC32 checksum = new CRC32();
+                checksum.update(payload);
+                if ((int) checksum.getValue() != buffer.getInt(position + CHECKSUM_OFFSET)) {
+                    logger.warn("Found a corrupt record at position {} of mapped row cache segment '{}', ignoring the rest of the segment", position, file);
+                    break;
+                }
+                position += RECORD_HEADER_SIZE + length;
+            }
+            writePosition = position;
+        }
+
+        private byte[] getKey(int position) {
+            byte[] key = new byte[buffer.getInt(position + KEY_LENGTH_OFFSET)];
+            ByteBuffer keyBuffer = buffer.duplicate();
+            keyBuffer.position(position + RECORD_HEADER_SIZE);
+            keyBuffer.get(key);
+            return key;
+        }
+
+        private byte[] getValue(int position) {
+            int keyLength = buffer.getInt(position + KEY_LENGTH_OFFSET);
+            byte[] value = new byte[buffer.getInt(position) - keyLength];
+            ByteBuffer valueBuffer = buffer.duplicate();
+            valueBuffer.position(position + RECORD_HEADER_SIZE + keyLength);
+            valueBuffer.get(value);
+            return value;
+        }
+
+        private void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close mapped row cache segment '{}'", file);
+            }
+        }
+    }
+
+    /**
+     * An open addressing hash map of longs to longs (locations), about 16 bytes per entry.
+     */
+    static class LongIndex {
+        static final long EMPTY = 0;
+
+        private long[] keys = new long[16];
+        private long[] values = new long[16];
+        private int size;
+
+        /**
+         * @return the value of the key or {@link MappedRowCache#NO_LOCATION} if there is none
+         */
+        long get(long key) {
+            int mask = keys.length - 1;
+            for (int slot = slot(key, mask); keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+                if (keys[slot] == key)
+                    return values[slot];
+            }
+            return NO_LOCATION;
+        }
+
+        /**
+         * @return the previous value of the key or {@link MappedRowCache#NO_LOCATION} if there was none
+         */
+        long put(long key, long value) {
+            if ((size + 1) * 4 > keys.length * 3)
+                resize(keys.length * 2);
+
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            for (; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    long previous = values[slot];
+                    values[slot] = value;
+                    return previous;
+                }
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+            return NO_LOCATION;
+        }
+
+        /**
+         * @return the value of the removed key or {@link MappedRowCache#NO_LOCATION} if there was none
+         */
+        long remove(long key) {
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            for (; keys[slot] != key; slot = (slot + 1) & mask) {
+                if (keys[slot] == EMPTY)
+                    return NO_LOCATION;
+            }
+            long value = values[slot];
+            size--;
+
+            // shift back the following entries of the cluster that would no longer be found
+            int gap = slot;
+            for (int next = (gap + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+                int home = slot(keys[next], mask);
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    keys[gap] = keys[next];
+                    values[gap] = values[next];
+                    gap = next;
+                }
+            }
+            keys[gap] = EMPTY;
+            return value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            keys = new long[16];
+            values = new long[16];
+            size = 0;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[capacity];
+            values = new long[capacity];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY)
+                    put(oldKeys[i], oldValues[i]);
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            return (int) (key ^ (key >>> 32)) & mask;
+        }
+    }
+
+    /**
+     * The cache configuration.
+     */
+    public static class Policy {
+        private int segmentSize = 64 * 1024 * 1024;
+        private int maxSegments = 16;
+
+        public Policy() {
+        }
+
+        /**
+         * @see #setSegmentSize(int)
+         */
+        public int getSegmentSize() {
+            return segmentSize;
+        }
+
+        /**
+         * The size of each segment (file).  Slices larger than a segment aren't cached.  Segments left by a previous
+         * cache with a different segment size are discarded.
+         * @param segmentSize the number of bytes
+         */
+        public void setSegmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+        }
+
+        /**
+         * @see #setMaxSegments(int)
+         */
+        public int getMaxSegments() {
+            return maxSegments;
+        }
+
+        /**
+         * The max number of segments, the capacity of the cache is the max number of segments times the segment size.
+         * @param maxSegments the number of segments
+         */
+        public void setMaxSegments(int maxSegments) {
+            this.maxSegments = maxSegments;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("Config");
+            sb.append("{segmentSize=").append(segmentSize);
+            sb.append(", maxSegments=").append(maxSegments);
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.scale7.cassandra.pelops;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SuperColumn;
+
+/**
+ * Collapses the mutations of a row in a column family to the ones that would take effect, resolving conflicting
+ * writes and deletes of the same column (or sub column) the same way Cassandra does: the highest time stamp wins,
+ * deletes win ties against writes and the greater value wins ties between writes.  The remaining column deletes are
+ * merged into a single {@link Deletion} per super column and time stamp.
+ * <p>Only mutations that are known to be superseded by another mutation in the list are removed.  Counter mutations,
+ * slice range deletes and deletes of entire super columns are kept as they are.
+ */
+class MutationCompactor {
+    /**
+     * Compacts the mutations.
+     * @param mutations the mutations of a row in a column family
+     * @return the compacted mutations
+     */
+    static List<Mutation> compact(List<Mutation> mutations) {
+        Map<ColumnKey, Write> writes = new LinkedHashMap<ColumnKey, Write>();
+        Map<ColumnKey, Long> deletes = new LinkedHashMap<ColumnKey, Long>();
+        List<Mutation> others = new ArrayList<Mutation>();
+
+        for (Mutation mutation : mutations) {
+            if (mutation.isSetColumn_or_supercolumn()) {
+                ColumnOrSuperColumn cosc = mutation.getColumn_or_supercolumn();
+                if (cosc.isSetColumn() && cosc.getColumn().isSetTimestamp()) {
+                    addWrite(writes, new ColumnKey(null, cosc.getColumn().name), cosc.getColumn(), mutation);
+                } else if (cosc.isSetSuper_column() && isTimestamped(cosc.getSuper_column())) {
+                    for (Column column : cosc.getSuper_column().getColumns())
+                        addWrite(writes, new ColumnKey(cosc.getSuper_column().name, column.name), column, null);
+                } else {
+                    others.add(mutation);
+                }
+            } else if (isColumnDelete(mutation)) {
+                Deletion deletion = mutation.getDeletion();
+                for (ByteBuffer name : deletion.getPredicate().getColumn_names()) {
+                    ColumnKey key = new ColumnKey(deletion.super_column, name);
+                    Long timestamp = deletes.get(key);
+                    if (timestamp == null || timestamp < deletion.getTimestamp())
+                        deletes.put(key, deletion.getTimestamp());
+                }
+            } else {
+                others.add(mutation);
+            }
+        }
+
+        // a column that is both written and deleted only needs the most recent of the two
+        Iterator<Map.Entry<ColumnKey, Long>> iterator = deletes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<ColumnKey, Long> delete = iterator.next();
+            Write write = writes.get(delete.getKey());
+            if (write == null)
+                continue;
+            if (write.column.getTimestamp() > delete.getValue())
+                iterator.remove();
+            else
+                writes.remove(delete.getKey());
+        }
+
+        List<Mutation> compacted = new ArrayList<Mutation>(writes.size() + others.size() + 1);
+        Map<ByteBuffer, SuperColumn> superColumns = new LinkedHashMap<ByteBuffer, SuperColumn>();
+        for (Map.Entry<ColumnKey, Write> write : writes.entrySet()) {
+            ByteBuffer superColumnName = write.getKey().superColumnName;
+            if (superColumnName == null) {
+                compacted.add(write.getValue().mutation);
+                continue;
+            }
+            SuperColumn superColumn = superColumns.get(superColumnName);
+            if (superColumn == null) {
+                superColumn = new SuperColumn(superColumnName, new ArrayList<Column>());
+                superColumns.put(superColumnName, superColumn);
+                compacted.add(new Mutation().setColumn_or_supercolumn(new ColumnOrSuperColumn().setSuper_column(superColumn)));
+            }
+            superColumn.getColumns().add(write.getValue().column);
+        }
+
+        Map<DeletionKey, Deletion> deletions = new LinkedHashMap<DeletionKey, Deletion>();
+        for (Map.Entry<ColumnKey, Long> delete : deletes.entrySet()) {
+            DeletionKey key = new DeletionKey(delete.getKey().superColumnName, delete.getValue());
+            Deletion deletion = deletions.get(key);
+            if (deletion == null) {
+                deletion = new Deletion().setTimestamp(delete.getValue())
+                        .setPredicate(new SlicePredicate().setColumn_names(new ArrayList<ByteBuffer>()));
+                if (key.superColumnName != null)
+                    deletion.setSuper_column(key.superColumnName);
+                deletions.put(key, deletion);
+                compacted.add(new Mutation().setDeletion(deletion));
+            }
+            deletion.getPredicate().getColumn_names().add(delete.getKey().name);
+        }
+
+        compacted.addAll(others);
+        return compacted;
+    }
+
+    private static void addWrite(Map<ColumnKey, Write> writes, ColumnKey key, Column column, Mutation mutation) {
+        Write write = writes.get(key);
+        if (write == null || supersedes(column, write.column))
+            writes.put(key, new Write(column, mutation != null ? mutation :
+                    new Mutation().setColumn_or_supercolumn(new ColumnOrSuperColumn().setColumn(column))));
+    }
+
+    private static boolean supersedes(Column column, Column other) {
+        if (column.getTimestamp() != other.getTimestamp())
+            return column.getTimestamp() > other.getTimestamp();
+        return column.value != null && (other.value == null || column.value.compareTo(other.value) > 0);
+    }
+
+    private static boolean isTimestamped(SuperColumn superColumn) {
+        if (superColumn.getColumns() == null || superColumn.getColumns().isEmpty())
+            return false;
+        for (Column column : superColumn.getColumns())
+            if (!column.isSetTimestamp())
+                return false;
+        return true;
+    }
+
+    private static boolean isColumnDelete(Mutation mutation) {
+        if (!mutation.isSetDeletion())
+            return false;
+        Deletion deletion = mutation.getDeletion();
+        return deletion.isSetTimestamp() && deletion.isSetPredicate() && deletion.getPredicate().isSetColumn_names()
+                && !deletion.getPredicate().isSetSlice_range();
+    }
+
+    private static class Write {
+        private final Column column;
+        private final Mutation mutation;
+
+        private Write(Column column, Mutation mutation) {
+            this.column = column;
+            this.mutation = mutation;
+        }
+    }
+
+    /**
+     * Identifies a column or a sub column of a super column.
+     */
+    private static class ColumnKey {
+        private final ByteBuffer superColumnName;
+        private final ByteBuffer name;
+
+        private ColumnKey(ByteBuffer superColumnName, ByteBuffer name) {
+            this.superColumnName = superColumnName;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ColumnKey)) return false;
+            ColumnKey key = (ColumnKey) o;
+            return (superColumnName == null ? key.superColumnName == null : superColumnName.equals(key.superColumnName))
+                    && name.equals(key.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (superColumnName != null ? superColumnName.hashCode() : 0) + name.hashCode();
+        }
+    }
+
+    /**
+     * Identifies the deletes that can be merged into a single deletion.
+     */
+    private static class DeletionKey {
+        private final ByteBuffer superColumnName;
+        private final long timestamp;
+
+        private DeletionKey(ByteBuffer superColumnName, long timestamp) {
+            this.superColumnName = superColumnName;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof DeletionKey)) return false;
+            DeletionKey key = (DeletionKey) o;
+            return (superColumnName == null ? key.superColumnName == null : superColumnName.equals(key.superColumnName))
+                    && timestamp == key.timestamp;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (superColumnName != null ? superColumnName.hashCode() : 0) + (int) (timestamp ^ (timestamp >>> 32));
+        }
+    }
+}
@@ -36,9 +36,18 @@ import static org.scale7.cassandra.pelops.Validation.validateCounterColumns;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.cassandra.thrift.Column;
 import org.apache.cassandra.thrift.ColumnOrSuperColumn;
@@ -49,6 +58,7 @@ import org.apache.cassandra.thrift.Deletion;
 import org.apache.cassandra.thrift.Mutation;
 import org.apache.cassandra.thrift.SlicePredicate;
 import org.apache.cassandra.thrift.SuperColumn;
+import org.scale7.cassandra.pelops.exceptions.PartialFailureException;
 import org.scale7.cassandra.pelops.exceptions.PelopsException;
 import org.scale7.cassandra.pelops.pool.IThriftPool;
 
@@ -85,11 +95,206 @@ public class Mutator extends Operand {
 
     /**
      * Execute the mutations that have been specified by sending them to Cassandra in a single batch.
+     * <p>Batches larger than the {@link OperandPolicy#getMaxBatchBytes() max batch size} or touching more than the
+     * {@link OperandPolicy#getMaxBatchRows() max batch rows} are transparently split into several batch_mutate calls,
+     * executed either in parallel or in sequence as dictated by {@link OperandPolicy#isExecuteBatchesInParallel()}.
+     * If some of the calls fail a {@link PartialFailureException} listing the rows that failed is thrown (when
+     * executed in sequence the calls following a failed call aren't attempted).
      * @param cLevel                    The Cassandra consistency level to be used
      * @param operandPolicy             The policy to use for this operation
      * @throws PelopsException
      */
     public void execute(final ConsistencyLevel cLevel, OperandPolicy operandPolicy) throws PelopsException {
+        if (operandPolicy.isCompactMutations())
+            compact();
+
+        if (!isSplitRequired(operandPolicy)) {
+            execute(batch, cLevel, operandPolicy, null);
+        } else {
+            List<SubBatch> subBatches = new ArrayList<SubBatch>();
+            split(batch.keySet(), null, operandPolicy, subBatches);
+            execute(subBatches, cLevel, operandPolicy, operandPolicy.isExecuteBatchesInParallel());
+        }
+        executed = true;
+    }
+
+    /**
+     * Execute the mutations that have been specified by splitting them into one batch per node that owns the mutated
+     * rows and sending the batches directly to those nodes concurrently.  This saves the coordinator of a single large
+     * batch from having to forward most of it to the other nodes in the ring.
+     * <p>The batches are executed independently, if some of them fail a {@link PartialFailureException} listing the
+     * rows that failed is thrown once all of them have completed (the mutations of the other rows have been applied).
+     * @param cLevel                    The Cassandra consistency level to be used
+     * @param ring                      The ring used to locate the nodes that own the rows
+     * @throws PelopsException
+     */
+    public void execute(final ConsistencyLevel cLevel, TokenRing ring) throws PelopsException {
+        execute(cLevel, ring, thrift.getOperandPolicy());
+    }
+
+    /**
+     * Execute the mutations that have been specified by splitting them into one batch per node that owns the mutated
+     * rows and sending the batches directly to those nodes concurrently.  This saves the coordinator of a single large
+     * batch from having to forward most of it to the other nodes in the ring.
+     * <p>The batches are executed independently, if some of them fail a {@link PartialFailureException} listing the
+     * rows that failed is thrown once all of them have completed (the mutations of the other rows have been applied).
+     * Batches are further split as described by {@link #execute(ConsistencyLevel, OperandPolicy)}.
+     * <p>The batches are steered by avoiding the other nodes of the ring, so the ring's endpoints must be named the
+     * same way as the pool's nodes (see {@link TokenRing#fetch(Cluster, String)}).
+     * @param cLevel                    The Cassandra consistency level to be used
+     * @param ring                      The ring used to locate the nodes that own the rows
+     * @param operandPolicy             The policy to use for this operation
+     * @throws PelopsException
+     */
+    public void execute(final ConsistencyLevel cLevel, TokenRing ring, final OperandPolicy operandPolicy) throws PelopsException {
+        if (operandPolicy.isCompactMutations())
+            compact();
+
+        List<SubBatch> subBatches = new ArrayList<SubBatch>();
+        for (Map.Entry<String, List<ByteBuffer>> group : ring.groupByPrimaryReplica(batch.keySet()).entrySet()) {
+            // steer the batch towards the owner of the rows, if it fails it's retried against any other node
+            Set<String> avoidNodesHint = ring.getEndpointsExcept(Collections.singletonList(group.getKey()));
+            split(group.getValue(), avoidNodesHint, operandPolicy, subBatches);
+        }
+        execute(subBatches, cLevel, operandPolicy, true);
+        executed = true;
+    }
+
+    /**
+     * Execute the mutations that have been specified by appending them to a write-behind journal.  The method returns
+     * as soon as the batch has been written to the journal, the batch is sent to Cassandra in the background.
+     * @param cLevel                    The Cassandra consistency level to be used
+     * @param journal                   The journal
+     * @throws PelopsException if the batch couldn't be appended to the journal
+     */
+    public void execute(final ConsistencyLevel cLevel, WriteBehindJournal journal) throws PelopsException {
+        if (thrift.getOperandPolicy().isCompactMutations())
+            compact();
+
+        journal.append(batch, cLevel);
+        invalidateCaches(thrift.getOperandPolicy(), thrift.getKeyspace(), batch);
+        executed = true;
+    }
+
+    /**
+     * Collapses the mutations of the batch to the ones that would take effect.  When a column is written and/or deleted
+     * several times only the write or delete with the highest time stamp is kept (deletes win ties), and the column
+     * deletes of each row are merged into a single deletion.
+     * <p>Note: this is done automatically by <code>execute(...)</code> when
+     * {@link OperandPolicy#isCompactMutations()} is true.
+     * @return the number of mutations removed from the batch
+     */
+    public int compact() {
+        int previousMutationCount = mutationCount;
+        mutationCount = 0;
+        batchSizeEstimate = 0;
+        for (Map.Entry<ByteBuffer, Map<String, List<Mutation>>> row : batch.entrySet()) {
+            batchSizeEstimate += row.getKey().remaining() + NAME_OVERHEAD;
+            for (Map.Entry<String, List<Mutation>> mutsByCf : row.getValue().entrySet()) {
+                batchSizeEstimate += mutsByCf.getKey().length() + NAME_OVERHEAD;
+                List<Mutation> compacted = MutationCompactor.compact(mutsByCf.getValue());
+                List<Mutation> mutations = mutsByCf.getValue();
+                mutations.clear();
+                for (Mutation mutation : compacted)
+                    mutations.add(mutation); // updates the mutation count and size estimate
+            }
+        }
+        return previousMutationCount - mutationCount;
+    }
+
+    private boolean isSplitRequired(OperandPolicy operandPolicy) {
+        return (operandPolicy.getMaxBatchBytes() > 0 && batchSizeEstimate > operandPolicy.getMaxBatchBytes())
+                || (operandPolicy.getMaxBatchRows() > 0 && batch.size() > operandPolicy.getMaxBatchRows());
+    }
+
+    /**
+     * Splits the mutations of the rows into batches bounded by the max batch bytes and rows of the policy.  The
+     * mutations of a row that is too large for a single batch are spread across several batches.
+     */
+    private void split(Collection<ByteBuffer> rowKeys, Set<String> avoidNodesHint, OperandPolicy operandPolicy, List<SubBatch> subBatches) {
+        long maxBytes = operandPolicy.getMaxBatchBytes() > 0 ? operandPolicy.getMaxBatchBytes() : Long.MAX_VALUE;
+        int maxRows = operandPolicy.getMaxBatchRows() > 0 ? operandPolicy.getMaxBatchRows() : Integer.MAX_VALUE;
+
+        SubBatch subBatch = null;
+        for (ByteBuffer rowKey : rowKeys) {
+            for (Map.Entry<String, List<Mutation>> mutsByCf : batch.get(rowKey).entrySet()) {
+                for (Mutation mutation : mutsByCf.getValue()) {
+                    long mutationSize = estimateSize(mutation);
+                    if (subBatch == null || !subBatch.fits(rowKey, mutsByCf.getKey(), mutationSize, maxBytes, maxRows)) {
+                        subBatch = new SubBatch(avoidNodesHint);
+                        subBatches.add(subBatch);
+                    }
+                    subBatch.add(rowKey, mutsByCf.getKey(), mutation, mutationSize);
+                }
+            }
+        }
+    }
+
+    private void execute(List<SubBatch> subBatches, final ConsistencyLevel cLevel, final OperandPolicy operandPolicy, boolean parallel) throws PelopsException {
+        if (subBatches.isEmpty())
+            return;
+        if (subBatches.size() == 1) {
+            execute(subBatches.get(0).batch, cLevel, operandPolicy, subBatches.get(0).avoidNodesHint);
+            return;
+        }
+
+        List<Future<Void>> futures = null;
+        if (parallel) {
+            futures = new ArrayList<Future<Void>>(subBatches.size());
+            ExecutorService executor = getParallelExecutor(operandPolicy);
+            for (final SubBatch subBatch : subBatches) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        execute(subBatch.batch, cLevel, operandPolicy, subBatch.avoidNodesHint);
+                        return null;
+                    }
+                }));
+            }
+        }
+
+        Map<Bytes, PelopsException> failures = new LinkedHashMap<Bytes, PelopsException>();
+        Set<Bytes> succeeded = new LinkedHashSet<Bytes>();
+        PelopsException previousFailure = null;
+        for (int i = 0; i < subBatches.size(); i++) {
+            SubBatch subBatch = subBatches.get(i);
+            PelopsException failure = null;
+            if (parallel) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof PelopsException ? (PelopsException) e.getCause() : new PelopsException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new PelopsException("Interrupted while waiting for the batch to complete", e);
+                }
+            } else if (previousFailure != null) {
+                failure = new PelopsException("Batch not attempted because a previous batch failed", previousFailure);
+            } else {
+                try {
+                    execute(subBatch.batch, cLevel, operandPolicy, subBatch.avoidNodesHint);
+                } catch (PelopsException e) {
+                    failure = previousFailure = e;
+                }
+            }
+
+            for (ByteBuffer rowKey : subBatch.batch.keySet()) {
+                if (failure != null)
+                    failures.put(Bytes.fromByteBuffer(rowKey), failure);
+                else
+                    succeeded.add(Bytes.fromByteBuffer(rowKey));
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            // rows spread across several batches have only succeeded if all of their batches succeeded
+            succeeded.removeAll(failures.keySet());
+            throw new PartialFailureException(failures.size() + " of " + (failures.size() + succeeded.size()) +
+                    " rows failed to be mutated", failures, succeeded);
+        }
+    }
+
+    private void execute(final Map<ByteBuffer, Map<String, List<Mutation>>> batch, final ConsistencyLevel cLevel, OperandPolicy operandPolicy, Set<String> avoidNodesHint) throws PelopsException {
         IOperation<Void> operation = new IOperation<Void>() {
             @Override
             public Void execute(IThriftPool.IPooledConnection conn) throws Exception {
@@ -99,7 +304,12 @@ public class Mutator extends Operand {
                 return null;
             }
         };
-        tryOperation(operation, operandPolicy);
+        try {
+            tryOperation(operation, operandPolicy, operandPolicy.getRateLimiter() != null ? getBatchSizeByColumnFamily(batch) : null, avoidNodesHint);
+        } finally {
+            // invalidate even if the batch failed since some of the mutations may have been applied
+            invalidateCaches(operandPolicy, thrift.getKeyspace(), batch);
+        }
     }
 
     /**
@@ -146,9 +356,9 @@ public class Mutator extends Operand {
     private void writeColumnInternal(String colFamily, Bytes rowKey, Column column) {
     	safeGetRowKey(rowKey);
     	validateColumn(column);
-        ColumnOrSuperColumn cosc = new ColumnOrSuperColumn();
+        ColumnOrSuperColumn cosc = newColumnOrSuperColumn();
         cosc.setColumn(column);
-        Mutation mutation = new Mutation();
+        Mutation mutation = newMutation();
         mutation.setColumn_or_supercolumn(cosc);
         getMutationList(colFamily, rowKey).add(mutation);
     }
@@ -326,9 +536,9 @@ public class Mutator extends Operand {
     	validateColumnName(colName);
     	validateColumns(subColumns);
         SuperColumn scol = new SuperColumn(nullSafeGet(colName), subColumns);
-        ColumnOrSuperColumn cosc = new ColumnOrSuperColumn();
+        ColumnOrSuperColumn cosc = newColumnOrSuperColumn();
         cosc.setSuper_column(scol);
-        Mutation mutation = new Mutation();
+        Mutation mutation = newMutation();
         mutation.setColumn_or_supercolumn(cosc);
         getMutationList(colFamily, rowKey).add(mutation);
     }
@@ -405,9 +615,9 @@ public class Mutator extends Operand {
     public Mutator writeCounterColumn(String colFamily, Bytes rowKey, CounterColumn column) {
     	safeGetRowKey(rowKey);
     	validateColumn(column);
-        ColumnOrSuperColumn cosc = new ColumnOrSuperColumn();
+        ColumnOrSuperColumn cosc = newColumnOrSuperColumn();
         cosc.setCounter_column(column);
-        Mutation mutation = new Mutation();
+        Mutation mutation = newMutation();
         mutation.setColumn_or_supercolumn(cosc);
         getMutationList(colFamily, rowKey).add(mutation);
 
@@ -464,9 +674,9 @@ public class Mutator extends Operand {
     	validateColumnName(colName);
     	validateCounterColumns(subColumns);
         CounterSuperColumn scol = new CounterSuperColumn(nullSafeGet(colName), subColumns);
-        ColumnOrSuperColumn cosc = new ColumnOrSuperColumn();
+        ColumnOrSuperColumn cosc = newColumnOrSuperColumn();
         cosc.setCounter_super_column(scol);
-        Mutation mutation = new Mutation();
+        Mutation mutation = newMutation();
         mutation.setColumn_or_supercolumn(cosc);
         getMutationList(colFamily, rowKey).add(mutation);
         return this;
@@ -566,7 +776,7 @@ public class Mutator extends Operand {
         Deletion deletion = new Deletion();
         deletion.setTimestamp(timestamp);
         deletion.setPredicate(pred);
-        Mutation mutation = new Mutation();
+        Mutation mutation = newMutation();
         mutation.setDeletion(deletion);
         getMutationList(colFamily, rowKey).add(mutation);
         return this;
@@ -738,7 +948,7 @@ public class Mutator extends Operand {
                 subColNames != null && !subColNames.isEmpty() ?
                         new SlicePredicate().setColumn_names(Bytes.transformBytesToList(subColNames)) : null
         );
-        Mutation mutation = new Mutation();
+        Mutation mutation = newMutation();
         mutation.setDeletion(deletion);
         getMutationList(colFamily, rowKey).add(mutation);
         return this;
@@ -863,12 +1073,21 @@ public class Mutator extends Operand {
      * @return                           An appropriate <code>Column</code> object
      */
     public Column newColumn(Bytes colName, Bytes colValue, int ttl) {
-        Column column = new Column(nullSafeGet(colName));
+        Column column;
+        if (recycler != null && !recycler.columns.isEmpty()) {
+            column = recycler.columns.remove(recycler.columns.size() - 1);
+            column.setName(nullSafeGet(colName));
+            column.unsetTtl();
+        } else {
+            column = new Column(nullSafeGet(colName));
+        }
         column.setValue(nullSafeGet(colValue));
         column.setTimestamp(timestamp);
 
         if (ttl != NO_TTL) column.setTtl(ttl);
-        
+
+        if (recycler != null) recycler.issuedColumns.add(column);
+
         return column;
     }
 
@@ -926,22 +1145,87 @@ public class Mutator extends Operand {
     }
 
     @SuppressWarnings("serial")
-    class MutationList extends ArrayList<Mutation> {}
+    class MutationList extends ArrayList<Mutation> {
+        @Override
+        public boolean add(Mutation mutation) {
+            mutationCount++;
+            batchSizeEstimate += estimateSize(mutation);
+            return super.add(mutation);
+        }
+    }
     @SuppressWarnings("serial")
     class MutationsByCf extends HashMap<String, List<Mutation>> {}
     @SuppressWarnings("serial")
     class MutationsByKey extends HashMap<ByteBuffer, Map<String, List<Mutation>>> {}
 
+    /**
+     * A part of the batch sent in a single batch_mutate call.
+     */
+    private static class SubBatch {
+        private final Map<ByteBuffer, Map<String, List<Mutation>>> batch = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+        private final Set<String> avoidNodesHint;
+        private long size;
+
+        private SubBatch(Set<String> avoidNodesHint) {
+            this.avoidNodesHint = avoidNodesHint;
+        }
+
+        private boolean fits(ByteBuffer rowKey, String colFamily, long mutationSize, long maxBytes, int maxRows) {
+            if (batch.isEmpty())
+                return true; // always accept at least one mutation
+            Map<String, List<Mutation>> mutsByCf = batch.get(rowKey);
+            if (mutsByCf == null && batch.size() >= maxRows)
+                return false;
+            return size + sizeOf(rowKey, colFamily, mutsByCf) + mutationSize <= maxBytes;
+        }
+
+        private void add(ByteBuffer rowKey, String colFamily, Mutation mutation, long mutationSize) {
+            Map<String, List<Mutation>> mutsByCf = batch.get(rowKey);
+            size += sizeOf(rowKey, colFamily, mutsByCf) + mutationSize;
+            if (mutsByCf == null) {
+                mutsByCf = new HashMap<String, List<Mutation>>();
+                batch.put(rowKey, mutsByCf);
+            }
+            List<Mutation> mutations = mutsByCf.get(colFamily);
+            if (mutations == null) {
+                mutations = new ArrayList<Mutation>();
+                mutsByCf.put(colFamily, mutations);
+            }
+            mutations.add(mutation);
+        }
+
+        // the size of the row key and column family entries that adding a mutation would create
+        private static long sizeOf(ByteBuffer rowKey, String colFamily, Map<String, List<Mutation>> mutsByCf) {
+            if (mutsByCf == null)
+                return rowKey.remaining() + colFamily.length() + 2 * NAME_OVERHEAD;
+            return mutsByCf.containsKey(colFamily) ? 0 : colFamily.length() + NAME_OVERHEAD;
+        }
+    }
+
     /**
      * Used to indicate that the ttl property on column instances should not be set.
      */
     public static final int NO_TTL = -1;
 
+    // approximate overhead of the thrift binary protocol (field headers, lengths and stop bytes) used when estimating sizes
+    static final int NAME_OVERHEAD = 4;
+    private static final int MUTATION_OVERHEAD = 8;
+    private static final int COLUMN_OVERHEAD = 33;
+    private static final int COUNTER_COLUMN_OVERHEAD = 19;
+    private static final int DELETION_OVERHEAD = 20;
+
     private final Map<ByteBuffer, Map<String, List<Mutation>>> batch;
-    protected final long timestamp;
+    protected long timestamp;
     protected final boolean deleteIfNull;
     protected final int ttl;
 
+    private int mutationCount;
+    private long batchSizeEstimate;
+    private boolean executed;
+
+    // the objects recycled by reusable mutators (null if the mutator isn't reusable)
+    private final Recycler recycler;
+
 
 
     /**
@@ -968,29 +1252,229 @@ public class Mutator extends Operand {
      * helper methods will default to (null to indicate no default)
      */
     public Mutator(IThriftPool thrift, long timestamp, boolean deleteIfNull, int ttl) {
+        this(thrift, timestamp, deleteIfNull, ttl, false);
+    }
+
+    /**
+     * Create a batch mutation operation.
+     * @param thrift the pool
+     * @param timestamp The time stamp to use for the operation.
+     * @param deleteIfNull determine if null values on columns will result in a delete
+     * @param ttl the ttl (in seconds) that columns created using the various {@link #newColumn(Bytes, Bytes)}
+     * helper methods will default to (null to indicate no default)
+     * @param reusable if true the mutator recycles the objects that make up its batch when it's {@link #reset()}
+     * after a successful <code>execute(...)</code>
+     */
+    public Mutator(IThriftPool thrift, long timestamp, boolean deleteIfNull, int ttl, boolean reusable) {
         super(thrift);
         this.timestamp = timestamp;
         this.deleteIfNull = deleteIfNull;
         this.ttl = ttl;
         batch = new MutationsByKey();
+        recycler = reusable ? new Recycler() : null;
+    }
+
+    /**
+     * Clears the batch so that the mutator can be used to execute another batch with the current time as the
+     * operation time stamp.
+     * @see #reset(long)
+     */
+    public void reset() {
+        reset(System.currentTimeMillis() * 1000);
+    }
+
+    /**
+     * Clears the batch so that the mutator can be used to execute another batch.  The batch keeps its capacity.
+     * <p>If the mutator is reusable and the batch was successfully executed the <code>Mutation</code>,
+     * <code>ColumnOrSuperColumn</code> and <code>Column</code> objects that made up the batch are recycled to be used
+     * by subsequent writes.  Therefore columns created using the various {@link #newColumn(Bytes, Bytes)} helper
+     * methods of a reusable mutator must not be used after it has been reset.
+     * @param timestamp The time stamp to use for the next operation
+     */
+    public void reset(long timestamp) {
+        if (recycler != null) {
+            if (executed)
+                recycler.recycle(batch);
+            recycler.issuedColumns.clear();
+        }
+        batch.clear();
+        mutationCount = 0;
+        batchSizeEstimate = 0;
+        executed = false;
+        this.timestamp = timestamp;
     }
 
     protected Map<ByteBuffer, Map<String, List<Mutation>>> getBatch() {
 		return batch;
 	}
 
+    /**
+     * The number of mutations in the batch.
+     * @return the number of mutations
+     */
+    public int getMutationCount() {
+        return mutationCount;
+    }
+
+    /**
+     * An estimate of the serialized size of the batch, maintained as mutations are added.
+     * @return the estimated number of bytes
+     * @see #estimateSize(org.apache.cassandra.thrift.Mutation)
+     */
+    public long getBatchSizeEstimate() {
+        return batchSizeEstimate;
+    }
+
+    /**
+     * Estimates the serialized size of the batch for each of the column families it touches.
+     * @return the estimated number of bytes keyed by column family
+     */
+    protected Map<String, Long> getBatchSizeByColumnFamily() {
+        return getBatchSizeByColumnFamily(batch);
+    }
+
+    private static Map<String, Long> getBatchSizeByColumnFamily(Map<ByteBuffer, Map<String, List<Mutation>>> batch) {
+        Map<String, Long> sizes = new HashMap<String, Long>();
+        for (Map.Entry<ByteBuffer, Map<String, List<Mutation>>> row : batch.entrySet()) {
+            for (Map.Entry<String, List<Mutation>> mutsByCf : row.getValue().entrySet()) {
+                long size = row.getKey().remaining();
+                for (Mutation mutation : mutsByCf.getValue())
+                    size += estimateSize(mutation);
+
+                Long total = sizes.get(mutsByCf.getKey());
+                sizes.put(mutsByCf.getKey(), total != null ? total + size : size);
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Estimates the number of bytes the mutation occupies on the wire.  The estimate is intentionally cheap, it
+     * accounts for the names, values and fixed size fields of the mutation plus the approximate overhead of the
+     * thrift binary protocol (field headers, lengths and stop bytes).
+     * @param mutation the mutation
+     * @return the estimated size in bytes
+     */
+    static long estimateSize(Mutation mutation) {
+        long size = MUTATION_OVERHEAD;
+        if (mutation.isSetColumn_or_supercolumn()) {
+            ColumnOrSuperColumn cosc = mutation.getColumn_or_supercolumn();
+            if (cosc.isSetColumn()) {
+                size += estimateSize(cosc.getColumn());
+            } else if (cosc.isSetSuper_column()) {
+                size += estimateSize(cosc.getSuper_column());
+            } else if (cosc.isSetCounter_column()) {
+                size += estimateSize(cosc.getCounter_column());
+            } else if (cosc.isSetCounter_super_column()) {
+                size += remaining(cosc.getCounter_super_column().name) + NAME_OVERHEAD;
+                if (cosc.getCounter_super_column().columns != null)
+                    for (CounterColumn column : cosc.getCounter_super_column().columns)
+                        size += estimateSize(column);
+            }
+        }
+        if (mutation.isSetDeletion()) {
+            Deletion deletion = mutation.getDeletion();
+            size += DELETION_OVERHEAD + remaining(deletion.super_column);
+            if (deletion.isSetPredicate() && deletion.getPredicate().column_names != null)
+                for (ByteBuffer name : deletion.getPredicate().column_names)
+                    size += remaining(name) + NAME_OVERHEAD;
+        }
+        return size;
+    }
+
+    static long estimateSize(Column column) {
+        return remaining(column.name) + remaining(column.value) + COLUMN_OVERHEAD;
+    }
+
+    static long estimateSize(SuperColumn superColumn) {
+        long size = remaining(superColumn.name) + NAME_OVERHEAD;
+        if (superColumn.columns != null)
+            for (Column column : superColumn.columns)
+                size += estimateSize(column);
+        return size;
+    }
+
+    static long estimateSize(CounterColumn column) {
+        return remaining(column.name) + COUNTER_COLUMN_OVERHEAD;
+    }
+
+    private static int remaining(ByteBuffer buffer) {
+        return buffer != null ? buffer.remaining() : 0;
+    }
+
     protected MutationList getMutationList(String colFamily, Bytes key) {
         ByteBuffer keyBuffer = key.getBytes();
         MutationsByCf mutsByCf = (MutationsByCf) batch.get(keyBuffer);
         if (mutsByCf == null) {
-            mutsByCf = new MutationsByCf();
+            mutsByCf = recycler != null && !recycler.mutationsByCf.isEmpty() ?
+                    recycler.mutationsByCf.remove(recycler.mutationsByCf.size() - 1) : new MutationsByCf();
             batch.put(keyBuffer, mutsByCf);
+            batchSizeEstimate += keyBuffer.remaining() + NAME_OVERHEAD;
         }
         MutationList mutList = (MutationList) mutsByCf.get(colFamily);
         if (mutList == null) {
-            mutList = new MutationList();
+            mutList = recycler != null && !recycler.mutationLists.isEmpty() ?
+                    recycler.mutationLists.remove(recycler.mutationLists.size() - 1) : new MutationList();
             mutsByCf.put(colFamily, mutList);
+            batchSizeEstimate += colFamily.length() + NAME_OVERHEAD;
         }
         return mutList;
     }
+
+    private Mutation newMutation() {
+        if (recycler != null && !recycler.mutations.isEmpty())
+            return recycler.mutations.remove(recycler.mutations.size() - 1);
+        return new Mutation();
+    }
+
+    private ColumnOrSuperColumn newColumnOrSuperColumn() {
+        if (recycler != null && !recycler.columnOrSuperColumns.isEmpty())
+            return recycler.columnOrSuperColumns.remove(recycler.columnOrSuperColumns.size() - 1);
+        return new ColumnOrSuperColumn();
+    }
+
+    /**
+     * Holds the objects of executed batches until they're reused by subsequent writes.
+     */
+    private class Recycler {
+        private final List<Mutation> mutations = new ArrayList<Mutation>();
+        private final List<ColumnOrSuperColumn> columnOrSuperColumns = new ArrayList<ColumnOrSuperColumn>();
+        private final List<Column> columns = new ArrayList<Column>();
+        private final List<MutationsByCf> mutationsByCf = new ArrayList<MutationsByCf>();
+        private final List<MutationList> mutationLists = new ArrayList<MutationList>();
+        // columns created by newColumn(...) since the last reset, only these are owned by the mutator
+        private final List<Column> issuedColumns = new ArrayList<Column>();
+
+        private void recycle(Map<ByteBuffer, Map<String, List<Mutation>>> batch) {
+            for (Map<String, List<Mutation>> mutsByCf : batch.values()) {
+                for (List<Mutation> mutations : mutsByCf.values()) {
+                    for (Mutation mutation : mutations)
+                        recycle(mutation);
+                    mutations.clear();
+                    mutationLists.add((MutationList) mutations);
+                }
+                mutsByCf.clear();
+                mutationsByCf.add((MutationsByCf) mutsByCf);
+            }
+            for (Column column : issuedColumns) {
+                column.setName((ByteBuffer) null);
+                column.setValue((ByteBuffer) null);
+                columns.add(column);
+            }
+        }
+
+        private void recycle(Mutation mutation) {
+            ColumnOrSuperColumn cosc = mutation.getColumn_or_supercolumn();
+            if (cosc != null) {
+                cosc.setColumn(null);
+                cosc.setSuper_column(null);
+                cosc.setCounter_column(null);
+                cosc.setCounter_super_column(null);
+                columnOrSuperColumns.add(cosc);
+            }
+            mutation.setColumn_or_supercolumn(null);
+            mutation.setDeletion(null);
+            mutations.add(mutation);
+        }
+    }
 }
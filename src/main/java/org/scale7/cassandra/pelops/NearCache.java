@@ -0,0 +1,497 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.scale7.cassandra.pelops;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.CounterColumn;
+import org.apache.cassandra.thrift.CounterSuperColumn;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SuperColumn;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+
+/**
+ * An in-process cache of the rows read by {@link Selector}s, keyed on the keyspace, column family (and super column),
+ * row key and slice predicate of the read.  Hot rows are served from memory instead of making a round trip to
+ * Cassandra.
+ * <p>Only the column families that have been given a {@link #setColumnFamilyTtlMillis(String, long) time to live}
+ * are cached, an entry is discarded once it's older than the time to live of its column family.  The cache is bounded
+ * both by the number of entries and by their estimated size in bytes, entries are admitted and evicted using the
+ * W-TinyLFU policy: new entries enter a small LRU window and, once they fall out of it, are only admitted to the main
+ * (segmented LRU) part of the cache if they have been requested more often than the entry they would evict, as
+ * estimated by a count-min sketch of the recent key frequencies.  This keeps one-off reads (scans) from flushing the
+ * hot rows out of the cache.
+ * <p>Rows written or deleted through a {@link Mutator} or {@link RowDeletor} of a pool that uses the cache are
+ * invalidated (all cached slices of the row are discarded), writes made by other processes are only seen once the
+ * entries expire.  Reads are served from the cache whatever the consistency level they are issued with.
+ * <p>The cache registers itself with JMX so that its hit rate can be monitored and the time to live of each column
+ * family adjusted at runtime.  To use it set it on the {@link OperandPolicy} of the pool:
+ * <pre>
+ * NearCache nearCache = new NearCache(keyspace, 10000, 64 * 1024 * 1024);
+ * nearCache.setColumnFamilyTtlMillis("Users", 5000);
+ * OperandPolicy operandPolicy = new OperandPolicy().setNearCache(nearCache);
+ * </pre>
+ */
+public class NearCache extends RowCache implements NearCacheMBean {
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int COLUMN_OVERHEAD = 32;
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final int maxWindowEntries;
+    private final long maxWindowWeight;
+    private final int maxProtectedEntries;
+    private final long maxProtectedWeight;
+
+    // the entries are held in one of three LRU ordered segments, all guarded by the lock of this object
+    private final LinkedHashMap<Object, Entry> window = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+    private final LinkedHashMap<Object, Entry> probation = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+    private final LinkedHashMap<Object, Entry> protectedSegment = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+    private final Map<Object, Set<Object>> keysByRow = new HashMap<Object, Set<Object>>();
+    private final FrequencySketch sketch;
+    private long windowWeight;
+    private long probationWeight;
+    private long protectedWeight;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Create a new cache that doesn't cache anything until the time to live of some column families is set.
+     * @param name the name the cache is registered under in JMX (usually the keyspace of the pool)
+     * @param maxEntries the max number of entries (slices of rows) held by the cache
+     * @param maxWeight the max estimated size in bytes of the entries held by the cache
+     */
+    public NearCache(String name, int maxEntries, long maxWeight) {
+        super(name, JMX_MBEAN_OBJ_NAME);
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be at least 1");
+        if (maxWeight < 1) throw new IllegalArgumentException("maxWeight must be at least 1");
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        // the window holds 1% of the cache, 80% of the main part of the cache is protected
+        this.maxWindowEntries = Math.max(1, maxEntries / 100);
+        this.maxWindowWeight = Math.max(1, maxWeight / 100);
+        this.maxProtectedEntries = (int) ((maxEntries - maxWindowEntries) * 0.8);
+        this.maxProtectedWeight = (long) ((maxWeight - maxWindowWeight) * 0.8);
+        this.sketch = new FrequencySketch(maxEntries);
+
+        registerMBean();
+    }
+
+    public void decommission() {
+        unregisterMBean();
+    }
+
+    /**
+     * Creates the key of a slice of a row.
+     * @param keyspace the keyspace
+     * @param colParent the column family (and super column) of the slice
+     * @param rowKey the row key
+     * @param colPredicate the predicate of the slice
+     * @return the key
+     */
+    static Object newKey(String keyspace, ColumnParent colParent, ByteBuffer rowKey, SlicePredicate colPredicate) {
+        return ReadCoalescer.newKey(keyspace, colParent, rowKey, colPredicate);
+    }
+
+    @Override
+    List<ColumnOrSuperColumn> read(String keyspace, ColumnParent colParent, ByteBuffer rowKey, SlicePredicate colPredicate, ISliceReader source) throws PelopsException {
+        Object key = newKey(keyspace, colParent, rowKey, colPredicate);
+        List<ColumnOrSuperColumn> result = get(key);
+        if (result != null)
+            return result;
+
+        // the generation is taken before the read so that the result isn't cached if the row is written meanwhile
+        long generation = getGeneration(keyspace, colParent.getColumn_family(), rowKey);
+        result = source.read();
+        put(key, keyspace, colParent.getColumn_family(), rowKey, result, generation);
+        return result;
+    }
+
+    /**
+     * Returns a copy of the cached slice.
+     * @param key the key of the slice (see {@link #newKey})
+     * @return the slice or null if it isn't cached (or has expired)
+     */
+    List<ColumnOrSuperColumn> get(Object key) {
+        List<ColumnOrSuperColumn> value = null;
+        synchronized (this) {
+            sketch.increment(key);
+            Entry entry = find(key);
+            if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+                remove(entry);
+                expirations.incrementAndGet();
+                entry = null;
+            }
+            if (entry != null) {
+                if (entry.segment == probation) {
+                    // a second hit promotes the entry to the protected segment
+                    move(entry, protectedSegment);
+                    while (protectedSegment.size() > maxProtectedEntries || protectedWeight > maxProtectedWeight)
+                        move(eldest(protectedSegment), probation);
+                }
+                value = entry.value;
+            }
+        }
+
+        if (value == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return ReadCoalescer.copy(value);
+    }
+
+    /**
+     * Caches a copy of the slice unless the row has been invalidated since the read of the slice started.
+     * @param key the key of the slice (see {@link #newKey})
+     * @param keyspace the keyspace
+     * @param columnFamily the column family
+     * @param rowKey the row key
+     * @param value the slice
+     * @param generation the generation of the row before it was read (see {@link #getGeneration})
+     */
+    void put(Object key, String keyspace, String columnFamily, ByteBuffer rowKey, List<ColumnOrSuperColumn> value, long generation) {
+        long ttlMillis = getColumnFamilyTtlMillis(columnFamily);
+        if (ttlMillis <= 0)
+            return;
+
+        Entry entry = new Entry(key, newRow(keyspace, columnFamily, rowKey), rowKey.remaining(), ReadCoalescer.copy(value));
+        entry.expiresAt = System.currentTimeMillis() + ttlMillis;
+        if (entry.weight > maxWeight)
+            return;
+
+        synchronized (this) {
+            if (getGeneration(keyspace, columnFamily, rowKey) != generation)
+                return;
+
+            Entry existing = find(key);
+            if (existing != null)
+                remove(existing);
+
+            add(entry, window);
+            link(entry);
+            evict();
+        }
+    }
+
+    @Override
+    void invalidateRow(String keyspace, String columnFamily, ByteBuffer rowKey) {
+        synchronized (this) {
+            Set<Object> keys = keysByRow.get(newRow(keyspace, columnFamily, rowKey));
+            if (keys == null)
+                return;
+            for (Object key : keys.toArray()) {
+                Entry entry = find(key);
+                if (entry != null) {
+                    remove(entry);
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        invalidateGenerations();
+        synchronized (this) {
+            invalidations.addAndGet(window.size() + probation.size() + protectedSegment.size());
+            window.clear();
+            probation.clear();
+            protectedSegment.clear();
+            keysByRow.clear();
+            windowWeight = probationWeight = protectedWeight = 0;
+        }
+    }
+
+    /**
+     * Moves the entries that overflow the window to the main part of the cache, where they are admitted only if
+     * they are requested more often than the entries they would evict.
+     */
+    private void evict() {
+        while (window.size() > maxWindowEntries || windowWeight > maxWindowWeight) {
+            Entry candidate = eldest(window);
+            detach(candidate);
+            admit(candidate);
+        }
+    }
+
+    private void admit(Entry candidate) {
+        while (probation.size() + protectedSegment.size() + 1 > maxEntries - maxWindowEntries
+                || probationWeight + protectedWeight + candidate.weight > maxWeight - maxWindowWeight) {
+            Entry victim = eldest(probation.isEmpty() ? protectedSegment : probation);
+            if (victim == null || sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                unlink(candidate);
+                evictions.incrementAndGet();
+                return;
+            }
+            remove(victim);
+            evictions.incrementAndGet();
+        }
+        add(candidate, probation);
+    }
+
+    private Entry find(Object key) {
+        Entry entry = window.get(key);
+        if (entry == null)
+            entry = probation.get(key);
+        if (entry == null)
+            entry = protectedSegment.get(key);
+        return entry;
+    }
+
+    private static Entry eldest(LinkedHashMap<Object, Entry> segment) {
+        Iterator<Entry> iterator = segment.values().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    private void add(Entry entry, LinkedHashMap<Object, Entry> segment) {
+        segment.put(entry.key, entry);
+        entry.segment = segment;
+        addWeight(segment, entry.weight);
+    }
+
+    private void move(Entry entry, LinkedHashMap<Object, Entry> segment) {
+        detach(entry);
+        add(entry, segment);
+    }
+
+    private void detach(Entry entry) {
+        entry.segment.remove(entry.key);
+        addWeight(entry.segment, -entry.weight);
+    }
+
+    private void remove(Entry entry) {
+        detach(entry);
+        unlink(entry);
+    }
+
+    private void link(Entry entry) {
+        Set<Object> keys = keysByRow.get(entry.row);
+        if (keys == null) {
+            keys = new HashSet<Object>();
+            keysByRow.put(entry.row, keys);
+        }
+        keys.add(entry.key);
+    }
+
+    private void unlink(Entry entry) {
+        Set<Object> keys = keysByRow.get(entry.row);
+        if (keys != null) {
+            keys.remove(entry.key);
+            if (keys.isEmpty())
+                keysByRow.remove(entry.row);
+        }
+    }
+
+    private void addWeight(LinkedHashMap<Object, Entry> segment, long weight) {
+        if (segment == window)
+            windowWeight += weight;
+        else if (segment == probation)
+            probationWeight += weight;
+        else
+            protectedWeight += weight;
+    }
+
+    private static long estimateSize(List<ColumnOrSuperColumn> value) {
+        long size = 0;
+        for (ColumnOrSuperColumn cosc : value) {
+            if (cosc.isSetColumn()) {
+                size += estimateSize(cosc.getColumn());
+            } else if (cosc.isSetSuper_column()) {
+                SuperColumn superColumn = cosc.getSuper_column();
+                size += COLUMN_OVERHEAD + superColumn.bufferForName().remaining();
+                for (Column column : superColumn.getColumns())
+                    size += estimateSize(column);
+            } else if (cosc.isSetCounter_column()) {
+                size += COLUMN_OVERHEAD + cosc.getCounter_column().bufferForName().remaining();
+            } else if (cosc.isSetCounter_super_column()) {
+                CounterSuperColumn superColumn = cosc.getCounter_super_column();
+                size += COLUMN_OVERHEAD + superColumn.bufferForName().remaining();
+                for (CounterColumn column : superColumn.getColumns())
+                    size += COLUMN_OVERHEAD + column.bufferForName().remaining();
+            }
+        }
+        return size;
+    }
+
+    private static long estimateSize(Column column) {
+        return COLUMN_OVERHEAD + column.bufferForName().remaining() + (column.isSetValue() ? column.bufferForValue().remaining() : 0);
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hits = getHits();
+        long requests = hits + getMisses();
+        return requests > 0 ? (double) hits / requests : 0;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public synchronized int getSize() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    @Override
+    public synchronized long getWeight() {
+        return windowWeight + probationWeight + protectedWeight;
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    @Override
+    public String toString() {
+        return "NearCache{" +
+                "name='" + getName() + '\'' +
+                ", maxEntries=" + maxEntries +
+                ", maxWeight=" + maxWeight +
+                ", columnFamilyTtls=" + getColumnFamilyTtls() +
+                '}';
+    }
+
+    private static class Entry {
+        private final Object key;
+        private final Object row;
+        private final List<ColumnOrSuperColumn> value;
+        private final long weight;
+        private long expiresAt;
+        private LinkedHashMap<Object, Entry> segment;
+
+        private Entry(Object key, Object row, int rowKeySize, List<ColumnOrSuperColumn> value) {
+            this.key = key;
+            this.row = row;
+            this.value = value;
+            this.weight = ENTRY_OVERHEAD + rowKeySize + estimateSize(value);
+        }
+    }
+
+    /**
+     * A count-min sketch of 4 bit counters estimating how often each key has been requested recently.  Each row of the
+     * sketch has at least four times as many counters as the cache has entries, so that one-off keys rarely share all
+     * their counters with popular keys.  The counters are halved once the number of increments reaches ten times the
+     * width of the sketch, so that the popularity of keys ages.
+     */
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = {0x97cb3127, 0xb1e9a7d3, 0x8f5a3b21, 0xc2b2ae35};
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int increments;
+
+        private FrequencySketch(int maxEntries) {
+            int width = Integer.highestOneBit(Math.max(16, maxEntries) - 1) << 3;
+            counters = new byte[DEPTH][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        private void increment(Object key) {
+            int hash = spread(key.hashCode());
+            for (int i = 0; i < DEPTH; i++) {
+                int index = index(hash, i);
+                if (counters[i][index] < 15)
+                    counters[i][index]++;
+            }
+            if (++increments >= sampleSize)
+                reset();
+        }
+
+        private int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++)
+                frequency = Math.min(frequency, counters[i][index(hash, i)]);
+            return frequency;
+        }
+
+        private int index(int hash, int i) {
+            int h = (hash + SEEDS[i]) * SEEDS[i];
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        // mixes all the bits of the hash code into the low bits, the hash codes of similar keys differing little
+        private static int spread(int hash) {
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            return (hash >>> 16) ^ hash;
+        }
+
+        private void reset() {
+            for (byte[] row : counters) {
+                for (int j = 0; j < row.length; j++)
+                    row[j] = (byte) (row[j] >>> 1);
+            }
+            increments /= 2;
+        }
+    }
+}
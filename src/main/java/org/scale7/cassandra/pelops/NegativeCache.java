@@ -0,0 +1,367 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.scale7.cassandra.pelops;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ColumnPath;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+import org.scale7.portability.SystemProxy;
+import org.slf4j.Logger;
+
+/**
+ * Remembers the reads issued by {@link Selector}s that found nothing, so that repeated lookups of rows or columns that
+ * don't exist are answered without making a round trip to Cassandra.  Lookups of a single column that raised a
+ * {@link org.scale7.cassandra.pelops.exceptions.NotFoundException} and slices of a row that came back empty are
+ * recorded for the {@link #setColumnFamilyTtlMillis(String, long) time to live} of their column family (column
+ * families without a time to live aren't recorded).  Reads are identified by their keyspace, column family, row key
+ * and columns.  The number of recorded misses is bounded, the least recently used are discarded first.
+ * <p>In addition a {@link BloomFilter} of the row keys of a column family can be
+ * {@link Selector#loadRowKeyFilter(String, int, double, org.apache.cassandra.thrift.ConsistencyLevel) built} from a
+ * scan of the column family, after which the reads of rows that are definitely absent from the filter are answered
+ * immediately.  The filter only knows about the rows written by this process since it was built, so it's only suited
+ * to column families that are written by a single process (or rarely gain rows) unless it's rebuilt periodically.
+ * <p>Rows written or deleted through a {@link Mutator} or {@link RowDeletor} of a pool that uses the cache are
+ * invalidated (and added to the filter of their column family).  Misses are remembered whatever the consistency level
+ * of the read.
+ * <p>The cache registers itself with JMX.  To use it set it on the {@link OperandPolicy} of the pool:
+ * <pre>
+ * NegativeCache negativeCache = new NegativeCache(keyspace, 100000);
+ * negativeCache.setColumnFamilyTtlMillis("Users", 30000);
+ * OperandPolicy operandPolicy = new OperandPolicy().setNegativeCache(negativeCache);
+ * </pre>
+ */
+public class NegativeCache extends RowCache implements NegativeCacheMBean {
+    private static final Logger logger = SystemProxy.getLoggerFromFactory(NegativeCache.class);
+
+    private final int maxEntries;
+    // keyed by keyspace and column family
+    private final ConcurrentMap<List<String>, BloomFilter> rowKeyFilters = new ConcurrentHashMap<List<String>, BloomFilter>();
+    private final ConcurrentMap<List<String>, BloomFilter> loadingRowKeyFilters = new ConcurrentHashMap<List<String>, BloomFilter>();
+
+    // guarded by the lock of this object
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+    private final Map<Object, Set<Object>> keysByRow = new HashMap<Object, Set<Object>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong filterHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Create a new cache that doesn't record anything until the time to live of some column families is set (or row
+     * key filters are loaded).
+     * @param name the name the cache is registered under in JMX (usually the keyspace of the pool)
+     * @param maxEntries the max number of misses remembered by the cache
+     */
+    public NegativeCache(String name, int maxEntries) {
+        super(name, JMX_MBEAN_OBJ_NAME);
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be at least 1");
+        this.maxEntries = maxEntries;
+
+        registerMBean();
+    }
+
+    public void decommission() {
+        unregisterMBean();
+    }
+
+    /**
+     * Determines if the reads of the column family of the keyspace are checked against the cache.
+     * @param keyspace the keyspace
+     * @param columnFamily the column family
+     * @return true if the column family has a time to live or a row key filter
+     */
+    @Override
+    boolean isCached(String keyspace, String columnFamily) {
+        return isCached(columnFamily) || rowKeyFilters.containsKey(Arrays.asList(keyspace, columnFamily));
+    }
+
+    /**
+     * Creates the key identifying the read of a single column.
+     * @param keyspace the keyspace
+     * @param colPath the path of the column
+     * @param rowKey the row key
+     * @return the key
+     */
+    static Object newKey(String keyspace, ColumnPath colPath, ByteBuffer rowKey) {
+        return ReadCoalescer.newKey("get", keyspace, colPath, rowKey);
+    }
+
+    /**
+     * Creates the key identifying the read of a slice of a row.
+     * @param keyspace the keyspace
+     * @param colParent the column family (and super column) of the slice
+     * @param rowKey the row key
+     * @param colPredicate the predicate of the slice
+     * @return the key
+     */
+    static Object newKey(String keyspace, ColumnParent colParent, ByteBuffer rowKey, SlicePredicate colPredicate) {
+        return ReadCoalescer.newKey("get_slice", keyspace, colParent, rowKey, colPredicate);
+    }
+
+    @Override
+    List<ColumnOrSuperColumn> read(String keyspace, ColumnParent colParent, ByteBuffer rowKey, SlicePredicate colPredicate, ISliceReader source) throws PelopsException {
+        Object key = newKey(keyspace, colParent, rowKey, colPredicate);
+        if (isAbsent(key, keyspace, colParent.getColumn_family(), rowKey))
+            return new ArrayList<ColumnOrSuperColumn>();
+
+        long generation = getGeneration(keyspace, colParent.getColumn_family(), rowKey);
+        List<ColumnOrSuperColumn> result = source.read();
+        if (result.isEmpty())
+            put(key, keyspace, colParent.getColumn_family(), rowKey, generation);
+        return result;
+    }
+
+    /**
+     * Determines if the read is known to find nothing, either because the row is absent from the row key filter of the
+     * column family or because the same read recently found nothing.
+     * @param key the key identifying the read (see {@link #newKey})
+     * @param keyspace the keyspace
+     * @param columnFamily the column family
+     * @param rowKey the row key
+     * @return true if the read would find nothing
+     */
+    boolean isAbsent(Object key, String keyspace, String columnFamily, ByteBuffer rowKey) {
+        BloomFilter filter = rowKeyFilters.get(Arrays.asList(keyspace, columnFamily));
+        if (filter != null && !filter.mightContain(rowKey)) {
+            filterHits.incrementAndGet();
+            return true;
+        }
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+                hits.incrementAndGet();
+                return true;
+            }
+            if (entry != null)
+                remove(key, entry);
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records that the read found nothing unless the row has been invalidated since the read started.
+     * @param key the key identifying the read (see {@link #newKey})
+     * @param keyspace the keyspace
+     * @param columnFamily the column family
+     * @param rowKey the row key
+     * @param generation the generation of the row before it was read (see {@link #getGeneration})
+     */
+    void put(Object key, String keyspace, String columnFamily, ByteBuffer rowKey, long generation) {
+        long ttlMillis = getColumnFamilyTtlMillis(columnFamily);
+        if (ttlMillis <= 0)
+            return;
+
+        Entry entry = new Entry(newRow(keyspace, columnFamily, rowKey), System.currentTimeMillis() + ttlMillis);
+        synchronized (this) {
+            if (getGeneration(keyspace, columnFamily, rowKey) != generation)
+                return;
+
+            Entry existing = entries.put(key, entry);
+            if (existing != null)
+                unlink(key, existing);
+            Set<Object> keys = keysByRow.get(entry.row);
+            if (keys == null) {
+                keys = new HashSet<Object>();
+                keysByRow.put(entry.row, keys);
+            }
+            keys.add(key);
+
+            while (entries.size() > maxEntries) {
+                Iterator<Map.Entry<Object, Entry>> eldest = entries.entrySet().iterator();
+                Map.Entry<Object, Entry> evicted = eldest.next();
+                eldest.remove();
+                unlink(evicted.getKey(), evicted.getValue());
+            }
+        }
+    }
+
+    /**
+     * Forgets the recorded misses of the row and adds it to the row key filter of its column family.
+     */
+    @Override
+    void invalidateRow(String keyspace, String columnFamily, ByteBuffer rowKey) {
+        // the row may have been created, a deleted row is harmless in the filter
+        List<String> filterKey = Arrays.asList(keyspace, columnFamily);
+        BloomFilter filter = loadingRowKeyFilters.get(filterKey);
+        if (filter != null)
+            filter.add(rowKey);
+        filter = rowKeyFilters.get(filterKey);
+        if (filter != null)
+            filter.add(rowKey);
+
+        synchronized (this) {
+            Set<Object> keys = keysByRow.remove(newRow(keyspace, columnFamily, rowKey));
+            if (keys == null)
+                return;
+            for (Object key : keys) {
+                if (entries.remove(key) != null)
+                    invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        invalidateGenerations();
+        synchronized (this) {
+            invalidations.addAndGet(entries.size());
+            entries.clear();
+            keysByRow.clear();
+        }
+    }
+
+    /**
+     * Fills the filter with the row keys and makes it the row key filter of the column family.  The rows written
+     * through this process while the filter is being loaded are added to it.
+     * @param keyspace the keyspace
+     * @param columnFamily the column family
+     * @param filter the empty filter
+     * @param rowKeys the keys of all the rows of the column family
+     */
+    public void loadRowKeyFilter(String keyspace, String columnFamily, BloomFilter filter, Iterator<Bytes> rowKeys) {
+        if (keyspace == null) throw new IllegalArgumentException("keyspace is a required argument");
+        if (columnFamily == null) throw new IllegalArgumentException("columnFamily is a required argument");
+        List<String> filterKey = Arrays.asList(keyspace, columnFamily);
+        loadingRowKeyFilters.put(filterKey, filter);
+        try {
+            while (rowKeys.hasNext())
+                filter.add(rowKeys.next());
+            rowKeyFilters.put(filterKey, filter);
+            logger.info("Loaded row key filter of column family '{}' of keyspace '{}': {}", new Object[] {columnFamily, keyspace, filter});
+        } finally {
+            loadingRowKeyFilters.remove(filterKey, filter);
+        }
+    }
+
+    /**
+     * The row key filter of the column family.
+     * @param keyspace the keyspace
+     * @param columnFamily the column family
+     * @return the filter or null if it hasn't been loaded
+     */
+    public BloomFilter getRowKeyFilter(String keyspace, String columnFamily) {
+        return rowKeyFilters.get(Arrays.asList(keyspace, columnFamily));
+    }
+
+    @Override
+    public boolean hasRowKeyFilter(String keyspace, String columnFamily) {
+        return rowKeyFilters.containsKey(Arrays.asList(keyspace, columnFamily));
+    }
+
+    @Override
+    public void removeRowKeyFilter(String keyspace, String columnFamily) {
+        rowKeyFilters.remove(Arrays.asList(keyspace, columnFamily));
+    }
+
+    private void remove(Object key, Entry entry) {
+        entries.remove(key);
+        unlink(key, entry);
+    }
+
+    private void unlink(Object key, Entry entry) {
+        Set<Object> keys = keysByRow.get(entry.row);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty())
+                keysByRow.remove(entry.row);
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getFilterHits() {
+        return filterHits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hits = getHits() + getFilterHits();
+        long requests = hits + getMisses();
+        return requests > 0 ? (double) hits / requests : 0;
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public String toString() {
+        return "NegativeCache{" +
+                "name='" + getName() + '\'' +
+                ", maxEntries=" + maxEntries +
+                ", columnFamilyTtls=" + getColumnFamilyTtls() +
+                ", rowKeyFilters=" + rowKeyFilters.keySet() +
+                '}';
+    }
+
+    private static class Entry {
+        private final Object row;
+        private final long expiresAt;
+
+        private Entry(Object row, long expiresAt) {
+            this.row = row;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -24,9 +24,16 @@
 
 package org.scale7.cassandra.pelops;
 
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.apache.cassandra.thrift.Mutation;
 import org.apache.cassandra.thrift.NotFoundException;
 import org.apache.cassandra.thrift.TimedOutException;
 import org.apache.cassandra.thrift.UnavailableException;
@@ -34,6 +41,7 @@ import org.apache.thrift.transport.TTransportException;
 import org.scale7.cassandra.pelops.exceptions.PelopsException;
 import org.scale7.cassandra.pelops.pool.IThriftPool;
 import org.scale7.cassandra.pelops.pool.IThriftPool.IPooledConnection;
+import org.scale7.cassandra.pelops.pool.ThriftPoolBase;
 import org.scale7.portability.SystemProxy;
 import org.slf4j.Logger;
 
@@ -49,10 +57,32 @@ public class Operand {
 
 	protected final IThriftPool thrift;
 
+	protected TrafficClass trafficClass = TrafficClass.INTERACTIVE;
+
 	protected Operand(IThriftPool thrift) {
 		this.thrift = thrift;
 	}
 
+	/**
+	 * The class of traffic generated by this operand.
+	 * @return the traffic class
+	 */
+	public TrafficClass getTrafficClass() {
+		return trafficClass;
+	}
+
+	/**
+	 * The class of traffic generated by this operand.  When the pool is rate limited (see
+	 * {@link OperandPolicy#setRateLimiter(RateLimiter)}) {@link TrafficClass#BATCH} operations are throttled first.
+	 * The traffic class is also the priority used when borrowing connections from the pool.
+	 * <p>Note: defaults to {@link TrafficClass#INTERACTIVE}.
+	 * @param trafficClass the traffic class
+	 */
+	public void setTrafficClass(TrafficClass trafficClass) {
+		if (trafficClass == null) throw new IllegalArgumentException("trafficClass is a required argument");
+		this.trafficClass = trafficClass;
+	}
+
 	protected interface IOperation<ReturnType> {
 		ReturnType execute(IPooledConnection conn) throws Exception;
 	}
@@ -61,15 +91,56 @@ public class Operand {
         return tryOperation(operation, thrift.getOperandPolicy());
     }
 
+	protected <ReturnType> ReturnType tryOperation(IOperation<ReturnType> operation, String columnFamily) throws PelopsException {
+        return tryOperation(operation, thrift.getOperandPolicy(), Collections.singletonMap(columnFamily, 0L));
+    }
+
 	protected <ReturnType> ReturnType tryOperation(IOperation<ReturnType> operation, OperandPolicy operandPolicy) throws PelopsException {
-        Set<String> avoidNodes = null;
+        return tryOperation(operation, operandPolicy, null);
+    }
+
+	/**
+	 * Executes the operation, retrying it against other nodes if it fails as a result of a network problem.
+	 * @param operation the operation
+	 * @param operandPolicy the policy to use for this operation
+	 * @param bytesByColumnFamily the column families touched by the operation and the (estimated) request bytes
+	 * against each, used for rate limiting (may be null)
+	 * @return the result of the operation
+	 * @throws PelopsException if the operation fails
+	 */
+	protected <ReturnType> ReturnType tryOperation(IOperation<ReturnType> operation, OperandPolicy operandPolicy, Map<String, Long> bytesByColumnFamily) throws PelopsException {
+		return tryOperation(operation, operandPolicy, bytesByColumnFamily, null);
+	}
+
+	/**
+	 * Executes the operation, retrying it against other nodes if it fails as a result of a network problem.
+	 * @param operation the operation
+	 * @param operandPolicy the policy to use for this operation
+	 * @param bytesByColumnFamily the column families touched by the operation and the (estimated) request bytes
+	 * against each, used for rate limiting (may be null)
+	 * @param avoidNodesHint the nodes the operation should avoid if possible, used to steer the operation towards
+	 * particular nodes (may be null)
+	 * @return the result of the operation
+	 * @throws PelopsException if the operation fails
+	 */
+	protected <ReturnType> ReturnType tryOperation(IOperation<ReturnType> operation, OperandPolicy operandPolicy, Map<String, Long> bytesByColumnFamily, Set<String> avoidNodesHint) throws PelopsException {
+        // Wait for permission to hit the cluster (only once, retries don't consume more permits)
+        RateLimiter rateLimiter = operandPolicy.getRateLimiter();
+        if (rateLimiter != null)
+            rateLimiter.acquire(trafficClass, bytesByColumnFamily);
+
+        Set<String> avoidNodes = avoidNodesHint != null ? new HashSet<String>(avoidNodesHint) : null;
 		Exception lastException = null;
 		int retries = 0;
 		do {
 			// Get a connection to a Cassandra node
             IPooledConnection conn = null;
             try {
-                conn = thrift.getConnectionExcept(avoidNodes);
+                // only the pools derived from ThriftPoolBase know about traffic classes
+                if (thrift instanceof ThriftPoolBase)
+                    conn = ((ThriftPoolBase) thrift).getConnectionExcept(trafficClass, avoidNodes);
+                else
+                    conn = thrift.getConnectionExcept(avoidNodes);
             } catch (Exception e) {
                 // the pool is responsible for blocking and waiting for a connection, so don't retry
                 throw operandPolicy.getExceptionTranslator().translate(e);
@@ -114,4 +185,44 @@ public class Operand {
 
 		throw operandPolicy.getExceptionTranslator().translate(lastException);
 	}
+
+	/**
+	 * The executor used to run the concurrent requests of operations that fan out.
+	 * @param operandPolicy the policy to use for the operation
+	 * @return the executor from the policy or the shared default executor
+	 */
+	protected static ExecutorService getParallelExecutor(OperandPolicy operandPolicy) {
+		ExecutorService executor = operandPolicy.getParallelExecutor();
+		return executor != null ? executor : DefaultParallelExecutor.INSTANCE;
+	}
+
+	/**
+	 * Discards the rows mutated by the batch from the caches of the policy.
+	 * @param operandPolicy the policy holding the caches
+	 * @param keyspace the keyspace of the batch
+	 * @param batch the mutations keyed by row key and column family
+	 */
+	static void invalidateCaches(OperandPolicy operandPolicy, String keyspace, Map<ByteBuffer, Map<String, List<Mutation>>> batch) {
+		for (RowCache cache : operandPolicy.getRowCaches())
+			cache.invalidate(keyspace, batch);
+	}
+
+	/**
+	 * Discards the row from the caches of the policy.
+	 * @param operandPolicy the policy holding the caches
+	 * @param keyspace the keyspace
+	 * @param columnFamily the column family
+	 * @param rowKey the row key
+	 */
+	static void invalidateCaches(OperandPolicy operandPolicy, String keyspace, String columnFamily, Bytes rowKey) {
+		for (RowCache cache : operandPolicy.getRowCaches())
+			cache.invalidate(keyspace, columnFamily, rowKey);
+	}
+
+	/**
+	 * Lazily creates the shared default executor.
+	 */
+	private static class DefaultParallelExecutor {
+		private static final ExecutorService INSTANCE = Executors.newCachedThreadPool(new NamedThreadFactory("pelops-parallel"));
+	}
 }
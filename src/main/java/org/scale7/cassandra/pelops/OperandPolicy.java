@@ -24,15 +24,40 @@
 
 package org.scale7.cassandra.pelops;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
 import org.scale7.cassandra.pelops.exceptions.IExceptionTranslator;
 
 /**
  * General policy configuration.
  */
 public class OperandPolicy {
+    /**
+     * A recommended maximum estimated size of a single batch_mutate call, comfortably below the
+     * {@link Connection#DEFAULT_MAX_FRAME_SIZE frame size} since the size of a batch is only estimated.
+     * @see #setMaxBatchBytes(long)
+     */
+    public static final long RECOMMENDED_MAX_BATCH_BYTES = 8 * 1024 * 1024; // 8 MiB
+
     int maxOpRetries = 3;
     boolean deleteIfNull = false;
     IExceptionTranslator exceptionTranslator = new IExceptionTranslator.ExceptionTranslator();
+    RateLimiter rateLimiter = null;
+    ReadCoalescer readCoalescer = null;
+    ReadBatcher readBatcher = null;
+    NearCache nearCache = null;
+    NegativeCache negativeCache = null;
+    MappedRowCache mappedRowCache = null;
+    ExecutorService parallelExecutor = null;
+    long maxBatchBytes = 0;
+    int maxBatchRows = 0;
+    boolean executeBatchesInParallel = false;
+    boolean compactMutations = false;
+    int multigetChunkSize = 0;
+    int rangePageSize = 100;
+    TokenRing tokenRing = null;
 
     public OperandPolicy() {
     }
@@ -97,11 +122,316 @@ public class OperandPolicy {
         return this;
     }
 
+    /**
+     * The rate limiter used to throttle operations before they are sent to Cassandra.
+     * @return the rate limiter or null if operations aren't rate limited
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * The rate limiter used to throttle operations before they are sent to Cassandra.
+     * <p>Note: by default operations aren't rate limited.
+     * @param rateLimiter the rate limiter (null to disable rate limiting)
+     */
+    public OperandPolicy setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * The coalescer used to share identical concurrent reads issued by {@link Selector}s.
+     * @return the read coalescer or null if reads aren't coalesced
+     */
+    public ReadCoalescer getReadCoalescer() {
+        return readCoalescer;
+    }
+
+    /**
+     * The coalescer used to share identical concurrent reads issued by {@link Selector}s.
+     * <p>Note: by default reads aren't coalesced.
+     * @param readCoalescer the read coalescer (null to disable read coalescing)
+     */
+    public OperandPolicy setReadCoalescer(ReadCoalescer readCoalescer) {
+        this.readCoalescer = readCoalescer;
+        return this;
+    }
+
+    /**
+     * The batcher used to combine concurrent single row reads issued by {@link Selector}s into multiget calls.
+     * @return the read batcher or null if reads aren't batched
+     */
+    public ReadBatcher getReadBatcher() {
+        return readBatcher;
+    }
+
+    /**
+     * The batcher used to combine concurrent single row reads issued by {@link Selector}s into multiget calls.
+     * <p>Note: by default reads aren't batched.
+     * @param readBatcher the read batcher (null to disable read batching)
+     */
+    public OperandPolicy setReadBatcher(ReadBatcher readBatcher) {
+        this.readBatcher = readBatcher;
+        return this;
+    }
+
+    /**
+     * The cache used to serve the single row reads issued by {@link Selector}s from memory.
+     * @return the near cache or null if reads aren't cached
+     */
+    public NearCache getNearCache() {
+        return nearCache;
+    }
+
+    /**
+     * The cache used to serve the single row reads issued by {@link Selector}s from memory.  The rows mutated through
+     * {@link Mutator}s and {@link RowDeletor}s are invalidated in the cache.
+     * <p>Note: by default reads aren't cached.
+     * @param nearCache the near cache (null to disable caching)
+     */
+    public OperandPolicy setNearCache(NearCache nearCache) {
+        this.nearCache = nearCache;
+        return this;
+    }
+
+    /**
+     * The cache used to answer the reads issued by {@link Selector}s of rows and columns that don't exist.
+     * @return the negative cache or null if misses aren't cached
+     */
+    public NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    /**
+     * The cache used to answer the reads issued by {@link Selector}s of rows and columns that don't exist.  The rows
+     * mutated through {@link Mutator}s and {@link RowDeletor}s are invalidated in the cache.
+     * <p>Note: by default misses aren't cached.
+     * @param negativeCache the negative cache (null to disable caching)
+     */
+    public OperandPolicy setNegativeCache(NegativeCache negativeCache) {
+        this.negativeCache = negativeCache;
+        return this;
+    }
+
+    /**
+     * The off-heap second level cache used to serve the single row reads issued by {@link Selector}s that miss the
+     * {@link #getNearCache() near cache}.
+     * @return the mapped row cache or null if reads aren't cached off-heap
+     */
+    public MappedRowCache getMappedRowCache() {
+        return mappedRowCache;
+    }
+
+    /**
+     * The off-heap second level cache used to serve the single row reads issued by {@link Selector}s that miss the
+     * {@link #getNearCache() near cache}.  The rows mutated through {@link Mutator}s and {@link RowDeletor}s are
+     * invalidated in the cache.
+     * <p>Note: by default reads aren't cached off-heap.
+     * @param mappedRowCache the mapped row cache (null to disable caching)
+     */
+    public OperandPolicy setMappedRowCache(MappedRowCache mappedRowCache) {
+        this.mappedRowCache = mappedRowCache;
+        return this;
+    }
+
+    /**
+     * The caches that are set, in the order the single row reads go through them: the negative cache, the near cache
+     * and then the mapped row cache.
+     * @return the caches
+     */
+    List<RowCache> getRowCaches() {
+        List<RowCache> caches = new ArrayList<RowCache>(3);
+        if (negativeCache != null)
+            caches.add(negativeCache);
+        if (nearCache != null)
+            caches.add(nearCache);
+        if (mappedRowCache != null)
+            caches.add(mappedRowCache);
+        return caches;
+    }
+
+    /**
+     * The executor used to run the requests of operations that fan out into several concurrent requests, such as
+     * {@link Mutator#execute(org.apache.cassandra.thrift.ConsistencyLevel, TokenRing) replica aware mutations}.
+     * @return the executor or null if a shared default executor is used
+     */
+    public ExecutorService getParallelExecutor() {
+        return parallelExecutor;
+    }
+
+    /**
+     * The executor used to run the requests of operations that fan out into several concurrent requests, such as
+     * {@link Mutator#execute(org.apache.cassandra.thrift.ConsistencyLevel, TokenRing) replica aware mutations}.
+     * <p>Note: by default a shared executor with an unbounded number of daemon threads is used.
+     * @param parallelExecutor the executor (null to use the shared default executor)
+     */
+    public OperandPolicy setParallelExecutor(ExecutorService parallelExecutor) {
+        this.parallelExecutor = parallelExecutor;
+        return this;
+    }
+
+    /**
+     * The maximum estimated size in bytes of a single batch_mutate call.  Larger {@link Mutator} batches are split
+     * into several calls.
+     * @return the max number of bytes
+     */
+    public long getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /**
+     * The maximum estimated size in bytes of a single batch_mutate call.  Larger {@link Mutator} batches are split
+     * into several calls.
+     * <p>Note: by default batches aren't split by size, {@link #RECOMMENDED_MAX_BATCH_BYTES} is a sensible limit.
+     * @param maxBatchBytes the max number of bytes (0 for no limit)
+     * @see Mutator#getBatchSizeEstimate()
+     */
+    public OperandPolicy setMaxBatchBytes(long maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+        return this;
+    }
+
+    /**
+     * The maximum number of rows mutated by a single batch_mutate call.  {@link Mutator} batches that touch more rows
+     * are split into several calls.
+     * @return the max number of rows
+     */
+    public int getMaxBatchRows() {
+        return maxBatchRows;
+    }
+
+    /**
+     * The maximum number of rows mutated by a single batch_mutate call.  {@link Mutator} batches that touch more rows
+     * are split into several calls.
+     * <p>Note: by default the number of rows isn't limited.
+     * @param maxBatchRows the max number of rows (0 for no limit)
+     */
+    public OperandPolicy setMaxBatchRows(int maxBatchRows) {
+        this.maxBatchRows = maxBatchRows;
+        return this;
+    }
+
+    /**
+     * Dictates if the calls a {@link Mutator} batch has been split into are executed concurrently or one after the
+     * other.
+     * @return true if the calls are executed concurrently
+     */
+    public boolean isExecuteBatchesInParallel() {
+        return executeBatchesInParallel;
+    }
+
+    /**
+     * Dictates if the calls a {@link Mutator} batch has been split into are executed concurrently (using the
+     * {@link #getParallelExecutor() parallel executor}) or one after the other.
+     * <p>Note: by default the calls are executed one after the other.
+     * @param executeBatchesInParallel true if the calls should be executed concurrently
+     */
+    public OperandPolicy setExecuteBatchesInParallel(boolean executeBatchesInParallel) {
+        this.executeBatchesInParallel = executeBatchesInParallel;
+        return this;
+    }
+
+    /**
+     * Dictates if {@link Mutator}s {@link Mutator#compact() compact} their batch before executing it.
+     * @return true if batches are compacted
+     */
+    public boolean isCompactMutations() {
+        return compactMutations;
+    }
+
+    /**
+     * Dictates if {@link Mutator}s {@link Mutator#compact() compact} their batch before executing it, dropping
+     * writes and deletes that are superseded by other mutations of the same column in the batch.
+     * <p>Note: by default batches aren't compacted.
+     * @param compactMutations true if batches should be compacted
+     */
+    public OperandPolicy setCompactMutations(boolean compactMutations) {
+        this.compactMutations = compactMutations;
+        return this;
+    }
+
+    /**
+     * The maximum number of keys read by a single multiget_slice call.  {@link Selector} reads of more rows are split
+     * into chunks that are read concurrently.
+     * @return the max number of keys
+     */
+    public int getMultigetChunkSize() {
+        return multigetChunkSize;
+    }
+
+    /**
+     * The maximum number of keys read by a single multiget_slice call.  {@link Selector} reads of more rows are split
+     * into chunks that are read concurrently using the {@link #getParallelExecutor() parallel executor}.
+     * <p>Note: by default multigets aren't split.
+     * @param multigetChunkSize the max number of keys (0 for no limit)
+     */
+    public OperandPolicy setMultigetChunkSize(int multigetChunkSize) {
+        this.multigetChunkSize = multigetChunkSize;
+        return this;
+    }
+
+    /**
+     * The maximum number of rows read by a single get_range_slices or get_indexed_slices call of the {@link Selector}
+     * methods that hand the rows of a range to an {@link IRowHandler}.
+     * @return the max number of rows
+     * @see #setRangePageSize(int)
+     */
+    public int getRangePageSize() {
+        return rangePageSize;
+    }
+
+    /**
+     * The maximum number of rows read by a single get_range_slices or get_indexed_slices call of the {@link Selector}
+     * methods that hand the rows of a range to an {@link IRowHandler}.  Larger ranges are read one page at a time,
+     * each page resuming from the last row of the previous page, so the memory held is bounded by the page size.
+     * <p>Note: defaults to 100.
+     * @param rangePageSize the max number of rows
+     */
+    public OperandPolicy setRangePageSize(int rangePageSize) {
+        this.rangePageSize = rangePageSize;
+        return this;
+    }
+
+    /**
+     * The ring used to send the requests of operations that fan out to the nodes that own the rows.
+     * @return the ring or null if the requests are sent to any node
+     */
+    public TokenRing getTokenRing() {
+        return tokenRing;
+    }
+
+    /**
+     * The ring used to send the requests of operations that fan out to the nodes that own the rows, such as
+     * {@link #setMultigetChunkSize(int) chunked multigets} whose keys are grouped by owner before being chunked.
+     * <p>Note: by default the requests are sent to any node.
+     * @param tokenRing the ring (null to send requests to any node)
+     * @see TokenRing#fetch(Cluster, String)
+     */
+    public OperandPolicy setTokenRing(TokenRing tokenRing) {
+        this.tokenRing = tokenRing;
+        return this;
+    }
+
     /**
      * Returns a shallow copy of this object.
      * @return a copy of this
      */
     public OperandPolicy copy() {
-        return new OperandPolicy(this.getMaxOpRetries(), this.isDeleteIfNull(), getExceptionTranslator());
+        return new OperandPolicy(this.getMaxOpRetries(), this.isDeleteIfNull(), getExceptionTranslator())
+                .setRateLimiter(getRateLimiter())
+                .setReadCoalescer(getReadCoalescer())
+                .setReadBatcher(getReadBatcher())
+                .setNearCache(getNearCache())
+                .setNegativeCache(getNegativeCache())
+                .setMappedRowCache(getMappedRowCache())
+                .setParallelExecutor(getParallelExecutor())
+                .setMaxBatchBytes(getMaxBatchBytes())
+                .setMaxBatchRows(getMaxBatchRows())
+                .setExecuteBatchesInParallel(isExecuteBatchesInParallel())
+                .setCompactMutations(isCompactMutations())
+                .setMultigetChunkSize(getMultigetChunkSize())
+                .setRangePageSize(getRangePageSize())
+                .setTokenRing(getTokenRing());
     }
 }
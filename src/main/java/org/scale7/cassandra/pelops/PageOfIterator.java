@@ -24,6 +24,7 @@
 
 package org.scale7.cassandra.pelops;
 
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -35,11 +36,14 @@ public abstract class PageOfIterator<E> implements Iterator<E> {
     protected final String columnFamily;
     protected final Bytes rowKey;
     protected final boolean reversed;
-    protected final int batchSize;
+    protected int batchSize;
     protected final ConsistencyLevel cLevel;
     protected Bytes startBeyondName;
     private boolean isMoreToFetch = false;
+    private boolean isLastBatchFull = false;
     private Iterator<E> currentBatchIterator;
+    private Prefetcher<List<E>> prefetcher;
+    private PageSizeController pageSizeController;
 
     public PageOfIterator(final Selector selector, final String columnFamily, final Bytes rowKey,
                           final Bytes startBeyondName, final boolean reversed, final int batchSize,
@@ -53,15 +57,110 @@ public abstract class PageOfIterator<E> implements Iterator<E> {
         this.selector = selector;
     }
 
+    /**
+     * Fetches the following batches in the background as soon as a batch arrives, so that fetching overlaps with the
+     * consumption of the columns.  Errors raised while fetching are thrown by the <code>hasNext()</code> or
+     * <code>next()</code> call that reaches the batch.
+     * @param maxBatches the max number of batches fetched ahead
+     * @param maxColumns the max number of columns fetched ahead (at least one batch is always fetched ahead)
+     * @return this iterator
+     * @throws IllegalStateException if the iteration has already started
+     */
+    public PageOfIterator<E> prefetch(int maxBatches, int maxColumns) {
+        if (currentBatchIterator != null)
+            throw new IllegalStateException("Prefetching must be enabled before the iteration starts");
+
+        prefetcher = new Prefetcher<List<E>>(new Prefetcher.IPager<List<E>>() {
+            @Override
+            public List<E> fetch() {
+                return fetchNextBatchAndAdvance();
+            }
+
+            @Override
+            public boolean isMoreToFetch() {
+                return isLastBatchFull;
+            }
+
+            @Override
+            public int size(List<E> batch) {
+                return batch.size();
+            }
+        }, maxBatches, maxColumns, Operand.getParallelExecutor(selector.thrift.getOperandPolicy()));
+        return this;
+    }
+
+    /**
+     * Adapts the number of columns fetched per batch to the size of the columns and the latency of the cluster,
+     * starting from the batch size given to the constructor.  See {@link PageSizeController}.
+     * @param policy the page size controller config (if null the defaults are used)
+     * @return this iterator
+     * @throws IllegalStateException if the iteration has already started
+     */
+    public PageOfIterator<E> adaptPageSize(PageSizeController.Policy policy) {
+        if (currentBatchIterator != null)
+            throw new IllegalStateException("Adaptive page sizing must be enabled before the iteration starts");
+
+        pageSizeController = new PageSizeController(policy, batchSize);
+        batchSize = pageSizeController.getPageSize();
+        return this;
+    }
+
+    /**
+     * Ends the iteration early, cancelling the batches being fetched in the background (if prefetching is enabled)
+     * and discarding the batches fetched ahead.  Iterators that are consumed to the end need not be closed.
+     * Once closed, <code>hasNext()</code> returns false.
+     */
+    public void close() {
+        if (prefetcher != null)
+            prefetcher.cancel();
+        currentBatchIterator = Collections.<E>emptyList().iterator();
+        isMoreToFetch = false;
+    }
+
     private void fetchNextBatchInternal() {
+        if (prefetcher == null) {
+            currentBatchIterator = fetchNextBatchAndAdvance().iterator();
+            isMoreToFetch = isLastBatchFull;
+            return;
+        }
+
+        List<E> batch = prefetcher.take();
+        if (batch != null) {
+            currentBatchIterator = batch.iterator();
+            isMoreToFetch = true;
+        } else {
+            currentBatchIterator = Collections.<E>emptyList().iterator();
+            isMoreToFetch = false;
+        }
+    }
+
+    private List<E> fetchNextBatchAndAdvance() {
+        long start = pageSizeController != null ? System.currentTimeMillis() : 0;
         List<E> batch = fetchNextBatch();
-        currentBatchIterator = batch.iterator();
         startBeyondName = nextStartBeyondName(batch);
-        isMoreToFetch = batch.size() == this.batchSize;
+        isLastBatchFull = batch.size() == this.batchSize;
+
+        if (pageSizeController != null) {
+            long bytes = 0;
+            for (E element : batch)
+                bytes += estimateSize(element);
+            batchSize = pageSizeController.update(batchSize, batch.size(), bytes, System.currentTimeMillis() - start);
+        }
+        return batch;
     }
 
     protected abstract List<E> fetchNextBatch();
 
+    /**
+     * Estimates the number of bytes the element occupies on the wire, used to {@link #adaptPageSize adapt} the batch
+     * size.  The default implementation returns 0 (in which case only the latency of batches is taken into account).
+     * @param element the element
+     * @return the estimated size in bytes
+     */
+    protected long estimateSize(E element) {
+        return 0;
+    }
+
     protected abstract Bytes nextStartBeyondName(List<E> batch);
 
     /**
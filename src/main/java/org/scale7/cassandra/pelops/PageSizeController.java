@@ -0,0 +1,195 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.scale7.cassandra.pelops;
+
+/**
+ * Adapts the number of columns (or rows) fetched per page by an iterator to the size of the data and the latency of
+ * the cluster.  After each page the controller computes the page size that would have hit the
+ * {@link Policy#getTargetPageBytes() target bytes} and the {@link Policy#getTargetPageMillis() target latency} and
+ * moves towards the smaller of the two: the page size shrinks straight to it (so that pages of large values stop
+ * approaching timeouts and the frame size immediately) but grows by at most {@link Policy#getMaxGrowthFactor()} per
+ * page.  The page size always stays between {@link Policy#getMinPageSize()} and {@link Policy#getMaxPageSize()}.
+ * <p>Controllers are used by a single iterator, see {@link PageOfIterator#adaptPageSize(Policy)} and
+ * {@link RowIterator#adaptPageSize(Policy)}.
+ */
+public class PageSizeController {
+    private final Policy policy;
+    private int pageSize;
+
+    /**
+     * Create a new controller.
+     * @param policy the controller config (if null the defaults are used)
+     * @param initialPageSize the size of the first page
+     */
+    public PageSizeController(Policy policy, int initialPageSize) {
+        this.policy = policy != null ? policy : new Policy();
+        this.pageSize = clamp(initialPageSize);
+    }
+
+    /**
+     * The number of columns (or rows) to request in the next page.
+     * @return the page size
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Adapts the page size to a page that has just been fetched.  Pages that came back with fewer elements than were
+     * requested are ignored unless they exceeded one of the targets, since they don't say how a full page would
+     * have performed.
+     * @param requested the number of elements requested
+     * @param returned the number of elements returned
+     * @param bytes the (estimated) size of the elements returned
+     * @param millis the time taken to fetch the page
+     * @return the page size to use for the next page
+     */
+    public int update(int requested, int returned, long bytes, long millis) {
+        if (returned <= 0)
+            return pageSize;
+
+        double ideal = Double.MAX_VALUE;
+        if (policy.getTargetPageBytes() > 0 && bytes > 0)
+            ideal = Math.min(ideal, (double) returned * policy.getTargetPageBytes() / bytes);
+        if (policy.getTargetPageMillis() > 0 && millis > 0)
+            ideal = Math.min(ideal, (double) returned * policy.getTargetPageMillis() / millis);
+
+        if (ideal == Double.MAX_VALUE || (returned < requested && ideal >= returned))
+            return pageSize;
+
+        double next = Math.min(ideal, (double) requested * policy.getMaxGrowthFactor());
+        pageSize = clamp((int) Math.min(Integer.MAX_VALUE, Math.round(next)));
+        return pageSize;
+    }
+
+    private int clamp(int size) {
+        return Math.max(policy.getMinPageSize(), Math.min(policy.getMaxPageSize(), size));
+    }
+
+    /**
+     * The page size controller configuration.
+     */
+    public static class Policy {
+        private int minPageSize = 10;
+        private int maxPageSize = 10000;
+        private long targetPageBytes = 1024 * 1024;
+        private long targetPageMillis = 250;
+        private double maxGrowthFactor = 2;
+
+        public Policy() {
+        }
+
+        /**
+         * @see #setMinPageSize(int)
+         */
+        public int getMinPageSize() {
+            return minPageSize;
+        }
+
+        /**
+         * The smallest number of columns (or rows) requested per page.
+         * @param minPageSize the min page size
+         */
+        public void setMinPageSize(int minPageSize) {
+            this.minPageSize = minPageSize;
+        }
+
+        /**
+         * @see #setMaxPageSize(int)
+         */
+        public int getMaxPageSize() {
+            return maxPageSize;
+        }
+
+        /**
+         * The largest number of columns (or rows) requested per page.
+         * @param maxPageSize the max page size
+         */
+        public void setMaxPageSize(int maxPageSize) {
+            this.maxPageSize = maxPageSize;
+        }
+
+        /**
+         * @see #setTargetPageBytes(long)
+         */
+        public long getTargetPageBytes() {
+            return targetPageBytes;
+        }
+
+        /**
+         * The (estimated) size of the pages the controller aims for.  This should stay well below the
+         * {@link Connection#DEFAULT_MAX_FRAME_SIZE frame size}.
+         * @param targetPageBytes the number of bytes (0 to ignore the size of pages)
+         */
+        public void setTargetPageBytes(long targetPageBytes) {
+            this.targetPageBytes = targetPageBytes;
+        }
+
+        /**
+         * @see #setTargetPageMillis(long)
+         */
+        public long getTargetPageMillis() {
+            return targetPageMillis;
+        }
+
+        /**
+         * The time taken to fetch a page the controller aims for.  This should stay well below the rpc timeout of
+         * the cluster.
+         * @param targetPageMillis the latency in milliseconds (0 to ignore the latency of pages)
+         */
+        public void setTargetPageMillis(long targetPageMillis) {
+            this.targetPageMillis = targetPageMillis;
+        }
+
+        /**
+         * @see #setMaxGrowthFactor(double)
+         */
+        public double getMaxGrowthFactor() {
+            return maxGrowthFactor;
+        }
+
+        /**
+         * The factor by which the page size may grow from one page to the next.
+         * @param maxGrowthFactor the factor (greater than one)
+         */
+        public void setMaxGrowthFactor(double maxGrowthFactor) {
+            this.maxGrowthFactor = maxGrowthFactor;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("Config");
+            sb.append("{minPageSize=").append(minPageSize);
+            sb.append(", maxPageSize=").append(maxPageSize);
+            sb.append(", targetPageBytes=").append(targetPageBytes);
+            sb.append(", targetPageMillis=").append(targetPageMillis);
+            sb.append(", maxGrowthFactor=").append(maxGrowthFactor);
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+}
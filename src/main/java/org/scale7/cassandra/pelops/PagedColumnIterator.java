@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.scale7.cassandra.pelops;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.KeyRange;
+
+/**
+ * Encapsulates the logic required to iterate over the columns of a range of rows using get_paged_slice.  Each page
+ * holds at most <code>pageSize</code> columns whatever the width of the rows, so wide rows are streamed in constant
+ * memory without a request per row.  See
+ * {@link org.scale7.cassandra.pelops.Selector#iterateColumnsFromRows(String, KeyRange, int, ConsistencyLevel)} for
+ * more detail.
+ * <p>The iteration can be resumed (for example by another process) from the {@link #getCursor() cursor} of the last
+ * column returned.
+ */
+public class PagedColumnIterator implements Iterator<Map.Entry<Bytes, Column>> {
+    private final Selector selector;
+    private final String columnFamily;
+    private final KeyRange keyRange;
+    private final int pageSize;
+    private final ConsistencyLevel cLevel;
+
+    private Cursor pageCursor;
+    private Cursor cursor;
+    private boolean isMoreToFetch = true;
+    private Iterator<Map.Entry<Bytes, Column>> currentPageIterator;
+
+    /**
+     * Create a new iterator.
+     * @param selector the selector used to fetch the pages
+     * @param columnFamily the column family containing the rows
+     * @param keyRange the range of rows to iterate over (its count is ignored)
+     * @param startBeyond the iteration starts with the column following this cursor (null to start at the beginning
+     * of the range)
+     * @param pageSize the maximum number of columns (in all rows) fetched per page
+     * @param cLevel the consistency level
+     */
+    public PagedColumnIterator(Selector selector, String columnFamily, KeyRange keyRange, Cursor startBeyond, int pageSize, ConsistencyLevel cLevel) {
+        if (pageSize < 2) throw new IllegalArgumentException("pageSize must be at least 2");
+        this.selector = selector;
+        this.columnFamily = columnFamily;
+        this.keyRange = keyRange;
+        this.pageCursor = startBeyond;
+        this.cursor = startBeyond;
+        this.pageSize = pageSize;
+        this.cLevel = cLevel;
+    }
+
+    /**
+     * The position of the last column returned by {@link #next()}, which can be used to resume the iteration.
+     * @return the cursor or the cursor the iteration started beyond if no column has been returned yet (null if the
+     * iteration started at the beginning of the range)
+     */
+    public Cursor getCursor() {
+        return cursor;
+    }
+
+    private void fetchNextPage() {
+        KeyRange range = new KeyRange(pageSize);
+        if (pageCursor == null) {
+            range.setStart_key(keyRange.bufferForStart_key());
+            range.setStart_token(keyRange.getStart_token());
+        } else {
+            // the page starts with the column of the cursor, which is skipped below
+            range.setStart_key(pageCursor.getRowKey().getBytes());
+        }
+        range.setEnd_key(keyRange.bufferForEnd_key());
+        range.setEnd_token(keyRange.getEnd_token());
+
+        Map<Bytes, List<Column>> page = selector.getPageOfColumnsFromRows(
+                columnFamily, range, pageCursor != null ? pageCursor.getColumnName() : null, cLevel
+        );
+
+        List<Map.Entry<Bytes, Column>> entries = new ArrayList<Map.Entry<Bytes, Column>>(pageSize);
+        int count = 0;
+        for (Map.Entry<Bytes, List<Column>> row : page.entrySet()) {
+            for (Column column : row.getValue()) {
+                boolean isCursorColumn = count == 0 && pageCursor != null && pageCursor.getRowKey().equals(row.getKey())
+                        && pageCursor.getColumnName().equals(Bytes.fromByteBuffer(column.bufferForName()));
+                if (!isCursorColumn)
+                    entries.add(new AbstractMap.SimpleImmutableEntry<Bytes, Column>(row.getKey(), column));
+                count++;
+            }
+        }
+
+        if (!entries.isEmpty()) {
+            Map.Entry<Bytes, Column> last = entries.get(entries.size() - 1);
+            pageCursor = new Cursor(last.getKey(), Bytes.fromByteBuffer(last.getValue().bufferForName()));
+        }
+        isMoreToFetch = count == pageSize;
+        currentPageIterator = entries.iterator();
+    }
+
+    /**
+     * Returns true if the iteration has more columns.
+     */
+    @Override
+    public boolean hasNext() {
+        while (currentPageIterator == null || (!currentPageIterator.hasNext() && isMoreToFetch))
+            fetchNextPage();
+
+        return currentPageIterator.hasNext();
+    }
+
+    /**
+     * Returns the next column in the iteration along with the key of its row.
+     * @return the row key and column
+     * @throws java.util.NoSuchElementException iteration has no more columns.
+     */
+    @Override
+    public Map.Entry<Bytes, Column> next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        Map.Entry<Bytes, Column> entry = currentPageIterator.next();
+        cursor = new Cursor(entry.getKey(), Bytes.fromByteBuffer(entry.getValue().bufferForName()));
+        return entry;
+    }
+
+    /**
+     * Not supported.
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The position of a column in a range of rows: the key of its row and its name.
+     */
+    public static class Cursor {
+        private final Bytes rowKey;
+        private final Bytes columnName;
+
+        /**
+         * Create a new cursor.
+         * @param rowKey the key of the row
+         * @param columnName the name of the column
+         */
+        public Cursor(Bytes rowKey, Bytes columnName) {
+            if (rowKey == null) throw new IllegalArgumentException("rowKey is a required argument");
+            if (columnName == null) throw new IllegalArgumentException("columnName is a required argument");
+            this.rowKey = rowKey;
+            this.columnName = columnName;
+        }
+
+        public Bytes getRowKey() {
+            return rowKey;
+        }
+
+        public Bytes getColumnName() {
+            return columnName;
+        }
+
+        @Override
+        public String toString() {
+            return "Cursor{rowKey=" + rowKey + ", columnName=" + columnName + '}';
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.scale7.cassandra.pelops;
+
+import static org.scale7.cassandra.pelops.Bytes.fromByteBuffer;
+import static org.scale7.cassandra.pelops.ColumnOrSuperColumnHelper.COLUMN;
+import static org.scale7.cassandra.pelops.ColumnOrSuperColumnHelper.COUNTER_COLUMN;
+import static org.scale7.cassandra.pelops.ColumnOrSuperColumnHelper.SUPER_COLUMN;
+import static org.scale7.cassandra.pelops.ColumnOrSuperColumnHelper.transform;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.CounterColumn;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SuperColumn;
+import org.apache.cassandra.thrift.TokenRange;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+import org.scale7.cassandra.pelops.pool.IThriftPool;
+import org.scale7.portability.SystemProxy;
+import org.slf4j.Logger;
+
+/**
+ * Scans every row of a column family by splitting the ring into sub-ranges and scanning them concurrently.  Unlike
+ * {@link RowIterator}, which pages through the whole ring one page at a time, the scanner asks the nodes to split
+ * each of their token ranges into sub-ranges of about {@link Policy#getSplitSize()} rows (using
+ * <code>describe_splits_ex</code>) and scans {@link Policy#getParallelism()} sub-ranges at a time, each against a
+ * node that holds a replica of the sub-range.
+ * <p>Rows are delivered to an {@link IRowHandler} from the scanning threads, in no particular order.  The handler
+ * must be thread safe, {@link #newQueueHandler(BlockingQueue)} hands the rows to a bounded queue instead.  A sub-range
+ * that fails is retried from the last row delivered, up to {@link Policy#getMaxRangeRetries()} times, without
+ * affecting the other sub-ranges.
+ * <pre>
+ * ParallelRangeScanner scanner = new ParallelRangeScanner(pool, new ParallelRangeScanner.Policy());
+ * long rows = scanner.scanColumns("Users", Selector.newColumnsPredicateAll(false), ConsistencyLevel.ONE,
+ *         new IRowHandler&lt;Column&gt;() {
+ *             public void handle(Bytes rowKey, List&lt;Column&gt; columns) {
+ *                 ...
+ *             }
+ *         });
+ * </pre>
+ * <p>Note: the scanner generates {@link TrafficClass#BATCH} traffic by default.
+ */
+public class ParallelRangeScanner extends Operand {
+    private static final Logger logger = SystemProxy.getLoggerFromFactory(ParallelRangeScanner.class);
+
+    private final Policy policy;
+
+    /**
+     * Create a new scanner.
+     * @param thrift the pool used to scan the rows
+     * @param policy the scanner config (if null the defaults are used)
+     */
+    public ParallelRangeScanner(IThriftPool thrift, Policy policy) {
+        super(thrift);
+        this.policy = policy != null ? policy : new Policy();
+        this.trafficClass = TrafficClass.BATCH;
+    }
+
+    /**
+     * Scan the columns of every row of a column family.
+     * @param columnFamily                  The column family
+     * @param colPredicate                  The column selector predicate
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @param handler                       Receives the rows (from several threads)
+     * @return the number of rows scanned
+     * @throws PelopsException if the ring couldn't be split, a range still fails after its retries or the handler
+     * throws an exception
+     */
+    public long scanColumns(String columnFamily, SlicePredicate colPredicate, ConsistencyLevel cLevel, final IRowHandler<Column> handler) throws PelopsException {
+        return scan(columnFamily, colPredicate, cLevel, new IKeySliceHandler() {
+            @Override
+            public void handle(KeySlice row) {
+                handler.handle(fromByteBuffer(row.bufferForKey()), transform(row.getColumns(), COLUMN));
+            }
+        });
+    }
+
+    /**
+     * Scan the super columns of every row of a column family.
+     * @param columnFamily                  The column family
+     * @param colPredicate                  The super column selector predicate
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @param handler                       Receives the rows (from several threads)
+     * @return the number of rows scanned
+     * @throws PelopsException if the ring couldn't be split, a range still fails after its retries or the handler
+     * throws an exception
+     */
+    public long scanSuperColumns(String columnFamily, SlicePredicate colPredicate, ConsistencyLevel cLevel, final IRowHandler<SuperColumn> handler) throws PelopsException {
+        return scan(columnFamily, colPredicate, cLevel, new IKeySliceHandler() {
+            @Override
+            public void handle(KeySlice row) {
+                handler.handle(fromByteBuffer(row.bufferForKey()), transform(row.getColumns(), SUPER_COLUMN));
+            }
+        });
+    }
+
+    /**
+     * Scan the counter columns of every row of a column family.
+     * @param columnFamily                  The column family
+     * @param colPredicate                  The counter column selector predicate
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @param handler                       Receives the rows (from several threads)
+     * @return the number of rows scanned
+     * @throws PelopsException if the ring couldn't be split, a range still fails after its retries or the handler
+     * throws an exception
+     */
+    public long scanCounterColumns(String columnFamily, SlicePredicate colPredicate, ConsistencyLevel cLevel, final IRowHandler<CounterColumn> handler) throws PelopsException {
+        return scan(columnFamily, colPredicate, cLevel, new IKeySliceHandler() {
+            @Override
+            public void handle(KeySlice row) {
+                handler.handle(fromByteBuffer(row.bufferForKey()), transform(row.getColumns(), COUNTER_COLUMN));
+            }
+        });
+    }
+
+    /**
+     * Creates a handler that puts the rows into a queue, blocking while the queue is full.
+     * @param queue the queue
+     * @return the handler
+     */
+    public static <T> IRowHandler<T> newQueueHandler(final BlockingQueue<Map.Entry<Bytes, List<T>>> queue) {
+        return new IRowHandler<T>() {
+            @Override
+            public void handle(Bytes rowKey, List<T> columns) {
+                try {
+                    queue.put(new AbstractMap.SimpleImmutableEntry<Bytes, List<T>>(rowKey, columns));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new PelopsException("Interrupted while waiting to queue row", e);
+                }
+            }
+        };
+    }
+
+    private long scan(final String columnFamily, final SlicePredicate colPredicate, final ConsistencyLevel cLevel, final IKeySliceHandler handler) throws PelopsException {
+        final OperandPolicy operandPolicy = thrift.getOperandPolicy();
+        final Selector selector = new Selector(thrift);
+        selector.setTrafficClass(trafficClass);
+        final TokenRing.Partitioner partitioner = selector.getPartitioner();
+        List<TokenRange> tokenRanges = selector.describeRing();
+        final Set<String> endpoints = TokenRangePager.getEndpoints(tokenRanges);
+
+        final BlockingQueue<Range> queue = new LinkedBlockingQueue<Range>();
+        final AtomicInteger pending = new AtomicInteger(tokenRanges.size());
+        for (TokenRange tokenRange : tokenRanges)
+            queue.add(new Range(tokenRange, false));
+        logger.debug("Scanning {} token ranges of column family '{}'", tokenRanges.size(), columnFamily);
+
+        final ColumnParent columnParent = new ColumnParent(columnFamily);
+        final AtomicLong rowsScanned = new AtomicLong();
+        final List<Range> failedRanges = Collections.synchronizedList(new ArrayList<Range>());
+        final List<RuntimeException> handlerFailures = Collections.synchronizedList(new ArrayList<RuntimeException>());
+
+        List<Future<?>> workers = new ArrayList<Future<?>>();
+        for (int i = 0; i < Math.max(1, policy.getParallelism()); i++) {
+            workers.add(getParallelExecutor(operandPolicy).submit(new Runnable() {
+                @Override
+                public void run() {
+                    while (pending.get() > 0 && handlerFailures.isEmpty()) {
+                        Range range;
+                        try {
+                            range = queue.poll(100, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        if (range == null)
+                            continue;
+
+                        try {
+                            if (!range.split) {
+                                // if the node can't split the range it is scanned as a whole
+                                List<TokenRange> splits = selector.splitTokenRange(columnFamily, range.tokenRange, policy.getSplitSize(),
+                                        TokenRangePager.getAvoidNodesHint(endpoints, range.tokenRange));
+                                pending.addAndGet(splits.size());
+                                for (TokenRange split : splits)
+                                    queue.add(new Range(split, true));
+                            } else {
+                                scan(new TokenRangePager(selector, columnParent, colPredicate, policy.getPageSize(), cLevel, partitioner, range.tokenRange, endpoints),
+                                        handler, rowsScanned);
+                            }
+                        } catch (HandlerException e) {
+                            handlerFailures.add(e.getCause());
+                        } catch (PelopsException e) {
+                            logger.error(String.format("Failed to scan range (%s, %s] of column family '%s'", range.tokenRange.getStart_token(), range.tokenRange.getEnd_token(), columnFamily), e);
+                            failedRanges.add(range);
+                        } finally {
+                            pending.decrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (ExecutionException e) {
+                throw new PelopsException("Scan worker failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<?> other : workers)
+                    other.cancel(true);
+                throw new PelopsException("Interrupted while waiting for the scan to complete", e);
+            }
+        }
+
+        if (!handlerFailures.isEmpty())
+            throw handlerFailures.get(0);
+        if (!failedRanges.isEmpty())
+            throw new PelopsException(failedRanges.size() + " ranges of column family '" + columnFamily + "' failed to be scanned, " + rowsScanned.get() + " rows were scanned");
+        return rowsScanned.get();
+    }
+
+    /**
+     * Pages through the range, resuming after the last row delivered when a page fails.
+     */
+    private void scan(TokenRangePager pager, IKeySliceHandler handler, AtomicLong rowsScanned) throws PelopsException {
+        int retries = 0;
+        while (pager.isMoreInRange()) {
+            List<KeySlice> page;
+            try {
+                page = pager.nextPage();
+            } catch (PelopsException e) {
+                if (++retries > policy.getMaxRangeRetries())
+                    throw e;
+                logger.warn("Failed to scan range ({}, {}], retrying in {} ms. Cause of failure is {}", new Object[] {pager.getStartToken(), pager.getTokenRange().getEnd_token(), policy.getRetryDelayMillis(), e});
+                try {
+                    Thread.sleep(policy.getRetryDelayMillis());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new PelopsException("Interrupted while waiting to retry range", ie);
+                }
+                continue;
+            }
+            retries = 0;
+
+            for (KeySlice row : page) {
+                try {
+                    handler.handle(row);
+                } catch (RuntimeException e) {
+                    throw new HandlerException(e);
+                }
+            }
+            rowsScanned.addAndGet(page.size());
+        }
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    private interface IKeySliceHandler {
+        void handle(KeySlice row);
+    }
+
+    private static class Range {
+        private final TokenRange tokenRange;
+        private final boolean split;
+
+        private Range(TokenRange tokenRange, boolean split) {
+            this.tokenRange = tokenRange;
+            this.split = split;
+        }
+    }
+
+    /**
+     * Carries an exception thrown by the row handler, which aborts the scan rather than being retried.
+     */
+    private static class HandlerException extends PelopsException {
+        private HandlerException(RuntimeException cause) {
+            super(cause);
+        }
+
+        @Override
+        public RuntimeException getCause() {
+            return (RuntimeException) super.getCause();
+        }
+    }
+
+    /**
+     * The scanner configuration.
+     */
+    public static class Policy {
+        private int parallelism = 8;
+        private int pageSize = 1000;
+        private int splitSize = 64 * 1024;
+        private int maxRangeRetries = 3;
+        private long retryDelayMillis = 1000;
+
+        public Policy() {
+        }
+
+        /**
+         * @see #setParallelism(int)
+         */
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        /**
+         * The number of ranges scanned concurrently.
+         * @param parallelism the number of ranges
+         */
+        public void setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+        }
+
+        /**
+         * @see #setPageSize(int)
+         */
+        public int getPageSize() {
+            return pageSize;
+        }
+
+        /**
+         * The number of rows fetched by each get_range_slices call.
+         * @param pageSize the number of rows
+         */
+        public void setPageSize(int pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        /**
+         * @see #setSplitSize(int)
+         */
+        public int getSplitSize() {
+            return splitSize;
+        }
+
+        /**
+         * The (estimated) number of rows in each sub-range the ring is split into.
+         * @param splitSize the number of rows
+         */
+        public void setSplitSize(int splitSize) {
+            this.splitSize = splitSize;
+        }
+
+        /**
+         * @see #setMaxRangeRetries(int)
+         */
+        public int getMaxRangeRetries() {
+            return maxRangeRetries;
+        }
+
+        /**
+         * The number of times a failed sub-range is retried (from the last row delivered) before the scan fails.
+         * Each attempt is itself retried against other nodes as dictated by {@link OperandPolicy#getMaxOpRetries()}.
+         * @param maxRangeRetries the number of retries
+         */
+        public void setMaxRangeRetries(int maxRangeRetries) {
+            this.maxRangeRetries = maxRangeRetries;
+        }
+
+        /**
+         * @see #setRetryDelayMillis(long)
+         */
+        public long getRetryDelayMillis() {
+            return retryDelayMillis;
+        }
+
+        /**
+         * The delay before a failed sub-range is retried.
+         * @param retryDelayMillis the delay in milliseconds
+         */
+        public void setRetryDelayMillis(long retryDelayMillis) {
+            this.retryDelayMillis = retryDelayMillis;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("Config");
+            sb.append("{parallelism=").append(parallelism);
+            sb.append(", pageSize=").append(pageSize);
+            sb.append(", splitSize=").append(splitSize);
+            sb.append(", maxRangeRetries=").append(maxRangeRetries);
+            sb.append(", retryDelayMillis=").append(retryDelayMillis);
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+}
@@ -104,6 +104,18 @@ public class Pelops {
 		return poolMap.get(poolName).createSelector();
 	}
 
+	/**
+	 * Create a <code>Selector</code> object that borrows connections with the given priority.
+	 * @param poolName				The name of the connection pool to use (this determines the Cassandra database cluster)
+	 * @param trafficClass			The class of traffic (priority) of the operations performed by the selector
+	 * @return						A new <code>Selector</code> object
+	 */
+	public static Selector createSelector(String poolName, TrafficClass trafficClass) {
+		Selector selector = poolMap.get(poolName).createSelector();
+		selector.setTrafficClass(trafficClass);
+		return selector;
+	}
+
 	/**
 	 * Create a <code>Mutator</code> object using the current time as the operation time stamp. The <code>Mutator</code> object
 	 * must only be used to execute 1 mutation operation.
@@ -114,6 +126,19 @@ public class Pelops {
 		return poolMap.get(poolName).createMutator();
 	}
 
+	/**
+	 * Create a <code>Mutator</code> object using the current time as the operation time stamp that borrows connections
+	 * with the given priority. The <code>Mutator</code> object must only be used to execute 1 mutation operation.
+	 * @param poolName				The name of the connection pool to use (this determines the Cassandra database cluster)
+	 * @param trafficClass			The class of traffic (priority) of the operations performed by the mutator
+	 * @return						A new <code>Mutator</code> object
+	 */
+	public static Mutator createMutator(String poolName, TrafficClass trafficClass) {
+		Mutator mutator = poolMap.get(poolName).createMutator();
+		mutator.setTrafficClass(trafficClass);
+		return mutator;
+	}
+
 	/**
 	 * Create a <code>Mutator</code> object with an arbitrary time stamp. The <code>Mutator</code> object
 	 * must only be used to execute 1 mutation operation.
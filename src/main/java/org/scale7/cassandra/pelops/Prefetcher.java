@@ -0,0 +1,194 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.scale7.cassandra.pelops;
+
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+
+/**
+ * Fetches the pages of an iterator in the background so that fetching the next page overlaps with the consumption of
+ * the current one.  Since each page starts after the last element of the previous page, pages are fetched one after
+ * the other by a single background task which stops once {@code maxPages} pages (or {@code maxElements} elements)
+ * are buffered and resumes as the consumer takes pages.
+ * <p>Consumers that stop before the last page must {@link #cancel() cancel} the prefetcher so that the background
+ * task stops and the buffered pages are released.
+ */
+class Prefetcher<B> {
+    private final IPager<B> pager;
+    private final int maxPages;
+    private final int maxElements;
+    private final ExecutorService executor;
+
+    private final LinkedList<B> pages = new LinkedList<B>();
+    private int bufferedElements;
+    private boolean running = false;
+    private boolean exhausted = false;
+    private boolean cancelled = false;
+    private Future<?> task;
+    private RuntimeException failure;
+
+    /**
+     * Create a new prefetcher.
+     * @param pager fetches the pages (from the background task)
+     * @param maxPages the max number of pages fetched ahead of the consumer
+     * @param maxElements the max number of elements fetched ahead of the consumer (at least one page is always
+     * fetched ahead)
+     * @param executor runs the background task
+     */
+    Prefetcher(IPager<B> pager, int maxPages, int maxElements, ExecutorService executor) {
+        if (maxPages < 1) throw new IllegalArgumentException("maxPages must be at least 1");
+        this.pager = pager;
+        this.maxPages = maxPages;
+        this.maxElements = maxElements;
+        this.executor = executor;
+    }
+
+    /**
+     * Takes the next page, waiting for it to be fetched if required.
+     * @return the page or null if there are no more pages (or the prefetcher was cancelled)
+     * @throws PelopsException if fetching the page failed
+     */
+    synchronized B take() throws PelopsException {
+        startIfRequired();
+        while (pages.isEmpty() && failure == null && !exhausted && !cancelled) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PelopsException("Interrupted while waiting for the next page", e);
+            }
+        }
+
+        if (!pages.isEmpty()) {
+            B page = pages.removeFirst();
+            bufferedElements -= pager.size(page);
+            startIfRequired();
+            return page;
+        }
+        if (failure != null && !cancelled)
+            throw failure;
+        return null;
+    }
+
+    /**
+     * Stops fetching pages: the background task is cancelled (interrupting the fetch in progress) and the buffered
+     * pages are discarded.  Calls to {@link #take()} made after (or waiting during) the cancellation return null.
+     */
+    synchronized void cancel() {
+        if (cancelled)
+            return;
+
+        cancelled = true;
+        if (task != null)
+            task.cancel(true);
+        task = null;
+        pages.clear();
+        bufferedElements = 0;
+        notifyAll();
+    }
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    private void startIfRequired() {
+        if (running || exhausted || cancelled || failure != null || !isSpaceAvailable())
+            return;
+
+        running = true;
+        try {
+            task = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    fetch();
+                }
+            });
+        } catch (RuntimeException e) {
+            running = false;
+            failure = e;
+        }
+    }
+
+    private boolean isSpaceAvailable() {
+        return pages.isEmpty() || (pages.size() < maxPages && bufferedElements < maxElements);
+    }
+
+    private void fetch() {
+        while (true) {
+            B page;
+            boolean more;
+            try {
+                page = pager.fetch();
+                more = pager.isMoreToFetch();
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    failure = e;
+                    running = false;
+                    notifyAll();
+                }
+                return;
+            }
+
+            synchronized (this) {
+                if (cancelled) {
+                    running = false;
+                    return;
+                }
+                pages.add(page);
+                bufferedElements += pager.size(page);
+                exhausted = !more;
+                notifyAll();
+                if (exhausted || !isSpaceAvailable()) {
+                    running = false;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches the pages of an iterator.  The methods are only ever called by one thread at a time.
+     */
+    interface IPager<B> {
+        /**
+         * Fetches the page following the previously fetched page.
+         * @return the page
+         */
+        B fetch();
+
+        /**
+         * @return true if there may be more pages after the page just fetched
+         */
+        boolean isMoreToFetch();
+
+        /**
+         * @return the number of elements in the page
+         */
+        int size(B page);
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.scale7.cassandra.pelops;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+import org.scale7.portability.SystemProxy;
+import org.slf4j.Logger;
+
+/**
+ * A token bucket based rate limiter used by {@link Operand} to throttle the operations issued against a pool.
+ * <p>Limits can be expressed in operations per second and optionally in request bytes per second, both for the pool
+ * as a whole and for individual column families.  A limit of zero (or less) disables the corresponding bucket.
+ * <p>Operations tagged with {@link TrafficClass#BATCH} may only consume the part of each bucket that isn't reserved
+ * for interactive traffic (see {@link #setInteractiveReserve(double)}), so batch work is throttled first when the
+ * limiter is under pressure.
+ * <p>The limiter registers itself with JMX so that the limits can be adjusted at runtime.  To use it set it on the
+ * {@link OperandPolicy} of the pool:
+ * <pre>
+ * OperandPolicy operandPolicy = new OperandPolicy().setRateLimiter(new RateLimiter(keyspace, 5000, 0));
+ * </pre>
+ */
+public class RateLimiter implements RateLimiterMBean {
+    private static final Logger logger = SystemProxy.getLoggerFromFactory(RateLimiter.class);
+
+    /**
+     * The default share of each bucket that is reserved for {@link TrafficClass#INTERACTIVE} traffic.
+     */
+    public static final double DEFAULT_INTERACTIVE_RESERVE = 0.5;
+
+    private final String name;
+    private final TokenBucket ops;
+    private final TokenBucket bytes;
+    private final ConcurrentMap<String, ColumnFamilyLimits> columnFamilyLimits = new ConcurrentHashMap<String, ColumnFamilyLimits>();
+    private volatile double interactiveReserve = DEFAULT_INTERACTIVE_RESERVE;
+
+    private final AtomicLong operationsPermitted = new AtomicLong();
+    private final AtomicLong operationsDelayed = new AtomicLong();
+    private final AtomicLong batchOperationsDelayed = new AtomicLong();
+    private final AtomicLong delayedMillisTotal = new AtomicLong();
+
+    /**
+     * Create a new rate limiter that doesn't limit anything until it's configured (typically via JMX).
+     * @param name the name the limiter is registered under in JMX (usually the keyspace of the pool)
+     */
+    public RateLimiter(String name) {
+        this(name, 0, 0);
+    }
+
+    /**
+     * Create a new rate limiter.
+     * @param name the name the limiter is registered under in JMX (usually the keyspace of the pool)
+     * @param opsPerSecond the max number of operations per second for the pool (zero for no limit)
+     * @param bytesPerSecond the max number of request bytes per second for the pool (zero for no limit)
+     */
+    public RateLimiter(String name, int opsPerSecond, long bytesPerSecond) {
+        if (name == null) throw new IllegalArgumentException("name is a required argument");
+        this.name = name;
+        this.ops = new TokenBucket(opsPerSecond);
+        this.bytes = new TokenBucket(bytesPerSecond);
+
+        String beanName = getMBeanName();
+        if (JmxMBeanManager.getInstance().isRegistered(beanName)) {
+            logger.warn("MBean '{}' is already registered, removing...", beanName);
+            JmxMBeanManager.getInstance().unregisterMBean(beanName);
+        }
+
+        logger.info("Registering MBean '{}'...", beanName);
+        JmxMBeanManager.getInstance().registerMBean(this, beanName);
+    }
+
+    public void decommission() {
+        String beanName = getMBeanName();
+        logger.info("Removing MBean '{}'...", beanName);
+        if (JmxMBeanManager.getInstance().isRegistered(beanName))
+            JmxMBeanManager.getInstance().unregisterMBean(beanName);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Blocks until a single operation against the given column family is permitted.
+     * @param trafficClass the class of traffic the operation belongs to
+     * @param columnFamily the column family the operation targets (null if it isn't specific to a column family)
+     * @param requestBytes the (estimated) size of the request
+     * @throws PelopsException if the thread is interrupted while waiting
+     */
+    public void acquire(TrafficClass trafficClass, String columnFamily, long requestBytes) throws PelopsException {
+        acquire(trafficClass, Collections.singletonMap(columnFamily, requestBytes));
+    }
+
+    /**
+     * Blocks until a single operation touching the given column families is permitted.
+     * @param trafficClass the class of traffic the operation belongs to
+     * @param bytesByColumnFamily the (estimated) request bytes of the operation keyed by column family (may be null)
+     * @throws PelopsException if the thread is interrupted while waiting
+     */
+    public void acquire(TrafficClass trafficClass, Map<String, Long> bytesByColumnFamily) throws PelopsException {
+        double reserve = trafficClass == TrafficClass.BATCH ? interactiveReserve : 0;
+        long totalBytes = 0;
+        long delayedNanos = 0;
+
+        if (bytesByColumnFamily != null) {
+            for (Map.Entry<String, Long> entry : bytesByColumnFamily.entrySet()) {
+                long requestBytes = entry.getValue() != null ? entry.getValue() : 0;
+                totalBytes += requestBytes;
+
+                ColumnFamilyLimits limits = entry.getKey() != null ? columnFamilyLimits.get(entry.getKey()) : null;
+                if (limits != null) {
+                    delayedNanos += take(limits.ops, 1, reserve);
+                    delayedNanos += take(limits.bytes, requestBytes, reserve);
+                }
+            }
+        }
+
+        delayedNanos += take(ops, 1, reserve);
+        delayedNanos += take(bytes, totalBytes, reserve);
+
+        operationsPermitted.incrementAndGet();
+        if (delayedNanos > 0) {
+            operationsDelayed.incrementAndGet();
+            if (trafficClass == TrafficClass.BATCH)
+                batchOperationsDelayed.incrementAndGet();
+            delayedMillisTotal.addAndGet(TimeUnit.NANOSECONDS.toMillis(delayedNanos));
+        }
+    }
+
+    private long take(TokenBucket bucket, long amount, double reserve) throws PelopsException {
+        long delayedNanos = 0;
+        while (true) {
+            long now = System.nanoTime();
+            long waitNanos = bucket.tryTake(amount, reserve, now);
+            if (waitNanos <= 0)
+                return delayedNanos;
+
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PelopsException("Interrupted while waiting for a rate limiter permit", e);
+            }
+            delayedNanos += System.nanoTime() - now;
+        }
+    }
+
+    @Override
+    public long getOperationsPermitted() {
+        return operationsPermitted.get();
+    }
+
+    @Override
+    public long getOperationsDelayed() {
+        return operationsDelayed.get();
+    }
+
+    @Override
+    public long getBatchOperationsDelayed() {
+        return batchOperationsDelayed.get();
+    }
+
+    @Override
+    public long getDelayedMillisTotal() {
+        return delayedMillisTotal.get();
+    }
+
+    @Override
+    public int getOpsPerSecond() {
+        return (int) ops.getRate();
+    }
+
+    /**
+     * The max number of operations per second allowed through the pool.
+     * @param opsPerSecond the limit (zero for no limit)
+     */
+    @Override
+    public void setOpsPerSecond(int opsPerSecond) {
+        ops.setRate(opsPerSecond);
+    }
+
+    @Override
+    public long getBytesPerSecond() {
+        return bytes.getRate();
+    }
+
+    /**
+     * The max number of request bytes per second allowed through the pool.
+     * <p>Note: only the request payload is counted, the size of the response isn't known until after the operation.
+     * @param bytesPerSecond the limit (zero for no limit)
+     */
+    @Override
+    public void setBytesPerSecond(long bytesPerSecond) {
+        bytes.setRate(bytesPerSecond);
+    }
+
+    @Override
+    public double getInteractiveReserve() {
+        return interactiveReserve;
+    }
+
+    /**
+     * The share of each bucket (between 0 and 1) that {@link TrafficClass#BATCH} traffic isn't allowed to use.
+     * Default to {@link #DEFAULT_INTERACTIVE_RESERVE}.
+     * @param interactiveReserve the reserved share
+     */
+    @Override
+    public void setInteractiveReserve(double interactiveReserve) {
+        if (interactiveReserve < 0 || interactiveReserve >= 1)
+            throw new IllegalArgumentException("interactiveReserve must be greater than or equal to 0 and less than 1");
+        this.interactiveReserve = interactiveReserve;
+    }
+
+    @Override
+    public int getColumnFamilyOpsPerSecond(String columnFamily) {
+        ColumnFamilyLimits limits = columnFamilyLimits.get(columnFamily);
+        return limits != null ? (int) limits.ops.getRate() : 0;
+    }
+
+    /**
+     * The max number of operations per second allowed against the column family.
+     * @param columnFamily the column family
+     * @param opsPerSecond the limit (zero for no limit)
+     */
+    @Override
+    public void setColumnFamilyOpsPerSecond(String columnFamily, int opsPerSecond) {
+        getOrCreateColumnFamilyLimits(columnFamily).ops.setRate(opsPerSecond);
+    }
+
+    @Override
+    public long getColumnFamilyBytesPerSecond(String columnFamily) {
+        ColumnFamilyLimits limits = columnFamilyLimits.get(columnFamily);
+        return limits != null ? limits.bytes.getRate() : 0;
+    }
+
+    /**
+     * The max number of request bytes per second allowed against the column family.
+     * @param columnFamily the column family
+     * @param bytesPerSecond the limit (zero for no limit)
+     */
+    @Override
+    public void setColumnFamilyBytesPerSecond(String columnFamily, long bytesPerSecond) {
+        getOrCreateColumnFamilyLimits(columnFamily).bytes.setRate(bytesPerSecond);
+    }
+
+    @Override
+    public void removeColumnFamilyLimits(String columnFamily) {
+        columnFamilyLimits.remove(columnFamily);
+    }
+
+    private ColumnFamilyLimits getOrCreateColumnFamilyLimits(String columnFamily) {
+        if (columnFamily == null) throw new IllegalArgumentException("columnFamily is a required argument");
+        ColumnFamilyLimits limits = columnFamilyLimits.get(columnFamily);
+        if (limits == null) {
+            limits = new ColumnFamilyLimits();
+            ColumnFamilyLimits existing = columnFamilyLimits.putIfAbsent(columnFamily, limits);
+            if (existing != null)
+                limits = existing;
+        }
+        return limits;
+    }
+
+    private String getMBeanName() {
+        return JMX_MBEAN_OBJ_NAME + "-" + name;
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimiter{" +
+                "name='" + name + '\'' +
+                ", opsPerSecond=" + ops.getRate() +
+                ", bytesPerSecond=" + bytes.getRate() +
+                ", interactiveReserve=" + interactiveReserve +
+                ", columnFamilyLimits=" + columnFamilyLimits.keySet() +
+                '}';
+    }
+
+    private static class ColumnFamilyLimits {
+        private final TokenBucket ops = new TokenBucket(0);
+        private final TokenBucket bytes = new TokenBucket(0);
+    }
+
+    /**
+     * A token bucket holding up to one second worth of permits.  Requests larger than the available tokens are
+     * allowed through and put the bucket into debt, which delays the requests that follow.
+     */
+    static class TokenBucket {
+        private long rate;
+        private double tokens;
+        private long lastRefillNanos;
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+            this.tokens = rate;
+            this.lastRefillNanos = System.nanoTime();
+        }
+
+        synchronized long getRate() {
+            return rate;
+        }
+
+        synchronized void setRate(long rate) {
+            long now = System.nanoTime();
+            if (this.rate <= 0) {
+                tokens = rate;
+            } else {
+                refill(now);
+                tokens = Math.min(tokens, rate);
+            }
+            this.rate = rate;
+            this.lastRefillNanos = now;
+        }
+
+        /**
+         * Takes the tokens if more than the reserved share of the bucket is available.
+         * @param amount the number of tokens to take
+         * @param reserve the share of the bucket the caller isn't allowed to use
+         * @param now the current value of {@link System#nanoTime()}
+         * @return zero if the tokens were taken, otherwise the number of nanos to wait before trying again
+         */
+        synchronized long tryTake(long amount, double reserve, long now) {
+            if (rate <= 0 || amount <= 0)
+                return 0;
+
+            refill(now);
+            double threshold = reserve * rate;
+            if (tokens > threshold) {
+                tokens -= amount;
+                return 0;
+            }
+
+            return (long) ((threshold - tokens) * TimeUnit.SECONDS.toNanos(1) / rate) + 1;
+        }
+
+        private void refill(long now) {
+            long elapsed = now - lastRefillNanos;
+            if (elapsed > 0) {
+                tokens = Math.min(rate, tokens + (double) elapsed * rate / TimeUnit.SECONDS.toNanos(1));
+                lastRefillNanos = now;
+            }
+        }
+    }
+}
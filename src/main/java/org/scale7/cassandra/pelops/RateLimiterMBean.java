@@ -0,0 +1,68 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.scale7.cassandra.pelops;
+
+public interface RateLimiterMBean {
+    String JMX_MBEAN_OBJ_NAME = "com.scale7.cassandra.pelops:type=RateLimiter";
+
+    /*
+        RUNNING STATS
+     */
+
+    long getOperationsPermitted();
+
+    long getOperationsDelayed();
+
+    long getBatchOperationsDelayed();
+
+    long getDelayedMillisTotal();
+
+    /*
+        CONFIGURATION
+     */
+
+    public int getOpsPerSecond();
+
+    public void setOpsPerSecond(int opsPerSecond);
+
+    public long getBytesPerSecond();
+
+    public void setBytesPerSecond(long bytesPerSecond);
+
+    public double getInteractiveReserve();
+
+    public void setInteractiveReserve(double interactiveReserve);
+
+    public int getColumnFamilyOpsPerSecond(String columnFamily);
+
+    public void setColumnFamilyOpsPerSecond(String columnFamily, int opsPerSecond);
+
+    public long getColumnFamilyBytesPerSecond(String columnFamily);
+
+    public void setColumnFamilyBytesPerSecond(String columnFamily, long bytesPerSecond);
+
+    public void removeColumnFamilyLimits(String columnFamily);
+}
@@ -0,0 +1,250 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.scale7.cassandra.pelops;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+
+/**
+ * Batches single row reads issued concurrently by different threads into <code>multiget_slice</code> calls.
+ * <p>Reads against the same keyspace and column parent with the same predicate and consistency level are collected for up to
+ * {@link #getMaxWaitMicros()} microseconds (or until {@link #getMaxBatchSize()} rows have been collected) and then
+ * sent as a single <code>multiget_slice</code> by the thread that started the batch.  The result is then split back
+ * to each waiting thread.
+ * <p>This trades a little latency for a lot less per request overhead under fan-in workloads.  To use it set it on
+ * the {@link OperandPolicy} of the pool:
+ * <pre>
+ * OperandPolicy operandPolicy = new OperandPolicy().setReadBatcher(new ReadBatcher(100, 1000));
+ * </pre>
+ */
+public class ReadBatcher {
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    public static final long DEFAULT_MAX_WAIT_MICROS = 1000;
+
+    private final int maxBatchSize;
+    private final long maxWaitMicros;
+
+    private final ConcurrentMap<Object, Batch> openBatches = new ConcurrentHashMap<Object, Batch>();
+
+    private final AtomicLong batchesExecuted = new AtomicLong();
+    private final AtomicLong readsBatched = new AtomicLong();
+
+    public ReadBatcher() {
+        this(DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_WAIT_MICROS);
+    }
+
+    /**
+     * Create a new read batcher.
+     * @param maxBatchSize the max number of rows to read in a single multiget
+     * @param maxWaitMicros the max number of microseconds to wait for other reads to join a batch
+     */
+    public ReadBatcher(int maxBatchSize, long maxWaitMicros) {
+        if (maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize must be greater than zero");
+        if (maxWaitMicros < 0) throw new IllegalArgumentException("maxWaitMicros must not be negative");
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitMicros = maxWaitMicros;
+    }
+
+    /**
+     * Reads a single row, as part of a batch with other concurrent reads of the same keyspace, column parent,
+     * predicate and consistency level.
+     * @param keyspace the keyspace
+     * @param colParent the column parent
+     * @param rowKey the key of the row
+     * @param colPredicate the column predicate
+     * @param cLevel the consistency level
+     * @param multiGet used to read the rows of the batch if this thread ends up executing it
+     * @return the columns of the row
+     * @throws PelopsException if the batch fails
+     */
+    public List<ColumnOrSuperColumn> read(String keyspace, ColumnParent colParent, ByteBuffer rowKey, SlicePredicate colPredicate, ConsistencyLevel cLevel, IMultiGet multiGet) throws PelopsException {
+        Object batchKey = ReadCoalescer.newKey(keyspace, colParent, colPredicate, cLevel);
+
+        Batch batch;
+        boolean leader = false;
+        while (true) {
+            batch = openBatches.get(batchKey);
+            if (batch == null) {
+                batch = new Batch(rowKey, maxBatchSize);
+                Batch existing = openBatches.putIfAbsent(batchKey, batch);
+                if (existing == null) {
+                    leader = true;
+                    break;
+                }
+                batch = existing;
+            }
+
+            if (batch.add(rowKey, maxBatchSize))
+                break;
+
+            // the batch was closed before we could join it, get rid of it and try again
+            openBatches.remove(batchKey, batch);
+        }
+
+        if (leader) {
+            batch.awaitFull(maxWaitMicros);
+            openBatches.remove(batchKey, batch);
+            batch.execute(multiGet);
+            batchesExecuted.incrementAndGet();
+        } else {
+            batch.awaitDone();
+        }
+        readsBatched.incrementAndGet();
+
+        return batch.take(rowKey);
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getMaxWaitMicros() {
+        return maxWaitMicros;
+    }
+
+    /**
+     * The number of multiget calls executed.
+     * @return the number of calls
+     */
+    public long getBatchesExecuted() {
+        return batchesExecuted.get();
+    }
+
+    /**
+     * The number of single row reads served by multiget calls.
+     * @return the number of reads
+     */
+    public long getReadsBatched() {
+        return readsBatched.get();
+    }
+
+    /**
+     * Reads multiple rows in a single call.
+     */
+    public interface IMultiGet {
+        /**
+         * Reads the rows.
+         * @param rowKeys the keys of the rows
+         * @return the columns of each row keyed by row key
+         * @throws PelopsException if the read fails
+         */
+        Map<ByteBuffer, List<ColumnOrSuperColumn>> execute(List<ByteBuffer> rowKeys) throws PelopsException;
+    }
+
+    private static class Batch {
+        private final List<ByteBuffer> rowKeys = new ArrayList<ByteBuffer>();
+        private final Set<ByteBuffer> taken = new HashSet<ByteBuffer>();
+        private final CountDownLatch full = new CountDownLatch(1);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private boolean closed = false;
+        private Map<ByteBuffer, List<ColumnOrSuperColumn>> result;
+        private RuntimeException error;
+
+        private Batch(ByteBuffer rowKey, int maxBatchSize) {
+            rowKeys.add(rowKey);
+            if (rowKeys.size() >= maxBatchSize) {
+                closed = true;
+                full.countDown();
+            }
+        }
+
+        synchronized boolean add(ByteBuffer rowKey, int maxBatchSize) {
+            if (closed)
+                return false;
+
+            if (!rowKeys.contains(rowKey))
+                rowKeys.add(rowKey);
+            if (rowKeys.size() >= maxBatchSize) {
+                closed = true;
+                full.countDown();
+            }
+            return true;
+        }
+
+        void awaitFull(long maxWaitMicros) {
+            try {
+                full.await(maxWaitMicros, TimeUnit.MICROSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void awaitDone() throws PelopsException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PelopsException("Interrupted while waiting for a batched read", e);
+            }
+        }
+
+        void execute(IMultiGet multiGet) {
+            List<ByteBuffer> keys;
+            synchronized (this) {
+                closed = true;
+                keys = new ArrayList<ByteBuffer>(rowKeys);
+            }
+
+            try {
+                result = multiGet.execute(keys);
+            } catch (RuntimeException e) {
+                error = e;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        /**
+         * Takes the columns of a row from the result, the first taker gets the columns as returned by Thrift while
+         * later takers (for the same row) get copies.
+         */
+        synchronized List<ColumnOrSuperColumn> take(ByteBuffer rowKey) throws PelopsException {
+            if (error != null)
+                throw error;
+
+            List<ColumnOrSuperColumn> columns = result != null ? result.get(rowKey) : null;
+            if (columns == null)
+                return new ArrayList<ColumnOrSuperColumn>(0);
+
+            return taken.add(rowKey) ? columns : ReadCoalescer.copy(columns);
+        }
+    }
+}
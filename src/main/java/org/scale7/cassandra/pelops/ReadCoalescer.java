@@ -0,0 +1,191 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.scale7.cassandra.pelops;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.thrift.TBase;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+
+/**
+ * Coalesces identical reads issued concurrently by different threads (single-flight).  The first thread to issue a
+ * read performs it, threads issuing an identical read while it's in flight wait for it to complete and receive a copy
+ * of its result (or the same exception).
+ * <p>Reads are only shared while they are in flight, nothing is cached.  To use it set it on the
+ * {@link OperandPolicy} of the pool:
+ * <pre>
+ * OperandPolicy operandPolicy = new OperandPolicy().setReadCoalescer(new ReadCoalescer());
+ * </pre>
+ */
+public class ReadCoalescer {
+    private final ConcurrentMap<Object, FutureTask<Object>> inFlight = new ConcurrentHashMap<Object, FutureTask<Object>>();
+
+    private final AtomicLong readsExecuted = new AtomicLong();
+    private final AtomicLong readsCoalesced = new AtomicLong();
+
+    /**
+     * Performs the read unless an identical read is already in flight, in which case it waits for the result of that
+     * read.
+     * @param key the key identifying the read (see {@link #newKey(Object...)})
+     * @param read the read
+     * @return the result of the read
+     * @throws PelopsException if the read fails
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T read(Object key, final IRead<T> read) throws PelopsException {
+        FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return read.execute();
+            }
+        });
+
+        FutureTask<Object> existing = inFlight.putIfAbsent(key, task);
+        if (existing == null) {
+            readsExecuted.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        } else {
+            readsCoalesced.incrementAndGet();
+            task = existing;
+        }
+
+        // every thread gets its own copy, the shared result is never handed out as it's being copied concurrently
+        T result = (T) getResult(task);
+        return result != null ? read.copy(result) : null;
+    }
+
+    private Object getResult(FutureTask<Object> task) throws PelopsException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PelopsException("Interrupted while waiting for a coalesced read", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new PelopsException(e.getCause());
+        }
+    }
+
+    /**
+     * The number of reads that were actually performed.
+     * @return the number of reads
+     */
+    public long getReadsExecuted() {
+        return readsExecuted.get();
+    }
+
+    /**
+     * The number of reads that were served by an identical read already in flight.
+     * @return the number of reads
+     */
+    public long getReadsCoalesced() {
+        return readsCoalesced.get();
+    }
+
+    /**
+     * Creates a key identifying a read from its parts (column parent, row key(s), predicate, consistency level etc).
+     * Thrift objects, byte buffers and lists are copied so that the key isn't affected if the caller modifies them
+     * later.
+     * @param parts the parts of the read
+     * @return the key
+     */
+    public static Object newKey(Object... parts) {
+        Object[] key = new Object[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            Object part = parts[i];
+            if (part instanceof TBase)
+                part = ((TBase<?, ?>) part).deepCopy();
+            else if (part instanceof ByteBuffer)
+                part = ((ByteBuffer) part).duplicate();
+            else if (part instanceof Collection)
+                part = new ArrayList<Object>((Collection<?>) part);
+            key[i] = part;
+        }
+        return Arrays.asList(key);
+    }
+
+    /**
+     * Deep copies a list of column or super columns.
+     * @param result the list to copy
+     * @return the copy
+     */
+    public static List<ColumnOrSuperColumn> copy(List<ColumnOrSuperColumn> result) {
+        List<ColumnOrSuperColumn> copy = new ArrayList<ColumnOrSuperColumn>(result.size());
+        for (ColumnOrSuperColumn cosc : result)
+            copy.add(cosc.deepCopy());
+        return copy;
+    }
+
+    /**
+     * Deep copies a map of row keys to column or super columns.
+     * @param result the map to copy
+     * @return the copy
+     */
+    public static Map<ByteBuffer, List<ColumnOrSuperColumn>> copy(Map<ByteBuffer, List<ColumnOrSuperColumn>> result) {
+        Map<ByteBuffer, List<ColumnOrSuperColumn>> copy = new HashMap<ByteBuffer, List<ColumnOrSuperColumn>>(result.size() * 2);
+        for (Map.Entry<ByteBuffer, List<ColumnOrSuperColumn>> entry : result.entrySet())
+            copy.put(entry.getKey().duplicate(), copy(entry.getValue()));
+        return copy;
+    }
+
+    /**
+     * A read that can be coalesced.
+     * @param <T> the type of the result
+     */
+    public interface IRead<T> {
+        /**
+         * Performs the read.
+         * @return the result
+         * @throws PelopsException if the read fails
+         */
+        T execute() throws PelopsException;
+
+        /**
+         * Copies the result of the read for a thread that shares it.  Mutable (e.g. Thrift) objects must be copied.
+         * @param result the result
+         * @return the copy
+         */
+        T copy(T result);
+    }
+}
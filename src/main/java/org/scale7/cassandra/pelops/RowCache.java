@@ -0,0 +1,221 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.scale7.cassandra.pelops;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+import org.scale7.portability.SystemProxy;
+import org.slf4j.Logger;
+
+/**
+ * The base of the caches that sit in front of the single row reads of {@link Selector}s (see
+ * {@link OperandPolicy#getRowCaches()}).  Rows are identified by their keyspace, column family and row key so that a
+ * cache can be shared by the pools of several keyspaces.
+ * <p>Holds what the caches have in common: the time to live of each cached column family, the generations of the rows
+ * (bumped whenever a row is invalidated, so that reads that were in flight at the time aren't cached), the
+ * invalidation of the rows mutated by a batch and the registration of the MBean of the cache.
+ */
+abstract class RowCache {
+    private static final Logger logger = SystemProxy.getLoggerFromFactory(RowCache.class);
+
+    static final int GENERATION_STRIPES = 256;
+
+    private final String name;
+    private final String mBeanName;
+    private final ConcurrentMap<String, Long> columnFamilyTtls = new ConcurrentHashMap<String, Long>();
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    /**
+     * @param name the name the cache is registered under in JMX
+     * @param mBeanObjName the object name of the MBeans of the type of cache
+     */
+    RowCache(String name, String mBeanObjName) {
+        if (name == null) throw new IllegalArgumentException("name is a required argument");
+        this.name = name;
+        this.mBeanName = mBeanObjName + "-" + name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Determines if reads of the column family are cached.
+     * @param columnFamily the column family
+     * @return true if the column family has a time to live
+     */
+    public boolean isCached(String columnFamily) {
+        return getColumnFamilyTtlMillis(columnFamily) > 0;
+    }
+
+    /**
+     * Determines if reads of the column family of the keyspace go through the cache.
+     * @param keyspace the keyspace
+     * @param columnFamily the column family
+     * @return true if the column family is cached
+     */
+    boolean isCached(String keyspace, String columnFamily) {
+        return isCached(columnFamily);
+    }
+
+    /**
+     * Reads the slice of the row through the cache.
+     * @param keyspace the keyspace
+     * @param colParent the column family (and super column) of the slice
+     * @param rowKey the row key
+     * @param colPredicate the predicate of the slice
+     * @param source reads the slice when the cache can't answer the read
+     * @return the slice
+     * @throws PelopsException if the source fails
+     */
+    abstract List<ColumnOrSuperColumn> read(String keyspace, ColumnParent colParent, ByteBuffer rowKey, SlicePredicate colPredicate, ISliceReader source) throws PelopsException;
+
+    /**
+     * Returns the current generation of the row, to be passed to the cache once the row has been read.
+     * @param keyspace the keyspace
+     * @param columnFamily the column family
+     * @param rowKey the row key
+     * @return the generation
+     */
+    long getGeneration(String keyspace, String columnFamily, ByteBuffer rowKey) {
+        return generations.get(stripe(keyspace, columnFamily, rowKey));
+    }
+
+    /**
+     * Discards all cached reads of the row.
+     * @param keyspace the keyspace
+     * @param columnFamily the column family
+     * @param rowKey the row key
+     */
+    public void invalidate(String keyspace, String columnFamily, Bytes rowKey) {
+        invalidate(keyspace, columnFamily, rowKey.getBytes());
+    }
+
+    /**
+     * Discards all cached reads of the rows mutated by the batch.
+     * @param keyspace the keyspace of the batch
+     * @param batch the mutations keyed by row key and column family
+     */
+    void invalidate(String keyspace, Map<ByteBuffer, Map<String, List<Mutation>>> batch) {
+        for (Map.Entry<ByteBuffer, Map<String, List<Mutation>>> row : batch.entrySet()) {
+            for (String columnFamily : row.getValue().keySet())
+                invalidate(keyspace, columnFamily, row.getKey());
+        }
+    }
+
+    /**
+     * Discards all cached reads of the row, the generation of the row has already been bumped.
+     */
+    abstract void invalidateRow(String keyspace, String columnFamily, ByteBuffer rowKey);
+
+    private void invalidate(String keyspace, String columnFamily, ByteBuffer rowKey) {
+        generations.incrementAndGet(stripe(keyspace, columnFamily, rowKey));
+        invalidateRow(keyspace, columnFamily, rowKey);
+    }
+
+    /**
+     * Bumps the generation of all the rows.
+     */
+    void invalidateGenerations() {
+        for (int i = 0; i < GENERATION_STRIPES; i++)
+            generations.incrementAndGet(i);
+    }
+
+    public long getColumnFamilyTtlMillis(String columnFamily) {
+        Long ttlMillis = columnFamilyTtls.get(columnFamily);
+        return ttlMillis != null ? ttlMillis : 0;
+    }
+
+    /**
+     * How long the reads of the column family are cached.
+     * @param columnFamily the column family
+     * @param ttlMillis the time to live in milliseconds (zero to stop caching the column family)
+     */
+    public void setColumnFamilyTtlMillis(String columnFamily, long ttlMillis) {
+        if (columnFamily == null) throw new IllegalArgumentException("columnFamily is a required argument");
+        columnFamilyTtls.put(columnFamily, ttlMillis);
+    }
+
+    public void removeColumnFamilyTtl(String columnFamily) {
+        columnFamilyTtls.remove(columnFamily);
+    }
+
+    Map<String, Long> getColumnFamilyTtls() {
+        return columnFamilyTtls;
+    }
+
+    /**
+     * Registers the MBean of the cache, replacing the MBean of a previous cache with the same name.
+     */
+    void registerMBean() {
+        if (JmxMBeanManager.getInstance().isRegistered(mBeanName)) {
+            logger.warn("MBean '{}' is already registered, removing...", mBeanName);
+            JmxMBeanManager.getInstance().unregisterMBean(mBeanName);
+        }
+
+        logger.info("Registering MBean '{}'...", mBeanName);
+        JmxMBeanManager.getInstance().registerMBean(this, mBeanName);
+    }
+
+    void unregisterMBean() {
+        logger.info("Removing MBean '{}'...", mBeanName);
+        if (JmxMBeanManager.getInstance().isRegistered(mBeanName))
+            JmxMBeanManager.getInstance().unregisterMBean(mBeanName);
+    }
+
+    /**
+     * Creates the identity of a row, used to find the cached reads of the row.
+     * @param keyspace the keyspace
+     * @param columnFamily the column family
+     * @param rowKey the row key
+     * @return the identity
+     */
+    static Object newRow(String keyspace, String columnFamily, ByteBuffer rowKey) {
+        return Arrays.<Object>asList(keyspace, columnFamily, rowKey.duplicate());
+    }
+
+    private static int stripe(String keyspace, String columnFamily, ByteBuffer rowKey) {
+        int hash = (keyspace.hashCode() * 31 + columnFamily.hashCode()) * 31 + rowKey.hashCode();
+        return (hash ^ (hash >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+
+    /**
+     * Reads a slice of a row from the next cache or from Cassandra.
+     */
+    interface ISliceReader {
+        List<ColumnOrSuperColumn> read() throws PelopsException;
+    }
+}
@@ -72,7 +72,11 @@ public class RowDeletor extends Operand {
 				return null;
 			}
 		};
-		tryOperation(operation);
+		try {
+			tryOperation(operation, columnFamily);
+		} finally {
+			invalidateCaches(thrift.getOperandPolicy(), thrift.getKeyspace(), columnFamily, rowKey);
+		}
 	}
 
 	public RowDeletor(IThriftPool thrift) {
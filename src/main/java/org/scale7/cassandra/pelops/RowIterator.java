@@ -24,6 +24,7 @@
 
 package org.scale7.cassandra.pelops;
 
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -37,13 +38,16 @@ public abstract class RowIterator<E> implements Iterator<Map.Entry<Bytes, List<E
     protected final Selector selector;
     protected final String columnFamily;
     protected Bytes startBeyondKey;
-    protected final int batchSize;
+    protected int batchSize;
     protected final SlicePredicate colPredicate;
     protected final ConsistencyLevel cLevel;
 
     private boolean isFirstBatch = true;
     private boolean isMoreToFetch = false;
+    private boolean isLastBatchFull = false;
     private Iterator<Map.Entry<Bytes, List<E>>> currentBatchIterator;
+    private Prefetcher<LinkedHashMap<Bytes, List<E>>> prefetcher;
+    private PageSizeController pageSizeController;
 
     protected RowIterator(Selector selector, String columnFamily, Bytes startBeyondKey, int batchSize, SlicePredicate colPredicate, ConsistencyLevel cLevel) {
         this.selector = selector;
@@ -54,9 +58,106 @@ public abstract class RowIterator<E> implements Iterator<Map.Entry<Bytes, List<E
         this.cLevel = cLevel;
     }
 
+    /**
+     * Fetches the following batches in the background as soon as a batch arrives, so that fetching overlaps with the
+     * consumption of the rows.  Errors raised while fetching are thrown by the <code>hasNext()</code> or
+     * <code>next()</code> call that reaches the batch.
+     * @param maxBatches the max number of batches fetched ahead
+     * @param maxColumns the max number of columns (in all rows) fetched ahead (at least one batch is always fetched
+     * ahead)
+     * @return this iterator
+     * @throws IllegalStateException if the iteration has already started
+     */
+    public RowIterator<E> prefetch(int maxBatches, int maxColumns) {
+        if (currentBatchIterator != null)
+            throw new IllegalStateException("Prefetching must be enabled before the iteration starts");
+
+        prefetcher = new Prefetcher<LinkedHashMap<Bytes, List<E>>>(new Prefetcher.IPager<LinkedHashMap<Bytes, List<E>>>() {
+            @Override
+            public LinkedHashMap<Bytes, List<E>> fetch() {
+                return fetchNextBatchAndAdvance();
+            }
+
+            @Override
+            public boolean isMoreToFetch() {
+                return isLastBatchFull;
+            }
+
+            @Override
+            public int size(LinkedHashMap<Bytes, List<E>> batch) {
+                int size = 0;
+                for (List<E> columns : batch.values())
+                    size += columns.size();
+                return size;
+            }
+        }, maxBatches, maxColumns, Operand.getParallelExecutor(selector.thrift.getOperandPolicy()));
+        return this;
+    }
+
+    /**
+     * Adapts the number of rows fetched per batch to the size of the rows and the latency of the cluster, starting
+     * from the batch size given to the constructor.  See {@link PageSizeController}.
+     * @param policy the page size controller config (if null the defaults are used)
+     * @return this iterator
+     * @throws IllegalStateException if the iteration has already started
+     */
+    public RowIterator<E> adaptPageSize(PageSizeController.Policy policy) {
+        if (currentBatchIterator != null)
+            throw new IllegalStateException("Adaptive page sizing must be enabled before the iteration starts");
+
+        pageSizeController = new PageSizeController(policy, batchSize);
+        batchSize = pageSizeController.getPageSize();
+        return this;
+    }
+
+    /**
+     * Ends the iteration early, cancelling the batches being fetched in the background (if prefetching is enabled)
+     * and discarding the batches fetched ahead.  Iterators that are consumed to the end need not be closed.
+     * Once closed, <code>hasNext()</code> returns false.
+     */
+    public void close() {
+        if (prefetcher != null)
+            prefetcher.cancel();
+        currentBatchIterator = Collections.<Map.Entry<Bytes, List<E>>>emptyList().iterator();
+        isMoreToFetch = false;
+    }
+
     private void fetchNextBatchInternal() {
+        if (prefetcher == null) {
+            currentBatchIterator = fetchNextBatchAndAdvance().entrySet().iterator();
+            isMoreToFetch = isLastBatchFull;
+            return;
+        }
+
+        LinkedHashMap<Bytes, List<E>> batch = prefetcher.take();
+        if (batch != null) {
+            currentBatchIterator = batch.entrySet().iterator();
+            isMoreToFetch = true;
+        } else {
+            currentBatchIterator = Collections.<Map.Entry<Bytes, List<E>>>emptyList().iterator();
+            isMoreToFetch = false;
+        }
+    }
+
+    private LinkedHashMap<Bytes, List<E>> fetchNextBatchAndAdvance() {
+        long start = pageSizeController != null ? System.currentTimeMillis() : 0;
         LinkedHashMap<Bytes, List<E>> batch = fetchNextBatch();
-        isMoreToFetch = batch.size() == this.batchSize;
+        isLastBatchFull = batch.size() == this.batchSize;
+
+        if (pageSizeController != null) {
+            long bytes = 0;
+            for (Map.Entry<Bytes, List<E>> row : batch.entrySet()) {
+                bytes += row.getKey().length();
+                for (E element : row.getValue())
+                    bytes += estimateSize(element);
+            }
+            // the first row of each following batch is the last row of the previous batch, so at least two are needed
+            batchSize = Math.max(2, pageSizeController.update(batchSize, batch.size(), bytes, System.currentTimeMillis() - start));
+        }
+
+        Bytes lastKey = null;
+        for (Bytes key : batch.keySet())
+            lastKey = key;
 
         if (isFirstBatch) {
             isFirstBatch = false;
@@ -65,12 +166,26 @@ public abstract class RowIterator<E> implements Iterator<Map.Entry<Bytes, List<E
             batch.remove(this.startBeyondKey);
         }
 
-        currentBatchIterator = batch.entrySet().iterator();
+        // the next batch starts with the last row of this batch
+        if (lastKey != null)
+            startBeyondKey = lastKey;
 
+        return batch;
     }
 
     protected abstract LinkedHashMap<Bytes, List<E>> fetchNextBatch();
 
+    /**
+     * Estimates the number of bytes the element occupies on the wire, used to {@link #adaptPageSize adapt} the batch
+     * size.  The default implementation returns 0 (in which case only the row keys and the latency of batches are
+     * taken into account).
+     * @param element the element
+     * @return the estimated size in bytes
+     */
+    protected long estimateSize(E element) {
+        return 0;
+    }
+
     @Override
     public boolean hasNext() {
         if (currentBatchIterator == null)
@@ -94,10 +209,6 @@ public abstract class RowIterator<E> implements Iterator<Map.Entry<Bytes, List<E
         Map.Entry<Bytes, List<E>> row = null;
         try {
             row = currentBatchIterator.next();
-
-            if (row != null) {
-                startBeyondKey = row.getKey();
-            }
         } catch (NoSuchElementException e) {
             if (isMoreToFetch) {
                 fetchNextBatchInternal();
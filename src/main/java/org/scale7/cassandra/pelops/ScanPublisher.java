@@ -0,0 +1,240 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.scale7.cassandra.pelops;
+
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scale7.portability.SystemProxy;
+import org.slf4j.Logger;
+
+/**
+ * Publishes the elements of a paged scan to asynchronous subscribers, following the reactive streams protocol:
+ * the subscriber signals its demand using {@link ISubscription#request(long)} and the publisher never delivers more
+ * elements than were requested.  The scan is driven by an iterator (such as the iterators returned by
+ * {@link Selector}) that fetches a page whenever the current one has been consumed, so a page is only fetched when
+ * the subscriber has outstanding demand and at most one page per subscription is held in memory.
+ * <p>Each subscription runs its own scan (using a new iterator) and delivers its signals serially from the executor.
+ * Fetching a page blocks the executor thread delivering the signals.  {@link ISubscription#cancel() Cancelling} a
+ * subscription stops the scan once the element being delivered (if any) has been delivered.
+ * <pre>
+ * selector.publishColumnsFromRows("Users", Bytes.EMPTY, 100, Selector.newColumnsPredicateAll(false), ConsistencyLevel.ONE)
+ *         .subscribe(subscriber);
+ * </pre>
+ */
+public class ScanPublisher<T> {
+    private static final Logger logger = SystemProxy.getLoggerFromFactory(ScanPublisher.class);
+
+    private final IIteratorFactory<T> iteratorFactory;
+    private final Executor executor;
+
+    /**
+     * Create a new publisher.
+     * @param iteratorFactory creates the iterator that drives the scan of each subscription
+     * @param executor delivers the signals to the subscribers (and fetches the pages)
+     */
+    public ScanPublisher(IIteratorFactory<T> iteratorFactory, Executor executor) {
+        if (iteratorFactory == null) throw new IllegalArgumentException("iteratorFactory is a required argument");
+        if (executor == null) throw new IllegalArgumentException("executor is a required argument");
+        this.iteratorFactory = iteratorFactory;
+        this.executor = executor;
+    }
+
+    /**
+     * Subscribe to the elements of the scan.  The subscriber is handed its subscription (from the calling thread)
+     * before this method returns, elements are only delivered once it has requested them.
+     * @param subscriber the subscriber
+     */
+    public void subscribe(ISubscriber<? super T> subscriber) {
+        if (subscriber == null) throw new IllegalArgumentException("subscriber is a required argument");
+        subscriber.onSubscribe(new Subscription(subscriber));
+    }
+
+    private class Subscription implements ISubscription, Runnable {
+        private final ISubscriber<? super T> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        private volatile IllegalArgumentException invalidRequest;
+
+        // only accessed by the draining thread
+        private Iterator<T> iterator;
+        private boolean done = false;
+
+        private Subscription(ISubscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("The number of elements requested must be positive (was " + n + ")");
+            } else {
+                while (true) {
+                    long current = demand.get();
+                    long updated = current + n < 0 ? Long.MAX_VALUE : current + n;
+                    if (demand.compareAndSet(current, updated))
+                        break;
+                }
+            }
+            scheduleDrain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            if (pendingDrains.getAndIncrement() != 0)
+                return; // the draining thread will pick the signal up
+
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                pendingDrains.set(0);
+                if (!cancelled) {
+                    cancelled = true;
+                    subscriber.onError(e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int drains = 1;
+            do {
+                drain();
+                drains = pendingDrains.addAndGet(-drains);
+            } while (drains != 0);
+        }
+
+        private void drain() {
+            if (done)
+                return;
+            if (cancelled) {
+                done = true;
+                iterator = null;
+                return;
+            }
+            if (invalidRequest != null) {
+                done = true;
+                subscriber.onError(invalidRequest);
+                return;
+            }
+
+            while (!cancelled && demand.get() > 0) {
+                T element;
+                try {
+                    if (iterator == null)
+                        iterator = iteratorFactory.newIterator();
+                    if (!iterator.hasNext()) {
+                        done = true;
+                        subscriber.onComplete();
+                        return;
+                    }
+                    element = iterator.next();
+                } catch (RuntimeException e) {
+                    done = true;
+                    subscriber.onError(e);
+                    return;
+                }
+
+                try {
+                    subscriber.onNext(element);
+                } catch (RuntimeException e) {
+                    logger.warn("Subscriber threw an exception from onNext, cancelling its subscription", e);
+                    cancelled = true;
+                    done = true;
+                    return;
+                }
+
+                if (demand.get() != Long.MAX_VALUE)
+                    demand.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Creates the iterator that drives the scan of a subscription.
+     */
+    public interface IIteratorFactory<T> {
+        /**
+         * Called from the executor when the subscriber first requests elements.
+         * @return the iterator
+         */
+        Iterator<T> newIterator();
+    }
+
+    /**
+     * Receives the signals of a subscription, serially.
+     */
+    public interface ISubscriber<T> {
+        /**
+         * Called once when the subscriber subscribes, before any other signal.
+         * @param subscription the subscription used to request elements and cancel
+         */
+        void onSubscribe(ISubscription subscription);
+
+        /**
+         * Called for each element, never more often than requested.
+         * @param element the element
+         */
+        void onNext(T element);
+
+        /**
+         * Called once if the scan fails (or the subscription was misused), no further signals follow.
+         * @param t the failure
+         */
+        void onError(Throwable t);
+
+        /**
+         * Called once when all the elements have been delivered, no further signals follow.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The link between a publisher and a subscriber.
+     */
+    public interface ISubscription {
+        /**
+         * Adds to the number of elements the subscriber is ready to receive.  The next page is only fetched once
+         * there is outstanding demand.
+         * @param n the number of elements (Long.MAX_VALUE for unbounded demand)
+         */
+        void request(long n);
+
+        /**
+         * Stops the scan, the subscriber may still receive the signals already being delivered.
+         */
+        void cancel();
+    }
+}
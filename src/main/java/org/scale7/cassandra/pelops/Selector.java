@@ -42,11 +42,23 @@ import static org.scale7.cassandra.pelops.Validation.validateRowKeysUtf8;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import org.apache.cassandra.thrift.CfSplit;
 import org.apache.cassandra.thrift.Column;
 import org.apache.cassandra.thrift.ColumnOrSuperColumn;
 import org.apache.cassandra.thrift.ColumnParent;
@@ -61,10 +73,15 @@ import org.apache.cassandra.thrift.KeySlice;
 import org.apache.cassandra.thrift.SlicePredicate;
 import org.apache.cassandra.thrift.SliceRange;
 import org.apache.cassandra.thrift.SuperColumn;
+import org.apache.cassandra.thrift.TokenRange;
 import org.scale7.cassandra.pelops.exceptions.NotFoundException;
+import org.scale7.cassandra.pelops.exceptions.PartialFailureException;
 import org.scale7.cassandra.pelops.exceptions.PelopsException;
 import org.scale7.cassandra.pelops.pool.IThriftPool;
 import org.scale7.cassandra.pelops.pool.IThriftPool.IPooledConnection;
+import org.scale7.cassandra.pelops.pool.ThriftPoolBase;
+import org.scale7.portability.SystemProxy;
+import org.slf4j.Logger;
 
 /**
  * Facilitates the selective retrieval of column data from rows in a Cassandra keyspace.<p/>
@@ -76,6 +93,7 @@ import org.scale7.cassandra.pelops.pool.IThriftPool.IPooledConnection;
  *
  */
 public class Selector extends Operand {
+    private static final Logger logger = SystemProxy.getLoggerFromFactory(Selector.class);
 
     // SlicePredicates constants for common internal uses
     private static final SlicePredicate COLUMNS_PREDICATE_ALL = newColumnsPredicateAll(false);
@@ -304,7 +322,7 @@ public class Selector extends Operand {
             public Integer execute(IPooledConnection conn) throws Exception {
                 return conn.getAPI().get_count(safeGetRowKey(rowKey), colParent, predicate, cLevel);
             }
-        });
+        }, colParent.getColumn_family());
     }
 
     /**
@@ -337,12 +355,29 @@ public class Selector extends Operand {
 
     private ColumnOrSuperColumn getColumnOrSuperColumnFromRow(String columnFamily, final Bytes rowKey, Bytes superColName, Bytes colName, final ConsistencyLevel cLevel) throws NotFoundException, PelopsException {
         final ColumnPath cp = newColumnPath(columnFamily, superColName, colName);
-        return tryOperation(new IOperation<ColumnOrSuperColumn>() {
+        IOperation<ColumnOrSuperColumn> operation = new IOperation<ColumnOrSuperColumn>() {
             @Override
             public ColumnOrSuperColumn execute(IThriftPool.IPooledConnection conn) throws Exception {
                 return conn.getAPI().get(safeGetRowKey(rowKey), cp, cLevel);
             }
-        });
+        };
+
+        NegativeCache negativeCache = thrift.getOperandPolicy().getNegativeCache();
+        String keyspace = thrift.getKeyspace();
+        if (negativeCache == null || !negativeCache.isCached(keyspace, columnFamily))
+            return tryOperation(operation, columnFamily);
+
+        Object key = NegativeCache.newKey(keyspace, cp, safeGetRowKey(rowKey));
+        if (negativeCache.isAbsent(key, keyspace, columnFamily, safeGetRowKey(rowKey)))
+            throw new NotFoundException(new org.apache.cassandra.thrift.NotFoundException());
+
+        long generation = negativeCache.getGeneration(keyspace, columnFamily, safeGetRowKey(rowKey));
+        try {
+            return tryOperation(operation, columnFamily);
+        } catch (NotFoundException e) {
+            negativeCache.put(key, keyspace, columnFamily, safeGetRowKey(rowKey), generation);
+            throw e;
+        }
     }
 
     /**
@@ -617,6 +652,32 @@ public class Selector extends Operand {
         return getColumnsFromRow(newColumnParent(columnFamily), rowKey, colPredicate, cLevel);
     }
 
+    /**
+     * Retrieve columns from a row as an indexed view, for reading many named columns out of a wide row.
+     * @param columnFamily                  The column family containing the row
+     * @param rowKey                        The key of the row
+     * @param colPredicate                  The column selector predicate
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @return                              The matching columns, indexed by name
+     * @throws PelopsException if an error occurs
+     */
+    public ColumnMap getColumnMapFromRow(String columnFamily, String rowKey, SlicePredicate colPredicate, ConsistencyLevel cLevel) throws PelopsException {
+        return new ColumnMap(getColumnsFromRow(columnFamily, rowKey, colPredicate, cLevel));
+    }
+
+    /**
+     * Retrieve columns from a row as an indexed view, for reading many named columns out of a wide row.
+     * @param columnFamily                  The column family containing the row
+     * @param rowKey                        The key of the row
+     * @param colPredicate                  The column selector predicate
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @return                              The matching columns, indexed by name
+     * @throws PelopsException if an error occurs
+     */
+    public ColumnMap getColumnMapFromRow(String columnFamily, Bytes rowKey, SlicePredicate colPredicate, ConsistencyLevel cLevel) throws PelopsException {
+        return new ColumnMap(getColumnsFromRow(columnFamily, rowKey, colPredicate, cLevel));
+    }
+
     /**
      * Retrieve all sub-columns from a super column in a row.
      * @param columnFamily                  The column family containing the row
@@ -705,12 +766,64 @@ public class Selector extends Operand {
         return getColumnsFromRow(colParent, fromUTF8(rowKey), colPredicate, cLevel);
     }
 
-    private List<ColumnOrSuperColumn> getColumnOrSuperColumnsFromRow(final ColumnParent colParent, final Bytes rowKey, final SlicePredicate colPredicate, final ConsistencyLevel cLevel) throws PelopsException {
-        return tryOperation(new IOperation<List<ColumnOrSuperColumn>>() {
+    private List<ColumnOrSuperColumn> getColumnOrSuperColumnsFromRow(ColumnParent colParent, Bytes rowKey, SlicePredicate colPredicate, ConsistencyLevel cLevel) throws PelopsException {
+        return readThroughCaches(thrift.getOperandPolicy().getRowCaches(), 0, colParent, rowKey, colPredicate, cLevel);
+    }
+
+    /**
+     * Reads the slice through the first of the caches (from the given index) that caches the column family, each
+     * cache reading the slices it can't answer through the following caches and finally from Cassandra.
+     */
+    private List<ColumnOrSuperColumn> readThroughCaches(final List<RowCache> caches, int index, final ColumnParent colParent, final Bytes rowKey, final SlicePredicate colPredicate, final ConsistencyLevel cLevel) throws PelopsException {
+        for (int i = index; i < caches.size(); i++) {
+            RowCache cache = caches.get(i);
+            if (!cache.isCached(thrift.getKeyspace(), colParent.getColumn_family()))
+                continue;
+
+            final int next = i + 1;
+            return cache.read(thrift.getKeyspace(), colParent, safeGetRowKey(rowKey), colPredicate, new RowCache.ISliceReader() {
+                @Override
+                public List<ColumnOrSuperColumn> read() throws PelopsException {
+                    return readThroughCaches(caches, next, colParent, rowKey, colPredicate, cLevel);
+                }
+            });
+        }
+        return fetchColumnOrSuperColumnsFromRow(colParent, rowKey, colPredicate, cLevel);
+    }
+
+    private List<ColumnOrSuperColumn> fetchColumnOrSuperColumnsFromRow(final ColumnParent colParent, final Bytes rowKey, final SlicePredicate colPredicate, final ConsistencyLevel cLevel) throws PelopsException {
+        final IOperation<List<ColumnOrSuperColumn>> operation = new IOperation<List<ColumnOrSuperColumn>>() {
             @Override
             public List<ColumnOrSuperColumn> execute(IPooledConnection conn) throws Exception {
                 return conn.getAPI().get_slice(safeGetRowKey(rowKey), colParent, colPredicate, cLevel);
             }
+        };
+
+        ReadBatcher readBatcher = thrift.getOperandPolicy().getReadBatcher();
+        if (readBatcher != null) {
+            return readBatcher.read(thrift.getKeyspace(), colParent, safeGetRowKey(rowKey), colPredicate, cLevel, new ReadBatcher.IMultiGet() {
+                @Override
+                public Map<ByteBuffer, List<ColumnOrSuperColumn>> execute(List<ByteBuffer> rowKeys) throws PelopsException {
+                    return getColumnOrSuperColumnsFromRows(colParent, rowKeys, colPredicate, cLevel);
+                }
+            });
+        }
+
+        ReadCoalescer readCoalescer = thrift.getOperandPolicy().getReadCoalescer();
+        if (readCoalescer == null)
+            return tryOperation(operation, colParent.getColumn_family());
+
+        Object key = ReadCoalescer.newKey("get_slice", thrift.getKeyspace(), colParent, safeGetRowKey(rowKey), colPredicate, cLevel);
+        return readCoalescer.read(key, new ReadCoalescer.IRead<List<ColumnOrSuperColumn>>() {
+            @Override
+            public List<ColumnOrSuperColumn> execute() throws PelopsException {
+                return tryOperation(operation, colParent.getColumn_family());
+            }
+
+            @Override
+            public List<ColumnOrSuperColumn> copy(List<ColumnOrSuperColumn> result) {
+                return ReadCoalescer.copy(result);
+            }
         });
     }
 
@@ -945,6 +1058,44 @@ public class Selector extends Operand {
         return new ColumnIterator(this, columnFamily, rowKey, startBeyondName, reversed, batchSize, cLevel);
     }
 
+    /**
+     * Returns an iterator that can be used to iterate over columns, fetching the following batches in the background
+     * while the current batch is consumed.  See
+     * {@link #iterateColumnsFromRow(String, Bytes, Bytes, boolean, int, org.apache.cassandra.thrift.ConsistencyLevel)}
+     * and {@link PageOfIterator#prefetch(int, int)}.
+     * @param columnFamily                  The name of the column family containing the columns
+     * @param rowKey                        The key of the row
+     * @param startBeyondName               The sequence of columns must begin with the smallest  column name greater than this value. Pass <code>null</code> to start at the beginning of the sequence.
+     * @param reversed                      Whether the scan should proceed in descending column name order
+     * @param batchSize                     The maximum number of columns that can be retrieved per invocation to {@link #getPageOfColumnsFromRow(String, String, Bytes, boolean, int, org.apache.cassandra.thrift.ConsistencyLevel)}
+     * @param prefetchBatches               The max number of batches fetched ahead (up to <code>prefetchBatches * batchSize</code> columns are held in memory in addition to the current batch)
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @return                              An iterator of columns
+     */
+    public Iterator<Column> iterateColumnsFromRow(String columnFamily, Bytes rowKey, Bytes startBeyondName, boolean reversed, int batchSize, int prefetchBatches, ConsistencyLevel cLevel) {
+        return new ColumnIterator(this, columnFamily, rowKey, startBeyondName, reversed, batchSize, cLevel)
+                .prefetch(prefetchBatches, prefetchBatches * batchSize);
+    }
+
+    /**
+     * Returns an iterator that can be used to iterate over columns, adapting the number of columns fetched per batch
+     * to the size of the columns and the latency of the cluster.  See
+     * {@link #iterateColumnsFromRow(String, Bytes, Bytes, boolean, int, org.apache.cassandra.thrift.ConsistencyLevel)}
+     * and {@link PageSizeController}.
+     * @param columnFamily                  The name of the column family containing the columns
+     * @param rowKey                        The key of the row
+     * @param startBeyondName               The sequence of columns must begin with the smallest  column name greater than this value. Pass <code>null</code> to start at the beginning of the sequence.
+     * @param reversed                      Whether the scan should proceed in descending column name order
+     * @param batchSize                     The number of columns retrieved by the first batch
+     * @param pageSizePolicy                Dictates how the number of columns retrieved per batch is adapted (if null the defaults are used)
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @return                              An iterator of columns
+     */
+    public Iterator<Column> iterateColumnsFromRow(String columnFamily, Bytes rowKey, Bytes startBeyondName, boolean reversed, int batchSize, PageSizeController.Policy pageSizePolicy, ConsistencyLevel cLevel) {
+        return new ColumnIterator(this, columnFamily, rowKey, startBeyondName, reversed, batchSize, cLevel)
+                .adaptPageSize(pageSizePolicy);
+    }
+
     /**
      * Returns an iterator that can be used to iterate over columns.  The returned iterator delegates to
      * {@link #getPageOfColumnsFromRow(String, String, Bytes, boolean, int, org.apache.cassandra.thrift.ConsistencyLevel)}
@@ -1007,6 +1158,223 @@ public class Selector extends Operand {
         return new ColumnRowIterator(this, columnFamily, startBeyondKey, batchSize, colPredicate, cLevel);
     }
 
+    /**
+     * Returns an iterator that can be used to iterate over rows, fetching the following batches in the background
+     * while the current batch is consumed.  See
+     * {@link #iterateColumnsFromRows(String, Bytes, int, org.apache.cassandra.thrift.SlicePredicate, org.apache.cassandra.thrift.ConsistencyLevel)}
+     * and {@link RowIterator#prefetch(int, int)}.
+     * @param columnFamily                  The name of the column family containing the columns
+     * @param startBeyondKey                The sequence of row keys must begin with the smallest row key greater than this value. Pass <code>{@link Bytes#EMPTY}</code> to start at the beginning of the sequence.  NOTE: this parameter only really makes sense when using an Order Preserving Partishioner.
+     * @param batchSize                     The maximum number of rows that can be retrieved per batch
+     * @param colPredicate                  Dictates the columns to include
+     * @param prefetchBatches               The max number of batches fetched ahead
+     * @param maxPrefetchedColumns          The max number of columns (in all rows) fetched ahead
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @return                              An iterator of columns
+     */
+    public Iterator<Map.Entry<Bytes, List<Column>>> iterateColumnsFromRows(String columnFamily, Bytes startBeyondKey, int batchSize, final SlicePredicate colPredicate, int prefetchBatches, int maxPrefetchedColumns, final ConsistencyLevel cLevel) {
+        return new ColumnRowIterator(this, columnFamily, startBeyondKey, batchSize, colPredicate, cLevel)
+                .prefetch(prefetchBatches, maxPrefetchedColumns);
+    }
+
+    /**
+     * Returns an iterator that can be used to iterate over rows, adapting the number of rows fetched per batch to the
+     * size of the rows and the latency of the cluster.  See
+     * {@link #iterateColumnsFromRows(String, Bytes, int, org.apache.cassandra.thrift.SlicePredicate, org.apache.cassandra.thrift.ConsistencyLevel)}
+     * and {@link PageSizeController}.
+     * @param columnFamily                  The name of the column family containing the columns
+     * @param startBeyondKey                The sequence of row keys must begin with the smallest row key greater than this value. Pass <code>{@link Bytes#EMPTY}</code> to start at the beginning of the sequence.  NOTE: this parameter only really makes sense when using an Order Preserving Partishioner.
+     * @param batchSize                     The number of rows retrieved by the first batch
+     * @param colPredicate                  Dictates the columns to include
+     * @param pageSizePolicy                Dictates how the number of rows retrieved per batch is adapted (if null the defaults are used)
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @return                              An iterator of columns
+     */
+    public Iterator<Map.Entry<Bytes, List<Column>>> iterateColumnsFromRows(String columnFamily, Bytes startBeyondKey, int batchSize, final SlicePredicate colPredicate, PageSizeController.Policy pageSizePolicy, final ConsistencyLevel cLevel) {
+        return new ColumnRowIterator(this, columnFamily, startBeyondKey, batchSize, colPredicate, cLevel)
+                .adaptPageSize(pageSizePolicy);
+    }
+
+    /**
+     * Builds a Bloom filter of the keys of all the rows of a column family by scanning it, and loads it into the
+     * {@link OperandPolicy#getNegativeCache() negative cache} of the pool so that reads of rows that don't exist are
+     * answered without making a round trip.  See
+     * {@link NegativeCache#loadRowKeyFilter(String, String, BloomFilter, Iterator)}.
+     * @param columnFamily                  The name of the column family
+     * @param expectedRows                  The expected number of rows in the column family (used to size the filter)
+     * @param falsePositiveRate             The desired rate at which absent rows are reported as present by the filter
+     * @param cLevel                        The Cassandra consistency level with which to perform the scan
+     * @return                              The filter
+     * @throws IllegalStateException if the operand policy of the pool has no negative cache
+     * @throws PelopsException if an error occurs
+     */
+    public BloomFilter loadRowKeyFilter(String columnFamily, int expectedRows, double falsePositiveRate, ConsistencyLevel cLevel) throws PelopsException {
+        NegativeCache negativeCache = thrift.getOperandPolicy().getNegativeCache();
+        if (negativeCache == null)
+            throw new IllegalStateException("The operand policy of the pool has no negative cache");
+
+        final Iterator<Map.Entry<Bytes, List<Column>>> rows = iterateColumnsFromRows(columnFamily, Bytes.EMPTY, 1000,
+                newColumnsPredicateAll(false, 1), cLevel);
+        BloomFilter filter = new BloomFilter(expectedRows, falsePositiveRate);
+        negativeCache.loadRowKeyFilter(thrift.getKeyspace(), columnFamily, filter, new Iterator<Bytes>() {
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public Bytes next() {
+                return rows.next().getKey();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+        return filter;
+    }
+
+    /**
+     * Returns an iterator that can be used to iterate over the columns of a range of rows, along with the keys of their
+     * rows.  The returned iterator delegates to
+     * {@link #getPageOfColumnsFromRows(String, KeyRange, Bytes, org.apache.cassandra.thrift.ConsistencyLevel)} to
+     * fetch pages of at most <code>pageSize</code> columns, whether they come from many narrow rows or from a single
+     * wide row, so rows of any width are streamed in bounded memory with few round trips.
+     * @param columnFamily                  The name of the column family containing the columns
+     * @param keyRange                      A key range selecting the rows (its count is ignored).  Token ranges must not wrap around the ring.
+     * @param pageSize                      The maximum number of columns (in all rows) that can be retrieved per page
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @return                              An iterator of row keys and columns
+     */
+    public PagedColumnIterator iterateColumnsFromRows(String columnFamily, KeyRange keyRange, int pageSize, ConsistencyLevel cLevel) {
+        return new PagedColumnIterator(this, columnFamily, keyRange, null, pageSize, cLevel);
+    }
+
+    /**
+     * Returns an iterator that can be used to iterate over the columns of a range of rows resuming from a cursor, see
+     * {@link #iterateColumnsFromRows(String, KeyRange, int, org.apache.cassandra.thrift.ConsistencyLevel)}.
+     * @param columnFamily                  The name of the column family containing the columns
+     * @param keyRange                      A key range selecting the rows (its count is ignored).  Token ranges must not wrap around the ring.
+     * @param startBeyond                   The iteration starts with the column following this cursor, typically obtained from {@link PagedColumnIterator#getCursor()}. Pass <code>null</code> to start at the beginning of the range.
+     * @param pageSize                      The maximum number of columns (in all rows) that can be retrieved per page
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @return                              An iterator of row keys and columns
+     */
+    public PagedColumnIterator iterateColumnsFromRows(String columnFamily, KeyRange keyRange, PagedColumnIterator.Cursor startBeyond, int pageSize, ConsistencyLevel cLevel) {
+        return new PagedColumnIterator(this, columnFamily, keyRange, startBeyond, pageSize, cLevel);
+    }
+
+    /**
+     * Returns an iterator that can be used to iterate over the rows of a set of token ranges, fetching the rows lazily
+     * one page at a time.  The iteration can be divided between several threads using
+     * {@link TokenRangeRowIterator#trySplit()}.
+     * @param columnFamily                  The name of the column family containing the columns
+     * @param tokenRanges                   The token ranges to iterate over, typically obtained from {@link #getTokenRangeSplits(String, int)}
+     * @param colPredicate                  Dictates the columns to include
+     * @param pageSize                      The maximum number of rows that can be retrieved per page
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @return                              An iterator of rows
+     * @throws PelopsException if the partitioner couldn't be determined
+     */
+    public TokenRangeRowIterator iterateColumnsFromTokenRanges(String columnFamily, List<TokenRange> tokenRanges, SlicePredicate colPredicate, int pageSize, ConsistencyLevel cLevel) throws PelopsException {
+        return new TokenRangeRowIterator(this, columnFamily, tokenRanges, colPredicate, pageSize, cLevel, getPartitioner());
+    }
+
+    /**
+     * Returns an iterator that can be used to iterate over all the rows of a column family, split into token ranges
+     * of about <code>splitSize</code> rows.  See
+     * {@link #iterateColumnsFromTokenRanges(String, List, org.apache.cassandra.thrift.SlicePredicate, int, org.apache.cassandra.thrift.ConsistencyLevel)}.
+     * @param columnFamily                  The name of the column family containing the columns
+     * @param colPredicate                  Dictates the columns to include
+     * @param pageSize                      The maximum number of rows that can be retrieved per page
+     * @param splitSize                     The (estimated) number of rows in each token range
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @return                              An iterator of rows
+     * @throws PelopsException if the ring couldn't be described
+     */
+    public TokenRangeRowIterator iterateColumnsFromTokenRanges(String columnFamily, SlicePredicate colPredicate, int pageSize, int splitSize, ConsistencyLevel cLevel) throws PelopsException {
+        return iterateColumnsFromTokenRanges(columnFamily, getTokenRangeSplits(columnFamily, splitSize), colPredicate, pageSize, cLevel);
+    }
+
+    /**
+     * Returns an iterator that can be used to iterate over the rows matched by a secondary index query.  The returned
+     * iterator delegates to
+     * {@link #getIndexedColumns(String, IndexClause, org.apache.cassandra.thrift.SlicePredicate, org.apache.cassandra.thrift.ConsistencyLevel)}
+     * to fetch batches of rows.
+     * @param columnFamily                  The name of the column family containing the columns
+     * @param indexClause                   The index clause, its start key is the key of the first row of the iteration (its count is ignored)
+     * @param batchSize                     The maximum number of rows that can be retrieved per batch
+     * @param colPredicate                  Dictates the columns to include
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @return                              An iterator of rows
+     */
+    public Iterator<Map.Entry<Bytes, List<Column>>> iterateIndexedColumns(String columnFamily, IndexClause indexClause, int batchSize, SlicePredicate colPredicate, ConsistencyLevel cLevel) {
+        return new IndexedColumnRowIterator(this, columnFamily, indexClause, batchSize, colPredicate, cLevel);
+    }
+
+    /**
+     * Returns a publisher of the columns of a row, see {@link ScanPublisher}.  Each subscription iterates over the
+     * columns as {@link #iterateColumnsFromRow(String, Bytes, Bytes, boolean, int, org.apache.cassandra.thrift.ConsistencyLevel)}
+     * does, fetching the next batch only when the subscriber has requested more columns.
+     * @param columnFamily                  The name of the column family containing the columns
+     * @param rowKey                        The key of the row
+     * @param startBeyondName               The sequence of columns must begin with the smallest  column name greater than this value. Pass <code>null</code> to start at the beginning of the sequence.
+     * @param reversed                      Whether the scan should proceed in descending column name order
+     * @param batchSize                     The maximum number of columns that can be retrieved per batch
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @return                              A publisher of columns
+     */
+    public ScanPublisher<Column> publishColumnsFromRow(final String columnFamily, final Bytes rowKey, final Bytes startBeyondName, final boolean reversed, final int batchSize, final ConsistencyLevel cLevel) {
+        return new ScanPublisher<Column>(new ScanPublisher.IIteratorFactory<Column>() {
+            @Override
+            public Iterator<Column> newIterator() {
+                return iterateColumnsFromRow(columnFamily, rowKey, startBeyondName, reversed, batchSize, cLevel);
+            }
+        }, getParallelExecutor(thrift.getOperandPolicy()));
+    }
+
+    /**
+     * Returns a publisher of a range of rows, see {@link ScanPublisher}.  Each subscription iterates over the rows as
+     * {@link #iterateColumnsFromRows(String, Bytes, int, org.apache.cassandra.thrift.SlicePredicate, org.apache.cassandra.thrift.ConsistencyLevel)}
+     * does, fetching the next batch only when the subscriber has requested more rows.
+     * @param columnFamily                  The name of the column family containing the columns
+     * @param startBeyondKey                The sequence of row keys must begin with the smallest row key greater than this value. Pass <code>{@link Bytes#EMPTY}</code> to start at the beginning of the sequence.  NOTE: this parameter only really makes sense when using an Order Preserving Partishioner.
+     * @param batchSize                     The maximum number of rows that can be retrieved per batch
+     * @param colPredicate                  Dictates the columns to include
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @return                              A publisher of rows
+     */
+    public ScanPublisher<Map.Entry<Bytes, List<Column>>> publishColumnsFromRows(final String columnFamily, final Bytes startBeyondKey, final int batchSize, final SlicePredicate colPredicate, final ConsistencyLevel cLevel) {
+        return new ScanPublisher<Map.Entry<Bytes, List<Column>>>(new ScanPublisher.IIteratorFactory<Map.Entry<Bytes, List<Column>>>() {
+            @Override
+            public Iterator<Map.Entry<Bytes, List<Column>>> newIterator() {
+                return iterateColumnsFromRows(columnFamily, startBeyondKey, batchSize, colPredicate, cLevel);
+            }
+        }, getParallelExecutor(thrift.getOperandPolicy()));
+    }
+
+    /**
+     * Returns a publisher of the rows matched by a secondary index query, see {@link ScanPublisher}.  Each
+     * subscription iterates over the rows as
+     * {@link #iterateIndexedColumns(String, IndexClause, int, org.apache.cassandra.thrift.SlicePredicate, org.apache.cassandra.thrift.ConsistencyLevel)}
+     * does, fetching the next batch only when the subscriber has requested more rows.
+     * @param columnFamily                  The name of the column family containing the columns
+     * @param indexClause                   The index clause, its start key is the key of the first row of the iteration (its count is ignored)
+     * @param batchSize                     The maximum number of rows that can be retrieved per batch
+     * @param colPredicate                  Dictates the columns to include
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @return                              A publisher of rows
+     */
+    public ScanPublisher<Map.Entry<Bytes, List<Column>>> publishIndexedColumns(final String columnFamily, final IndexClause indexClause, final int batchSize, final SlicePredicate colPredicate, final ConsistencyLevel cLevel) {
+        return new ScanPublisher<Map.Entry<Bytes, List<Column>>>(new ScanPublisher.IIteratorFactory<Map.Entry<Bytes, List<Column>>>() {
+            @Override
+            public Iterator<Map.Entry<Bytes, List<Column>>> newIterator() {
+                return iterateIndexedColumns(columnFamily, indexClause, batchSize, colPredicate, cLevel);
+            }
+        }, getParallelExecutor(thrift.getOperandPolicy()));
+    }
+
     /**
      * Retrieve a page of super columns composed from a segment of the sequence of super columns in a row.
      * @param columnFamily                  The name of the column family containing the super columns
@@ -1099,6 +1467,25 @@ public class Selector extends Operand {
         return new SuperColumnIterator(this, columnFamily, rowKey, startBeyondName, reversed, batchSize, cLevel);
     }
 
+    /**
+     * Returns an iterator that can be used to iterate over super columns, fetching the following batches in the
+     * background while the current batch is consumed.  See
+     * {@link #iterateSuperColumnsFromRow(String, Bytes, Bytes, boolean, int, org.apache.cassandra.thrift.ConsistencyLevel)}
+     * and {@link PageOfIterator#prefetch(int, int)}.
+     * @param columnFamily                  The name of the column family containing the super columns
+     * @param rowKey                        The key of the row
+     * @param startBeyondName               The sequence of super columns must begin with the smallest super column name greater than this value. Pass <code>null</code> to start at the beginning of the sequence.
+     * @param reversed                      Whether the scan should proceed in descending super column name order
+     * @param batchSize                     The maximum number of super columns that can be retrieved per invocation to {@link #getPageOfSuperColumnsFromRow(String, String, Bytes, boolean, int, org.apache.cassandra.thrift.ConsistencyLevel)}
+     * @param prefetchBatches               The max number of batches fetched ahead (up to <code>prefetchBatches * batchSize</code> super columns are held in memory in addition to the current batch)
+     * @param cLevel                        The Cassandra consistency level with which to perform the operation
+     * @return                              An iterator of super columns
+     */
+    public Iterator<SuperColumn> iterateSuperColumnsFromRow(String columnFamily, Bytes rowKey, Bytes startBeyondName, boolean reversed, int batchSize, int prefetchBatches, ConsistencyLevel cLevel) {
+        return new SuperColumnIterator(this, columnFamily, rowKey, startBeyondName, reversed, batchSize, cLevel)
+                .prefetch(prefetchBatches, prefetchBatches * batchSize);
+    }
+
     /**
      * Returns an iterator that can be used to iterate over super columns.  The returned iterator delegates to
      * {@link #getPageOfSuperColumnsFromRow(String, String, Bytes, boolean, int, org.apache.cassandra.thrift.ConsistencyLevel)}
@@ -1495,15 +1882,118 @@ public class Selector extends Operand {
         return getSuperColumnsFromRows(columnFamily, rowKeys, columnsPredicateAll(reversed), cLevel);
     }
 
+    /**
+     * Retrieves the columns from a set of rows using multiget_slice.
+     * <p>When the number of keys exceeds the {@link OperandPolicy#getMultigetChunkSize() multiget chunk size} the keys
+     * are split into chunks that are read concurrently (and grouped by the node that owns them if the policy has a
+     * {@link OperandPolicy#getTokenRing() token ring}).  Each chunk is retried independently, if some of them still
+     * fail a {@link PartialFailureException} listing the rows that couldn't be read is thrown.
+     * @param columnParent        The column parent
+     * @param rowKeys             The keys of the rows
+     * @param colPredicate        The column selector predicate
+     * @param cLevel              The Cassandra consistency level with which to perform the operation
+     * @return                    A map from row keys to the matching columns (rows that don't exist may be missing)
+     * @throws PelopsException if an error occurs
+     */
     public Map<ByteBuffer, List<ColumnOrSuperColumn>> getColumnOrSuperColumnsFromRows(final ColumnParent columnParent, final List<ByteBuffer> rowKeys, final SlicePredicate colPredicate, final ConsistencyLevel cLevel) throws PelopsException {
-        return tryOperation(new IOperation<Map<ByteBuffer, List<ColumnOrSuperColumn>>>() {
+        OperandPolicy operandPolicy = thrift.getOperandPolicy();
+        int chunkSize = operandPolicy.getMultigetChunkSize();
+        if (chunkSize > 0 && rowKeys.size() > chunkSize)
+            return getColumnOrSuperColumnsFromRowsInChunks(columnParent, rowKeys, colPredicate, cLevel, operandPolicy);
+
+        return getColumnOrSuperColumnsFromRows(columnParent, rowKeys, colPredicate, cLevel, operandPolicy, null);
+    }
+
+    private Map<ByteBuffer, List<ColumnOrSuperColumn>> getColumnOrSuperColumnsFromRows(final ColumnParent columnParent, final List<ByteBuffer> rowKeys, final SlicePredicate colPredicate, final ConsistencyLevel cLevel, final OperandPolicy operandPolicy, final Set<String> avoidNodesHint) throws PelopsException {
+        final IOperation<Map<ByteBuffer, List<ColumnOrSuperColumn>>> operation = new IOperation<Map<ByteBuffer, List<ColumnOrSuperColumn>>>() {
             @Override
             public Map<ByteBuffer, List<ColumnOrSuperColumn>> execute(IPooledConnection conn) throws Exception {
                 return conn.getAPI().multiget_slice(rowKeys, columnParent, colPredicate, cLevel);
             }
+        };
+
+        ReadCoalescer readCoalescer = operandPolicy.getReadCoalescer();
+        if (readCoalescer == null)
+            return tryOperation(operation, operandPolicy, Collections.singletonMap(columnParent.getColumn_family(), 0L), avoidNodesHint);
+
+        Object key = ReadCoalescer.newKey("multiget_slice", thrift.getKeyspace(), columnParent, rowKeys, colPredicate, cLevel);
+        return readCoalescer.read(key, new ReadCoalescer.IRead<Map<ByteBuffer, List<ColumnOrSuperColumn>>>() {
+            @Override
+            public Map<ByteBuffer, List<ColumnOrSuperColumn>> execute() throws PelopsException {
+                return tryOperation(operation, operandPolicy, Collections.singletonMap(columnParent.getColumn_family(), 0L), avoidNodesHint);
+            }
+
+            @Override
+            public Map<ByteBuffer, List<ColumnOrSuperColumn>> copy(Map<ByteBuffer, List<ColumnOrSuperColumn>> result) {
+                return ReadCoalescer.copy(result);
+            }
         });
     }
 
+    private Map<ByteBuffer, List<ColumnOrSuperColumn>> getColumnOrSuperColumnsFromRowsInChunks(final ColumnParent columnParent, List<ByteBuffer> rowKeys, final SlicePredicate colPredicate, final ConsistencyLevel cLevel, final OperandPolicy operandPolicy) throws PelopsException {
+        int chunkSize = operandPolicy.getMultigetChunkSize();
+        final List<List<ByteBuffer>> chunks = new ArrayList<List<ByteBuffer>>();
+        final List<Set<String>> avoidNodesHints = new ArrayList<Set<String>>();
+        TokenRing ring = operandPolicy.getTokenRing();
+        if (ring != null) {
+            for (Map.Entry<String, List<ByteBuffer>> group : ring.groupByPrimaryReplica(rowKeys).entrySet()) {
+                // steer the chunk towards the owner of the rows, if it fails it's retried against any other node
+                Set<String> avoidNodesHint = ring.getEndpointsExcept(Collections.singletonList(group.getKey()));
+                for (int i = 0; i < group.getValue().size(); i += chunkSize) {
+                    chunks.add(group.getValue().subList(i, Math.min(i + chunkSize, group.getValue().size())));
+                    avoidNodesHints.add(avoidNodesHint);
+                }
+            }
+        } else {
+            for (int i = 0; i < rowKeys.size(); i += chunkSize) {
+                chunks.add(rowKeys.subList(i, Math.min(i + chunkSize, rowKeys.size())));
+                avoidNodesHints.add(null);
+            }
+        }
+
+        List<Future<Map<ByteBuffer, List<ColumnOrSuperColumn>>>> futures = new ArrayList<Future<Map<ByteBuffer, List<ColumnOrSuperColumn>>>>(chunks.size());
+        ExecutorService executor = getParallelExecutor(operandPolicy);
+        for (int i = 0; i < chunks.size(); i++) {
+            final List<ByteBuffer> chunk = chunks.get(i);
+            final Set<String> avoidNodesHint = avoidNodesHints.get(i);
+            futures.add(executor.submit(new Callable<Map<ByteBuffer, List<ColumnOrSuperColumn>>>() {
+                @Override
+                public Map<ByteBuffer, List<ColumnOrSuperColumn>> call() throws Exception {
+                    return getColumnOrSuperColumnsFromRows(columnParent, chunk, colPredicate, cLevel, operandPolicy, avoidNodesHint);
+                }
+            }));
+        }
+
+        Map<ByteBuffer, List<ColumnOrSuperColumn>> result = new HashMap<ByteBuffer, List<ColumnOrSuperColumn>>(rowKeys.size() * 2);
+        Map<Bytes, PelopsException> failures = new LinkedHashMap<Bytes, PelopsException>();
+        Set<Bytes> succeeded = new LinkedHashSet<Bytes>();
+        for (int i = 0; i < chunks.size(); i++) {
+            PelopsException failure = null;
+            try {
+                result.putAll(futures.get(i).get());
+            } catch (ExecutionException e) {
+                failure = e.getCause() instanceof PelopsException ? (PelopsException) e.getCause() : new PelopsException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new PelopsException("Interrupted while waiting for the chunk to complete", e);
+            }
+
+            for (ByteBuffer rowKey : chunks.get(i)) {
+                if (failure != null)
+                    failures.put(Bytes.fromByteBuffer(rowKey), failure);
+                else
+                    succeeded.add(Bytes.fromByteBuffer(rowKey));
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            succeeded.removeAll(failures.keySet());
+            throw new PartialFailureException(failures.size() + " of " + (failures.size() + succeeded.size()) +
+                    " rows failed to be read", failures, succeeded);
+        }
+        return result;
+    }
+
     /**
      * Retrieve super columns from a set of rows.
      * @param columnFamily                  The column family containing the rows
@@ -1600,6 +2090,51 @@ public class Selector extends Operand {
         return getColumnsFromRows(newColumnParent(columnFamily), keyRange, colPredicate, cLevel);
     }
 
+    /**
+     * Retrieve columns from a range of rows, handing the rows to a handler one at a time.
+     * Unlike {@link #getColumnsFromRows(String, KeyRange, org.apache.cassandra.thrift.SlicePredicate, org.apache.cassandra.thrift.ConsistencyLevel)}
+     * no map of the result is built: the rows are read in pages of at most
+     * {@link OperandPolicy#getRangePageSize()} rows, each page resuming from the last row of the previous page, and
+     * each raw row is released once it has been handled, so the memory held is bounded by the size of a page whatever
+     * the number of rows in the range.
+     * @param columnFamily                    The column family containing the rows
+     * @param keyRange                        A key range selecting the rows, its count is the maximum number of rows (in all pages) to retrieve
+     * @param colPredicate                    The column selector predicate
+     * @param cLevel                          The Cassandra consistency level with which to perform the operation
+     * @param handler                         Receives the rows, in the order that they were returned by Cassandra
+     * @return                                The number of rows handled
+     * @throws PelopsException if an error occurs
+     */
+    public int getColumnsFromRows(String columnFamily, KeyRange keyRange, SlicePredicate colPredicate, ConsistencyLevel cLevel, IRowHandler<Column> handler) throws PelopsException {
+        return handlePages(newKeySlicePager(newColumnParent(columnFamily), keyRange, colPredicate, cLevel), keyRange.getCount(), COLUMN, handler);
+    }
+
+    /**
+     * Retrieve a page of columns composed from a segment of the sequence of columns in a range of consecutive rows
+     * (using get_paged_slice).  The page starts with the column named <code>startColumn</code> (inclusive) of the
+     * first row of the range and continues with the columns of the following rows until <code>keyRange.count</code>
+     * columns have been retrieved, so a single page can cover many narrow rows or part of a single wide row.
+     * The map returned is a <code>LinkedHashMap</code> and its key iterator proceeds in the order that the key data was
+     * returned by Cassandra.
+     * @param columnFamily                    The column family containing the rows
+     * @param keyRange                        A key range selecting the rows, its count is the maximum number of columns (in all rows) to retrieve
+     * @param startColumn                     The name of the first column to retrieve from the first row. Pass <code>null</code> to start at the beginning of the row.
+     * @param cLevel                          The Cassandra consistency level with which to perform the operation
+     * @return                                A map from row keys to the matching lists of columns
+     * @throws PelopsException if an error occurs
+     * @see #iterateColumnsFromRows(String, KeyRange, int, org.apache.cassandra.thrift.ConsistencyLevel)
+     */
+    public LinkedHashMap<Bytes, List<Column>> getPageOfColumnsFromRows(final String columnFamily, final KeyRange keyRange, final Bytes startColumn, final ConsistencyLevel cLevel) throws PelopsException {
+        List<KeySlice> keySlices = tryOperation(new IOperation<List<KeySlice>>() {
+            @Override
+            public List<KeySlice> execute(IPooledConnection conn) throws Exception {
+                ByteBuffer start = nullSafeGet(startColumn);
+                return conn.getAPI().get_paged_slice(columnFamily, keyRange, start != null ? start : Bytes.EMPTY.getBytes(), cLevel);
+            }
+        }, columnFamily);
+        return transformKeySlices(keySlices, COLUMN);
+    }
+
     /**
      * Retrieve all columns from a range of rows.
      * The method returns a map from the keys of rows in the specified range to lists of columns from the rows. The map
@@ -1795,7 +2330,187 @@ public class Selector extends Operand {
             public List<KeySlice> execute(IPooledConnection conn) throws Exception {
                 return conn.getAPI().get_range_slices(columnParent, colPredicate, keyRange, cLevel);
             }
+        }, columnParent.getColumn_family());
+    }
+
+    List<KeySlice> getKeySlices(final ColumnParent columnParent, final KeyRange keyRange, final SlicePredicate colPredicate, final ConsistencyLevel cLevel, Set<String> avoidNodesHint) throws PelopsException {
+        return tryOperation(new IOperation<List<KeySlice>>() {
+            @Override
+            public List<KeySlice> execute(IPooledConnection conn) throws Exception {
+                return conn.getAPI().get_range_slices(columnParent, colPredicate, keyRange, cLevel);
+            }
+        }, thrift.getOperandPolicy(), Collections.singletonMap(columnParent.getColumn_family(), 0L), avoidNodesHint);
+    }
+
+    /**
+     * Reads the rows one page at a time and hands them to the handler, each page being handled before the next page
+     * is read.  Pages resumed from a start key (which is inclusive) ask for an extra row, the last row of the previous
+     * page, which is dropped.
+     * @param pager reads the pages
+     * @param limit the max number of rows to handle
+     * @param fieldAdapter the adapter used to transform the columns
+     * @param handler the handler
+     * @return the number of rows handled
+     */
+    private <T> int handlePages(IKeySlicePager pager, int limit, ColumnOrSuperColumnHelper.FieldAdapter<T> fieldAdapter, IRowHandler<T> handler) throws PelopsException {
+        int pageSize = Math.max(1, thrift.getOperandPolicy().getRangePageSize());
+        Bytes lastKey = null;
+        int rows = 0;
+        while (rows < limit) {
+            int count = Math.min(pageSize, limit - rows);
+            boolean overlaps = lastKey != null && pager.isStartInclusive();
+            int requested = overlaps ? count + 1 : count;
+            List<KeySlice> page = pager.read(requested);
+            boolean isLastPage = page.size() < requested;
+
+            if (overlaps && !page.isEmpty() && lastKey.equals(fromByteBuffer(page.get(0).bufferForKey())))
+                page.remove(0);
+            // the last row of the previous page may have been deleted since
+            while (page.size() > count)
+                page.remove(page.size() - 1);
+            if (page.isEmpty())
+                break;
+
+            lastKey = fromByteBuffer(page.get(page.size() - 1).bufferForKey());
+            rows += transformKeySlices(page, fieldAdapter, handler);
+            if (isLastPage || !pager.resumeFrom(lastKey))
+                break;
+        }
+        return rows;
+    }
+
+    private IKeySlicePager newKeySlicePager(final ColumnParent columnParent, KeyRange keyRange, final SlicePredicate colPredicate, final ConsistencyLevel cLevel) {
+        final KeyRange pageRange = new KeyRange(keyRange);
+        return new IKeySlicePager() {
+            private TokenRing.Partitioner partitioner;
+
+            @Override
+            public List<KeySlice> read(int count) throws PelopsException {
+                pageRange.setCount(count);
+                return getKeySlices(columnParent, pageRange, colPredicate, cLevel);
+            }
+
+            @Override
+            public boolean isStartInclusive() {
+                return pageRange.getStart_token() == null;
+            }
+
+            @Override
+            public boolean resumeFrom(Bytes lastKey) throws PelopsException {
+                if (pageRange.getStart_token() == null) {
+                    pageRange.setStart_key(lastKey.getBytes());
+                    return true;
+                }
+
+                // the start token is exclusive, so the next page starts after the last row of this page
+                if (partitioner == null)
+                    partitioner = getPartitioner();
+                String lastToken = partitioner.getToken(lastKey.getBytes()).toString();
+                if (lastToken.equals(pageRange.getEnd_token()))
+                    return false;
+                pageRange.setStart_token(lastToken);
+                return true;
+            }
+        };
+    }
+
+    private IKeySlicePager newKeySlicePager(final ColumnParent columnParent, IndexClause indexClause, final SlicePredicate colPredicate, final ConsistencyLevel cLevel) {
+        final IndexClause pageClause = new IndexClause(indexClause);
+        return new IKeySlicePager() {
+            @Override
+            public List<KeySlice> read(int count) throws PelopsException {
+                pageClause.setCount(count);
+                return getKeySlices(columnParent, pageClause, colPredicate, cLevel);
+            }
+
+            @Override
+            public boolean isStartInclusive() {
+                return true;
+            }
+
+            @Override
+            public boolean resumeFrom(Bytes lastKey) {
+                pageClause.setStart_key(lastKey.getBytes());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Splits the ring into token ranges holding about <code>splitSize</code> rows of the column family each (using
+     * describe_ring and describe_splits_ex).  Ranges the nodes fail to split are returned as a whole.  The ranges can
+     * be iterated over independently, see
+     * {@link #iterateColumnsFromTokenRanges(String, List, org.apache.cassandra.thrift.SlicePredicate, int, org.apache.cassandra.thrift.ConsistencyLevel)}.
+     * @param columnFamily                  The column family
+     * @param splitSize                     The (estimated) number of rows in each range
+     * @return                              The token ranges along with the endpoints that hold replicas of them, reported
+     *                                      using the names the nodes of the pool were configured with
+     * @throws PelopsException if the ring couldn't be described
+     */
+    public List<TokenRange> getTokenRangeSplits(String columnFamily, int splitSize) throws PelopsException {
+        List<TokenRange> tokenRanges = describeRing();
+        Set<String> endpoints = TokenRangePager.getEndpoints(tokenRanges);
+
+        List<TokenRange> splits = new ArrayList<TokenRange>();
+        for (TokenRange tokenRange : tokenRanges)
+            splits.addAll(splitTokenRange(columnFamily, tokenRange, splitSize, TokenRangePager.getAvoidNodesHint(endpoints, tokenRange)));
+        return splits;
+    }
+
+    /**
+     * The token ranges of the ring along with the endpoints that hold replicas of them.  The endpoints are reported
+     * using the names the nodes of the pool were configured with (see {@link ThriftPoolBase#getNodeNames()}) so that
+     * they can be used to avoid nodes.
+     */
+    List<TokenRange> describeRing() throws PelopsException {
+        List<TokenRange> tokenRanges = tryOperation(new IOperation<List<TokenRange>>() {
+            @Override
+            public List<TokenRange> execute(IPooledConnection conn) throws Exception {
+                return conn.getAPI().describe_ring(thrift.getKeyspace());
+            }
         });
+        Collection<String> nodeNames = thrift instanceof ThriftPoolBase ? ((ThriftPoolBase) thrift).getNodeNames() : null;
+        return TokenRing.withNodeNames(tokenRanges, nodeNames);
+    }
+
+    /**
+     * Splits a token range into sub-ranges holding about <code>splitSize</code> rows of the column family each (using
+     * describe_splits_ex against a replica of the range).  The sub-ranges have the same endpoints as the range.
+     * @return the sub-ranges, or the range as a whole if the node failed to split it
+     */
+    List<TokenRange> splitTokenRange(final String columnFamily, final TokenRange tokenRange, final int splitSize, Set<String> avoidNodesHint) {
+        List<CfSplit> cfSplits = Collections.emptyList();
+        try {
+            cfSplits = tryOperation(new IOperation<List<CfSplit>>() {
+                @Override
+                public List<CfSplit> execute(IPooledConnection conn) throws Exception {
+                    return conn.getAPI().describe_splits_ex(columnFamily, tokenRange.getStart_token(), tokenRange.getEnd_token(), splitSize);
+                }
+            }, thrift.getOperandPolicy(), null, avoidNodesHint);
+        } catch (PelopsException e) {
+            logger.warn("Failed to split range ({}, {}], returning it as a whole. Cause of failure is {}", new Object[] {tokenRange.getStart_token(), tokenRange.getEnd_token(), e});
+        }
+
+        List<TokenRange> splits = new ArrayList<TokenRange>(Math.max(1, cfSplits.size()));
+        if (cfSplits.isEmpty()) {
+            splits.add(new TokenRange(tokenRange.getStart_token(), tokenRange.getEnd_token(), tokenRange.getEndpoints()));
+        } else {
+            for (CfSplit cfSplit : cfSplits)
+                splits.add(new TokenRange(cfSplit.getStart_token(), cfSplit.getEnd_token(), tokenRange.getEndpoints()));
+        }
+        return splits;
+    }
+
+    /**
+     * The partitioner used by the cluster.
+     */
+    TokenRing.Partitioner getPartitioner() throws PelopsException {
+        return TokenRing.Partitioner.forClassName(tryOperation(new IOperation<String>() {
+            @Override
+            public String execute(IPooledConnection conn) throws Exception {
+                return conn.getAPI().describe_partitioner();
+            }
+        }));
     }
 
     /**
@@ -1814,6 +2529,21 @@ public class Selector extends Operand {
         return transformKeySlices(getKeySlices(newColumnParent(columnFamily), keyRange, colPredicate, cLevel), SUPER_COLUMN);
     }
 
+    /**
+     * Retrieve super columns from a range of rows, handing the rows to a handler one at a time.  See
+     * {@link #getColumnsFromRows(String, KeyRange, org.apache.cassandra.thrift.SlicePredicate, org.apache.cassandra.thrift.ConsistencyLevel, IRowHandler)}.
+     * @param columnFamily                    The column family containing the rows
+     * @param keyRange                        A key range selecting the rows, its count is the maximum number of rows (in all pages) to retrieve
+     * @param colPredicate                    The super column selector predicate
+     * @param cLevel                          The Cassandra consistency level with which to perform the operation
+     * @param handler                         Receives the rows, in the order that they were returned by Cassandra
+     * @return                                The number of rows handled
+     * @throws PelopsException if an error occurs
+     */
+    public int getSuperColumnsFromRows(String columnFamily, KeyRange keyRange, SlicePredicate colPredicate, ConsistencyLevel cLevel, IRowHandler<SuperColumn> handler) throws PelopsException {
+        return handlePages(newKeySlicePager(newColumnParent(columnFamily), keyRange, colPredicate, cLevel), keyRange.getCount(), SUPER_COLUMN, handler);
+    }
+
     /**
      * Retrieve all super columns from a range of rows.
      * The method returns a map from the keys of rows in the specified range to lists of super columns from the rows. The map
@@ -1886,6 +2616,22 @@ public class Selector extends Operand {
     	return getIndexedColumns(newColumnParent(colParent), indexClause, colPredicate, cLevel);
     }
 
+    /**
+     * Retrieve columns from a range of indexed rows using its secondary index, handing the rows to a handler one at a
+     * time.  See
+     * {@link #getColumnsFromRows(String, KeyRange, org.apache.cassandra.thrift.SlicePredicate, org.apache.cassandra.thrift.ConsistencyLevel, IRowHandler)}.
+     * @param colParent                       The column family containing the rows
+     * @param indexClause                     A index clause, its count is the maximum number of rows (in all pages) to retrieve
+     * @param colPredicate                    The column selector predicate
+     * @param cLevel                          The Cassandra consistency level with which to perform the operation
+     * @param handler                         Receives the rows, in the order that they were returned by Cassandra
+     * @return                                The number of rows handled
+     * @throws PelopsException if an error occurs
+     */
+    public int getIndexedColumns(String colParent, IndexClause indexClause, SlicePredicate colPredicate, ConsistencyLevel cLevel, IRowHandler<Column> handler) throws PelopsException {
+        return handlePages(newKeySlicePager(newColumnParent(colParent), indexClause, colPredicate, cLevel), indexClause.getCount(), COLUMN, handler);
+    }
+
     /**
      * Retrieve all columns from a range of indexed rows using its secondary index.
      * The method returns a map from the keys of indexed rows in the specified range to lists of columns from the rows. The map
@@ -1908,7 +2654,7 @@ public class Selector extends Operand {
             public List<KeySlice> execute(IThriftPool.IPooledConnection conn) throws Exception {
                 return conn.getAPI().get_indexed_slices(colParent, indexClause, colPredicate, cLevel);
             }
-        });
+        }, colParent.getColumn_family());
     }
 
     /**
@@ -2335,6 +3081,28 @@ public class Selector extends Operand {
         return getColumnTimestamp(columns, fromUTF8(colName));
     }
 
+    /**
+     * Create an indexed view of a list of columns, for reading many named columns out of a wide row.  Each of the
+     * <code>getColumnValue</code>, <code>columnExists</code> and <code>getColumnTimestamp</code> helpers scans the
+     * list, whereas the view finds columns using a hash index by name.
+     * @param columns                        The list of columns
+     * @return                               The indexed view
+     */
+    public static ColumnMap newColumnMap(List<Column> columns) {
+        return new ColumnMap(columns);
+    }
+
+    /**
+     * Create an indexed view of a list of columns sorted by the column family comparator, which finds columns using a
+     * binary search.
+     * @param columns                        The list of columns
+     * @param comparator                     The order of the column names e.g. {@link ColumnMap#BYTES_ORDER}
+     * @return                               The indexed view
+     */
+    public static ColumnMap newColumnMap(List<Column> columns, Comparator<ByteBuffer> comparator) {
+        return new ColumnMap(columns, comparator);
+    }
+
     /**
      * Create a batch mutation operation.
      */
@@ -2362,4 +3130,27 @@ public class Selector extends Operand {
     public static ColumnParent newColumnParent(String columnFamily) {
         return new ColumnParent(columnFamily);
     }
+
+    /**
+     * Reads the pages of a range of rows for {@link #handlePages}.
+     */
+    private interface IKeySlicePager {
+        /**
+         * Reads the next page.
+         * @param count the max number of rows in the page
+         */
+        List<KeySlice> read(int count) throws PelopsException;
+
+        /**
+         * @return true if the pages resumed from a row start with that row
+         */
+        boolean isStartInclusive();
+
+        /**
+         * Resumes the following pages from a row.
+         * @param lastKey the key of the last row of the page just read
+         * @return false if the row is the last row of the range
+         */
+        boolean resumeFrom(Bytes lastKey) throws PelopsException;
+    }
 }
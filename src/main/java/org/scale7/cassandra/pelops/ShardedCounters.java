@@ -0,0 +1,401 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.scale7.cassandra.pelops;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.CounterColumn;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+import org.scale7.cassandra.pelops.types.CompositeType;
+
+/**
+ * Spreads the increments of hot counters over several shards so that they don't all contend for a single column
+ * (and replica set).  A counter is sharded either over several rows, which spreads the load over several replica
+ * sets, or over several columns of the same row, which can be configured per column family.  Reading a counter sums
+ * its shards in a single request.
+ * <p>The row key (or column name) of shard <i>n</i> is the {@link CompositeType composite} of the counter's row key
+ * (or column name) and <i>n</i> as an int, so the shards of different counters never collide whatever their keys.
+ * This means the key validation class (or comparator) of the counter column family must be <code>BytesType</code>
+ * or <code>CompositeType(BytesType, Int32Type)</code>, and that the column family should only be accessed using the
+ * methods of this class.  The number of shards can be increased without losing the value of the counters.
+ * <pre>
+ * ShardedCounters counters = new ShardedCounters(new ShardedCounters.Policy().setShards("PageViews", 16));
+ * Mutator mutator = pool.createMutator();
+ * counters.writeCounterColumn(mutator, "PageViews", pageKey, Bytes.fromUTF8("views"), 1);
+ * mutator.execute(ConsistencyLevel.ONE);
+ * ...
+ * long views = counters.getCounterColumnValue(pool.createSelector(), "PageViews", pageKey, Bytes.fromUTF8("views"), ConsistencyLevel.ONE);
+ * </pre>
+ */
+public class ShardedCounters {
+    /**
+     * Where the shards of a counter are stored.
+     */
+    public enum ShardBy {
+        /**
+         * Each shard is stored in a different row (and so is likely to be owned by a different replica set).
+         */
+        ROWS,
+        /**
+         * Each shard is stored in a different column of the counters row.
+         */
+        COLUMNS
+    }
+
+    /**
+     * How the shard incremented by a write is chosen.
+     */
+    public enum ShardSelection {
+        /**
+         * Each thread always increments the same shard.
+         */
+        THREAD,
+        /**
+         * Successive increments are spread over the shards by hashing a sequence number.
+         */
+        HASH
+    }
+
+    private final Policy policy;
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    /**
+     * Create a new instance.
+     * @param policy the sharding config (if null the defaults are used)
+     */
+    public ShardedCounters(Policy policy) {
+        this.policy = policy != null ? policy : new Policy();
+    }
+
+    /**
+     * Increment a sharded counter column.
+     * @param mutator                   The mutator the increment is added to
+     * @param colFamily                 The column family
+     * @param rowKey                    The key of the counters row
+     * @param colName                   The name of the counter column
+     * @param value                     The value to add to the counter (may be negative)
+     * @return the mutator
+     */
+    public Mutator writeCounterColumn(Mutator mutator, String colFamily, Bytes rowKey, Bytes colName, long value) {
+        int shard = selectShard(policy.getShards(colFamily));
+        if (policy.getShardBy(colFamily) == ShardBy.ROWS)
+            return mutator.writeCounterColumn(colFamily, getShardKey(rowKey, shard), colName, value);
+        else
+            return mutator.writeCounterColumn(colFamily, rowKey, getShardKey(colName, shard), value);
+    }
+
+    /**
+     * Increment a sharded counter column.
+     * @param mutator                   The mutator the increment is added to
+     * @param colFamily                 The column family
+     * @param rowKey                    The key of the counters row
+     * @param colName                   The name of the counter column
+     * @param value                     The value to add to the counter (may be negative)
+     * @return the mutator
+     */
+    public Mutator writeCounterColumn(Mutator mutator, String colFamily, String rowKey, String colName, long value) {
+        return writeCounterColumn(mutator, colFamily, Bytes.fromUTF8(rowKey), Bytes.fromUTF8(colName), value);
+    }
+
+    /**
+     * Retrieves the value of a sharded counter column by summing its shards.
+     * @param selector                  The selector used to read the shards
+     * @param colFamily                 The column family
+     * @param rowKey                    The key of the counters row
+     * @param colName                   The name of the counter column
+     * @param cLevel                    The Cassandra consistency level with which to perform the operation
+     * @return the value of the counter (0 if it has never been incremented)
+     * @throws PelopsException if an error occurs
+     */
+    public long getCounterColumnValue(Selector selector, String colFamily, Bytes rowKey, Bytes colName, ConsistencyLevel cLevel) throws PelopsException {
+        Long value = getCounterColumnValues(selector, colFamily, rowKey, Collections.singletonList(colName), cLevel).get(colName);
+        return value != null ? value : 0;
+    }
+
+    /**
+     * Retrieves the values of several sharded counter columns of a row by summing their shards.
+     * @param selector                  The selector used to read the shards
+     * @param colFamily                 The column family
+     * @param rowKey                    The key of the counters row
+     * @param colNames                  The names of the counter columns
+     * @param cLevel                    The Cassandra consistency level with which to perform the operation
+     * @return the value of each counter by column name (in the order requested, 0 for counters that have never been
+     * incremented)
+     * @throws PelopsException if an error occurs
+     */
+    public Map<Bytes, Long> getCounterColumnValues(Selector selector, String colFamily, Bytes rowKey, List<Bytes> colNames, ConsistencyLevel cLevel) throws PelopsException {
+        int shards = policy.getShards(colFamily);
+        Map<Bytes, Long> values = new LinkedHashMap<Bytes, Long>();
+        for (Bytes colName : colNames)
+            values.put(colName, 0L);
+
+        if (policy.getShardBy(colFamily) == ShardBy.ROWS) {
+            List<Bytes> shardKeys = new ArrayList<Bytes>(shards);
+            for (int shard = 0; shard < shards; shard++)
+                shardKeys.add(getShardKey(rowKey, shard));
+
+            Map<Bytes, List<CounterColumn>> rows = selector.getCounterColumnsFromRows(colFamily, shardKeys,
+                    Selector.newColumnsPredicate(colNames.toArray(new Bytes[colNames.size()])), cLevel);
+            for (List<CounterColumn> columns : rows.values()) {
+                for (CounterColumn column : columns)
+                    add(values, Bytes.fromByteBuffer(column.bufferForName()), column.getValue());
+            }
+        } else {
+            Map<Bytes, Bytes> shardColNames = new HashMap<Bytes, Bytes>();
+            for (Bytes colName : colNames) {
+                for (int shard = 0; shard < shards; shard++)
+                    shardColNames.put(getShardKey(colName, shard), colName);
+            }
+
+            List<CounterColumn> columns = selector.getCounterColumnsFromRow(colFamily, rowKey,
+                    Selector.newColumnsPredicate(shardColNames.keySet().toArray(new Bytes[shardColNames.size()])), cLevel);
+            for (CounterColumn column : columns) {
+                Bytes colName = shardColNames.get(Bytes.fromByteBuffer(column.bufferForName()));
+                if (colName != null)
+                    add(values, colName, column.getValue());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Retrieves the value of the same sharded counter column of several rows by summing their shards.
+     * @param selector                  The selector used to read the shards
+     * @param colFamily                 The column family
+     * @param rowKeys                   The keys of the counters rows
+     * @param colName                   The name of the counter column
+     * @param cLevel                    The Cassandra consistency level with which to perform the operation
+     * @return the value of the counter by row key (in the order requested, 0 for counters that have never been
+     * incremented)
+     * @throws PelopsException if an error occurs
+     */
+    public Map<Bytes, Long> getCounterColumnValues(Selector selector, String colFamily, List<Bytes> rowKeys, Bytes colName, ConsistencyLevel cLevel) throws PelopsException {
+        int shards = policy.getShards(colFamily);
+        Map<Bytes, Long> values = new LinkedHashMap<Bytes, Long>();
+        for (Bytes rowKey : rowKeys)
+            values.put(rowKey, 0L);
+
+        if (policy.getShardBy(colFamily) == ShardBy.ROWS) {
+            Map<Bytes, Bytes> shardKeys = new LinkedHashMap<Bytes, Bytes>();
+            for (Bytes rowKey : rowKeys) {
+                for (int shard = 0; shard < shards; shard++)
+                    shardKeys.put(getShardKey(rowKey, shard), rowKey);
+            }
+
+            Map<Bytes, List<CounterColumn>> rows = selector.getCounterColumnsFromRows(colFamily,
+                    new ArrayList<Bytes>(shardKeys.keySet()), Selector.newColumnsPredicate(colName), cLevel);
+            for (Map.Entry<Bytes, List<CounterColumn>> row : rows.entrySet()) {
+                Bytes rowKey = shardKeys.get(row.getKey());
+                for (CounterColumn column : row.getValue())
+                    add(values, rowKey, column.getValue());
+            }
+        } else {
+            Bytes[] shardColNames = new Bytes[shards];
+            for (int shard = 0; shard < shards; shard++)
+                shardColNames[shard] = getShardKey(colName, shard);
+
+            Map<Bytes, List<CounterColumn>> rows = selector.getCounterColumnsFromRows(colFamily, rowKeys,
+                    Selector.newColumnsPredicate(shardColNames), cLevel);
+            for (Map.Entry<Bytes, List<CounterColumn>> row : rows.entrySet()) {
+                for (CounterColumn column : row.getValue())
+                    add(values, row.getKey(), column.getValue());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * The row key (or column name) of a shard, the composite of the key and the shard.
+     * @param key the row key (or column name) of the counter
+     * @param shard the shard
+     * @return the key of the shard
+     */
+    public static Bytes getShardKey(Bytes key, int shard) {
+        return CompositeType.Builder.newBuilder(2).addByteArray(key.toByteArray()).addInt(shard).build();
+    }
+
+    private int selectShard(int shards) {
+        if (shards <= 1)
+            return 0;
+
+        int hash;
+        if (policy.getShardSelection() == ShardSelection.THREAD) {
+            long id = Thread.currentThread().getId();
+            hash = (int) (id ^ (id >>> 32));
+        } else {
+            hash = sequence.incrementAndGet();
+        }
+        // spread the bits so that consecutive values don't map to consecutive shards
+        hash *= 0x9E3779B9;
+        return (hash >>> 1) % shards;
+    }
+
+    private static void add(Map<Bytes, Long> values, Bytes key, long value) {
+        Long current = values.get(key);
+        values.put(key, current != null ? current + value : value);
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * The sharding configuration.
+     */
+    public static class Policy {
+        private int defaultShards = 8;
+        private final Map<String, Integer> shardsByColumnFamily = new ConcurrentHashMap<String, Integer>();
+        private ShardBy defaultShardBy = ShardBy.ROWS;
+        private final Map<String, ShardBy> shardByColumnFamily = new ConcurrentHashMap<String, ShardBy>();
+        private ShardSelection shardSelection = ShardSelection.THREAD;
+
+        public Policy() {
+        }
+
+        /**
+         * The number of shards of the counters in a column family.
+         * @param colFamily the column family
+         * @return the number of shards
+         */
+        public int getShards(String colFamily) {
+            Integer shards = shardsByColumnFamily.get(colFamily);
+            return shards != null ? shards : defaultShards;
+        }
+
+        /**
+         * The number of shards of the counters in a column family.  Increasing the number of shards is safe, but
+         * decreasing it hides the values of the removed shards.
+         * @param colFamily the column family
+         * @param shards the number of shards
+         * @return this policy
+         */
+        public Policy setShards(String colFamily, int shards) {
+            if (shards < 1) throw new IllegalArgumentException("shards must be at least 1");
+            shardsByColumnFamily.put(colFamily, shards);
+            return this;
+        }
+
+        /**
+         * @see #setDefaultShards(int)
+         */
+        public int getDefaultShards() {
+            return defaultShards;
+        }
+
+        /**
+         * The number of shards of the counters in column families that haven't been {@link #setShards configured}.
+         * <p>Note: defaults to 8.
+         * @param defaultShards the number of shards
+         * @return this policy
+         */
+        public Policy setDefaultShards(int defaultShards) {
+            if (defaultShards < 1) throw new IllegalArgumentException("defaultShards must be at least 1");
+            this.defaultShards = defaultShards;
+            return this;
+        }
+
+        /**
+         * Where the shards of the counters in a column family are stored.
+         * @param colFamily the column family
+         * @return rows or columns
+         */
+        public ShardBy getShardBy(String colFamily) {
+            ShardBy shardBy = shardByColumnFamily.get(colFamily);
+            return shardBy != null ? shardBy : defaultShardBy;
+        }
+
+        /**
+         * Where the shards of the counters in a column family are stored.  Changing it hides the values of the
+         * existing counters.
+         * @param colFamily the column family
+         * @param shardBy rows or columns
+         * @return this policy
+         */
+        public Policy setShardBy(String colFamily, ShardBy shardBy) {
+            if (shardBy == null) throw new IllegalArgumentException("shardBy is a required argument");
+            shardByColumnFamily.put(colFamily, shardBy);
+            return this;
+        }
+
+        /**
+         * @see #setDefaultShardBy(ShardBy)
+         */
+        public ShardBy getDefaultShardBy() {
+            return defaultShardBy;
+        }
+
+        /**
+         * Where the shards of the counters in column families that haven't been {@link #setShardBy configured} are
+         * stored.
+         * <p>Note: defaults to {@link ShardBy#ROWS}.
+         * @param defaultShardBy rows or columns
+         * @return this policy
+         */
+        public Policy setDefaultShardBy(ShardBy defaultShardBy) {
+            if (defaultShardBy == null) throw new IllegalArgumentException("defaultShardBy is a required argument");
+            this.defaultShardBy = defaultShardBy;
+            return this;
+        }
+
+        /**
+         * @see #setShardSelection(ShardSelection)
+         */
+        public ShardSelection getShardSelection() {
+            return shardSelection;
+        }
+
+        /**
+         * How the shard incremented by a write is chosen.
+         * <p>Note: defaults to {@link ShardSelection#THREAD}.
+         * @param shardSelection the selection
+         * @return this policy
+         */
+        public Policy setShardSelection(ShardSelection shardSelection) {
+            this.shardSelection = shardSelection;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("Config");
+            sb.append("{defaultShards=").append(defaultShards);
+            sb.append(", shardsByColumnFamily=").append(shardsByColumnFamily);
+            sb.append(", defaultShardBy=").append(defaultShardBy);
+            sb.append(", shardByColumnFamily=").append(shardByColumnFamily);
+            sb.append(", shardSelection=").append(shardSelection);
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,561 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.scale7.cassandra.pelops;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.CounterColumn;
+import org.apache.cassandra.thrift.SuperColumn;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+import org.scale7.portability.SystemProxy;
+import org.slf4j.Logger;
+
+/**
+ * Holds the rows of a query result that may not fit in the heap.  Rows are kept on the heap until their (estimated)
+ * size reaches {@link Policy#getMaxHeapBytes()}, the following rows are serialized to memory mapped temporary files
+ * of {@link Policy#getSegmentSize()} bytes.  The rows can be looked up by key and iterated over (in the order they
+ * were added) any number of times, whichever tier they are held in.
+ * <p>The buffer is a row handler, so it can be filled directly by the {@link Selector} methods that take a handler
+ * (range and index queries) and by {@link ParallelRangeScanner}, multiget results can be added using
+ * {@link #putAll(Map)}.  Buffers of columns, super columns and counter columns are created using
+ * {@link #newColumnBuffer(Policy)}, {@link #newSuperColumnBuffer(Policy)} and {@link #newCounterColumnBuffer(Policy)}:
+ * <pre>
+ * SpillingRowBuffer&lt;Column&gt; rows = SpillingRowBuffer.newColumnBuffer(new SpillingRowBuffer.Policy());
+ * try {
+ *     selector.getColumnsFromRows("Users", keyRange, predicate, ConsistencyLevel.ONE, rows);
+ *     for (Map.Entry&lt;Bytes, List&lt;Column&gt;&gt; row : rows) {
+ *         ...
+ *     }
+ * } finally {
+ *     rows.close();
+ * }
+ * </pre>
+ * <p>Rows can be added from several threads, but the buffer must not be modified while it is iterated over.  The
+ * buffer must be {@link #close() closed} to delete its temporary files.
+ */
+public class SpillingRowBuffer<T> implements IRowHandler<T>, Iterable<Map.Entry<Bytes, List<T>>> {
+    private static final Logger logger = SystemProxy.getLoggerFromFactory(SpillingRowBuffer.class);
+
+    private static final String FILE_PREFIX = "pelops-spill-";
+    private static final String FILE_SUFFIX = ".tmp";
+
+    private static final byte FLAG_VALUE = 1;
+    private static final byte FLAG_TIMESTAMP = 2;
+    private static final byte FLAG_TTL = 4;
+
+    private final Serializer<T> serializer;
+    private final Policy policy;
+
+    private final LinkedHashMap<Bytes, List<T>> heapRows = new LinkedHashMap<Bytes, List<T>>();
+    // the position of each spilled row: the index of its segment in the upper 32 bits and its offset in the lower 32
+    private final LinkedHashMap<Bytes, Long> spilledRows = new LinkedHashMap<Bytes, Long>();
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private long heapBytes;
+    private long spilledBytes;
+    private boolean closed = false;
+
+    /**
+     * Create a new buffer.
+     * @param serializer serializes the columns of the spilled rows, one of {@link Serializer#COLUMN},
+     * {@link Serializer#SUPER_COLUMN} or {@link Serializer#COUNTER_COLUMN}
+     * @param policy the buffer config (if null the defaults are used)
+     */
+    public SpillingRowBuffer(Serializer<T> serializer, Policy policy) {
+        if (serializer == null) throw new IllegalArgumentException("serializer is a required argument");
+        this.serializer = serializer;
+        this.policy = policy != null ? policy : new Policy();
+    }
+
+    /**
+     * Create a new buffer of rows of columns.
+     * @param policy the buffer config (if null the defaults are used)
+     * @return the buffer
+     */
+    public static SpillingRowBuffer<Column> newColumnBuffer(Policy policy) {
+        return new SpillingRowBuffer<Column>(Serializer.COLUMN, policy);
+    }
+
+    /**
+     * Create a new buffer of rows of super columns.
+     * @param policy the buffer config (if null the defaults are used)
+     * @return the buffer
+     */
+    public static SpillingRowBuffer<SuperColumn> newSuperColumnBuffer(Policy policy) {
+        return new SpillingRowBuffer<SuperColumn>(Serializer.SUPER_COLUMN, policy);
+    }
+
+    /**
+     * Create a new buffer of rows of counter columns.
+     * @param policy the buffer config (if null the defaults are used)
+     * @return the buffer
+     */
+    public static SpillingRowBuffer<CounterColumn> newCounterColumnBuffer(Policy policy) {
+        return new SpillingRowBuffer<CounterColumn>(Serializer.COUNTER_COLUMN, policy);
+    }
+
+    /**
+     * Adds a row, see {@link #put(Bytes, List)}.
+     */
+    @Override
+    public void handle(Bytes rowKey, List<T> columns) {
+        put(rowKey, columns);
+    }
+
+    /**
+     * Adds a row, replacing the columns of the row with the same key (if any).
+     * @param rowKey the row key
+     * @param columns the columns of the row
+     * @throws PelopsException if the row couldn't be spilled to disk
+     */
+    public synchronized void put(Bytes rowKey, List<T> columns) throws PelopsException {
+        if (closed) throw new IllegalStateException("The buffer has been closed");
+
+        long size = estimateSize(rowKey, columns);
+        List<T> previous = heapRows.get(rowKey);
+        if (previous != null) {
+            heapRows.put(rowKey, columns);
+            heapBytes += size - estimateSize(rowKey, previous);
+            return;
+        }
+
+        // once rows have been spilled the following rows are spilled too, which preserves the order of the rows
+        if (spilledRows.isEmpty() && heapBytes + size <= policy.getMaxHeapBytes()) {
+            heapRows.put(rowKey, columns);
+            heapBytes += size;
+            return;
+        }
+
+        try {
+            spilledRows.put(rowKey, write(rowKey, columns));
+        } catch (IOException e) {
+            throw new PelopsException("Failed to spill row to disk", e);
+        }
+    }
+
+    /**
+     * Adds rows, see {@link #put(Bytes, List)}.
+     * @param rows the rows
+     */
+    public void putAll(Map<Bytes, List<T>> rows) throws PelopsException {
+        for (Map.Entry<Bytes, List<T>> row : rows.entrySet())
+            put(row.getKey(), row.getValue());
+    }
+
+    /**
+     * Looks a row up.
+     * @param rowKey the row key
+     * @return the columns of the row or null if the buffer doesn't hold the row
+     */
+    public synchronized List<T> get(Bytes rowKey) {
+        if (closed) throw new IllegalStateException("The buffer has been closed");
+
+        List<T> columns = heapRows.get(rowKey);
+        if (columns != null)
+            return columns;
+
+        Long position = spilledRows.get(rowKey);
+        return position != null ? read(position).getValue() : null;
+    }
+
+    public synchronized boolean containsKey(Bytes rowKey) {
+        return heapRows.containsKey(rowKey) || spilledRows.containsKey(rowKey);
+    }
+
+    /**
+     * The number of rows held by the buffer.
+     * @return the number of rows
+     */
+    public synchronized int size() {
+        return heapRows.size() + spilledRows.size();
+    }
+
+    /**
+     * The number of rows that have been spilled to disk.
+     * @return the number of rows
+     */
+    public synchronized int getSpilledRowCount() {
+        return spilledRows.size();
+    }
+
+    /**
+     * The (estimated) size of the rows held on the heap.
+     * @return the number of bytes
+     */
+    public synchronized long getHeapBytes() {
+        return heapBytes;
+    }
+
+    /**
+     * The size of the serialized rows written to disk (including the rows that have since been replaced).
+     * @return the number of bytes
+     */
+    public synchronized long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Iterates over the rows in the order they were added.  Spilled rows are read from disk as the iteration reaches
+     * them.
+     * @return the iterator
+     */
+    @Override
+    public synchronized Iterator<Map.Entry<Bytes, List<T>>> iterator() {
+        if (closed) throw new IllegalStateException("The buffer has been closed");
+
+        final Iterator<Map.Entry<Bytes, List<T>>> heapIterator = heapRows.entrySet().iterator();
+        final Iterator<Long> spilledIterator = spilledRows.values().iterator();
+        return new Iterator<Map.Entry<Bytes, List<T>>>() {
+            @Override
+            public boolean hasNext() {
+                return heapIterator.hasNext() || spilledIterator.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Bytes, List<T>> next() {
+                if (heapIterator.hasNext())
+                    return heapIterator.next();
+                return read(spilledIterator.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Releases the rows and deletes the temporary files.
+     */
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+
+        heapRows.clear();
+        spilledRows.clear();
+        for (Segment segment : segments) {
+            segment.close();
+            if (!segment.file.delete())
+                logger.warn("Failed to delete spill file '{}'", segment.file);
+        }
+        segments.clear();
+    }
+
+    private long estimateSize(Bytes rowKey, List<T> columns) {
+        long size = rowKey.length();
+        for (T column : columns)
+            size += serializer.estimateSize(column);
+        return size;
+    }
+
+    private long write(Bytes rowKey, List<T> columns) throws IOException {
+        ByteBuffer key = rowKey.getBytes();
+        int size = 8 + key.remaining();
+        for (T column : columns)
+            size += serializer.serializedSize(column);
+
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.buffer.capacity() - segment.writePosition < size) {
+            File file = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, policy.getDirectory());
+            file.deleteOnExit();
+            segment = new Segment(file, Math.max(policy.getSegmentSize(), size));
+            segments.add(segment);
+            logger.debug("Spilling rows to '{}'", file);
+        }
+
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = segment.writePosition;
+        buffer.position(offset);
+        putBytes(buffer, key);
+        buffer.putInt(columns.size());
+        for (T column : columns)
+            serializer.write(buffer, column);
+        segment.writePosition = buffer.position();
+        spilledBytes += size;
+        return ((long) (segments.size() - 1) << 32) | offset;
+    }
+
+    private Map.Entry<Bytes, List<T>> read(long position) {
+        ByteBuffer buffer = segments.get((int) (position >>> 32)).buffer.duplicate();
+        buffer.position((int) position);
+        Bytes rowKey = Bytes.fromByteBuffer(getBytes(buffer));
+        int count = buffer.getInt();
+        List<T> columns = new ArrayList<T>(count);
+        for (int i = 0; i < count; i++)
+            columns.add(serializer.read(buffer));
+        return new AbstractMap.SimpleImmutableEntry<Bytes, List<T>>(rowKey, columns);
+    }
+
+    private static int remaining(ByteBuffer buffer) {
+        return buffer != null ? buffer.remaining() : 0;
+    }
+
+    private static void putBytes(ByteBuffer buffer, ByteBuffer bytes) {
+        if (bytes == null) {
+            buffer.putInt(0);
+        } else {
+            buffer.putInt(bytes.remaining());
+            buffer.put(bytes.duplicate());
+        }
+    }
+
+    private static ByteBuffer getBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Serializes the columns of the rows spilled to disk.
+     */
+    public static abstract class Serializer<T> {
+        public static final Serializer<Column> COLUMN = new Serializer<Column>() {
+            @Override
+            long estimateSize(Column column) {
+                return Mutator.estimateSize(column);
+            }
+
+            @Override
+            int serializedSize(Column column) {
+                return 21 + remaining(column.name) + remaining(column.value);
+            }
+
+            @Override
+            void write(ByteBuffer buffer, Column column) {
+                putBytes(buffer, column.name);
+                byte flags = 0;
+                if (column.value != null) flags |= FLAG_VALUE;
+                if (column.isSetTimestamp()) flags |= FLAG_TIMESTAMP;
+                if (column.isSetTtl()) flags |= FLAG_TTL;
+                buffer.put(flags);
+                if (column.value != null)
+                    putBytes(buffer, column.value);
+                buffer.putLong(column.timestamp);
+                buffer.putInt(column.ttl);
+            }
+
+            @Override
+            Column read(ByteBuffer buffer) {
+                Column column = new Column(getBytes(buffer));
+                byte flags = buffer.get();
+                if ((flags & FLAG_VALUE) != 0)
+                    column.setValue(getBytes(buffer));
+                long timestamp = buffer.getLong();
+                int ttl = buffer.getInt();
+                if ((flags & FLAG_TIMESTAMP) != 0)
+                    column.setTimestamp(timestamp);
+                if ((flags & FLAG_TTL) != 0)
+                    column.setTtl(ttl);
+                return column;
+            }
+        };
+
+        public static final Serializer<SuperColumn> SUPER_COLUMN = new Serializer<SuperColumn>() {
+            @Override
+            long estimateSize(SuperColumn superColumn) {
+                return Mutator.estimateSize(superColumn);
+            }
+
+            @Override
+            int serializedSize(SuperColumn superColumn) {
+                int size = 8 + remaining(superColumn.name);
+                for (Column column : columnsOf(superColumn))
+                    size += COLUMN.serializedSize(column);
+                return size;
+            }
+
+            @Override
+            void write(ByteBuffer buffer, SuperColumn superColumn) {
+                List<Column> columns = columnsOf(superColumn);
+                putBytes(buffer, superColumn.name);
+                buffer.putInt(columns.size());
+                for (Column column : columns)
+                    COLUMN.write(buffer, column);
+            }
+
+            @Override
+            SuperColumn read(ByteBuffer buffer) {
+                ByteBuffer name = getBytes(buffer);
+                int count = buffer.getInt();
+                List<Column> columns = new ArrayList<Column>(count);
+                for (int i = 0; i < count; i++)
+                    columns.add(COLUMN.read(buffer));
+                return new SuperColumn(name, columns);
+            }
+        };
+
+        public static final Serializer<CounterColumn> COUNTER_COLUMN = new Serializer<CounterColumn>() {
+            @Override
+            long estimateSize(CounterColumn column) {
+                return Mutator.estimateSize(column);
+            }
+
+            @Override
+            int serializedSize(CounterColumn column) {
+                return 12 + remaining(column.name);
+            }
+
+            @Override
+            void write(ByteBuffer buffer, CounterColumn column) {
+                putBytes(buffer, column.name);
+                buffer.putLong(column.value);
+            }
+
+            @Override
+            CounterColumn read(ByteBuffer buffer) {
+                return new CounterColumn(getBytes(buffer), buffer.getLong());
+            }
+        };
+
+        private Serializer() {
+        }
+
+        private static List<Column> columnsOf(SuperColumn superColumn) {
+            return superColumn.columns != null ? superColumn.columns : Collections.<Column>emptyList();
+        }
+
+        /**
+         * The (estimated) size of the column on the heap.
+         */
+        abstract long estimateSize(T column);
+
+        /**
+         * The number of bytes written by {@link #write(ByteBuffer, Object)}.
+         */
+        abstract int serializedSize(T column);
+
+        abstract void write(ByteBuffer buffer, T column);
+
+        abstract T read(ByteBuffer buffer);
+    }
+
+    /**
+     * A memory mapped temporary file holding spilled rows.
+     */
+    private static class Segment {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+
+        private Segment(File file, int size) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            raf.setLength(size);
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        private void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close spill file '" + file + "'", e);
+            }
+        }
+    }
+
+    /**
+     * The buffer configuration.
+     */
+    public static class Policy {
+        private long maxHeapBytes = 64 * 1024 * 1024;
+        private int segmentSize = 64 * 1024 * 1024;
+        private File directory = null;
+
+        public Policy() {
+        }
+
+        /**
+         * @see #setMaxHeapBytes(long)
+         */
+        public long getMaxHeapBytes() {
+            return maxHeapBytes;
+        }
+
+        /**
+         * The (estimated) size of the rows held on the heap, the following rows are spilled to disk.
+         * @param maxHeapBytes the number of bytes
+         */
+        public void setMaxHeapBytes(long maxHeapBytes) {
+            this.maxHeapBytes = maxHeapBytes;
+        }
+
+        /**
+         * @see #setSegmentSize(int)
+         */
+        public int getSegmentSize() {
+            return segmentSize;
+        }
+
+        /**
+         * The size of each temporary file rows are spilled to (larger rows get a file of their own).
+         * @param segmentSize the number of bytes
+         */
+        public void setSegmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+        }
+
+        /**
+         * @see #setDirectory(File)
+         */
+        public File getDirectory() {
+            return directory;
+        }
+
+        /**
+         * The directory the temporary files are created in.
+         * @param directory the directory (null to use the default temporary directory)
+         */
+        public void setDirectory(File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("Config");
+            sb.append("{maxHeapBytes=").append(maxHeapBytes);
+            sb.append(", segmentSize=").append(segmentSize);
+            sb.append(", directory=").append(directory);
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+}
@@ -26,6 +26,7 @@ package org.scale7.cassandra.pelops;
 
 import java.util.List;
 
+import org.apache.cassandra.thrift.Column;
 import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.thrift.SuperColumn;
 
@@ -51,4 +52,13 @@ public class SuperColumnIterator extends PageOfIterator<SuperColumn> {
     protected Bytes nextStartBeyondName(List<SuperColumn> batch) {
         return batch.isEmpty() ? null : Bytes.fromByteArray(batch.get(batch.size() - 1).getName());
     }
+
+    @Override
+    protected long estimateSize(SuperColumn superColumn) {
+        long size = superColumn.name != null ? superColumn.name.remaining() : 0;
+        if (superColumn.columns != null)
+            for (Column column : superColumn.columns)
+                size += Mutator.estimateSize(column);
+        return size;
+    }
 }
@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.scale7.cassandra.pelops;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.TokenRange;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+
+/**
+ * Pages through the rows of a single token range, one get_range_slices call per page, against a node that holds a
+ * replica of the range.  Shared by {@link TokenRangeRowIterator} and {@link ParallelRangeScanner}.
+ * <p>The start token of a key range is exclusive, so each page starts after the token of the last row of the previous
+ * page.  A page that fails doesn't move the pager, so calling {@link #nextPage()} again retries it.
+ */
+class TokenRangePager {
+    private final Selector selector;
+    private final ColumnParent columnParent;
+    private final SlicePredicate colPredicate;
+    private final int pageSize;
+    private final ConsistencyLevel cLevel;
+    private final TokenRing.Partitioner partitioner;
+    private final TokenRange tokenRange;
+    private final Set<String> avoidNodesHint;
+
+    private String startToken;
+    private boolean isMoreInRange = true;
+
+    /**
+     * Create a pager.
+     * @param endpoints all the endpoints of the ring, the ones that don't hold a replica of the range are avoided
+     */
+    TokenRangePager(Selector selector, ColumnParent columnParent, SlicePredicate colPredicate, int pageSize, ConsistencyLevel cLevel,
+                    TokenRing.Partitioner partitioner, TokenRange tokenRange, Set<String> endpoints) {
+        if (pageSize < 1) throw new IllegalArgumentException("pageSize must be at least 1");
+        this.selector = selector;
+        this.columnParent = columnParent;
+        this.colPredicate = colPredicate;
+        this.pageSize = pageSize;
+        this.cLevel = cLevel;
+        this.partitioner = partitioner;
+        this.tokenRange = tokenRange;
+        this.avoidNodesHint = getAvoidNodesHint(endpoints, tokenRange);
+        this.startToken = tokenRange.getStart_token();
+    }
+
+    /**
+     * The endpoints of the ring that don't hold a replica of the range.
+     * @return the endpoints or null if the replicas of the range aren't known
+     */
+    static Set<String> getAvoidNodesHint(Set<String> endpoints, TokenRange tokenRange) {
+        if (endpoints == null || tokenRange.getEndpoints() == null)
+            return null;
+        Set<String> avoidNodesHint = new HashSet<String>(endpoints);
+        avoidNodesHint.removeAll(tokenRange.getEndpoints());
+        return avoidNodesHint;
+    }
+
+    /**
+     * All the endpoints of the ranges.
+     */
+    static Set<String> getEndpoints(List<TokenRange> tokenRanges) {
+        Set<String> endpoints = new HashSet<String>();
+        for (TokenRange tokenRange : tokenRanges)
+            if (tokenRange.getEndpoints() != null)
+                endpoints.addAll(tokenRange.getEndpoints());
+        return endpoints;
+    }
+
+    /**
+     * Returns true if the range may have more rows.
+     */
+    boolean isMoreInRange() {
+        return isMoreInRange;
+    }
+
+    /**
+     * The token the next page starts after.
+     */
+    String getStartToken() {
+        return startToken;
+    }
+
+    TokenRange getTokenRange() {
+        return tokenRange;
+    }
+
+    /**
+     * Fetches the next page of rows.
+     * @return the rows (empty once the range has been exhausted)
+     * @throws PelopsException if the page couldn't be fetched, in which case calling the method again retries it
+     */
+    List<KeySlice> nextPage() throws PelopsException {
+        if (!isMoreInRange)
+            return Collections.emptyList();
+
+        KeyRange keyRange = new KeyRange(pageSize);
+        keyRange.setStart_token(startToken);
+        keyRange.setEnd_token(tokenRange.getEnd_token());
+
+        List<KeySlice> page = selector.getKeySlices(columnParent, keyRange, colPredicate, cLevel, avoidNodesHint);
+        isMoreInRange = false;
+        if (page.size() >= pageSize) {
+            // the start token is exclusive, so the next page starts after the last row of this page
+            String lastToken = partitioner.getToken(page.get(page.size() - 1).bufferForKey()).toString();
+            if (!lastToken.equals(tokenRange.getEnd_token())) {
+                startToken = lastToken;
+                isMoreInRange = true;
+            }
+        }
+        return page;
+    }
+}
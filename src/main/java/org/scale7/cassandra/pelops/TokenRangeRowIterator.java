@@ -0,0 +1,163 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.scale7.cassandra.pelops;
+
+import static org.scale7.cassandra.pelops.Bytes.fromByteBuffer;
+import static org.scale7.cassandra.pelops.ColumnOrSuperColumnHelper.COLUMN;
+import static org.scale7.cassandra.pelops.ColumnOrSuperColumnHelper.transform;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.TokenRange;
+
+/**
+ * Encapsulates the logic required to iterate over the rows of a set of token ranges, typically obtained from
+ * {@link Selector#getTokenRangeSplits(String, int)}.  The ranges are iterated over one after the other and each
+ * range is paged through lazily, one page of <code>pageSize</code> rows at a time, against a node that holds a replica
+ * of the range.
+ * <p>The iteration can be divided between several threads: {@link #trySplit()} hands half of the ranges that haven't
+ * been started yet over to a new iterator, which can be consumed concurrently with this one.  Splitting repeatedly
+ * until it returns null yields one iterator per range.
+ * <pre>
+ * TokenRangeRowIterator rows = selector.iterateColumnsFromTokenRanges("Users", selector.getTokenRangeSplits("Users", 65536),
+ *         Selector.newColumnsPredicateAll(false), 1000, ConsistencyLevel.ONE);
+ * List&lt;TokenRangeRowIterator&gt; parts = new ArrayList&lt;TokenRangeRowIterator&gt;();
+ * parts.add(rows);
+ * for (int i = 0; i &lt; parts.size() &amp;&amp; parts.size() &lt; 8; i++) {
+ *     TokenRangeRowIterator part = parts.get(i).trySplit();
+ *     if (part != null) parts.add(part);
+ * }
+ * // consume each part from its own thread
+ * </pre>
+ * <p>Note: the iterator doesn't hold a connection between pages, so it doesn't need to be closed when the iteration
+ * is abandoned.
+ */
+public class TokenRangeRowIterator implements Iterator<Map.Entry<Bytes, List<Column>>> {
+    private final Selector selector;
+    private final ColumnParent columnParent;
+    private final SlicePredicate colPredicate;
+    private final int pageSize;
+    private final ConsistencyLevel cLevel;
+    private final TokenRing.Partitioner partitioner;
+    private final Set<String> endpoints;
+
+    private final LinkedList<TokenRange> pendingRanges;
+    private TokenRangePager currentRange;
+    private Iterator<KeySlice> currentPageIterator;
+
+    TokenRangeRowIterator(Selector selector, String columnFamily, List<TokenRange> tokenRanges, SlicePredicate colPredicate,
+                          int pageSize, ConsistencyLevel cLevel, TokenRing.Partitioner partitioner) {
+        this(selector, new ColumnParent(columnFamily), new LinkedList<TokenRange>(tokenRanges), colPredicate, pageSize, cLevel, partitioner, TokenRangePager.getEndpoints(tokenRanges));
+    }
+
+    private TokenRangeRowIterator(Selector selector, ColumnParent columnParent, LinkedList<TokenRange> pendingRanges, SlicePredicate colPredicate,
+                                  int pageSize, ConsistencyLevel cLevel, TokenRing.Partitioner partitioner, Set<String> endpoints) {
+        if (pageSize < 1) throw new IllegalArgumentException("pageSize must be at least 1");
+        this.selector = selector;
+        this.columnParent = columnParent;
+        this.pendingRanges = pendingRanges;
+        this.colPredicate = colPredicate;
+        this.pageSize = pageSize;
+        this.cLevel = cLevel;
+        this.partitioner = partitioner;
+        this.endpoints = endpoints;
+    }
+
+    /**
+     * Hands half of the ranges that haven't been started yet over to a new iterator.  The rows of those ranges are
+     * no longer returned by this iterator.
+     * @return the new iterator or null if fewer than two ranges haven't been started yet
+     */
+    public TokenRangeRowIterator trySplit() {
+        if (pendingRanges.size() < 2)
+            return null;
+
+        LinkedList<TokenRange> split = new LinkedList<TokenRange>();
+        for (int i = pendingRanges.size() / 2; i > 0; i--)
+            split.addFirst(pendingRanges.removeLast());
+        return new TokenRangeRowIterator(selector, columnParent, split, colPredicate, pageSize, cLevel, partitioner, endpoints);
+    }
+
+    /**
+     * The number of ranges that haven't been started yet.
+     * @return the number of ranges
+     */
+    public int getPendingRangeCount() {
+        return pendingRanges.size();
+    }
+
+    private void fetchNextPage() {
+        if (currentRange == null || !currentRange.isMoreInRange())
+            currentRange = new TokenRangePager(selector, columnParent, colPredicate, pageSize, cLevel, partitioner, pendingRanges.removeFirst(), endpoints);
+        currentPageIterator = currentRange.nextPage().iterator();
+    }
+
+    /**
+     * Returns true if the iteration has more rows.
+     */
+    @Override
+    public boolean hasNext() {
+        while (currentPageIterator == null || !currentPageIterator.hasNext()) {
+            if ((currentRange == null || !currentRange.isMoreInRange()) && pendingRanges.isEmpty())
+                return false;
+            fetchNextPage();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next row in the iteration.
+     * @return the row key and the columns of the row that match the predicate (empty for deleted rows)
+     * @throws java.util.NoSuchElementException iteration has no more rows.
+     */
+    @Override
+    public Map.Entry<Bytes, List<Column>> next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        KeySlice row = currentPageIterator.next();
+        return new AbstractMap.SimpleImmutableEntry<Bytes, List<Column>>(fromByteBuffer(row.bufferForKey()), transform(row.getColumns(), COLUMN));
+    }
+
+    /**
+     * Not supported.
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.scale7.cassandra.pelops;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.cassandra.thrift.TokenRange;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+import org.scale7.portability.SystemProxy;
+import org.slf4j.Logger;
+
+/**
+ * An immutable snapshot of the token ring of a keyspace that maps row keys to the nodes that hold replicas of them.
+ * The token of a row key is calculated on the client using the same algorithm as the cluster's partitioner, which
+ * allows operations to be sent directly to a node that owns the data rather than via an arbitrary coordinator.
+ * <p>The snapshot isn't updated as nodes join or leave the ring, create a new instance using
+ * {@link #fetch(Cluster, String)} periodically (operations sent to a node that no longer owns the data still succeed,
+ * the node simply acts as a coordinator).
+ * <p>Cassandra reports the ring endpoints as IP addresses whereas pools identify nodes by the address they were
+ * configured with.  When the ring is {@link #fetch(Cluster, String) fetched} the endpoints are mapped back to the
+ * cluster's configured node names by resolving them, so that operations can be steered to host name configured nodes.
+ * <p>Supports the {@link #MURMUR3_PARTITIONER murmur3}, {@link #RANDOM_PARTITIONER random} and
+ * {@link #BYTE_ORDERED_PARTITIONER byte ordered} partitioners.
+ */
+public class TokenRing {
+    private static final Logger logger = SystemProxy.getLoggerFromFactory(TokenRing.class);
+
+    public static final String MURMUR3_PARTITIONER = "org.apache.cassandra.dht.Murmur3Partitioner";
+    public static final String RANDOM_PARTITIONER = "org.apache.cassandra.dht.RandomPartitioner";
+    public static final String BYTE_ORDERED_PARTITIONER = "org.apache.cassandra.dht.ByteOrderedPartitioner";
+
+    private final Partitioner partitioner;
+    private final Range[] ranges;
+    private final Set<String> endpoints;
+
+    /**
+     * Create a ring from a ring mapping.
+     * @param partitioner the class name of the partitioner used by the cluster (see {@link ClusterManager#getPartitioner()})
+     * @param tokenRanges the ring mapping of the keyspace (see {@link KeyspaceManager#getKeyspaceRingMappings(String)})
+     */
+    public TokenRing(String partitioner, List<TokenRange> tokenRanges) {
+        this(partitioner, tokenRanges, null);
+    }
+
+    /**
+     * Create a ring from a ring mapping, reporting the endpoints using the names the nodes were configured with.
+     * Endpoints that don't resolve to the same address as one of the node names are reported as is.
+     * @param partitioner the class name of the partitioner used by the cluster (see {@link ClusterManager#getPartitioner()})
+     * @param tokenRanges the ring mapping of the keyspace (see {@link KeyspaceManager#getKeyspaceRingMappings(String)})
+     * @param nodeNames the host names or addresses the pool was configured with (may be null)
+     */
+    public TokenRing(String partitioner, List<TokenRange> tokenRanges, Collection<String> nodeNames) {
+        if (tokenRanges == null || tokenRanges.isEmpty())
+            throw new IllegalArgumentException("At least one token range is required");
+
+        this.partitioner = Partitioner.forClassName(partitioner);
+
+        Map<String, String> names = resolveNodeNames(nodeNames);
+        Set<String> endpoints = new HashSet<String>();
+        this.ranges = new Range[tokenRanges.size()];
+        for (int i = 0; i < ranges.length; i++) {
+            TokenRange tokenRange = tokenRanges.get(i);
+            List<String> rangeEndpoints = toNodeNames(tokenRange.getEndpoints(), names);
+            ranges[i] = new Range(rangeEndpoints, this.partitioner.parseToken(tokenRange.getEnd_token()));
+            endpoints.addAll(rangeEndpoints);
+        }
+        // a token is owned by the first range whose end token is greater than or equal to it
+        Arrays.sort(ranges);
+        this.endpoints = Collections.unmodifiableSet(endpoints);
+    }
+
+    /**
+     * Fetches the current ring mapping of the keyspace from the cluster.
+     * @param cluster the cluster
+     * @param keyspace the keyspace
+     * @return the ring
+     * @throws PelopsException if the ring mapping couldn't be fetched
+     */
+    public static TokenRing fetch(Cluster cluster, String keyspace) throws PelopsException {
+        try {
+            String partitioner = Pelops.createClusterManager(cluster).getPartitioner();
+            List<TokenRange> tokenRanges = Pelops.createKeyspaceManager(cluster).getKeyspaceRingMappings(keyspace);
+            logger.debug("Fetched {} token ranges for keyspace '{}'", tokenRanges.size(), keyspace);
+            List<String> nodeNames = new ArrayList<String>();
+            for (Cluster.Node node : cluster.getNodes())
+                nodeNames.add(node.getAddress());
+            return new TokenRing(partitioner, tokenRanges, nodeNames);
+        } catch (PelopsException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new PelopsException("Failed to fetch the ring mapping for keyspace '" + keyspace + "'", e);
+        }
+    }
+
+    /**
+     * The nodes that hold a replica of the row, the first being the primary replica.
+     * @param rowKey the row key
+     * @return the nodes
+     */
+    public List<String> getReplicas(Bytes rowKey) {
+        return getReplicas(rowKey.getBytes());
+    }
+
+    /**
+     * The nodes that hold a replica of the row, the first being the primary replica.
+     * @param rowKey the row key
+     * @return the nodes
+     */
+    public List<String> getReplicas(ByteBuffer rowKey) {
+        return getRange(rowKey).endpoints;
+    }
+
+    /**
+     * All nodes found in the ring.
+     * @return the nodes
+     */
+    public Set<String> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Groups the row keys by the primary replica of each row.  The order of the row keys is maintained within each
+     * group.
+     * @param rowKeys the row keys
+     * @return the row keys keyed by node
+     */
+    public Map<String, List<ByteBuffer>> groupByPrimaryReplica(Iterable<ByteBuffer> rowKeys) {
+        Map<String, List<ByteBuffer>> groups = new LinkedHashMap<String, List<ByteBuffer>>();
+        for (ByteBuffer rowKey : rowKeys) {
+            String node = getReplicas(rowKey).get(0);
+            List<ByteBuffer> group = groups.get(node);
+            if (group == null) {
+                group = new ArrayList<ByteBuffer>();
+                groups.put(node, group);
+            }
+            group.add(rowKey);
+        }
+        return groups;
+    }
+
+    /**
+     * The nodes that should be avoided when an operation should be sent to one of the given nodes.
+     * @param nodes the preferred nodes
+     * @return the other nodes in the ring
+     */
+    Set<String> getEndpointsExcept(List<String> nodes) {
+        Set<String> avoidNodes = new HashSet<String>(endpoints);
+        avoidNodes.removeAll(nodes);
+        return avoidNodes;
+    }
+
+    /**
+     * Copies the ring mapping, reporting the endpoints using the names the nodes were configured with the same way as
+     * {@link #TokenRing(String, List, Collection)}.
+     * @param tokenRanges the ring mapping of the keyspace
+     * @param nodeNames the host names or addresses the pool was configured with (may be null)
+     * @return the ring mapping
+     */
+    static List<TokenRange> withNodeNames(List<TokenRange> tokenRanges, Collection<String> nodeNames) {
+        Map<String, String> names = resolveNodeNames(nodeNames);
+        if (names.isEmpty())
+            return tokenRanges;
+
+        List<TokenRange> namedRanges = new ArrayList<TokenRange>(tokenRanges.size());
+        for (TokenRange tokenRange : tokenRanges) {
+            TokenRange namedRange = new TokenRange(tokenRange);
+            if (tokenRange.getEndpoints() != null)
+                namedRange.setEndpoints(toNodeNames(tokenRange.getEndpoints(), names));
+            namedRanges.add(namedRange);
+        }
+        return namedRanges;
+    }
+
+    private static List<String> toNodeNames(List<String> endpoints, Map<String, String> names) {
+        List<String> nodeNames = new ArrayList<String>(endpoints.size());
+        for (String endpoint : endpoints) {
+            String name = names.get(endpoint);
+            nodeNames.add(name != null ? name : endpoint);
+        }
+        return nodeNames;
+    }
+
+    /**
+     * Maps the addresses each node name resolves to back to the node name.
+     */
+    private static Map<String, String> resolveNodeNames(Collection<String> nodeNames) {
+        if (nodeNames == null)
+            return Collections.emptyMap();
+
+        Map<String, String> names = new HashMap<String, String>();
+        for (String nodeName : nodeNames) {
+            try {
+                for (InetAddress address : InetAddress.getAllByName(nodeName))
+                    names.put(address.getHostAddress(), nodeName);
+            } catch (UnknownHostException e) {
+                logger.warn("Failed to resolve node '{}', operations won't be steered to it", nodeName);
+            }
+        }
+        return names;
+    }
+
+    private Range getRange(ByteBuffer rowKey) {
+        Comparable<Object> token = partitioner.getToken(rowKey);
+        // binary search for the first range with an end token >= the token
+        int low = 0;
+        int high = ranges.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (ranges[mid].endToken.compareTo(token) < 0)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        // tokens after the last end token belong to the range that wraps around the ring
+        return ranges[low < ranges.length ? low : 0];
+    }
+
+    private static class Range implements Comparable<Range> {
+        private final Comparable<Object> endToken;
+        private final List<String> endpoints;
+
+        private Range(List<String> endpoints, Comparable<Object> endToken) {
+            this.endToken = endToken;
+            this.endpoints = Collections.unmodifiableList(endpoints);
+        }
+
+        @Override
+        public int compareTo(Range range) {
+            return endToken.compareTo(range.endToken);
+        }
+    }
+
+    /**
+     * Client side implementations of the token functions of the supported partitioners.
+     */
+    @SuppressWarnings("unchecked")
+    enum Partitioner {
+        MURMUR3(MURMUR3_PARTITIONER) {
+            @Override
+            Comparable<Object> getToken(ByteBuffer key) {
+                if (key.remaining() == 0)
+                    return (Comparable) Long.MIN_VALUE;
+                long token = murmur3(key, key.position(), key.remaining(), 0)[0];
+                // Long.MIN_VALUE is reserved for the minimum token
+                return (Comparable) (token == Long.MIN_VALUE ? Long.MAX_VALUE : token);
+            }
+
+            @Override
+            Comparable<Object> parseToken(String token) {
+                return (Comparable) Long.valueOf(token);
+            }
+        },
+        RANDOM(RANDOM_PARTITIONER) {
+            @Override
+            Comparable<Object> getToken(ByteBuffer key) {
+                if (key.remaining() == 0)
+                    return (Comparable) BigInteger.ONE.negate();
+                MessageDigest digest = MD5.get();
+                digest.reset();
+                digest.update(key.duplicate());
+                return (Comparable) new BigInteger(digest.digest()).abs();
+            }
+
+            @Override
+            Comparable<Object> parseToken(String token) {
+                return (Comparable) new BigInteger(token);
+            }
+        },
+        BYTE_ORDERED(BYTE_ORDERED_PARTITIONER) {
+            @Override
+            Comparable<Object> getToken(ByteBuffer key) {
+                // lower case hex strings sort in the same order as the unsigned bytes they represent
+                StringBuilder sb = new StringBuilder(key.remaining() * 2);
+                for (int i = key.position(); i < key.limit(); i++) {
+                    int b = key.get(i) & 0xff;
+                    sb.append(HEX[b >>> 4]).append(HEX[b & 0x0f]);
+                }
+                return (Comparable) sb.toString();
+            }
+
+            @Override
+            Comparable<Object> parseToken(String token) {
+                return (Comparable) token.toLowerCase();
+            }
+        };
+
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance("MD5");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException("MD5 is not supported by the JVM", e);
+                }
+            }
+        };
+
+        private final String className;
+
+        Partitioner(String className) {
+            this.className = className;
+        }
+
+        abstract Comparable<Object> getToken(ByteBuffer key);
+
+        abstract Comparable<Object> parseToken(String token);
+
+        static Partitioner forClassName(String className) {
+            for (Partitioner partitioner : values())
+                if (partitioner.className.equals(className))
+                    return partitioner;
+            throw new IllegalArgumentException("Unsupported partitioner '" + className + "'");
+        }
+    }
+
+    /**
+     * The x64 128 bit variant of MurmurHash3 as implemented by Cassandra (including its sign extension of the
+     * trailing bytes, which must be reproduced to calculate the same tokens).
+     */
+    static long[] murmur3(ByteBuffer key, int offset, int length, long seed) {
+        final int nblocks = length >> 4; // process as 128-bit blocks
+
+        long h1 = seed;
+        long h2 = seed;
+
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+
+        for (int i = 0; i < nblocks; i++) {
+            long k1 = getBlock(key, offset, i * 2);
+            long k2 = getBlock(key, offset, i * 2 + 1);
+
+            k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        offset += nblocks * 16;
+
+        long k1 = 0;
+        long k2 = 0;
+
+        switch (length & 15) {
+            case 15: k2 ^= ((long) key.get(offset + 14)) << 48;
+            case 14: k2 ^= ((long) key.get(offset + 13)) << 40;
+            case 13: k2 ^= ((long) key.get(offset + 12)) << 32;
+            case 12: k2 ^= ((long) key.get(offset + 11)) << 24;
+            case 11: k2 ^= ((long) key.get(offset + 10)) << 16;
+            case 10: k2 ^= ((long) key.get(offset + 9)) << 8;
+            case 9: k2 ^= ((long) key.get(offset + 8));
+                k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+
+            case 8: k1 ^= ((long) key.get(offset + 7)) << 56;
+            case 7: k1 ^= ((long) key.get(offset + 6)) << 48;
+            case 6: k1 ^= ((long) key.get(offset + 5)) << 40;
+            case 5: k1 ^= ((long) key.get(offset + 4)) << 32;
+            case 4: k1 ^= ((long) key.get(offset + 3)) << 24;
+            case 3: k1 ^= ((long) key.get(offset + 2)) << 16;
+            case 2: k1 ^= ((long) key.get(offset + 1)) << 8;
+            case 1: k1 ^= ((long) key.get(offset));
+                k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+
+        h1 += h2;
+        h2 += h1;
+
+        return new long[] {h1, h2};
+    }
+
+    private static long getBlock(ByteBuffer key, int offset, int index) {
+        int blockOffset = offset + (index << 3);
+        return ((long) key.get(blockOffset) & 0xff)
+                + (((long) key.get(blockOffset + 1) & 0xff) << 8)
+                + (((long) key.get(blockOffset + 2) & 0xff) << 16)
+                + (((long) key.get(blockOffset + 3) & 0xff) << 24)
+                + (((long) key.get(blockOffset + 4) & 0xff) << 32)
+                + (((long) key.get(blockOffset + 5) & 0xff) << 40)
+                + (((long) key.get(blockOffset + 6) & 0xff) << 48)
+                + (((long) key.get(blockOffset + 7) & 0xff) << 56);
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
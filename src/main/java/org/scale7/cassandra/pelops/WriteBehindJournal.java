@@ -0,0 +1,885 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.scale7.cassandra.pelops;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.scale7.cassandra.pelops.exceptions.InvalidRequestException;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+import org.scale7.cassandra.pelops.pool.IThriftPool;
+import org.scale7.portability.SystemProxy;
+import org.slf4j.Logger;
+
+/**
+ * A durable write-behind journal for {@link Mutator} batches.  Batches {@link #append(Map, ConsistencyLevel) appended}
+ * to the journal are serialized as batch_mutate payloads into a local memory mapped log and acknowledged immediately.
+ * Background threads drain the journal by sending the batches to the pool, retrying them (with an increasing delay)
+ * until Cassandra accepts them, which allows applications to ride out Cassandra hiccups.
+ * <p>The log is split into segments of {@link Policy#getSegmentSize()} bytes, a segment is deleted once all of its
+ * batches have been sent.  Batches that were not sent before the journal was closed (or the process died) are
+ * replayed when a journal is next opened on the same directory.  Batches are sent at least once, so a batch may be
+ * sent again after a crash; this is harmless for regular columns (the writes carry their time stamps) but counter
+ * updates would be applied twice.
+ * <p>How often the log is forced to disk is controlled by the {@link SyncMode}.
+ * <pre>
+ * WriteBehindJournal journal = new WriteBehindJournal("orders", pool, new File("/var/lib/myapp/journal"), null);
+ * Mutator mutator = pool.createMutator();
+ * ...
+ * mutator.execute(ConsistencyLevel.QUORUM, journal);
+ * ...
+ * journal.close();
+ * </pre>
+ */
+public class WriteBehindJournal implements WriteBehindJournalMBean {
+    private static final Logger logger = SystemProxy.getLoggerFromFactory(WriteBehindJournal.class);
+
+    /**
+     * Controls when the journal is forced to disk.
+     */
+    public enum SyncMode {
+        /**
+         * The operating system decides when to write the journal to disk.
+         */
+        NONE,
+        /**
+         * The journal is forced to disk every {@link Policy#getSyncIntervalMillis()} milliseconds.
+         */
+        PERIODIC,
+        /**
+         * The journal is forced to disk before each append returns.
+         */
+        ALWAYS
+    }
+
+    // record layout: length (int), state (byte), appended at (long), payload checksum (int), payload
+    static final int RECORD_HEADER_SIZE = 17;
+    private static final byte STATE_PENDING = 1;
+    private static final byte STATE_SENT = 2;
+    private static final byte STATE_DROPPED = 3;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final String name;
+    private final File directory;
+    private final Policy policy;
+    private final Sender sender;
+    private volatile SyncMode syncMode;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition recordsAvailable = lock.newCondition();
+    private final Condition recordsCompleted = lock.newCondition();
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private final List<Record> recordsInFlight = new ArrayList<Record>();
+    private Segment activeSegment;
+    private long nextSegmentId;
+    private int backlogRecords;
+    private long backlogBytes;
+    private boolean closed = false;
+
+    private final ExecutorService drainExecutor;
+    private final ScheduledExecutorService syncExecutor;
+
+    private final AtomicLong recordsAppended = new AtomicLong();
+    private final AtomicLong recordsSent = new AtomicLong();
+    private final AtomicLong recordsDropped = new AtomicLong();
+    private final AtomicLong sendFailures = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+
+    private static final ThreadLocal<TSerializer> serializer = new ThreadLocal<TSerializer>() {
+        @Override
+        protected TSerializer initialValue() {
+            return new TSerializer(new TBinaryProtocol.Factory());
+        }
+    };
+
+    private static final ThreadLocal<TDeserializer> deserializer = new ThreadLocal<TDeserializer>() {
+        @Override
+        protected TDeserializer initialValue() {
+            return new TDeserializer(new TBinaryProtocol.Factory());
+        }
+    };
+
+    /**
+     * Opens the journal in the directory, replaying any batches left by a previous journal.
+     * @param name the name of the journal (used to register the MBean)
+     * @param pool the pool the batches are sent to
+     * @param directory the directory that holds the journal segments (created if required)
+     * @param policy the journal config (if null the defaults are used)
+     * @throws PelopsException if the journal couldn't be opened
+     */
+    public WriteBehindJournal(String name, IThriftPool pool, File directory, Policy policy) throws PelopsException {
+        if (name == null) throw new IllegalArgumentException("name is a required argument");
+        if (pool == null) throw new IllegalArgumentException("pool is a required argument");
+        if (directory == null) throw new IllegalArgumentException("directory is a required argument");
+        this.name = name;
+        this.directory = directory;
+        this.policy = policy != null ? policy : new Policy();
+        this.syncMode = this.policy.getSyncMode();
+        this.sender = new Sender(pool, this.policy.getTrafficClass());
+
+        logger.info("Initialising write-behind journal '{}' in '{}' with configuration policy: {}", new Object[] {name, directory, this.policy});
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new PelopsException("Failed to create journal directory '" + directory + "'");
+
+        try {
+            replaySegments();
+            activeSegment = createSegment(this.policy.getSegmentSize());
+        } catch (IOException e) {
+            throw new PelopsException("Failed to open the journal in '" + directory + "'", e);
+        }
+
+        drainExecutor = Executors.newFixedThreadPool(this.policy.getDrainThreads(), new NamedThreadFactory("pelops-journal-" + name));
+        for (int i = 0; i < this.policy.getDrainThreads(); i++) {
+            drainExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+
+        syncExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("pelops-journal-sync-" + name));
+        long interval = Math.max(1, this.policy.getSyncIntervalMillis());
+        syncExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (syncMode == SyncMode.PERIODIC)
+                    sync();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+
+        String beanName = getMBeanName();
+        if (JmxMBeanManager.getInstance().isRegistered(beanName)) {
+            logger.warn("MBean '{}' is already registered, removing...", beanName);
+            JmxMBeanManager.getInstance().unregisterMBean(beanName);
+        }
+
+        logger.info("Registering MBean '{}'...", beanName);
+        JmxMBeanManager.getInstance().registerMBean(this, beanName);
+    }
+
+    /**
+     * Appends the batch to the journal.  The batch will be sent to Cassandra by a background thread.
+     * @param batch the batch
+     * @param cLevel the consistency level the batch is sent with
+     * @throws PelopsException if the journal has been closed or the batch couldn't be written
+     */
+    public void append(Map<ByteBuffer, Map<String, List<Mutation>>> batch, ConsistencyLevel cLevel) throws PelopsException {
+        byte[] payload;
+        try {
+            payload = serializer.get().serialize(new Cassandra.batch_mutate_args(batch, cLevel));
+        } catch (Exception e) {
+            throw new PelopsException("Failed to serialize the batch", e);
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(payload);
+
+        Segment segment;
+        lock.lock();
+        try {
+            if (closed)
+                throw new PelopsException("The journal has been closed");
+
+            int recordSize = RECORD_HEADER_SIZE + payload.length;
+            if (activeSegment.buffer.capacity() - activeSegment.writePosition < recordSize)
+                rotate(recordSize);
+
+            segment = activeSegment;
+            int position = segment.writePosition;
+            segment.buffer.put(position + 4, STATE_PENDING);
+            segment.buffer.putLong(position + 5, System.currentTimeMillis());
+            segment.buffer.putInt(position + 13, (int) checksum.getValue());
+            ByteBuffer payloadBuffer = segment.buffer.duplicate();
+            payloadBuffer.position(position + RECORD_HEADER_SIZE);
+            payloadBuffer.put(payload);
+            // the length is written last so that a partially written record reads as the end of the segment
+            segment.buffer.putInt(position, payload.length);
+
+            segment.writePosition += recordSize;
+            segment.pendingRecords++;
+            backlogRecords++;
+            backlogBytes += payload.length;
+            recordsAvailable.signal();
+        } catch (IOException e) {
+            throw new PelopsException("Failed to append to the journal", e);
+        } finally {
+            lock.unlock();
+        }
+
+        recordsAppended.incrementAndGet();
+        if (syncMode == SyncMode.ALWAYS) {
+            segment.buffer.force();
+            syncs.incrementAndGet();
+        }
+    }
+
+    /**
+     * Waits until all the batches in the journal have been sent (or dropped).
+     * @param timeout the max time to wait
+     * @param unit the unit of the timeout
+     * @return true if the journal is empty, false if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitEmpty(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (backlogRecords > 0) {
+                if (remaining <= 0)
+                    return false;
+                remaining = recordsCompleted.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the background threads and forces the journal to disk.  Batches that haven't been sent yet remain in the
+     * journal and are replayed when it's next opened.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            recordsAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        drainExecutor.shutdownNow();
+        syncExecutor.shutdownNow();
+        try {
+            drainExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        sync();
+
+        lock.lock();
+        try {
+            for (Segment segment : segments)
+                segment.close();
+        } finally {
+            lock.unlock();
+        }
+
+        String beanName = getMBeanName();
+        logger.info("Removing MBean '{}'...", beanName);
+        if (JmxMBeanManager.getInstance().isRegistered(beanName))
+            JmxMBeanManager.getInstance().unregisterMBean(beanName);
+    }
+
+    /**
+     * Forces all segments to disk.
+     */
+    public void sync() {
+        List<Segment> snapshot;
+        lock.lock();
+        try {
+            snapshot = new ArrayList<Segment>(segments);
+        } finally {
+            lock.unlock();
+        }
+        for (Segment segment : snapshot)
+            segment.buffer.force();
+        syncs.incrementAndGet();
+    }
+
+    private void drain() {
+        while (true) {
+            Record record;
+            try {
+                record = claim();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (record == null)
+                return;
+
+            long retryDelay = policy.getRetryDelayMillis();
+            while (true) {
+                try {
+                    Cassandra.batch_mutate_args args = new Cassandra.batch_mutate_args();
+                    deserializer.get().deserialize(args, record.payload);
+                    sender.send(args.mutation_map, args.consistency_level);
+                    complete(record, STATE_SENT);
+                    break;
+                } catch (InvalidRequestException e) {
+                    logger.error("Dropping journal record rejected by Cassandra", e);
+                    complete(record, STATE_DROPPED);
+                    break;
+                } catch (PelopsException e) {
+                    sendFailures.incrementAndGet();
+                    logger.warn("Failed to send journal record, retrying in {} ms. Cause of failure is {}", retryDelay, e);
+                } catch (Exception e) {
+                    logger.error("Dropping journal record that couldn't be deserialized", e);
+                    complete(record, STATE_DROPPED);
+                    break;
+                }
+
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException e) {
+                    // closing, the record will be replayed when the journal is reopened
+                    return;
+                }
+                retryDelay = Math.min(retryDelay * 2, policy.getMaxRetryDelayMillis());
+            }
+        }
+    }
+
+    /**
+     * Takes the next pending record, waiting until one is available.
+     * @return the record or null if the journal has been closed
+     */
+    private Record claim() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed) {
+                for (Segment segment : segments) {
+                    Record record = segment.next();
+                    if (record != null) {
+                        recordsInFlight.add(record);
+                        return record;
+                    }
+                }
+                recordsAvailable.await();
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void complete(Record record, byte state) {
+        lock.lock();
+        try {
+            Segment segment = record.segment;
+            segment.buffer.put(record.position + 4, state);
+            segment.pendingRecords--;
+            backlogRecords--;
+            backlogBytes -= record.payload.length;
+            recordsInFlight.remove(record);
+            if (state == STATE_SENT)
+                recordsSent.incrementAndGet();
+            else
+                recordsDropped.incrementAndGet();
+            if (segment.pendingRecords == 0 && segment != activeSegment)
+                deleteSegment(segment);
+            recordsCompleted.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void rotate(int minSize) throws IOException {
+        Segment previous = activeSegment;
+        activeSegment = createSegment(Math.max(policy.getSegmentSize(), minSize));
+        if (syncMode != SyncMode.NONE)
+            previous.buffer.force();
+        if (previous.pendingRecords == 0)
+            deleteSegment(previous);
+    }
+
+    private Segment createSegment(int size) throws IOException {
+        File file = new File(directory, SEGMENT_PREFIX + nextSegmentId + SEGMENT_SUFFIX);
+        Segment segment = new Segment(nextSegmentId++, file, size);
+        segments.add(segment);
+        logger.debug("Created journal segment '{}'", file);
+        return segment;
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment);
+        segment.close();
+        if (!segment.file.delete())
+            logger.warn("Failed to delete journal segment '{}'", segment.file);
+        else
+            logger.debug("Deleted journal segment '{}'", segment.file);
+    }
+
+    /**
+     * Loads the segments left by a previous journal, deleting those that have been completely sent.
+     */
+    private void replaySegments() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        List<Segment> replayed = new ArrayList<Segment>();
+        for (File file : files) {
+            long id;
+            try {
+                id = Long.parseLong(file.getName().substring(SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring unexpected file '{}' in journal directory", file);
+                continue;
+            }
+            Segment segment = new Segment(id, file, (int) file.length());
+            segment.scan();
+            replayed.add(segment);
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+        }
+        Collections.sort(replayed, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+            }
+        });
+
+        for (Segment segment : replayed) {
+            segments.add(segment);
+            if (segment.pendingRecords == 0) {
+                deleteSegment(segment);
+            } else {
+                logger.info("Replaying {} records from journal segment '{}'", segment.pendingRecords, segment.file);
+                backlogRecords += segment.pendingRecords;
+                backlogBytes += segment.pendingBytes;
+            }
+        }
+    }
+
+    @Override
+    public long getRecordsAppended() {
+        return recordsAppended.get();
+    }
+
+    @Override
+    public long getRecordsSent() {
+        return recordsSent.get();
+    }
+
+    @Override
+    public long getRecordsDropped() {
+        return recordsDropped.get();
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures.get();
+    }
+
+    @Override
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    @Override
+    public int getBacklogRecords() {
+        lock.lock();
+        try {
+            return backlogRecords;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getBacklogBytes() {
+        lock.lock();
+        try {
+            return backlogBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The age of the oldest batch that hasn't been sent yet.
+     * @return the lag in milliseconds (0 if the journal is empty)
+     */
+    @Override
+    public long getLagMillis() {
+        lock.lock();
+        try {
+            long oldest = Long.MAX_VALUE;
+            for (Record record : recordsInFlight)
+                oldest = Math.min(oldest, record.appendedAt);
+            for (Segment segment : segments) {
+                long appendedAt = segment.peekAppendedAt();
+                if (appendedAt > 0) {
+                    oldest = Math.min(oldest, appendedAt);
+                    break;
+                }
+            }
+            return oldest == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String getSyncMode() {
+        return syncMode.name();
+    }
+
+    @Override
+    public void setSyncMode(String syncMode) {
+        this.syncMode = SyncMode.valueOf(syncMode);
+    }
+
+    @Override
+    public long getSyncIntervalMillis() {
+        return policy.getSyncIntervalMillis();
+    }
+
+    @Override
+    public int getDrainThreads() {
+        return policy.getDrainThreads();
+    }
+
+    @Override
+    public int getSegmentSize() {
+        return policy.getSegmentSize();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private String getMBeanName() {
+        return JMX_MBEAN_OBJ_NAME + "-" + name;
+    }
+
+    /**
+     * A memory mapped segment of the journal.
+     */
+    private static class Segment {
+        private final long id;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        private int readPosition;
+        private int pendingRecords;
+        private long pendingBytes;
+
+        private Segment(long id, File file, int size) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            if (raf.length() < size)
+                raf.setLength(size);
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        /**
+         * Finds the end of the segment and counts its pending records.  A record with an invalid length or checksum
+         * (a partially written record) marks the end of the segment.
+         */
+        private void scan() {
+            int position = 0;
+            while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + RECORD_HEADER_SIZE + length > buffer.capacity())
+                    break;
+
+                byte[] payload = new byte[length];
+                ByteBuffer payloadBuffer = buffer.duplicate();
+                payloadBuffer.position(position + RECORD_HEADER_SIZE);
+                payloadBuffer.get(payload);
+                CRC32 checksum = new CRC32();
+                checksum.update(payload);
+                if ((int) checksum.getValue() != buffer.getInt(position + 13)) {
+                    logger.warn("Found a corrupt record at position {} of journal segment '{}', ignoring the rest of the segment", position, file);
+                    break;
+                }
+
+                if (buffer.get(position + 4) == STATE_PENDING) {
+                    pendingRecords++;
+                    pendingBytes += length;
+                }
+                position += RECORD_HEADER_SIZE + length;
+            }
+            writePosition = position;
+        }
+
+        /**
+         * Reads the next pending record (skipping those that have been sent).
+         * @return the record or null if there are no more pending records in the segment
+         */
+        private Record next() {
+            while (readPosition < writePosition) {
+                int position = readPosition;
+                int length = buffer.getInt(position);
+                readPosition += RECORD_HEADER_SIZE + length;
+                if (buffer.get(position + 4) == STATE_PENDING) {
+                    byte[] payload = new byte[length];
+                    ByteBuffer payloadBuffer = buffer.duplicate();
+                    payloadBuffer.position(position + RECORD_HEADER_SIZE);
+                    payloadBuffer.get(payload);
+                    return new Record(this, position, buffer.getLong(position + 5), payload);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * The time the next pending record was appended.
+         * @return the time or 0 if there are no more pending records in the segment
+         */
+        private long peekAppendedAt() {
+            int position = readPosition;
+            while (position < writePosition) {
+                if (buffer.get(position + 4) == STATE_PENDING)
+                    return buffer.getLong(position + 5);
+                position += RECORD_HEADER_SIZE + buffer.getInt(position);
+            }
+            return 0;
+        }
+
+        private void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close journal segment '{}'", file);
+            }
+        }
+    }
+
+    private static class Record {
+        private final Segment segment;
+        private final int position;
+        private final long appendedAt;
+        private final byte[] payload;
+
+        private Record(Segment segment, int position, long appendedAt, byte[] payload) {
+            this.segment = segment;
+            this.position = position;
+            this.appendedAt = appendedAt;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Sends the journaled batches using the retry logic of {@link Operand}.
+     */
+    private static class Sender extends Operand {
+        private Sender(IThriftPool thrift, TrafficClass trafficClass) {
+            super(thrift);
+            setTrafficClass(trafficClass);
+        }
+
+        private void send(final Map<ByteBuffer, Map<String, List<Mutation>>> batch, final ConsistencyLevel cLevel) throws PelopsException {
+            IOperation<Void> operation = new IOperation<Void>() {
+                @Override
+                public Void execute(IThriftPool.IPooledConnection conn) throws Exception {
+                    conn.getAPI().batch_mutate(batch, cLevel);
+                    return null;
+                }
+            };
+            try {
+                tryOperation(operation);
+            } finally {
+                // rows read while the batch was in the journal may have been cached
+                invalidateCaches(thrift.getOperandPolicy(), thrift.getKeyspace(), batch);
+            }
+        }
+    }
+
+    /**
+     * The journal configuration.
+     */
+    public static class Policy {
+        private int segmentSize = 64 * 1024 * 1024;
+        private SyncMode syncMode = SyncMode.PERIODIC;
+        private long syncIntervalMillis = 1000;
+        private int drainThreads = 2;
+        private long retryDelayMillis = 100;
+        private long maxRetryDelayMillis = 10000;
+        private TrafficClass trafficClass = TrafficClass.BATCH;
+
+        public Policy() {
+        }
+
+        /**
+         * @see #setSegmentSize(int)
+         */
+        public int getSegmentSize() {
+            return segmentSize;
+        }
+
+        /**
+         * The size of each journal segment (file).  Batches larger than a segment get a segment of their own.
+         * @param segmentSize the number of bytes
+         */
+        public void setSegmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+        }
+
+        /**
+         * @see #setSyncMode(SyncMode)
+         */
+        public SyncMode getSyncMode() {
+            return syncMode;
+        }
+
+        /**
+         * When the journal is forced to disk.
+         * <p>Note: defaults to {@link SyncMode#PERIODIC}.
+         * @param syncMode the sync mode
+         */
+        public void setSyncMode(SyncMode syncMode) {
+            this.syncMode = syncMode;
+        }
+
+        /**
+         * @see #setSyncIntervalMillis(long)
+         */
+        public long getSyncIntervalMillis() {
+            return syncIntervalMillis;
+        }
+
+        /**
+         * How often the journal is forced to disk when using {@link SyncMode#PERIODIC}.
+         * @param syncIntervalMillis the interval in milliseconds
+         */
+        public void setSyncIntervalMillis(long syncIntervalMillis) {
+            this.syncIntervalMillis = syncIntervalMillis;
+        }
+
+        /**
+         * @see #setDrainThreads(int)
+         */
+        public int getDrainThreads() {
+            return drainThreads;
+        }
+
+        /**
+         * The number of background threads sending batches to Cassandra.
+         * @param drainThreads the number of threads
+         */
+        public void setDrainThreads(int drainThreads) {
+            this.drainThreads = drainThreads;
+        }
+
+        /**
+         * @see #setRetryDelayMillis(long)
+         */
+        public long getRetryDelayMillis() {
+            return retryDelayMillis;
+        }
+
+        /**
+         * The delay before a failed batch is retried, doubled after each consecutive failure.
+         * @param retryDelayMillis the delay in milliseconds
+         */
+        public void setRetryDelayMillis(long retryDelayMillis) {
+            this.retryDelayMillis = retryDelayMillis;
+        }
+
+        /**
+         * @see #setMaxRetryDelayMillis(long)
+         */
+        public long getMaxRetryDelayMillis() {
+            return maxRetryDelayMillis;
+        }
+
+        /**
+         * The max delay before a failed batch is retried.
+         * @param maxRetryDelayMillis the delay in milliseconds
+         */
+        public void setMaxRetryDelayMillis(long maxRetryDelayMillis) {
+            this.maxRetryDelayMillis = maxRetryDelayMillis;
+        }
+
+        /**
+         * @see #setTrafficClass(TrafficClass)
+         */
+        public TrafficClass getTrafficClass() {
+            return trafficClass;
+        }
+
+        /**
+         * The class of traffic used to send the batches.
+         * <p>Note: defaults to {@link TrafficClass#BATCH}.
+         * @param trafficClass the traffic class
+         */
+        public void setTrafficClass(TrafficClass trafficClass) {
+            this.trafficClass = trafficClass;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("Config");
+            sb.append("{segmentSize=").append(segmentSize);
+            sb.append(", syncMode=").append(syncMode);
+            sb.append(", syncIntervalMillis=").append(syncIntervalMillis);
+            sb.append(", drainThreads=").append(drainThreads);
+            sb.append(", retryDelayMillis=").append(retryDelayMillis);
+            sb.append(", maxRetryDelayMillis=").append(maxRetryDelayMillis);
+            sb.append(", trafficClass=").append(trafficClass);
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011 Dominic Williams, Daniel Washusen and contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.scale7.cassandra.pelops.exceptions;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Thrown when only some of the requests an operation was split into succeeded, for example when some of the
+ * sub-batches of a replica aware {@link org.scale7.cassandra.pelops.Mutator#execute(org.apache.cassandra.thrift.ConsistencyLevel, org.scale7.cassandra.pelops.TokenRing) mutation}
+ * failed.  The rows that aren't reported as failed were successfully processed.
+ */
+public class PartialFailureException extends PelopsException {
+    private final Map<Bytes, PelopsException> failures;
+    private final Set<Bytes> succeededRowKeys;
+
+    public PartialFailureException(String s, Map<Bytes, PelopsException> failures, Set<Bytes> succeededRowKeys) {
+        super(s, failures.isEmpty() ? null : failures.values().iterator().next());
+        this.failures = Collections.unmodifiableMap(failures);
+        this.succeededRowKeys = Collections.unmodifiableSet(succeededRowKeys);
+    }
+
+    /**
+     * The keys of the rows that failed.
+     * @return the row keys
+     */
+    public Set<Bytes> getFailedRowKeys() {
+        return failures.keySet();
+    }
+
+    /**
+     * The cause of the failure of each failed row.
+     * @return the causes keyed by row key
+     */
+    public Map<Bytes, PelopsException> getFailures() {
+        return failures;
+    }
+
+    /**
+     * The keys of the rows that succeeded.
+     * @return the row keys
+     */
+    public Set<Bytes> getSucceededRowKeys() {
+        return succeededRowKeys;
+    }
+}
@@ -25,8 +25,11 @@
 package org.scale7.cassandra.pelops.pool;
 
 import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -37,6 +40,9 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.cassandra.thrift.InvalidRequestException;
 import org.apache.commons.pool.BaseKeyedPoolableObjectFactory;
@@ -48,6 +54,7 @@ import org.scale7.cassandra.pelops.Cluster;
 import org.scale7.cassandra.pelops.Connection;
 import org.scale7.cassandra.pelops.JmxMBeanManager;
 import org.scale7.cassandra.pelops.OperandPolicy;
+import org.scale7.cassandra.pelops.TrafficClass;
 import org.scale7.cassandra.pelops.exceptions.NoConnectionsAvailableException;
 import org.scale7.cassandra.pelops.exceptions.PelopsException;
 import org.scale7.portability.SystemProxy;
@@ -74,6 +81,9 @@ public class CommonsBackedPool extends ThriftPoolBase implements CommonsBackedPo
     private ScheduledExecutorService executorService;
     private final Object scheduledTasksLock = new Object();
 
+    /* borrowers waiting for a connection, ordered by priority */
+    private final PriorityWaiters waiters = new PriorityWaiters();
+
     /* running stats */
     private RunningStatistics statistics;
 
@@ -282,6 +292,12 @@ public class CommonsBackedPool extends ThriftPoolBase implements CommonsBackedPo
             logger.info("Decommissioning node '{}'", pooledNode.getAddress());
             pooledNode.decommission();
         }
+
+        // decommission the rate limiter (if any)
+        if (operandPolicy.getRateLimiter() != null) {
+            logger.info("Decommissioning rate limiter '{}'", operandPolicy.getRateLimiter().getName());
+            operandPolicy.getRateLimiter().decommission();
+        }
     }
 
     @Override
@@ -291,60 +307,120 @@ public class CommonsBackedPool extends ThriftPoolBase implements CommonsBackedPo
 
     @Override
     public IPooledConnection getConnectionExcept(Set<String> avoidNodes) throws NoConnectionsAvailableException {
+        return getConnectionExcept(TrafficClass.INTERACTIVE, avoidNodes);
+    }
+
+    /**
+     * {@inheritDoc}.
+     * <p>Each traffic class is guaranteed its reserved share of {@link Policy#getMaxActivePerNode()} (see
+     * {@link Policy#setReservedPercent(TrafficClass, int)}) and borrowers waiting for a connection are served in
+     * priority order, i.e. lower priority borrowers give way to higher priority borrowers that are already waiting
+     * unless they can be served from their own reserved capacity.
+     */
+    @Override
+    public IPooledConnection getConnectionExcept(TrafficClass trafficClass, Set<String> avoidNodes) throws NoConnectionsAvailableException {
+        if (trafficClass == null) throw new IllegalArgumentException("trafficClass is a required argument");
         PooledNode node = null;
-        IPooledConnection connection = null;
+        PooledConnection connection = null;
         long timeout = -1;
+        boolean waiting = false;
+        int nodesWithoutCapacity = 0;
 
-        while (connection == null) {
-            if (timeout == -1) {
-                // first run through calc the timeout for the next loop
-                // (this makes debugging easier)
-                int maxWait = getPolicy().getMaxWaitForConnection();
-                timeout = maxWait > 0 ?
-                        System.currentTimeMillis() + maxWait :
-                        Long.MAX_VALUE;
-            } else if (timeout < System.currentTimeMillis()) {
-                logger.debug("Max wait time for connection exceeded");
-                break;
-            }
+        try {
+            while (connection == null) {
+                if (timeout == -1) {
+                    // first run through calc the timeout for the next loop
+                    // (this makes debugging easier)
+                    int maxWait = getPolicy().getMaxWaitForConnection();
+                    timeout = maxWait > 0 ?
+                            System.currentTimeMillis() + maxWait :
+                            Long.MAX_VALUE;
+                } else if (timeout < System.currentTimeMillis()) {
+                    logger.debug("Max wait time for connection exceeded");
+                    break;
+                }
 
-            node = nodeSelectionStrategy.select(this, nodes.keySet(), avoidNodes);
-            // if the strategy was unable to choose a node (all suspended?) then sleep for a bit and loop
-            if (node == null) {
-                logger.debug("The node selection strategy was unable to choose a node, sleeping before trying again...");
-                try {
-                    Thread.sleep(DEFAULT_WAIT_PERIOD);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
+                node = nodeSelectionStrategy.select(this, nodes.keySet(), avoidNodes);
+                // if the strategy was unable to choose a node (all suspended?) then sleep for a bit and loop
+                if (node == null) {
+                    logger.debug("The node selection strategy was unable to choose a node, sleeping before trying again...");
+                    try {
+                        Thread.sleep(DEFAULT_WAIT_PERIOD);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    continue;
                 }
-                continue;
-            }
 
-            try {
-                logger.debug("Attempting to borrow free connection for node '{}'", node.getAddress());
-                // note that if no connections are currently available for this node then the pool will sleep for
-                // DEFAULT_WAIT_PERIOD milliseconds
-                connection = pool.borrowObject(node.getAddress());
-            } catch (IllegalStateException e) {
-                throw new PelopsException("The pool has been shutdown", e);
-            } catch (Exception e) {
-                if (e instanceof NoSuchElementException) {
-                    logger.debug("No free connections available for node '{}'.  Trying another node...", node.getAddress());
-                } else if (e instanceof TTransportException) {
-                    logger.warn(String.format("A TTransportException was thrown while attempting to create a connection to '%s'.  " +
-                            "This node will be suspended for %sms.  Trying another node...",
-                            node.getAddress(), this.policy.getNodeDownSuspensionMillis()));
-                    node.suspendForMillis(this.policy.getNodeDownSuspensionMillis());
-                } else
-                    logger.warn(String.format("An exception was thrown while attempting to create a connection to '%s'.  " +
-                            "Trying another node...", node.getAddress()), e);
-
-                // try and avoid this node on the next trip through the loop
-                if (avoidNodes == null)
-                    avoidNodes = new HashSet<String>(10);
-
-                avoidNodes.add(node.getAddress());
+                // give way to higher priority borrowers that are already waiting unless we can use our reserved capacity
+                int[] reserved = getReservedPerNode();
+                if (node.getNumActive(trafficClass) >= reserved[trafficClass.ordinal()] && waiters.hasHigherPriorityWaiters(trafficClass)) {
+                    logger.debug("Giving way to higher priority borrowers before borrowing a {} connection...", trafficClass);
+                    if (!waiting) {
+                        waiters.add(trafficClass);
+                        waiting = true;
+                    }
+                    waiters.await(trafficClass, DEFAULT_WAIT_PERIOD);
+                    continue;
+                }
+
+                // claim a slot on the node for this class of traffic
+                if (!node.tryAcquireLane(trafficClass, getPolicy().getMaxActivePerNode(), reserved)) {
+                    logger.debug("No capacity left for {} connections on node '{}'.  Trying another node...", trafficClass, node.getAddress());
+                    if (!waiting) {
+                        waiters.add(trafficClass);
+                        waiting = true;
+                    }
+
+                    // once every node has been tried wait for a connection to be released
+                    if (++nodesWithoutCapacity >= nodes.size()) {
+                        waiters.await(trafficClass, DEFAULT_WAIT_PERIOD);
+                        nodesWithoutCapacity = 0;
+                    }
+
+                    if (avoidNodes == null)
+                        avoidNodes = new HashSet<String>(10);
+
+                    avoidNodes.add(node.getAddress());
+                    continue;
+                }
+
+                try {
+                    logger.debug("Attempting to borrow free connection for node '{}'", node.getAddress());
+                    // note that if no connections are currently available for this node then the pool will sleep for
+                    // DEFAULT_WAIT_PERIOD milliseconds
+                    connection = pool.borrowObject(node.getAddress());
+                    connection.setTrafficClass(trafficClass);
+                } catch (IllegalStateException e) {
+                    node.releaseLane(trafficClass);
+                    throw new PelopsException("The pool has been shutdown", e);
+                } catch (Exception e) {
+                    node.releaseLane(trafficClass);
+                    if (e instanceof NoSuchElementException) {
+                        logger.debug("No free connections available for node '{}'.  Trying another node...", node.getAddress());
+                        if (!waiting) {
+                            waiters.add(trafficClass);
+                            waiting = true;
+                        }
+                    } else if (e instanceof TTransportException) {
+                        logger.warn(String.format("A TTransportException was thrown while attempting to create a connection to '%s'.  " +
+                                "This node will be suspended for %sms.  Trying another node...",
+                                node.getAddress(), this.policy.getNodeDownSuspensionMillis()));
+                        node.suspendForMillis(this.policy.getNodeDownSuspensionMillis());
+                    } else
+                        logger.warn(String.format("An exception was thrown while attempting to create a connection to '%s'.  " +
+                                "Trying another node...", node.getAddress()), e);
+
+                    // try and avoid this node on the next trip through the loop
+                    if (avoidNodes == null)
+                        avoidNodes = new HashSet<String>(10);
+
+                    avoidNodes.add(node.getAddress());
+                }
             }
+        } finally {
+            if (waiting)
+                waiters.remove(trafficClass);
         }
 
         if (node == null) {
@@ -370,6 +446,18 @@ public class CommonsBackedPool extends ThriftPoolBase implements CommonsBackedPo
         return connection;
     }
 
+    private int[] getReservedPerNode() {
+        TrafficClass[] trafficClasses = TrafficClass.values();
+        int[] reserved = new int[trafficClasses.length];
+        int maxActive = getPolicy().getMaxActivePerNode();
+        if (maxActive > 0) {
+            for (TrafficClass trafficClass : trafficClasses) {
+                reserved[trafficClass.ordinal()] = maxActive * getPolicy().getReservedPercent(trafficClass) / 100;
+            }
+        }
+        return reserved;
+    }
+
     /**
      * Returns the pooled node instance for the nodeAddress.
      *
@@ -454,6 +542,11 @@ public class CommonsBackedPool extends ThriftPoolBase implements CommonsBackedPo
             statistics.connectionsActive.decrementAndGet();
             reportConnectionReleased(connection.getNode().getAddress());
 
+            PooledNode pooledNode = getPooledNode(connection.getNode().getAddress());
+            if (pooledNode != null && connection.getTrafficClass() != null)  // it's possible that the pooled node has been removed
+                pooledNode.releaseLane(connection.getTrafficClass());
+            connection.setTrafficClass(null);
+
             if (connection.isCorrupt() || !connection.isOpen()) {
                 logger.debug("Returned connection '{}' has been closed or is marked as corrupt", connection);
                 reportConnectionCorrupted(connection.getNode().getAddress());
@@ -464,6 +557,9 @@ public class CommonsBackedPool extends ThriftPoolBase implements CommonsBackedPo
             }
         } catch (Exception e) {
             // do nothing
+        } finally {
+            // let the highest priority borrower waiting know a connection may be available
+            waiters.signal();
         }
     }
 
@@ -530,6 +626,17 @@ public class CommonsBackedPool extends ThriftPoolBase implements CommonsBackedPo
         return cluster;
     }
 
+    /**
+     * {@inheritDoc}.
+     */
+    @Override
+    public Collection<String> getNodeNames() {
+        List<String> nodeNames = new ArrayList<String>();
+        for (Cluster.Node node : cluster.getNodes())
+            nodeNames.add(node.getAddress());
+        return nodeNames;
+    }
+
     public INodeSelectionStrategy getNodeSelectionStrategy() {
         return nodeSelectionStrategy;
     }
@@ -656,6 +763,26 @@ public class CommonsBackedPool extends ThriftPoolBase implements CommonsBackedPo
         getPolicy().setNodeDownSuspensionMillis(nodeDownSuspensionMillis);
     }
 
+    @Override
+    public int getInteractiveReservedPercent() {
+        return getPolicy().getReservedPercent(TrafficClass.INTERACTIVE);
+    }
+
+    @Override
+    public void setInteractiveReservedPercent(int interactiveReservedPercent) {
+        getPolicy().setReservedPercent(TrafficClass.INTERACTIVE, interactiveReservedPercent);
+    }
+
+    @Override
+    public int getBatchReservedPercent() {
+        return getPolicy().getReservedPercent(TrafficClass.BATCH);
+    }
+
+    @Override
+    public void setBatchReservedPercent(int batchReservedPercent) {
+        getPolicy().setReservedPercent(TrafficClass.BATCH, batchReservedPercent);
+    }
+
     private String getMBeanName() {
         return JMX_MBEAN_OBJ_NAME + "-" + keyspace;
     }
@@ -679,6 +806,7 @@ public class CommonsBackedPool extends ThriftPoolBase implements CommonsBackedPo
         private AtomicBoolean testConnectionsWhileIdle = new AtomicBoolean(true);
         private AtomicInteger nodeDownSuspensionMillis = new AtomicInteger(TEN_SECONDS);
         private AtomicBoolean runMaintenanceTaskDuringInit = new AtomicBoolean(true);
+        private AtomicInteger[] reservedPercent = newReservedPercent();
 
         public Policy() {
         }
@@ -847,6 +975,37 @@ public class CommonsBackedPool extends ThriftPoolBase implements CommonsBackedPo
             return runMaintenanceTaskDuringInit.get();
         }
 
+        /**
+         * @see #setReservedPercent(TrafficClass, int)
+         */
+        public int getReservedPercent(TrafficClass trafficClass) {
+            return reservedPercent[trafficClass.ordinal()].get();
+        }
+
+        /**
+         * Sets the percentage of {@link #getMaxActivePerNode()} reserved for the given class of traffic.  Reserved
+         * capacity that isn't in use can't be borrowed by other classes of traffic, this guarantees that (for example)
+         * interactive traffic still gets connections when batch jobs are hammering the pool.  The percentages of all
+         * classes combined should not exceed 100.
+         * <p>Note: nothing is reserved by default.
+         *
+         * @param trafficClass the class of traffic
+         * @param reservedPercent the percentage of each nodes active connections to reserve (0 - 100)
+         */
+        public void setReservedPercent(TrafficClass trafficClass, int reservedPercent) {
+            if (reservedPercent < 0 || reservedPercent > 100)
+                throw new IllegalArgumentException("reservedPercent must be between 0 and 100");
+            this.reservedPercent[trafficClass.ordinal()].set(reservedPercent);
+        }
+
+        private static AtomicInteger[] newReservedPercent() {
+            AtomicInteger[] reservedPercent = new AtomicInteger[TrafficClass.values().length];
+            for (int i = 0; i < reservedPercent.length; i++) {
+                reservedPercent[i] = new AtomicInteger();
+            }
+            return reservedPercent;
+        }
+
         @Override
         public String toString() {
             final StringBuilder sb = new StringBuilder();
@@ -859,6 +1018,7 @@ public class CommonsBackedPool extends ThriftPoolBase implements CommonsBackedPo
             sb.append(", testConnectionsWhileIdle=").append(testConnectionsWhileIdle);
             sb.append(", timeBetweenScheduledMaintenanceTaskRunsMillis=").append(timeBetweenScheduledMaintenanceTaskRunsMillis);
             sb.append(", nodeDownSuspensionMillis=").append(nodeDownSuspensionMillis);
+            sb.append(", reservedPercent=").append(Arrays.toString(reservedPercent));
             sb.append('}');
             return sb.toString();
         }
@@ -866,6 +1026,7 @@ public class CommonsBackedPool extends ThriftPoolBase implements CommonsBackedPo
 
     public class PooledConnection extends Connection implements IPooledConnection {
         private boolean corrupt = false;
+        private TrafficClass trafficClass;
 
         public PooledConnection(Cluster.Node node, String keyspace) throws SocketException, TException, InvalidRequestException {
             super(node, keyspace);
@@ -885,6 +1046,18 @@ public class CommonsBackedPool extends ThriftPoolBase implements CommonsBackedPo
             return corrupt;
         }
 
+        /**
+         * The class of traffic the connection was borrowed for.
+         * @return the traffic class or null if the connection isn't borrowed
+         */
+        public TrafficClass getTrafficClass() {
+            return trafficClass;
+        }
+
+        void setTrafficClass(TrafficClass trafficClass) {
+            this.trafficClass = trafficClass;
+        }
+
         @Override
         public String toString() {
             return String.format("Connection[%s][%s:%s][%s]", getKeyspace(), getNode().getAddress(), cluster.getConnectionConfig().getThriftPort(), super.hashCode());
@@ -984,6 +1157,81 @@ public class CommonsBackedPool extends ThriftPoolBase implements CommonsBackedPo
         }
     }
 
+    /**
+     * Keeps track of the borrowers waiting for a connection so that they can be served in priority order (the lower
+     * the ordinal of the {@link TrafficClass} the higher the priority).
+     */
+    static class PriorityWaiters {
+        private final Lock lock = new ReentrantLock();
+        private final Condition[] conditions;
+        private final int[] waiting;
+
+        PriorityWaiters() {
+            TrafficClass[] trafficClasses = TrafficClass.values();
+            conditions = new Condition[trafficClasses.length];
+            waiting = new int[trafficClasses.length];
+            for (int i = 0; i < conditions.length; i++) {
+                conditions[i] = lock.newCondition();
+            }
+        }
+
+        void add(TrafficClass trafficClass) {
+            lock.lock();
+            try {
+                waiting[trafficClass.ordinal()]++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(TrafficClass trafficClass) {
+            lock.lock();
+            try {
+                waiting[trafficClass.ordinal()]--;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean hasHigherPriorityWaiters(TrafficClass trafficClass) {
+            lock.lock();
+            try {
+                for (int i = 0; i < trafficClass.ordinal(); i++) {
+                    if (waiting[i] > 0)
+                        return true;
+                }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void await(TrafficClass trafficClass, long millis) {
+            lock.lock();
+            try {
+                conditions[trafficClass.ordinal()].await(millis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void signal() {
+            lock.lock();
+            try {
+                for (int i = 0; i < waiting.length; i++) {
+                    if (waiting[i] > 0) {
+                        conditions[i].signal();
+                        return;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
     /**
      * Interface used to define how nodes should be selected.
      */
@@ -79,6 +79,14 @@ public interface CommonsBackedPoolMBean {
 
     public void setNodeDownSuspensionMillis(int nodeDownSuspensionMillis);
 
+    public int getInteractiveReservedPercent();
+
+    public void setInteractiveReservedPercent(int interactiveReservedPercent);
+
+    public int getBatchReservedPercent();
+
+    public void setBatchReservedPercent(int batchReservedPercent);
+
     /*
         OPERATIONS
      */
@@ -29,6 +29,7 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.scale7.cassandra.pelops.JmxMBeanManager;
+import org.scale7.cassandra.pelops.TrafficClass;
 import org.scale7.portability.SystemProxy;
 import org.slf4j.Logger;
 
@@ -52,6 +53,9 @@ public class PooledNode implements PooledNodeMBean {
     private AtomicInteger connectionsBorrowedTotal;
     private AtomicInteger connectionsReleasedTotal;
 
+    private final int[] connectionsActiveByTrafficClass = new int[TrafficClass.values().length];
+    private final Object lanesLock = new Object();
+
     PooledNode(CommonsBackedPool pool, String address) {
         this.pool = pool;
         this.address = address;
@@ -168,6 +172,51 @@ public class PooledNode implements PooledNodeMBean {
         return connectionsReleasedTotal.get();
     }
 
+    /**
+     * The number of connections to this node currently borrowed by the given class of traffic.
+     * @param trafficClass the traffic class
+     * @return the number of active connections
+     */
+    public int getNumActive(TrafficClass trafficClass) {
+        synchronized (lanesLock) {
+            return connectionsActiveByTrafficClass[trafficClass.ordinal()];
+        }
+    }
+
+    /**
+     * Claims a slot on this node for the given class of traffic.  A slot is available when claiming it doesn't eat
+     * into the unused part of the capacity reserved for the other classes of traffic.
+     * @param trafficClass the traffic class
+     * @param maxActive the max number of active connections on the node (negative for no limit)
+     * @param reserved the number of connections reserved for each traffic class (indexed by ordinal)
+     * @return true if the slot was claimed, otherwise false
+     */
+    boolean tryAcquireLane(TrafficClass trafficClass, int maxActive, int[] reserved) {
+        synchronized (lanesLock) {
+            if (maxActive >= 0) {
+                int unavailable = 0;
+                for (int i = 0; i < connectionsActiveByTrafficClass.length; i++) {
+                    unavailable += connectionsActiveByTrafficClass[i];
+                    if (i != trafficClass.ordinal())
+                        unavailable += Math.max(0, reserved[i] - connectionsActiveByTrafficClass[i]);
+                }
+
+                if (unavailable >= maxActive)
+                    return false;
+            }
+
+            connectionsActiveByTrafficClass[trafficClass.ordinal()]++;
+            return true;
+        }
+    }
+
+    void releaseLane(TrafficClass trafficClass) {
+        synchronized (lanesLock) {
+            if (connectionsActiveByTrafficClass[trafficClass.ordinal()] > 0)
+                connectionsActiveByTrafficClass[trafficClass.ordinal()]--;
+        }
+    }
+
     @Override
     public boolean isSuspended() {
         try {
@@ -24,9 +24,14 @@
 
 package org.scale7.cassandra.pelops.pool;
 
+import java.util.Collection;
+import java.util.Set;
+
 import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.RowDeletor;
 import org.scale7.cassandra.pelops.Selector;
+import org.scale7.cassandra.pelops.TrafficClass;
+import org.scale7.cassandra.pelops.exceptions.NoConnectionsAvailableException;
 
 
 /**
@@ -42,6 +47,21 @@ public abstract class ThriftPoolBase implements IThriftPool {
         return new Selector(this);
     }
 
+    /**
+     * Create a {@link org.scale7.cassandra.pelops.Selector selector} object that borrows connections with the given
+     * priority.
+     * <p>Note: the traffic class overloads aren't part of {@link IThriftPool} so that existing pool implementations
+     * keep compiling, operations on other pools treat all traffic equally.
+     *
+     * @param trafficClass the class of traffic (priority) of the operations performed by the selector
+     * @return A new {@link org.scale7.cassandra.pelops.Selector selector} object
+     */
+    public Selector createSelector(TrafficClass trafficClass) {
+        Selector selector = createSelector();
+        selector.setTrafficClass(trafficClass);
+        return selector;
+    }
+
     /**
      * {@inheritDoc}.
      */
@@ -51,6 +71,20 @@ public abstract class ThriftPoolBase implements IThriftPool {
         return new Mutator(this);
     }
 
+    /**
+     * Create a {@link org.scale7.cassandra.pelops.Mutator mutator} object using the current time as the operation time stamp
+     * that borrows connections with the given priority.
+     * The {@link org.scale7.cassandra.pelops.Mutator mutator} object must only be used to execute 1 mutation operation.
+     *
+     * @param trafficClass the class of traffic (priority) of the operations performed by the mutator
+     * @return A new {@link org.scale7.cassandra.pelops.Mutator mutator} object
+     */
+    public Mutator createMutator(TrafficClass trafficClass) {
+        Mutator mutator = createMutator();
+        mutator.setTrafficClass(trafficClass);
+        return mutator;
+    }
+
     /**
      * {@inheritDoc}.
      */
@@ -97,6 +131,31 @@ public abstract class ThriftPoolBase implements IThriftPool {
         return new RowDeletor(this, timestamp);
     }
 
+    /**
+     * Get a connection from the pool on behalf of the given class of traffic trying to avoid the nodes specified by
+     * the avoidNodes param.
+     * <p>Note: this implementation ignores the traffic class, pools that support priorities should override it.
+     *
+     * @param trafficClass the class of traffic (priority) the connection will be used for
+     * @param avoidNodes the nodes to avoid if possible (may be null)
+     * @return the connection
+     * @throws NoConnectionsAvailableException if an error occurs
+     */
+    public IPooledConnection getConnectionExcept(TrafficClass trafficClass, Set<String> avoidNodes) throws NoConnectionsAvailableException {
+        return getConnectionExcept(avoidNodes);
+    }
+
+    /**
+     * The names the nodes of the pool were configured with (host names or addresses), used to map the endpoints
+     * reported by the ring back to the nodes of the pool.
+     * <p>Note: this implementation doesn't know the nodes, pools that do should override it.
+     *
+     * @return the node names or null if they aren't known
+     */
+    public Collection<String> getNodeNames() {
+        return null;
+    }
+
     private void validateKeyspaceSet() throws IllegalStateException {
         if (getKeyspace() == null && getKeyspace().isEmpty()) {
             throw new IllegalStateException("A keyspace must be provided in order to use this function.");
@@ -0,0 +1,40 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link BloomFilter} class.
+ */
+public class BloomFilterUnitTest {
+    /**
+     * Tests that added keys are always found and that the false positive rate is close to the requested rate.
+     */
+    @Test
+    public void testFalsePositiveRate() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++)
+            filter.add(Bytes.fromUTF8("key" + i));
+
+        for (int i = 0; i < 10000; i++)
+            assertTrue("Added key should be found", filter.mightContain(Bytes.fromUTF8("key" + i)));
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain(Bytes.fromUTF8("other" + i)))
+                falsePositives++;
+        }
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < 200);
+    }
+
+    /**
+     * Tests that the filter is sized from the expected number of keys and false positive rate.
+     */
+    @Test
+    public void testSizing() {
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+        assertTrue("Wrong number of bits: " + filter.getBitCount(), filter.getBitCount() >= 9585 && filter.getBitCount() < 9585 + 64);
+        assertTrue("Wrong number of hashes: " + filter.getHashCount(), filter.getHashCount() == 7);
+    }
+}
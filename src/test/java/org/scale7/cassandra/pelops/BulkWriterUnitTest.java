@@ -0,0 +1,258 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.thrift.TException;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.support.RecordingPool;
+
+/**
+ * Tests the {@link org.scale7.cassandra.pelops.BulkWriter} class.
+ */
+public class BulkWriterUnitTest {
+    private static final String CF = "CF";
+
+    /**
+     * Tests that a batch is flushed each time the max number of mutations is buffered and that the remainder is
+     * flushed on close.
+     */
+    @Test
+    public void testFlushOnMaxMutations() throws Exception {
+        RecordingPool pool = new RecordingPool();
+        BulkWriter.Policy policy = new BulkWriter.Policy();
+        policy.setMaxMutations(5);
+        policy.setFlushIntervalMillis(0);
+        CountingListener listener = new CountingListener();
+        BulkWriter writer = new BulkWriter("testFlushOnMaxMutations", pool, ConsistencyLevel.ONE, policy, listener);
+        try {
+            for (int i = 0; i < 12; i++)
+                writer.writeColumn(CF, Bytes.fromUTF8("row" + i), newColumn("col"));
+
+            writer.flush();
+            // the batches are flushed in parallel so they may complete in any order
+            List<Integer> batchSizes = new ArrayList<Integer>();
+            for (Map<ByteBuffer, Map<String, List<Mutation>>> batch : pool.getBatches())
+                batchSizes.add(batch.size());
+            Collections.sort(batchSizes);
+            assertEquals(Arrays.asList(2, 5, 5), batchSizes);
+            assertEquals(3, writer.getFlushes());
+            assertEquals(12, writer.getMutationsFlushed());
+            assertEquals(12, listener.mutationsFlushed.get());
+            assertEquals(0, writer.getMutationsBuffered());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Tests that a batch is flushed as soon as its estimated size reaches the max bytes.
+     */
+    @Test
+    public void testFlushOnMaxBytes() throws Exception {
+        RecordingPool pool = new RecordingPool();
+        BulkWriter.Policy policy = new BulkWriter.Policy();
+        policy.setMaxBytes(1);
+        policy.setFlushIntervalMillis(0);
+        BulkWriter writer = new BulkWriter("testFlushOnMaxBytes", pool, ConsistencyLevel.ONE, policy, null);
+        try {
+            for (int i = 0; i < 3; i++)
+                writer.writeColumn(CF, Bytes.fromUTF8("row" + i), newColumn("col"));
+
+            assertEquals(0, writer.getMutationsBuffered());
+            writer.flush();
+            assertEquals(3, pool.getBatches().size());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Tests that buffered mutations are flushed once the flush interval has elapsed.
+     */
+    @Test
+    public void testFlushOnInterval() throws Exception {
+        RecordingPool pool = new RecordingPool();
+        BulkWriter.Policy policy = new BulkWriter.Policy();
+        policy.setFlushIntervalMillis(50);
+        BulkWriter writer = new BulkWriter("testFlushOnInterval", pool, ConsistencyLevel.ONE, policy, null);
+        try {
+            writer.writeColumn(CF, Bytes.fromUTF8("row"), newColumn("col"));
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (pool.getBatches().isEmpty() && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+
+            assertEquals(1, pool.getBatches().size());
+            assertEquals(0, writer.getMutationsBuffered());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Tests that writers block while the max number of flushes are pending without blocking the getters, and that
+     * they resume once a flush completes.
+     */
+    @Test
+    public void testBackPressureFromPendingFlushes() throws Exception {
+        final CountDownLatch flushStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFlush = new CountDownLatch(1);
+        RecordingPool pool = new RecordingPool() {
+            @Override
+            protected void onBatch(Map<ByteBuffer, Map<String, List<Mutation>>> batch, String node) throws TException {
+                flushStarted.countDown();
+                try {
+                    releaseFlush.await();
+                } catch (InterruptedException e) {
+                    throw new TException(e);
+                }
+            }
+        };
+        BulkWriter.Policy policy = new BulkWriter.Policy();
+        policy.setMaxMutations(1);
+        policy.setFlushIntervalMillis(0);
+        policy.setFlushThreads(1);
+        policy.setMaxPendingFlushes(1);
+        final BulkWriter writer = new BulkWriter("testBackPressureFromPendingFlushes", pool, ConsistencyLevel.ONE, policy, null);
+        try {
+            writer.writeColumn(CF, Bytes.fromUTF8("row1"), newColumn("col"));
+            assertTrue("The first flush didn't start", flushStarted.await(10, TimeUnit.SECONDS));
+
+            final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+            Thread blocked = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        writer.writeColumn(CF, Bytes.fromUTF8("row2"), newColumn("col"));
+                    } catch (Exception e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            blocked.start();
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (blocked.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals("The writer should be waiting for a pending flush", Thread.State.WAITING, blocked.getState());
+
+            // the blocked writer must not hold the lock
+            assertEquals(0, writer.getMutationsBuffered());
+            assertEquals(1, writer.getPendingFlushes());
+
+            releaseFlush.countDown();
+            blocked.join(10000);
+            assertTrue("The writer wasn't released", !blocked.isAlive());
+            assertEquals(null, failure.get());
+
+            writer.flush();
+            assertEquals(2, pool.getBatches().size());
+        } finally {
+            releaseFlush.countDown();
+            writer.close();
+        }
+    }
+
+    /**
+     * Tests that failed flushes are reported to the listener and reflected in the stats.
+     */
+    @Test
+    public void testFailedFlushIsReported() throws Exception {
+        RecordingPool pool = new RecordingPool(new OperandPolicy().setMaxOpRetries(0));
+        pool.setAvailable(false);
+        BulkWriter.Policy policy = new BulkWriter.Policy();
+        policy.setMaxMutations(2);
+        policy.setFlushIntervalMillis(0);
+        CountingListener listener = new CountingListener();
+        BulkWriter writer = new BulkWriter("testFailedFlushIsReported", pool, ConsistencyLevel.ONE, policy, listener);
+        try {
+            writer.writeColumn(CF, Bytes.fromUTF8("row1"), newColumn("col"));
+            writer.writeColumn(CF, Bytes.fromUTF8("row2"), newColumn("col"));
+            writer.flush();
+
+            assertEquals(0, pool.getBatches().size());
+            assertEquals(1, writer.getFlushesFailed());
+            assertEquals(2, writer.getMutationsFailed());
+            assertEquals(0, writer.getFlushes());
+            assertEquals(1, listener.flushesFailed.get());
+            assertEquals(2, listener.mutationsFailed.get());
+            assertEquals(2, listener.failedBatch.get().size());
+            assertTrue(listener.failure.get() != null);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Tests that writes are rejected once the writer has been closed and the remaining mutations flushed.
+     */
+    @Test(expected = org.scale7.cassandra.pelops.exceptions.PelopsException.class)
+    public void testWriteAfterClose() throws Exception {
+        RecordingPool pool = new RecordingPool();
+        BulkWriter writer = new BulkWriter("testWriteAfterClose", pool, ConsistencyLevel.ONE, null, null);
+        writer.writeColumn(CF, Bytes.fromUTF8("row1"), newColumn("col"));
+        writer.close();
+        assertEquals(1, pool.getBatches().size());
+
+        writer.writeColumn(CF, Bytes.fromUTF8("row2"), newColumn("col"));
+    }
+
+    /**
+     * Tests that a policy without flush threads is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testPolicyRejectsNoFlushThreads() {
+        new BulkWriter.Policy().setFlushThreads(0);
+    }
+
+    /**
+     * Tests that a policy that doesn't allow any pending flush (which would block the first flush forever) is
+     * rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testPolicyRejectsNoPendingFlushes() {
+        new BulkWriter.Policy().setMaxPendingFlushes(0);
+    }
+
+    private static Column newColumn(String name) {
+        return new Column(Bytes.fromUTF8(name).getBytes())
+                .setValue(Bytes.fromUTF8("value").getBytes())
+                .setTimestamp(System.currentTimeMillis() * 1000);
+    }
+
+    private static class CountingListener implements BulkWriter.IFlushListener {
+        private final AtomicInteger mutationsFlushed = new AtomicInteger();
+        private final AtomicInteger flushesFailed = new AtomicInteger();
+        private final AtomicInteger mutationsFailed = new AtomicInteger();
+        private final AtomicReference<Map<ByteBuffer, Map<String, List<Mutation>>>> failedBatch = new AtomicReference<Map<ByteBuffer, Map<String, List<Mutation>>>>();
+        private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        @Override
+        public void flushed(int mutations, long bytes, long millis) {
+            mutationsFlushed.addAndGet(mutations);
+        }
+
+        @Override
+        public void flushFailed(Map<ByteBuffer, Map<String, List<Mutation>>> batch, int mutations, Exception e) {
+            flushesFailed.incrementAndGet();
+            mutationsFailed.addAndGet(mutations);
+            failedBatch.set(batch);
+            failure.set(e);
+        }
+    }
+}
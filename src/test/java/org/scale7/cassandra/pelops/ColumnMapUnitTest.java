@@ -0,0 +1,138 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.cassandra.thrift.Column;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ColumnMap} class.
+ */
+public class ColumnMapUnitTest {
+    /**
+     * Tests that the hash index finds the same columns as the list helpers of the {@link Selector} class.
+     */
+    @Test
+    public void testHashIndex() {
+        List<Column> columns = columns(1000);
+        Collections.shuffle(columns);
+        ColumnMap map = Selector.newColumnMap(columns);
+
+        assertEquals("Wrong size", 1000, map.size());
+        for (int i = 0; i < 1000; i += 7) {
+            String name = name(i);
+            assertTrue("Column should exist", map.columnExists(name));
+            assertEquals("Wrong value", Selector.getColumnStringValue(columns, name), map.getColumnStringValue(name));
+            assertEquals("Wrong value", Selector.getColumnValue(columns, name), map.getColumnValue(Bytes.fromUTF8(name)));
+            assertEquals("Wrong time stamp", Selector.getColumnTimestamp(columns, name), map.getColumnTimestamp(name));
+        }
+        assertFalse("Column should not exist", map.columnExists("missing"));
+        assertNull("Column should not exist", map.getColumn((String) null));
+    }
+
+    /**
+     * Tests the binary search over columns sorted by the column family comparator, in both orders.
+     */
+    @Test
+    public void testBinarySearch() {
+        List<Column> columns = new LinkedList<Column>();
+        for (long i = -500; i < 500; i++) {
+            Column column = new Column(Bytes.fromLong(i).getBytes());
+            column.setValue(Bytes.fromLong(i * 2).getBytes());
+            column.setTimestamp(i);
+            columns.add(column);
+        }
+
+        ColumnMap map = Selector.newColumnMap(columns, ColumnMap.LONG_ORDER);
+        for (long i = -500; i < 500; i++)
+            assertEquals("Wrong value", Bytes.fromLong(i * 2), map.getColumnValue(Bytes.fromLong(i)));
+        assertNull("Column should not exist", map.getColumn(Bytes.fromLong(500)));
+
+        Collections.reverse(columns);
+        ColumnMap reversed = Selector.newColumnMap(columns, Collections.reverseOrder(ColumnMap.LONG_ORDER));
+        for (long i = -500; i < 500; i++)
+            assertEquals("Wrong time stamp", i, reversed.getColumnTimestamp(Bytes.fromLong(i)));
+
+        List<Column> names = columns(1000);
+        ColumnMap sorted = Selector.newColumnMap(names, ColumnMap.BYTES_ORDER);
+        for (int i = 0; i < 1000; i++)
+            assertEquals("Wrong value", "value" + i, sorted.getColumnStringValue(name(i)));
+    }
+
+    /**
+     * Tests the typed accessors and the defaults returned for missing columns.
+     */
+    @Test
+    public void testTypedAccessors() {
+        List<Column> columns = new ArrayList<Column>();
+        columns.add(column("long", Bytes.fromLong(Long.MAX_VALUE)));
+        columns.add(column("int", Bytes.fromInt(-42)));
+        columns.add(column("string", Bytes.fromUTF8("value")));
+        ColumnMap map = Selector.newColumnMap(columns);
+
+        assertEquals("Wrong value", Long.MAX_VALUE, map.getColumnLongValue("long"));
+        assertEquals("Wrong value", -42, map.getColumnIntValue("int"));
+        assertEquals("Wrong default", 7L, map.getColumnLongValue("missing", 7L));
+        assertEquals("Wrong default", 7, map.getColumnIntValue("missing", 7));
+        assertEquals("Wrong default", "default", map.getColumnStringValue("missing", "default"));
+        assertEquals("Wrong default", Bytes.EMPTY, map.getColumnValue("missing", Bytes.EMPTY));
+
+        try {
+            map.getColumnStringValue("missing");
+            fail("Missing column should have been reported");
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            map.getColumnLongValue("int");
+            fail("Value shorter than a long should have been reported");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Tests the order of names as unsigned bytes.
+     */
+    @Test
+    public void testBytesOrder() {
+        assertTrue(ColumnMap.BYTES_ORDER.compare(ByteBuffer.wrap(new byte[] {1}), ByteBuffer.wrap(new byte[] {(byte) 0xff})) < 0);
+        assertTrue(ColumnMap.BYTES_ORDER.compare(ByteBuffer.wrap(new byte[] {1}), ByteBuffer.wrap(new byte[] {1, 0})) < 0);
+        assertEquals(0, ColumnMap.BYTES_ORDER.compare(ByteBuffer.wrap(new byte[] {1, 2}), ByteBuffer.wrap(new byte[] {1, 2})));
+    }
+
+    private static List<Column> columns(int count) {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < count; i++)
+            names.add(name(i));
+        Collections.sort(names);
+
+        List<Column> columns = new ArrayList<Column>();
+        for (String name : names) {
+            Column column = column(name, Bytes.fromUTF8("value" + name.substring(4)));
+            column.setTimestamp(name.hashCode());
+            columns.add(column);
+        }
+        return columns;
+    }
+
+    private static Column column(String name, Bytes value) {
+        Column column = new Column(Bytes.fromUTF8(name).getBytes());
+        column.setValue(value.getBytes());
+        return column;
+    }
+
+    private static String name(int i) {
+        return "name" + i;
+    }
+}
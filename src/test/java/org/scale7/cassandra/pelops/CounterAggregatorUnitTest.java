@@ -0,0 +1,187 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.CounterColumn;
+import org.apache.cassandra.thrift.Mutation;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+import org.scale7.cassandra.pelops.support.RecordingPool;
+
+/**
+ * Tests the {@link org.scale7.cassandra.pelops.CounterAggregator} class.
+ */
+public class CounterAggregatorUnitTest {
+    private static final String CF = "CF";
+
+    /**
+     * Tests that concurrent increments are summed and written as one mutation per counter.
+     */
+    @Test
+    public void testConcurrentIncrementsAreCoalesced() throws Exception {
+        RecordingPool pool = new RecordingPool();
+        CounterAggregator.Policy policy = new CounterAggregator.Policy();
+        policy.setFlushIntervalMillis(0);
+        final CounterAggregator aggregator = new CounterAggregator(pool, ConsistencyLevel.ONE, policy);
+
+        final int threads = 8;
+        final int increments = 10000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < increments; j++)
+                        aggregator.writeCounterColumn(CF, "row", "counter" + (j % 3), 1);
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        aggregator.close();
+
+        Map<String, Long> totals = getTotals(pool);
+        assertEquals(3, totals.size());
+        long total = 0;
+        for (long value : totals.values())
+            total += value;
+        assertEquals(threads * increments, total);
+        assertEquals(threads * increments, aggregator.getIncrementsFlushed());
+        assertEquals(3, aggregator.getCountersFlushed());
+        assertEquals(threads * increments / 3.0, aggregator.getCoalescingRatio(), 0.001);
+    }
+
+    /**
+     * Tests that increments are flushed once the max number of counters is pending.
+     */
+    @Test
+    public void testFlushOnMaxCounters() throws Exception {
+        RecordingPool pool = new RecordingPool();
+        CounterAggregator.Policy policy = new CounterAggregator.Policy();
+        policy.setFlushIntervalMillis(0);
+        policy.setMaxCounters(10);
+        CounterAggregator aggregator = new CounterAggregator(pool, ConsistencyLevel.ONE, policy);
+        try {
+            for (int i = 0; i < 10; i++)
+                aggregator.writeCounterColumn(CF, "row", "counter" + i, i + 1);
+
+            long timeout = System.currentTimeMillis() + 10000;
+            while (pool.getBatches().isEmpty() && System.currentTimeMillis() < timeout)
+                Thread.sleep(10);
+
+            assertEquals(1, pool.getBatches().size());
+            assertEquals(10, getTotals(pool).size());
+            assertEquals(10L, (long) getTotals(pool).get("counter9"));
+        } finally {
+            aggregator.close();
+        }
+    }
+
+    /**
+     * Tests that sub-counter-columns are aggregated separately from counter columns with the same name and that
+     * increments are rejected once the aggregator has been closed.
+     */
+    @Test
+    public void testSubCounterColumns() throws Exception {
+        RecordingPool pool = new RecordingPool();
+        CounterAggregator aggregator = new CounterAggregator(pool, ConsistencyLevel.ONE, null);
+        aggregator.writeCounterColumn(CF, Bytes.fromUTF8("row"), Bytes.fromUTF8("counter"), 1);
+        aggregator.writeSubCounterColumn(CF, Bytes.fromUTF8("row"), Bytes.fromUTF8("super"), Bytes.fromUTF8("counter"), 2);
+        aggregator.writeSubCounterColumn(CF, Bytes.fromUTF8("row"), Bytes.fromUTF8("super"), Bytes.fromUTF8("counter"), 3);
+        aggregator.close();
+
+        Map<String, Long> totals = getTotals(pool);
+        assertEquals(1L, (long) totals.get("counter"));
+        assertEquals(5L, (long) totals.get("super:counter"));
+
+        try {
+            aggregator.writeCounterColumn(CF, "row", "counter", 1);
+            fail("Increments should be rejected once the aggregator has been closed");
+        } catch (PelopsException e) {
+            assertTrue(e.getMessage().contains("closed"));
+        }
+    }
+
+    /**
+     * Tests that increments racing with close are either flushed or rejected, never silently lost.
+     */
+    @Test
+    public void testIncrementsRacingWithCloseAreNotLost() throws Exception {
+        for (int attempt = 0; attempt < 20; attempt++) {
+            RecordingPool pool = new RecordingPool();
+            CounterAggregator.Policy policy = new CounterAggregator.Policy();
+            policy.setFlushIntervalMillis(1);
+            final CounterAggregator aggregator = new CounterAggregator(pool, ConsistencyLevel.ONE, policy);
+
+            final int threads = 4;
+            final AtomicLong accepted = new AtomicLong();
+            final CountDownLatch started = new CountDownLatch(threads);
+            final CountDownLatch done = new CountDownLatch(threads);
+            for (int i = 0; i < threads; i++) {
+                new Thread() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        try {
+                            while (true) {
+                                aggregator.writeCounterColumn(CF, "row", "counter", 1);
+                                accepted.incrementAndGet();
+                            }
+                        } catch (PelopsException e) {
+                            // closed
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }.start();
+            }
+            started.await();
+            Thread.sleep(5);
+            aggregator.close();
+            assertTrue("The writers weren't rejected", done.await(10, TimeUnit.SECONDS));
+
+            Long total = getTotals(pool).get("counter");
+            assertEquals(accepted.get(), total != null ? (long) total : 0L);
+            assertEquals(accepted.get(), aggregator.getIncrementsFlushed());
+        }
+    }
+
+    /**
+     * Sums the counter mutations of all the batches by column name (prefixed with the super column name).
+     */
+    private static Map<String, Long> getTotals(RecordingPool pool) {
+        Map<String, Long> totals = new HashMap<String, Long>();
+        for (Map<ByteBuffer, Map<String, List<Mutation>>> batch : pool.getBatches()) {
+            for (Map<String, List<Mutation>> row : batch.values()) {
+                for (Mutation mutation : row.get(CF)) {
+                    ColumnOrSuperColumn cosc = mutation.getColumn_or_supercolumn();
+                    if (cosc.isSetCounter_column()) {
+                        add(totals, Bytes.toUTF8(cosc.getCounter_column().bufferForName()), cosc.getCounter_column().getValue());
+                    } else {
+                        String prefix = Bytes.toUTF8(cosc.getCounter_super_column().bufferForName()) + ":";
+                        for (CounterColumn column : cosc.getCounter_super_column().getColumns())
+                            add(totals, prefix + Bytes.toUTF8(column.bufferForName()), column.getValue());
+                    }
+                }
+            }
+        }
+        return totals;
+    }
+
+    private static void add(Map<String, Long> totals, String name, long value) {
+        Long total = totals.get(name);
+        totals.put(name, total != null ? total + value : value);
+    }
+}
@@ -0,0 +1,280 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.CounterColumn;
+import org.apache.cassandra.thrift.SuperColumn;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.support.TempDirectory;
+
+/**
+ * Tests the {@link MappedRowCache} class.
+ */
+public class MappedRowCacheUnitTest {
+    private static final String KS = "Keyspace1";
+    private static final String CF = "Countries";
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = TempDirectory.create("pelops-rows");
+    }
+
+    @After
+    public void tearDown() {
+        TempDirectory.delete(directory);
+    }
+
+    /**
+     * Tests that slices of all kinds of columns survive serialization.
+     */
+    @Test
+    public void testSerialization() {
+        Column column = new Column(Bytes.fromUTF8("name").getBytes());
+        column.setValue(Bytes.fromUTF8("value").getBytes());
+        column.setTimestamp(1234);
+        column.setTtl(60);
+        Column bare = new Column(Bytes.fromUTF8("bare").getBytes());
+        List<ColumnOrSuperColumn> slice = new ArrayList<ColumnOrSuperColumn>();
+        slice.add(new ColumnOrSuperColumn().setColumn(column));
+        slice.add(new ColumnOrSuperColumn().setColumn(bare));
+        slice.add(new ColumnOrSuperColumn().setSuper_column(new SuperColumn(Bytes.fromUTF8("super").getBytes(), Arrays.asList(column))));
+        slice.add(new ColumnOrSuperColumn().setCounter_column(new CounterColumn(Bytes.fromUTF8("counter").getBytes(), 42)));
+
+        assertEquals("Slice did not survive serialization", slice, MappedRowCache.deserialize(MappedRowCache.serialize(slice)));
+    }
+
+    /**
+     * Tests that cached slices are still cached once the cache is reopened, and that invalidated slices aren't.
+     */
+    @Test
+    public void testSurvivesRestart() {
+        MappedRowCache cache = new MappedRowCache("testSurvivesRestart", directory, null);
+        try {
+            cache.setColumnFamilyTtlMillis(CF, 60000);
+            assertNull("Slice should not be cached yet", cache.get(key("row1")));
+            for (int i = 0; i < 100; i++)
+                put(cache, "row" + i, "value" + i);
+            put(cache, "row1", "updated");
+            cache.invalidate(KS, CF, Bytes.fromUTF8("row2"));
+            assertEquals("Wrong value", "updated", value(cache.get(key("row1"))));
+        } finally {
+            cache.close();
+        }
+
+        cache = new MappedRowCache("testSurvivesRestart", directory, null);
+        try {
+            cache.setColumnFamilyTtlMillis(CF, 60000);
+            assertEquals("Wrong number of slices loaded", 99, cache.getSize());
+            assertEquals("Wrong value", "value0", value(cache.get(key("row0"))));
+            assertEquals("Wrong value", "updated", value(cache.get(key("row1"))));
+            assertNull("Invalidated slice should not have been loaded", cache.get(key("row2")));
+            assertEquals("Wrong value", "value99", value(cache.get(key("row99"))));
+
+            cache.invalidate(KS, CF, Bytes.fromUTF8("row1"));
+            assertNull("Slice should have been invalidated", cache.get(key("row1")));
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Tests that a read in flight while the row is written isn't cached.
+     */
+    @Test
+    public void testInvalidationDuringRead() {
+        MappedRowCache cache = new MappedRowCache("testInvalidationDuringRead", directory, null);
+        try {
+            cache.setColumnFamilyTtlMillis(CF, 60000);
+            long generation = cache.getGeneration(KS, CF, row("row1"));
+            cache.invalidate(KS, CF, Bytes.fromUTF8("row1"));
+            cache.put(key("row1"), KS, CF, row("row1"), slice("stale"), generation);
+            assertNull("Slice read before the write should not have been cached", cache.get(key("row1")));
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Tests that the slices of rows with the same column family and key in different keyspaces are cached and
+     * invalidated separately.
+     */
+    @Test
+    public void testKeyspacesAreSeparate() {
+        MappedRowCache cache = new MappedRowCache("testKeyspacesAreSeparate", directory, null);
+        try {
+            cache.setColumnFamilyTtlMillis(CF, 60000);
+            byte[] otherKey = MappedRowCache.newKey("Keyspace2", new ColumnParent(CF), row("row1"), Selector.newColumnsPredicateAll(false));
+            put(cache, "row1", "value");
+            assertNull("Slice of another keyspace should not be cached", cache.get(otherKey));
+
+            cache.put(otherKey, "Keyspace2", CF, row("row1"), slice("other"), cache.getGeneration("Keyspace2", CF, row("row1")));
+            cache.invalidate("Keyspace2", CF, Bytes.fromUTF8("row1"));
+            assertNull("Slice should have been invalidated", cache.get(otherKey));
+            assertEquals("Wrong value", "value", value(cache.get(key("row1"))));
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Tests that the cache stays within its segments and that slices read since they were written get a second
+     * chance when their segment is recycled.
+     */
+    @Test
+    public void testClockEviction() {
+        MappedRowCache.Policy policy = new MappedRowCache.Policy();
+        policy.setSegmentSize(4096);
+        policy.setMaxSegments(4);
+        MappedRowCache cache = new MappedRowCache("testClockEviction", directory, policy);
+        try {
+            cache.setColumnFamilyTtlMillis(CF, 60000);
+            put(cache, "hot", "value");
+            for (int i = 0; i < 1000; i++) {
+                assertNotNull("Slice read regularly should have been kept", cache.get(key("hot")));
+                put(cache, "cold" + i, "value" + i);
+            }
+
+            assertEquals("Wrong number of segments", 4, cache.getSegmentCount());
+            assertEquals("Wrong number of segment files", 4, directory.listFiles().length);
+            assertTrue("Slices should have been evicted", cache.getEvictions() > 0);
+            assertTrue("Slice should have been given a second chance", cache.getSecondChances() > 0);
+            assertNull("Slice never read should have been evicted", cache.get(key("cold0")));
+            assertEquals("Wrong value", "value999", value(cache.get(key("cold999"))));
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Tests that recycled segments are rewritten in place rather than replaced by new files, and that the slices
+     * they hold are loaded from them once the cache is reopened.
+     */
+    @Test
+    public void testSegmentsRewrittenInPlace() {
+        MappedRowCache.Policy policy = new MappedRowCache.Policy();
+        policy.setSegmentSize(4096);
+        policy.setMaxSegments(4);
+        MappedRowCache cache = new MappedRowCache("testSegmentsRewrittenInPlace", directory, policy);
+        int size;
+        try {
+            cache.setColumnFamilyTtlMillis(CF, 60000);
+            put(cache, "hot", "value");
+            for (int i = 0; i < 1000; i++) {
+                cache.get(key("hot"));
+                put(cache, "cold" + i, "value" + i);
+            }
+            put(cache, "hot", "updated");
+            size = cache.getSize();
+        } finally {
+            cache.close();
+        }
+
+        List<String> names = new ArrayList<String>(Arrays.asList(directory.list()));
+        Collections.sort(names);
+        assertEquals("Wrong segment files", Arrays.asList("rows-0.db", "rows-1.db", "rows-2.db", "rows-3.db"), names);
+
+        cache = new MappedRowCache("testSegmentsRewrittenInPlace", directory, policy);
+        try {
+            cache.setColumnFamilyTtlMillis(CF, 60000);
+            assertEquals("Wrong number of slices loaded", size, cache.getSize());
+            assertEquals("Wrong value", "updated", value(cache.get(key("hot"))));
+            assertEquals("Wrong value", "value999", value(cache.get(key("cold999"))));
+            assertNull("Evicted slice should not have been loaded", cache.get(key("cold0")));
+
+            // the most recent segment is still the one written to
+            put(cache, "new", "value");
+            assertEquals("Wrong value", "value", value(cache.get(key("new"))));
+            assertEquals("Wrong number of segment files", 4, directory.list().length);
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Tests that the rows whose slices are evicted or expire are removed from the row index.
+     */
+    @Test
+    public void testRowIndexDropsEvictedAndExpiredRows() throws Exception {
+        MappedRowCache.Policy policy = new MappedRowCache.Policy();
+        policy.setSegmentSize(4096);
+        policy.setMaxSegments(4);
+        MappedRowCache cache = new MappedRowCache("testRowIndexDropsEvictedAndExpiredRows", directory, policy);
+        try {
+            cache.setColumnFamilyTtlMillis(CF, 60000);
+            for (int i = 0; i < 1000; i++)
+                put(cache, "row" + i, "value" + i);
+            assertTrue("Slices should have been evicted", cache.getEvictions() > 0);
+            assertEquals("Evicted rows should have been removed", cache.getSize(), cache.getIndexedRowCount());
+
+            cache.invalidateAll();
+            cache.setColumnFamilyTtlMillis(CF, 1);
+            put(cache, "expiring", "value");
+            Thread.sleep(10);
+            assertNull("Slice should have expired", cache.get(key("expiring")));
+            assertEquals("Expired row should have been removed", 0, cache.getIndexedRowCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Tests the hash index, including the removal of keys from clusters of colliding keys.
+     */
+    @Test
+    public void testLongIndex() {
+        MappedRowCache.LongIndex index = new MappedRowCache.LongIndex();
+        for (long key = 1; key <= 1000; key++)
+            assertEquals(-1, index.put(key << 32, key));
+        assertEquals(1000, index.size());
+
+        for (long key = 1; key <= 1000; key += 2)
+            assertEquals(key, index.remove(key << 32));
+        assertEquals(500, index.size());
+
+        for (long key = 1; key <= 1000; key++)
+            assertEquals(key % 2 == 0 ? key : -1, index.get(key << 32));
+    }
+
+    private static void put(MappedRowCache cache, String rowKey, String value) {
+        cache.put(key(rowKey), KS, CF, row(rowKey), slice(value), cache.getGeneration(KS, CF, row(rowKey)));
+    }
+
+    private static byte[] key(String rowKey) {
+        return MappedRowCache.newKey(KS, new ColumnParent(CF), row(rowKey), Selector.newColumnsPredicateAll(false));
+    }
+
+    private static ByteBuffer row(String rowKey) {
+        return Bytes.fromUTF8(rowKey).getBytes();
+    }
+
+    private static List<ColumnOrSuperColumn> slice(String value) {
+        Column column = new Column(Bytes.fromUTF8("name").getBytes());
+        column.setValue(Bytes.fromUTF8(value).getBytes());
+        column.setTimestamp(1);
+        List<ColumnOrSuperColumn> slice = new ArrayList<ColumnOrSuperColumn>();
+        slice.add(new ColumnOrSuperColumn().setColumn(column));
+        return slice;
+    }
+
+    private static String value(List<ColumnOrSuperColumn> slice) {
+        return Bytes.fromByteBuffer(slice.get(0).getColumn().bufferForValue()).toUTF8();
+    }
+}
@@ -0,0 +1,391 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.TokenRange;
+import org.apache.cassandra.thrift.UnavailableException;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.exceptions.PartialFailureException;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+import org.scale7.cassandra.pelops.support.RecordingPool;
+import org.scale7.cassandra.pelops.support.StubPool;
+import org.scale7.portability.SystemProxy;
+import org.slf4j.Logger;
+
+/**
+ * Tests the {@link org.scale7.cassandra.pelops.Mutator} class.
+ */
+public class MutatorUnitTest {
+    private static final Logger logger = SystemProxy.getLoggerFromFactory(MutatorUnitTest.class);
+
+    private static final String CF = "CF";
+
+    /**
+     * Tests that reset clears the batch and uses the new time stamp.
+     */
+    @Test
+    public void testReset() {
+        Mutator mutator = new Mutator(new StubPool(), 1, false, Mutator.NO_TTL);
+        mutator.writeColumn(CF, Bytes.fromUTF8("a"), mutator.newColumn("name", "value"));
+        assertEquals(1, mutator.getMutationCount());
+
+        mutator.reset(2);
+
+        assertEquals(0, mutator.getMutationCount());
+        assertEquals(0, mutator.getBatchSizeEstimate());
+        assertTrue("The batch should be empty", mutator.getBatch().isEmpty());
+        assertEquals(2, mutator.newColumn("name", "value").getTimestamp());
+    }
+
+    /**
+     * Tests that a reusable mutator recycles the objects of a successfully executed batch.
+     */
+    @Test
+    public void testReusableMutatorRecyclesObjects() {
+        Mutator mutator = new Mutator(new StubPool(), 1, false, Mutator.NO_TTL, true);
+        mutator.writeColumn(CF, Bytes.fromUTF8("a"), mutator.newColumn("name1", "value1", 10));
+        Mutation mutation = getMutations(mutator, "a").get(0);
+        Column column = mutation.getColumn_or_supercolumn().getColumn();
+        mutator.execute(ConsistencyLevel.ONE);
+
+        mutator.reset(2);
+        mutator.writeColumn(CF, Bytes.fromUTF8("b"), mutator.newColumn("name2", "value2"));
+
+        Mutation recycled = getMutations(mutator, "b").get(0);
+        assertSame("The mutation should have been recycled", mutation, recycled);
+        assertSame("The column should have been recycled", column, recycled.getColumn_or_supercolumn().getColumn());
+        assertEquals(Bytes.fromUTF8("name2"), Bytes.fromByteBuffer(column.name));
+        assertEquals(Bytes.fromUTF8("value2"), Bytes.fromByteBuffer(column.value));
+        assertEquals(2, column.getTimestamp());
+        assertEquals(1, mutator.getMutationCount());
+        assertEquals(1, mutator.getBatch().size());
+    }
+
+    /**
+     * Tests that the objects of a batch that wasn't executed aren't recycled.
+     */
+    @Test
+    public void testObjectsNotRecycledWithoutExecute() {
+        Mutator mutator = new Mutator(new StubPool(), 1, false, Mutator.NO_TTL, true);
+        mutator.writeColumn(CF, Bytes.fromUTF8("a"), mutator.newColumn("name", "value"));
+        Mutation mutation = getMutations(mutator, "a").get(0);
+
+        mutator.reset();
+        mutator.writeColumn(CF, Bytes.fromUTF8("a"), mutator.newColumn("name", "value"));
+
+        assertNotSame("The mutation shouldn't have been recycled", mutation, getMutations(mutator, "a").get(0));
+    }
+
+    /**
+     * Tests that superseded writes and deletes are dropped and that the remaining column deletes are merged.
+     */
+    @Test
+    public void testCompact() {
+        Mutator mutator = new Mutator(new StubPool(), 1, false, Mutator.NO_TTL);
+        Bytes rowKey = Bytes.fromUTF8("a");
+        mutator.writeColumn(CF, rowKey, mutator.newColumn("c1", "v1"));
+        Column latest = mutator.newColumn("c1", "v2");
+        latest.setTimestamp(2);
+        mutator.writeColumn(CF, rowKey, latest);
+        // deletes win ties
+        mutator.writeColumn(CF, rowKey, mutator.newColumn("c2", "v"));
+        mutator.deleteColumn(CF, rowKey, Bytes.fromUTF8("c2"));
+        mutator.deleteColumns(CF, rowKey, Bytes.fromUTF8("c3"), Bytes.fromUTF8("c4"));
+        Column afterDelete = mutator.newColumn("c5", "v");
+        afterDelete.setTimestamp(5);
+        mutator.deleteColumn(CF, rowKey, Bytes.fromUTF8("c5"));
+        mutator.writeColumn(CF, rowKey, afterDelete);
+
+        assertEquals(4, mutator.compact());
+
+        List<Mutation> mutations = getMutations(mutator, "a");
+        assertEquals(3, mutations.size());
+        assertEquals(3, mutator.getMutationCount());
+        assertSame(latest, mutations.get(0).getColumn_or_supercolumn().getColumn());
+        assertSame(afterDelete, mutations.get(1).getColumn_or_supercolumn().getColumn());
+        assertEquals(1, mutations.get(2).getDeletion().getTimestamp());
+        assertEquals(Bytes.transformBytesToList(Arrays.asList(Bytes.fromUTF8("c2"), Bytes.fromUTF8("c3"), Bytes.fromUTF8("c4"))),
+                mutations.get(2).getDeletion().getPredicate().getColumn_names());
+    }
+
+    /**
+     * Tests that the writes of the same super column are merged and that sub column deletes are resolved.
+     */
+    @Test
+    public void testCompactSuperColumns() {
+        Mutator mutator = new Mutator(new StubPool(), 1, false, Mutator.NO_TTL);
+        Bytes rowKey = Bytes.fromUTF8("a");
+        Bytes superColumn = Bytes.fromUTF8("super");
+        mutator.writeSubColumns(CF, rowKey, superColumn, mutator.newColumnList(mutator.newColumn("s1", "v1"), mutator.newColumn("s2", "v1")));
+        mutator.writeSubColumns(CF, rowKey, superColumn, mutator.newColumnList(mutator.newColumn("s1", "v2"), mutator.newColumn("s3", "v1")));
+        mutator.deleteSubColumn(CF, rowKey, superColumn, Bytes.fromUTF8("s3"));
+
+        assertEquals(1, mutator.compact());
+
+        List<Mutation> mutations = getMutations(mutator, "a");
+        assertEquals(2, mutations.size());
+        List<Column> columns = mutations.get(0).getColumn_or_supercolumn().getSuper_column().getColumns();
+        assertEquals(2, columns.size());
+        assertEquals(Bytes.fromUTF8("v2"), Bytes.fromByteBuffer(columns.get(0).value));
+        assertEquals(Bytes.fromUTF8("s2"), Bytes.fromByteBuffer(columns.get(1).name));
+        assertEquals(superColumn, Bytes.fromByteBuffer(mutations.get(1).getDeletion().super_column));
+    }
+
+    /**
+     * Measures the number of bytes allocated per column written with a new mutator per batch and with a reusable
+     * mutator, and checks that the reusable mutator allocates significantly less.
+     */
+    @Test
+    public void testReusableMutatorAllocatesLess() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean) ||
+                !((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()) {
+            logger.warn("Skipping allocation measurement, it isn't supported by this JVM");
+            return;
+        }
+
+        // warm up
+        bytesAllocatedPerColumn(false);
+        bytesAllocatedPerColumn(true);
+
+        long fresh = bytesAllocatedPerColumn(false);
+        long reusable = bytesAllocatedPerColumn(true);
+        logger.info("Allocated {} bytes per column using a new mutator per batch and {} bytes per column using a reusable mutator", fresh, reusable);
+
+        assertTrue("Expected the reusable mutator to allocate less than half of " + fresh + " bytes per column but it allocated " + reusable, reusable * 2 < fresh);
+    }
+
+    /**
+     * Tests that batches that touch more than the max rows are split.
+     */
+    @Test
+    public void testSplitByRows() {
+        RecordingPool pool = new RecordingPool(new OperandPolicy().setMaxBatchRows(2));
+        Mutator mutator = new Mutator(pool, 1, false, Mutator.NO_TTL);
+        for (int i = 0; i < 5; i++)
+            mutator.writeColumn(CF, Bytes.fromUTF8("row" + i), mutator.newColumn("name", "value"));
+
+        mutator.execute(ConsistencyLevel.ONE);
+
+        assertEquals(3, pool.getBatches().size());
+        assertEquals(2, pool.getBatches().get(0).size());
+        assertEquals(2, pool.getBatches().get(1).size());
+        assertEquals(1, pool.getBatches().get(2).size());
+        assertEquals(5, rowsSent(pool).size());
+    }
+
+    /**
+     * Tests that batches larger than the max bytes are split, counting the row key and column family entries.
+     */
+    @Test
+    public void testSplitByBytes() {
+        Mutator mutator = new Mutator(new StubPool(), 1, false, Mutator.NO_TTL);
+        for (int i = 0; i < 5; i++)
+            mutator.writeColumn(CF, Bytes.fromUTF8("row" + i), mutator.newColumn("name", "value"));
+        // each row is the same size
+        long rowSize = "row0".length() + CF.length() + 2 * Mutator.NAME_OVERHEAD + Mutator.estimateSize(getMutations(mutator, "row0").get(0));
+
+        RecordingPool pool = new RecordingPool(new OperandPolicy().setMaxBatchBytes(2 * rowSize));
+        mutator = new Mutator(pool, 1, false, Mutator.NO_TTL);
+        for (int i = 0; i < 5; i++)
+            mutator.writeColumn(CF, Bytes.fromUTF8("row" + i), mutator.newColumn("name", "value"));
+
+        mutator.execute(ConsistencyLevel.ONE);
+
+        assertEquals(3, pool.getBatches().size());
+        assertEquals(2, pool.getBatches().get(0).size());
+        assertEquals(2, pool.getBatches().get(1).size());
+        assertEquals(1, pool.getBatches().get(2).size());
+        assertEquals(5, rowsSent(pool).size());
+    }
+
+    /**
+     * Tests that the mutations of a row larger than the max bytes are spread across several batches, and that a
+     * mutation larger than the max bytes is sent on its own rather than being dropped.
+     */
+    @Test
+    public void testSplitRowLargerThanMaxBytes() {
+        RecordingPool pool = new RecordingPool(new OperandPolicy().setMaxBatchBytes(1));
+        Mutator mutator = new Mutator(pool, 1, false, Mutator.NO_TTL);
+        for (int i = 0; i < 3; i++)
+            mutator.writeColumn(CF, Bytes.fromUTF8("row"), mutator.newColumn("name" + i, "value"));
+
+        mutator.execute(ConsistencyLevel.ONE);
+
+        assertEquals(3, pool.getBatches().size());
+        for (int i = 0; i < 3; i++) {
+            List<Mutation> mutations = pool.getBatches().get(i).get(Bytes.fromUTF8("row").getBytes()).get(CF);
+            assertEquals(1, mutations.size());
+            assertEquals(Bytes.fromUTF8("name" + i), Bytes.fromByteBuffer(mutations.get(0).getColumn_or_supercolumn().getColumn().name));
+        }
+    }
+
+    /**
+     * Tests that when the batches are executed in sequence the batches following a failed batch aren't attempted and
+     * are reported as failed.
+     */
+    @Test
+    public void testSplitNotAttemptedAfterFailure() {
+        final AtomicInteger calls = new AtomicInteger();
+        RecordingPool pool = new RecordingPool(new OperandPolicy().setMaxOpRetries(0).setMaxBatchRows(1)) {
+            @Override
+            protected void onBatch(Map<ByteBuffer, Map<String, List<Mutation>>> batch, String node) throws UnavailableException {
+                if (calls.incrementAndGet() == 2)
+                    throw new UnavailableException();
+            }
+        };
+        Mutator mutator = new Mutator(pool, 1, false, Mutator.NO_TTL);
+        for (int i = 0; i < 3; i++)
+            mutator.writeColumn(CF, Bytes.fromUTF8("row" + i), mutator.newColumn("name", "value"));
+
+        try {
+            mutator.execute(ConsistencyLevel.ONE);
+            fail("The second batch should have failed");
+        } catch (PartialFailureException e) {
+            assertEquals(2, calls.get());
+            assertEquals(1, pool.getBatches().size());
+            assertEquals(rowsSent(pool), toByteBuffers(e.getSucceededRowKeys()));
+            assertEquals(2, e.getFailedRowKeys().size());
+
+            int notAttempted = 0;
+            for (PelopsException failure : e.getFailures().values()) {
+                if (failure instanceof org.scale7.cassandra.pelops.exceptions.UnavailableException)
+                    continue;
+                assertTrue(failure.getCause() instanceof org.scale7.cassandra.pelops.exceptions.UnavailableException);
+                notAttempted++;
+            }
+            assertEquals(1, notAttempted);
+        }
+    }
+
+    /**
+     * Tests that the rows are grouped into one batch per primary replica and that each batch is steered to its
+     * replica.
+     */
+    @Test
+    public void testExecuteWithRingGroupsByPrimaryReplica() {
+        // the pool would use node2 if the batches weren't steered
+        RecordingPool pool = new RecordingPool("node2", "node1");
+        Mutator mutator = new Mutator(pool, 1, false, Mutator.NO_TTL);
+        for (String rowKey : new String[] {"apple", "zebra", "banana"})
+            mutator.writeColumn(CF, Bytes.fromUTF8(rowKey), mutator.newColumn("name", "value"));
+
+        mutator.execute(ConsistencyLevel.ONE, newRing());
+
+        assertEquals(2, pool.getBatches().size());
+        assertEquals(rowKeys("apple", "banana"), pool.getBatches().get(pool.getBatchNodes().indexOf("node1")).keySet());
+        assertEquals(rowKeys("zebra"), pool.getBatches().get(pool.getBatchNodes().indexOf("node2")).keySet());
+    }
+
+    /**
+     * Tests that the rows of the batches that failed are reported once the other batches have been applied.
+     */
+    @Test
+    public void testExecuteWithRingReportsPartialFailure() {
+        RecordingPool pool = new RecordingPool(new OperandPolicy().setMaxOpRetries(0), "node1", "node2") {
+            @Override
+            protected void onBatch(Map<ByteBuffer, Map<String, List<Mutation>>> batch, String node) throws UnavailableException {
+                if (node.equals("node2"))
+                    throw new UnavailableException();
+            }
+        };
+        Mutator mutator = new Mutator(pool, 1, false, Mutator.NO_TTL);
+        for (String rowKey : new String[] {"apple", "zebra", "banana"})
+            mutator.writeColumn(CF, Bytes.fromUTF8(rowKey), mutator.newColumn("name", "value"));
+
+        try {
+            mutator.execute(ConsistencyLevel.ONE, newRing());
+            fail("The batch sent to node2 should have failed");
+        } catch (PartialFailureException e) {
+            assertEquals(Collections.singleton(Bytes.fromUTF8("zebra")), e.getFailedRowKeys());
+            assertEquals(new HashSet<Bytes>(Arrays.asList(Bytes.fromUTF8("apple"), Bytes.fromUTF8("banana"))), e.getSucceededRowKeys());
+            assertTrue(e.getFailures().get(Bytes.fromUTF8("zebra")) instanceof org.scale7.cassandra.pelops.exceptions.UnavailableException);
+        }
+        assertEquals(1, pool.getBatches().size());
+        assertEquals("node1", pool.getBatchNodes().get(0));
+    }
+
+    /**
+     * A byte ordered ring where node1 owns the rows before "m" and node2 the others.
+     */
+    private static TokenRing newRing() {
+        return new TokenRing(TokenRing.BYTE_ORDERED_PARTITIONER, Arrays.asList(
+                new TokenRange("", "6d", Arrays.asList("node1", "node2")),
+                new TokenRange("6d", "", Arrays.asList("node2", "node1"))
+        ));
+    }
+
+    private static Set<ByteBuffer> rowsSent(RecordingPool pool) {
+        Set<ByteBuffer> rowKeys = new HashSet<ByteBuffer>();
+        for (Map<ByteBuffer, Map<String, List<Mutation>>> batch : pool.getBatches())
+            rowKeys.addAll(batch.keySet());
+        return rowKeys;
+    }
+
+    private static Set<ByteBuffer> toByteBuffers(Set<Bytes> rowKeys) {
+        Set<ByteBuffer> keys = new HashSet<ByteBuffer>();
+        for (Bytes rowKey : rowKeys)
+            keys.add(rowKey.getBytes());
+        return keys;
+    }
+
+    private static Set<ByteBuffer> rowKeys(String... rowKeys) {
+        Set<ByteBuffer> keys = new HashSet<ByteBuffer>();
+        for (String rowKey : rowKeys)
+            keys.add(Bytes.fromUTF8(rowKey).getBytes());
+        return keys;
+    }
+
+    private static long bytesAllocatedPerColumn(boolean reusable) {
+        final int batches = 100, rows = 10, columns = 100;
+        Bytes[] rowKeys = new Bytes[rows];
+        for (int i = 0; i < rows; i++)
+            rowKeys[i] = Bytes.fromUTF8("row" + i);
+        Bytes[] names = new Bytes[columns];
+        for (int i = 0; i < columns; i++)
+            names[i] = Bytes.fromUTF8("column" + i);
+        Bytes value = Bytes.fromUTF8("value");
+
+        StubPool pool = new StubPool();
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        Mutator mutator = reusable ? new Mutator(pool, 0, false, Mutator.NO_TTL, true) : null;
+
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int batch = 0; batch < batches; batch++) {
+            if (reusable)
+                mutator.reset(batch);
+            else
+                mutator = new Mutator(pool, batch, false, Mutator.NO_TTL);
+
+            for (Bytes rowKey : rowKeys)
+                for (Bytes name : names)
+                    mutator.writeColumn(CF, rowKey, mutator.newColumn(name, value));
+
+            mutator.execute(ConsistencyLevel.ONE);
+        }
+        return (threadBean.getThreadAllocatedBytes(threadId) - before) / (batches * rows * columns);
+    }
+
+    private static List<Mutation> getMutations(Mutator mutator, String rowKey) {
+        return mutator.getBatch().get(Bytes.fromUTF8(rowKey).getBytes()).get(CF);
+    }
+}
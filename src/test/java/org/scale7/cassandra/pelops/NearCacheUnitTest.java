@@ -0,0 +1,202 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the {@link NearCache} class.
+ */
+public class NearCacheUnitTest {
+    private static final String KS = "Keyspace1";
+    private static final String CF = "Users";
+
+    private NearCache cache;
+
+    @After
+    public void tearDown() {
+        if (cache != null)
+            cache.decommission();
+    }
+
+    /**
+     * Tests that cached slices are returned as copies and that only column families with a time to live are cached.
+     */
+    @Test
+    public void testGetAndPut() {
+        cache = new NearCache("testGetAndPut", 100, 1024 * 1024);
+        cache.setColumnFamilyTtlMillis(CF, 60000);
+        assertTrue("Column family should be cached", cache.isCached(CF));
+        assertTrue("Column family should not be cached", !cache.isCached("Other"));
+
+        Object key = key(CF, "row1");
+        assertNull("Slice should not be cached yet", cache.get(key));
+        cache.put(key, KS, CF, row("row1"), slice("value"), cache.getGeneration(KS, CF, row("row1")));
+
+        List<ColumnOrSuperColumn> cached = cache.get(key);
+        assertNotNull("Slice should have been cached", cached);
+        assertEquals("Wrong value", "value", Bytes.fromByteBuffer(cached.get(0).getColumn().bufferForValue()).toUTF8());
+
+        cached.get(0).getColumn().setValue(Bytes.fromUTF8("changed").getBytes());
+        assertEquals("Cached slice should not be affected by the caller", "value",
+                Bytes.fromByteBuffer(cache.get(key).get(0).getColumn().bufferForValue()).toUTF8());
+
+        Object otherKey = key("Other", "row1");
+        cache.put(otherKey, KS, "Other", row("row1"), slice("value"), cache.getGeneration(KS, "Other", row("row1")));
+        assertNull("Column family without a time to live should not be cached", cache.get(otherKey));
+
+        assertEquals("Wrong number of hits", 2, cache.getHits());
+        assertEquals("Wrong number of misses", 2, cache.getMisses());
+        assertEquals("Wrong size", 1, cache.getSize());
+    }
+
+    /**
+     * Tests that entries expire once they are older than the time to live of their column family.
+     */
+    @Test
+    public void testExpiry() throws Exception {
+        cache = new NearCache("testExpiry", 100, 1024 * 1024);
+        cache.setColumnFamilyTtlMillis(CF, 50);
+
+        Object key = key(CF, "row1");
+        cache.put(key, KS, CF, row("row1"), slice("value"), cache.getGeneration(KS, CF, row("row1")));
+        assertNotNull("Slice should have been cached", cache.get(key));
+
+        Thread.sleep(100);
+        assertNull("Slice should have expired", cache.get(key));
+        assertEquals("Wrong number of expirations", 1, cache.getExpirations());
+    }
+
+    /**
+     * Tests that writes invalidate all the slices of the row, and that a read in flight while the row is written isn't
+     * cached.
+     */
+    @Test
+    public void testInvalidation() {
+        cache = new NearCache("testInvalidation", 100, 1024 * 1024);
+        cache.setColumnFamilyTtlMillis(CF, 60000);
+
+        Object key1 = key(CF, "row1");
+        Object key2 = NearCache.newKey(KS, new ColumnParent(CF), row("row1"), Selector.newColumnsPredicate("a", "b"));
+        Object key3 = key(CF, "row2");
+        cache.put(key1, KS, CF, row("row1"), slice("value"), cache.getGeneration(KS, CF, row("row1")));
+        cache.put(key2, KS, CF, row("row1"), slice("value"), cache.getGeneration(KS, CF, row("row1")));
+        cache.put(key3, KS, CF, row("row2"), slice("value"), cache.getGeneration(KS, CF, row("row2")));
+
+        Map<ByteBuffer, Map<String, List<Mutation>>> batch = Collections.singletonMap(row("row1"),
+                Collections.singletonMap(CF, (List<Mutation>) new ArrayList<Mutation>()));
+        cache.invalidate(KS, batch);
+        assertNull("Slice should have been invalidated", cache.get(key1));
+        assertNull("Slice should have been invalidated", cache.get(key2));
+        assertNotNull("Slice of another row should still be cached", cache.get(key3));
+        assertEquals("Wrong number of invalidations", 2, cache.getInvalidations());
+
+        long generation = cache.getGeneration(KS, CF, row("row2"));
+        cache.invalidate(KS, CF, Bytes.fromUTF8("row2"));
+        cache.put(key3, KS, CF, row("row2"), slice("stale"), generation);
+        assertNull("Slice read before the write should not have been cached", cache.get(key3));
+    }
+
+    /**
+     * Tests that the slices of rows with the same column family and key in different keyspaces are cached and
+     * invalidated separately.
+     */
+    @Test
+    public void testKeyspacesAreSeparate() {
+        cache = new NearCache("testKeyspacesAreSeparate", 100, 1024 * 1024);
+        cache.setColumnFamilyTtlMillis(CF, 60000);
+
+        Object key = key(CF, "row1");
+        Object otherKey = NearCache.newKey("Keyspace2", new ColumnParent(CF), row("row1"), Selector.newColumnsPredicateAll(false));
+        cache.put(key, KS, CF, row("row1"), slice("value"), cache.getGeneration(KS, CF, row("row1")));
+        assertNull("Slice of another keyspace should not be cached", cache.get(otherKey));
+
+        cache.put(otherKey, "Keyspace2", CF, row("row1"), slice("other"), cache.getGeneration("Keyspace2", CF, row("row1")));
+        cache.invalidate("Keyspace2", CF, Bytes.fromUTF8("row1"));
+        assertNull("Slice should have been invalidated", cache.get(otherKey));
+        assertNotNull("Slice of another keyspace should still be cached", cache.get(key));
+    }
+
+    /**
+     * Tests that the cache stays within its bounds and that frequently read entries survive a scan of one-off reads.
+     */
+    @Test
+    public void testFrequentEntriesSurviveScan() {
+        cache = new NearCache("testFrequentEntriesSurviveScan", 100, 1024 * 1024);
+        cache.setColumnFamilyTtlMillis(CF, 60000);
+
+        for (int i = 0; i < 50; i++) {
+            Object key = key(CF, "hot" + i);
+            for (int j = 0; j < 5; j++) {
+                if (cache.get(key) == null)
+                    cache.put(key, KS, CF, row("hot" + i), slice("value"), cache.getGeneration(KS, CF, row("hot" + i)));
+            }
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            Object key = key(CF, "cold" + i);
+            if (cache.get(key) == null)
+                cache.put(key, KS, CF, row("cold" + i), slice("value"), cache.getGeneration(KS, CF, row("cold" + i)));
+        }
+
+        assertTrue("Cache should be within its bounds", cache.getSize() <= 100);
+        assertTrue("Entries should have been evicted", cache.getEvictions() > 0);
+        int hot = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get(key(CF, "hot" + i)) != null)
+                hot++;
+        }
+        assertTrue("Frequently read entries should have survived the scan: " + hot, hot >= 45);
+    }
+
+    /**
+     * Tests that the cache stays within its weight bound.
+     */
+    @Test
+    public void testWeightBound() {
+        cache = new NearCache("testWeightBound", 1000, 10000);
+        cache.setColumnFamilyTtlMillis(CF, 60000);
+
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            value.append('x');
+        for (int i = 0; i < 100; i++)
+            cache.put(key(CF, "row" + i), KS, CF, row("row" + i), slice(value.toString()), cache.getGeneration(KS, CF, row("row" + i)));
+
+        assertTrue("Cache should be within its weight bound: " + cache.getWeight(), cache.getWeight() <= 10000);
+        assertTrue("Cache should hold some entries", cache.getSize() > 0);
+    }
+
+    private static Object key(String columnFamily, String rowKey) {
+        SlicePredicate predicate = Selector.newColumnsPredicateAll(false);
+        return NearCache.newKey(KS, new ColumnParent(columnFamily), row(rowKey), predicate);
+    }
+
+    private static ByteBuffer row(String rowKey) {
+        return Bytes.fromUTF8(rowKey).getBytes();
+    }
+
+    private static List<ColumnOrSuperColumn> slice(String value) {
+        Column column = new Column(Bytes.fromUTF8("name").getBytes());
+        column.setValue(Bytes.fromUTF8(value).getBytes());
+        column.setTimestamp(1);
+        List<ColumnOrSuperColumn> slice = new ArrayList<ColumnOrSuperColumn>();
+        slice.add(new ColumnOrSuperColumn().setColumn(column));
+        return slice;
+    }
+}
@@ -0,0 +1,168 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.ColumnPath;
+import org.apache.cassandra.thrift.Mutation;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the {@link NegativeCache} class.
+ */
+public class NegativeCacheUnitTest {
+    private static final String KS = "Keyspace1";
+    private static final String CF = "Users";
+
+    private NegativeCache cache;
+
+    @After
+    public void tearDown() {
+        if (cache != null)
+            cache.decommission();
+    }
+
+    /**
+     * Tests that misses are remembered for the time to live of their column family.
+     */
+    @Test
+    public void testMissesExpire() throws Exception {
+        cache = new NegativeCache("testMissesExpire", 100);
+        cache.setColumnFamilyTtlMillis(CF, 50);
+
+        Object key = key(CF, "row1", "col1");
+        assertTrue("Read should not be known to find nothing yet", !cache.isAbsent(key, KS, CF, row("row1")));
+        cache.put(key, KS, CF, row("row1"), cache.getGeneration(KS, CF, row("row1")));
+        assertTrue("Miss should have been remembered", cache.isAbsent(key, KS, CF, row("row1")));
+        assertTrue("Other column should not be known to be absent", !cache.isAbsent(key(CF, "row1", "col2"), KS, CF, row("row1")));
+
+        Thread.sleep(100);
+        assertTrue("Miss should have expired", !cache.isAbsent(key, KS, CF, row("row1")));
+        assertEquals("Wrong number of hits", 1, cache.getHits());
+        assertEquals("Wrong number of misses", 3, cache.getMisses());
+
+        Object otherKey = key("Other", "row1", "col1");
+        cache.put(otherKey, KS, "Other", row("row1"), cache.getGeneration(KS, "Other", row("row1")));
+        assertTrue("Column family without a time to live should not be recorded", !cache.isAbsent(otherKey, KS, "Other", row("row1")));
+    }
+
+    /**
+     * Tests that the number of remembered misses is bounded.
+     */
+    @Test
+    public void testBounded() {
+        cache = new NegativeCache("testBounded", 10);
+        cache.setColumnFamilyTtlMillis(CF, 60000);
+
+        for (int i = 0; i < 100; i++)
+            cache.put(key(CF, "row" + i, "col"), KS, CF, row("row" + i), cache.getGeneration(KS, CF, row("row" + i)));
+
+        assertEquals("Wrong size", 10, cache.getSize());
+        assertTrue("Most recent miss should have been remembered", cache.isAbsent(key(CF, "row99", "col"), KS, CF, row("row99")));
+        assertTrue("Eldest miss should have been discarded", !cache.isAbsent(key(CF, "row0", "col"), KS, CF, row("row0")));
+    }
+
+    /**
+     * Tests that writes forget the misses of the row, and that a miss read while the row is written isn't recorded.
+     */
+    @Test
+    public void testInvalidation() {
+        cache = new NegativeCache("testInvalidation", 100);
+        cache.setColumnFamilyTtlMillis(CF, 60000);
+
+        Object key1 = key(CF, "row1", "col1");
+        Object key2 = key(CF, "row1", "col2");
+        Object key3 = key(CF, "row2", "col1");
+        cache.put(key1, KS, CF, row("row1"), cache.getGeneration(KS, CF, row("row1")));
+        cache.put(key2, KS, CF, row("row1"), cache.getGeneration(KS, CF, row("row1")));
+        cache.put(key3, KS, CF, row("row2"), cache.getGeneration(KS, CF, row("row2")));
+
+        Map<ByteBuffer, Map<String, List<Mutation>>> batch = Collections.singletonMap(row("row1"),
+                Collections.singletonMap(CF, (List<Mutation>) new ArrayList<Mutation>()));
+        cache.invalidate(KS, batch);
+        assertTrue("Miss should have been forgotten", !cache.isAbsent(key1, KS, CF, row("row1")));
+        assertTrue("Miss should have been forgotten", !cache.isAbsent(key2, KS, CF, row("row1")));
+        assertTrue("Miss of another row should be remembered", cache.isAbsent(key3, KS, CF, row("row2")));
+        assertEquals("Wrong number of invalidations", 2, cache.getInvalidations());
+
+        long generation = cache.getGeneration(KS, CF, row("row1"));
+        cache.invalidate(KS, CF, Bytes.fromUTF8("row1"));
+        cache.put(key1, KS, CF, row("row1"), generation);
+        assertTrue("Miss read before the write should not have been recorded", !cache.isAbsent(key1, KS, CF, row("row1")));
+    }
+
+    /**
+     * Tests that rows absent from the row key filter are known to be absent, and that written rows are added to it.
+     */
+    @Test
+    public void testRowKeyFilter() {
+        cache = new NegativeCache("testRowKeyFilter", 100);
+
+        List<Bytes> rowKeys = new ArrayList<Bytes>();
+        for (int i = 0; i < 1000; i++)
+            rowKeys.add(Bytes.fromUTF8("row" + i));
+        cache.loadRowKeyFilter(KS, CF, new BloomFilter(1000, 0.01), rowKeys.iterator());
+        assertNotNull("Filter should have been loaded", cache.getRowKeyFilter(KS, CF));
+        assertTrue("Column family should be checked", cache.isCached(KS, CF));
+
+        for (int i = 0; i < 1000; i++)
+            assertTrue("Loaded row should not be absent", !cache.isAbsent(key(CF, "row" + i, "col"), KS, CF, row("row" + i)));
+
+        int absent = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (cache.isAbsent(key(CF, "other" + i, "col"), KS, CF, row("other" + i)))
+                absent++;
+        }
+        assertTrue("Most unknown rows should be absent: " + absent, absent > 950);
+        assertEquals("Wrong number of filter hits", absent, cache.getFilterHits());
+
+        int created = 0;
+        while (!cache.isAbsent(key(CF, "new" + created, "col"), KS, CF, row("new" + created)))
+            created++;
+        cache.invalidate(KS, CF, Bytes.fromUTF8("new" + created));
+        assertTrue("Written row should not be absent", !cache.isAbsent(key(CF, "new" + created, "col"), KS, CF, row("new" + created)));
+    }
+
+    /**
+     * Tests that the misses and row key filters of a column family only apply to the keyspace they were recorded for.
+     */
+    @Test
+    public void testKeyspacesAreSeparate() {
+        cache = new NegativeCache("testKeyspacesAreSeparate", 100);
+        cache.setColumnFamilyTtlMillis(CF, 60000);
+
+        ColumnPath path = new ColumnPath(CF);
+        path.setColumn(Bytes.fromUTF8("col").getBytes());
+        Object otherKey = NegativeCache.newKey("Keyspace2", path, row("row1"));
+        cache.put(key(CF, "row1", "col"), KS, CF, row("row1"), cache.getGeneration(KS, CF, row("row1")));
+        assertTrue("Miss should have been remembered", cache.isAbsent(key(CF, "row1", "col"), KS, CF, row("row1")));
+        assertTrue("Miss of another keyspace should not be remembered", !cache.isAbsent(otherKey, "Keyspace2", CF, row("row1")));
+
+        cache.loadRowKeyFilter(KS, CF, new BloomFilter(100, 0.01), new ArrayList<Bytes>().iterator());
+        assertTrue("Keyspace with a filter should be checked", cache.hasRowKeyFilter(KS, CF));
+        assertTrue("Keyspace without a filter should not be", !cache.hasRowKeyFilter("Keyspace2", CF));
+        assertTrue("Row absent from the filter should be absent", cache.isAbsent(key(CF, "row2", "col"), KS, CF, row("row2")));
+        assertTrue("Filter should not apply to another keyspace", !cache.isAbsent(otherKey, "Keyspace2", CF, row("row2")));
+
+        cache.invalidate("Keyspace2", CF, Bytes.fromUTF8("row1"));
+        assertTrue("Miss of another keyspace should still be remembered", cache.isAbsent(key(CF, "row1", "col"), KS, CF, row("row1")));
+    }
+
+    private static Object key(String columnFamily, String rowKey, String colName) {
+        ColumnPath path = new ColumnPath(columnFamily);
+        path.setColumn(Bytes.fromUTF8(colName).getBytes());
+        return NegativeCache.newKey(KS, path, row(rowKey));
+    }
+
+    private static ByteBuffer row(String rowKey) {
+        return Bytes.fromUTF8(rowKey).getBytes();
+    }
+}
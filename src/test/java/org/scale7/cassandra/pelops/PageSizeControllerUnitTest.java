@@ -0,0 +1,61 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link PageSizeController} class.
+ */
+public class PageSizeControllerUnitTest {
+    private PageSizeController.Policy newPolicy() {
+        PageSizeController.Policy policy = new PageSizeController.Policy();
+        policy.setMinPageSize(10);
+        policy.setMaxPageSize(1000);
+        policy.setTargetPageBytes(100000);
+        policy.setTargetPageMillis(100);
+        policy.setMaxGrowthFactor(2);
+        return policy;
+    }
+
+    @Test
+    public void testInitialPageSizeIsClamped() {
+        assertEquals(10, new PageSizeController(newPolicy(), 1).getPageSize());
+        assertEquals(1000, new PageSizeController(newPolicy(), 5000).getPageSize());
+        assertEquals(100, new PageSizeController(newPolicy(), 100).getPageSize());
+    }
+
+    @Test
+    public void testGrowthIsLimited() {
+        PageSizeController controller = new PageSizeController(newPolicy(), 100);
+
+        // tiny columns and fast responses
+        assertEquals(200, controller.update(100, 100, 1000, 1));
+        assertEquals(400, controller.update(200, 200, 2000, 1));
+        assertEquals(800, controller.update(400, 400, 4000, 1));
+        assertEquals(1000, controller.update(800, 800, 8000, 1));
+    }
+
+    @Test
+    public void testShrinksToTargetBytes() {
+        PageSizeController controller = new PageSizeController(newPolicy(), 100);
+
+        // 10KB per column, the target is 100KB per page
+        assertEquals(10, controller.update(100, 100, 1000000, 1));
+    }
+
+    @Test
+    public void testShrinksToTargetLatency() {
+        PageSizeController controller = new PageSizeController(newPolicy(), 100);
+
+        assertEquals(50, controller.update(100, 100, 1000, 200));
+    }
+
+    @Test
+    public void testShortPageWithinTargetsIsIgnored() {
+        PageSizeController controller = new PageSizeController(newPolicy(), 100);
+
+        assertEquals(100, controller.update(100, 5, 50, 1));
+        assertEquals(100, controller.update(100, 0, 0, 1));
+    }
+}
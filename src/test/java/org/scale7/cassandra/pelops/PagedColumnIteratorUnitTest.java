@@ -0,0 +1,173 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.KeyRange;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.support.StubPool;
+
+/**
+ * Tests the {@link org.scale7.cassandra.pelops.PagedColumnIterator} class.
+ */
+public class PagedColumnIteratorUnitTest {
+    private static final String CF = "CF";
+
+    /**
+     * Tests that the columns of all rows are returned once each and in order when the pages end part way through rows
+     * and at the end of rows.
+     */
+    @Test
+    public void testIteratesAllColumnsAcrossPages() {
+        PagedSelector selector = new PagedSelector();
+        selector.addRow("a", "1", "2", "3");
+        selector.addRow("b", "1");
+        selector.addRow("c", "1", "2", "3", "4");
+
+        PagedColumnIterator iterator = new PagedColumnIterator(selector, CF, allRows(), null, 3, ConsistencyLevel.ONE);
+
+        assertEquals(Arrays.asList("a:1", "a:2", "a:3", "b:1", "c:1", "c:2", "c:3", "c:4"), drain(iterator));
+        // the first page starts at the beginning of the range, the following pages with the last column returned
+        assertEquals(Arrays.asList("null", "a:3", "c:1", "c:3"), selector.pageStarts);
+    }
+
+    /**
+     * Tests that an iteration resumed from a cursor part way through a row starts with the column after the cursor,
+     * the page starting with the (skipped) cursor column.
+     */
+    @Test
+    public void testResumeMidRowSkipsCursorColumn() {
+        PagedSelector selector = new PagedSelector();
+        selector.addRow("a", "1", "2", "3", "4");
+        selector.addRow("b", "1");
+
+        PagedColumnIterator iterator = new PagedColumnIterator(selector, CF, allRows(), cursor("a", "2"), 2, ConsistencyLevel.ONE);
+
+        assertEquals(Arrays.asList("a:3", "a:4", "b:1"), drain(iterator));
+        assertEquals("a:2", selector.pageStarts.get(0));
+    }
+
+    /**
+     * Tests that an iteration resumed from the last column of a row moves on to the next row.
+     */
+    @Test
+    public void testResumeFromLastColumnMovesToNextRow() {
+        PagedSelector selector = new PagedSelector();
+        selector.addRow("a", "1", "2");
+        selector.addRow("b", "1", "2");
+        selector.addRow("c", "1");
+
+        PagedColumnIterator iterator = new PagedColumnIterator(selector, CF, allRows(), cursor("a", "2"), 2, ConsistencyLevel.ONE);
+
+        assertEquals(Arrays.asList("b:1", "b:2", "c:1"), drain(iterator));
+    }
+
+    /**
+     * Tests that an iteration resumed from the last column of the range ends after the page holding only the cursor
+     * column.
+     */
+    @Test
+    public void testPageOfCursorColumnOnly() {
+        PagedSelector selector = new PagedSelector();
+        selector.addRow("a", "1", "2");
+        selector.addRow("b", "1");
+
+        PagedColumnIterator iterator = new PagedColumnIterator(selector, CF, allRows(), cursor("b", "1"), 2, ConsistencyLevel.ONE);
+
+        assertFalse(iterator.hasNext());
+        assertEquals(1, selector.pageStarts.size());
+    }
+
+    /**
+     * Tests that an iteration resumed from the cursor of another iteration returns the remaining columns.
+     */
+    @Test
+    public void testResumeFromCursorOfPreviousIteration() {
+        PagedSelector selector = new PagedSelector();
+        selector.addRow("a", "1", "2", "3");
+        selector.addRow("b", "1", "2");
+
+        PagedColumnIterator first = new PagedColumnIterator(selector, CF, allRows(), null, 2, ConsistencyLevel.ONE);
+        assertNull(first.getCursor());
+        first.next();
+        first.next();
+        first.next();
+        PagedColumnIterator.Cursor cursor = first.getCursor();
+        assertEquals(Bytes.fromUTF8("a"), cursor.getRowKey());
+        assertEquals(Bytes.fromUTF8("3"), cursor.getColumnName());
+
+        PagedColumnIterator resumed = new PagedColumnIterator(selector, CF, allRows(), cursor, 2, ConsistencyLevel.ONE);
+
+        assertEquals(Arrays.asList("b:1", "b:2"), drain(resumed));
+    }
+
+    private static KeyRange allRows() {
+        return new KeyRange().setStart_key(Bytes.EMPTY.getBytes()).setEnd_key(Bytes.EMPTY.getBytes());
+    }
+
+    private static PagedColumnIterator.Cursor cursor(String rowKey, String columnName) {
+        return new PagedColumnIterator.Cursor(Bytes.fromUTF8(rowKey), Bytes.fromUTF8(columnName));
+    }
+
+    private static List<String> drain(PagedColumnIterator iterator) {
+        List<String> columns = new ArrayList<String>();
+        while (iterator.hasNext()) {
+            Map.Entry<Bytes, Column> entry = iterator.next();
+            columns.add(entry.getKey().toUTF8() + ":" + Bytes.fromByteBuffer(entry.getValue().bufferForName()).toUTF8());
+        }
+        return columns;
+    }
+
+    /**
+     * A selector whose pages are read from in memory rows the way get_paged_slice reads them: from the start key
+     * (inclusive), the start column applying to the first row only, up to the count of columns.
+     */
+    private static class PagedSelector extends Selector {
+        private final TreeMap<String, List<String>> rows = new TreeMap<String, List<String>>();
+        private final List<String> pageStarts = new ArrayList<String>();
+
+        private PagedSelector() {
+            super(new StubPool(StubPool.KEYSPACE, new OperandPolicy(), null));
+        }
+
+        private void addRow(String rowKey, String... columnNames) {
+            rows.put(rowKey, Arrays.asList(columnNames));
+        }
+
+        @Override
+        public LinkedHashMap<Bytes, List<Column>> getPageOfColumnsFromRows(String columnFamily, KeyRange keyRange, Bytes startColumn, ConsistencyLevel cLevel) {
+            String startKey = Bytes.fromByteBuffer(keyRange.bufferForStart_key()).toUTF8();
+            pageStarts.add(startColumn != null ? startKey + ":" + startColumn.toUTF8() : "null");
+
+            LinkedHashMap<Bytes, List<Column>> page = new LinkedHashMap<Bytes, List<Column>>();
+            int count = 0;
+            for (Map.Entry<String, List<String>> row : rows.tailMap(startKey, true).entrySet()) {
+                List<Column> columns = new ArrayList<Column>();
+                for (String columnName : row.getValue()) {
+                    if (count == keyRange.getCount())
+                        break;
+                    if (page.isEmpty() && columns.isEmpty() && startColumn != null && row.getKey().equals(startKey)
+                            && columnName.compareTo(startColumn.toUTF8()) < 0)
+                        continue;
+                    columns.add(new Column(Bytes.fromUTF8(columnName).getBytes()).setValue(Bytes.EMPTY.getBytes()).setTimestamp(1));
+                    count++;
+                }
+                if (!columns.isEmpty())
+                    page.put(Bytes.fromUTF8(row.getKey()), columns);
+                if (count == keyRange.getCount())
+                    break;
+            }
+            return page;
+        }
+    }
+}
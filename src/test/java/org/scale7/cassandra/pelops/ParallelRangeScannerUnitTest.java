@@ -0,0 +1,123 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.TokenRange;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.support.RingPool;
+
+/**
+ * Tests the {@link org.scale7.cassandra.pelops.ParallelRangeScanner} class.
+ */
+public class ParallelRangeScannerUnitTest {
+    private static final String CF = "CF";
+    private static final String[] ROWS = {"a", "b", "c", "d", "e", "f", "g", "h", "i", "j"};
+
+    /**
+     * Tests that every row of every split is delivered once.
+     */
+    @Test
+    public void testScanColumns() {
+        RingPool pool = new RingPool(new OperandPolicy(), ring(), ROWS);
+        ParallelRangeScanner scanner = new ParallelRangeScanner(pool, newPolicy());
+        CollectingHandler handler = new CollectingHandler();
+
+        long rows = scanner.scanColumns(CF, Selector.newColumnsPredicateAll(false), ConsistencyLevel.ONE, handler);
+
+        assertEquals(ROWS.length, rows);
+        assertEquals(Arrays.asList(ROWS), handler.getSortedRowKeys());
+        assertTrue("Expected the ring to be split", pool.getKeyRanges().size() > 2);
+    }
+
+    /**
+     * Tests that a failed page is retried from the last row delivered rather than from the start of the range.
+     */
+    @Test
+    public void testFailedPageIsResumed() {
+        final RingPool pool = new RingPool(new OperandPolicy().setMaxOpRetries(0), ROWS);
+        ParallelRangeScanner.Policy policy = newPolicy();
+        policy.setParallelism(1);
+        policy.setSplitSize(100);
+        ParallelRangeScanner scanner = new ParallelRangeScanner(pool, policy);
+        CollectingHandler handler = new CollectingHandler() {
+            @Override
+            public synchronized void handle(Bytes rowKey, List<Column> columns) {
+                super.handle(rowKey, columns);
+                if (rowKey.toUTF8().equals("b"))
+                    pool.failNextRangeReads(1);
+            }
+        };
+
+        scanner.scanColumns(CF, Selector.newColumnsPredicateAll(false), ConsistencyLevel.ONE, handler);
+
+        assertEquals(Arrays.asList(ROWS), handler.getSortedRowKeys());
+        assertEquals(ROWS.length, handler.rowKeys.size());
+        // the failed page and its retry both start after the last row of the first page
+        assertEquals(RingPool.toToken(Bytes.fromUTF8("b")), pool.getKeyRanges().get(1).getStart_token());
+        assertEquals(RingPool.toToken(Bytes.fromUTF8("b")), pool.getKeyRanges().get(2).getStart_token());
+        assertEquals(7, pool.getKeyRanges().size());
+    }
+
+    /**
+     * Tests that each range is read from a node that holds a replica of it when the ring reports the endpoints as
+     * addresses and the pool's nodes are configured with host names.
+     */
+    @Test
+    public void testRangesReadFromReplicasConfiguredByName() {
+        String eToken = RingPool.toToken(Bytes.fromUTF8("e"));
+        List<TokenRange> ring = Arrays.asList(
+                new TokenRange("", eToken, Arrays.asList("127.0.0.1")),
+                new TokenRange(eToken, "", Arrays.asList("127.0.0.2")));
+        RingPool pool = new RingPool(new OperandPolicy(), ring, Arrays.asList("localhost", "127.0.0.2"), ROWS);
+        ParallelRangeScanner scanner = new ParallelRangeScanner(pool, newPolicy());
+        CollectingHandler handler = new CollectingHandler();
+
+        scanner.scanColumns(CF, Selector.newColumnsPredicateAll(false), ConsistencyLevel.ONE, handler);
+
+        assertEquals(Arrays.asList(ROWS), handler.getSortedRowKeys());
+        for (int i = 0; i < pool.getKeyRanges().size(); i++) {
+            String startToken = pool.getKeyRanges().get(i).getStart_token();
+            assertEquals("Wrong node for the range starting at '" + startToken + "'",
+                    startToken.compareTo(eToken) < 0 ? "localhost" : "127.0.0.2", pool.getKeyRangeNodes().get(i));
+        }
+    }
+
+    private static List<TokenRange> ring() {
+        return Arrays.asList(
+                new TokenRange("", RingPool.toToken(Bytes.fromUTF8("e")), Arrays.asList("localhost")),
+                new TokenRange(RingPool.toToken(Bytes.fromUTF8("e")), "", Arrays.asList("localhost")));
+    }
+
+    private static ParallelRangeScanner.Policy newPolicy() {
+        ParallelRangeScanner.Policy policy = new ParallelRangeScanner.Policy();
+        policy.setParallelism(3);
+        policy.setPageSize(2);
+        policy.setSplitSize(3);
+        policy.setRetryDelayMillis(0);
+        return policy;
+    }
+
+    private static class CollectingHandler implements IRowHandler<Column> {
+        private final List<String> rowKeys = new ArrayList<String>();
+
+        @Override
+        public synchronized void handle(Bytes rowKey, List<Column> columns) {
+            assertEquals(rowKey, Bytes.fromByteBuffer(columns.get(0).bufferForValue()));
+            rowKeys.add(rowKey.toUTF8());
+        }
+
+        private synchronized List<String> getSortedRowKeys() {
+            List<String> sorted = new ArrayList<String>(rowKeys);
+            Collections.sort(sorted);
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+import org.scale7.cassandra.pelops.support.StubPool;
+
+/**
+ * Tests the {@link org.scale7.cassandra.pelops.Prefetcher} class.
+ */
+public class PrefetcherUnitTest {
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Tests that the pages are taken in the order they were fetched, followed by null once the last page is taken.
+     */
+    @Test
+    public void testPagesTakenInOrder() {
+        Prefetcher<Integer> prefetcher = new Prefetcher<Integer>(new CountingPager(5), 2, Integer.MAX_VALUE, executor);
+
+        for (int i = 0; i < 5; i++)
+            assertEquals(Integer.valueOf(i), prefetcher.take());
+        assertNull(prefetcher.take());
+        assertNull(prefetcher.take());
+    }
+
+    /**
+     * Tests that pages are fetched ahead of the consumer up to the max number of pages and no further.
+     */
+    @Test
+    public void testPagesFetchedAhead() throws Exception {
+        CountingPager pager = new CountingPager(10);
+        Prefetcher<Integer> prefetcher = new Prefetcher<Integer>(pager, 3, Integer.MAX_VALUE, executor);
+
+        assertEquals(Integer.valueOf(0), prefetcher.take());
+        awaitFetched(pager, 4);
+        Thread.sleep(50);
+        // the page taken plus the three pages buffered
+        assertEquals(4, pager.fetched.get());
+
+        assertEquals(Integer.valueOf(1), prefetcher.take());
+        awaitFetched(pager, 5);
+    }
+
+    /**
+     * Tests that a failed fetch is thrown by the take that reaches it.
+     */
+    @Test
+    public void testFailureThrownByTake() {
+        CountingPager pager = new CountingPager(5);
+        pager.failingPage = 1;
+        Prefetcher<Integer> prefetcher = new Prefetcher<Integer>(pager, 2, Integer.MAX_VALUE, executor);
+
+        assertEquals(Integer.valueOf(0), prefetcher.take());
+        try {
+            prefetcher.take();
+            fail("The failure should have been thrown");
+        } catch (PelopsException e) {
+            assertEquals("page 1", e.getMessage());
+        }
+    }
+
+    /**
+     * Tests that cancelling interrupts the fetch in progress, releases the consumer waiting for the page and stops
+     * any further fetches.
+     */
+    @Test
+    public void testCancelInterruptsFetch() throws Exception {
+        final CountDownLatch fetchStarted = new CountDownLatch(1);
+        final CountDownLatch fetchInterrupted = new CountDownLatch(1);
+        final AtomicInteger fetches = new AtomicInteger();
+        final Prefetcher<Integer> prefetcher = new Prefetcher<Integer>(new Prefetcher.IPager<Integer>() {
+            @Override
+            public Integer fetch() {
+                fetches.incrementAndGet();
+                fetchStarted.countDown();
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    fetchInterrupted.countDown();
+                    throw new PelopsException("Interrupted", e);
+                }
+                return 0;
+            }
+
+            @Override
+            public boolean isMoreToFetch() {
+                return true;
+            }
+
+            @Override
+            public int size(Integer page) {
+                return 1;
+            }
+        }, 2, Integer.MAX_VALUE, executor);
+
+        final CountDownLatch taken = new CountDownLatch(1);
+        final Integer[] page = new Integer[] {-1};
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                page[0] = prefetcher.take();
+                taken.countDown();
+            }
+        };
+        consumer.start();
+        assertTrue("The fetch didn't start", fetchStarted.await(10, TimeUnit.SECONDS));
+
+        prefetcher.cancel();
+
+        assertTrue("The fetch wasn't interrupted", fetchInterrupted.await(10, TimeUnit.SECONDS));
+        assertTrue("The consumer wasn't released", taken.await(10, TimeUnit.SECONDS));
+        assertNull(page[0]);
+        assertTrue(prefetcher.isCancelled());
+        // the failure caused by the interruption isn't reported and no more pages are fetched
+        assertNull(prefetcher.take());
+        Thread.sleep(50);
+        assertEquals(1, fetches.get());
+    }
+
+    /**
+     * Tests that cancelling discards the pages buffered.
+     */
+    @Test
+    public void testCancelDiscardsBufferedPages() throws Exception {
+        CountingPager pager = new CountingPager(10);
+        Prefetcher<Integer> prefetcher = new Prefetcher<Integer>(pager, 3, Integer.MAX_VALUE, executor);
+        assertEquals(Integer.valueOf(0), prefetcher.take());
+        awaitFetched(pager, 4);
+
+        prefetcher.cancel();
+
+        assertNull(prefetcher.take());
+        Thread.sleep(50);
+        assertEquals(4, pager.fetched.get());
+    }
+
+    /**
+     * Tests that closing a prefetching iterator part way through ends the iteration and stops the batches being
+     * fetched ahead.
+     */
+    @Test
+    public void testIteratorCloseCancelsPrefetch() throws Exception {
+        final AtomicInteger batches = new AtomicInteger();
+        StubPool pool = new StubPool(StubPool.KEYSPACE, new OperandPolicy().setParallelExecutor(executor), null);
+        PageOfIterator<Integer> iterator = new PageOfIterator<Integer>(pool.createSelector(), "CF", Bytes.fromUTF8("row"), null, false, 2, null) {
+            @Override
+            protected List<Integer> fetchNextBatch() {
+                int batch = batches.getAndIncrement();
+                List<Integer> elements = new ArrayList<Integer>();
+                elements.add(batch * 2);
+                elements.add(batch * 2 + 1);
+                return elements;
+            }
+
+            @Override
+            protected Bytes nextStartBeyondName(List<Integer> batch) {
+                return null;
+            }
+        }.prefetch(2, Integer.MAX_VALUE);
+
+        assertEquals(Integer.valueOf(0), iterator.next());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (batches.get() < 3 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        iterator.close();
+
+        assertFalse(iterator.hasNext());
+        Thread.sleep(50);
+        assertEquals(3, batches.get());
+    }
+
+    private static void awaitFetched(CountingPager pager, int pages) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pager.fetched.get() < pages && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(pages, pager.fetched.get());
+    }
+
+    /**
+     * Fetches the pages 0, 1, ... up to the given number of pages.
+     */
+    private static class CountingPager implements Prefetcher.IPager<Integer> {
+        private final int pages;
+        private final AtomicInteger fetched = new AtomicInteger();
+        private volatile int failingPage = -1;
+
+        private CountingPager(int pages) {
+            this.pages = pages;
+        }
+
+        @Override
+        public Integer fetch() {
+            int page = fetched.getAndIncrement();
+            if (page == failingPage)
+                throw new PelopsException("page " + page);
+            return page;
+        }
+
+        @Override
+        public boolean isMoreToFetch() {
+            return fetched.get() < pages;
+        }
+
+        @Override
+        public int size(Integer page) {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link org.scale7.cassandra.pelops.RateLimiter.TokenBucket} class.
+ */
+public class RateLimiterUnitTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Tests that a full bucket lets a second worth of permits through and then asks the caller to wait.
+     */
+    @Test
+    public void testBucketAllowsBurstThenWaits() {
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(10);
+        long now = System.nanoTime() + SECOND;
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("Permit should have been granted", 0, bucket.tryTake(1, 0, now));
+        }
+
+        long wait = bucket.tryTake(1, 0, now);
+        assertTrue("Caller should have been asked to wait", wait > 0);
+        assertTrue("Wait should be roughly one permit interval", wait <= SECOND / 10 + 1);
+
+        assertEquals("Permit should have been granted after waiting", 0, bucket.tryTake(1, 0, now + wait));
+    }
+
+    /**
+     * Tests that batch traffic can't dip into the share of the bucket reserved for interactive traffic.
+     */
+    @Test
+    public void testBucketReserve() {
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(10);
+        long now = System.nanoTime() + SECOND;
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals("Batch permit should have been granted", 0, bucket.tryTake(1, 0.5, now));
+        }
+
+        assertTrue("Batch caller should have been asked to wait", bucket.tryTake(1, 0.5, now) > 0);
+        assertEquals("Interactive permit should have been granted", 0, bucket.tryTake(1, 0, now));
+    }
+
+    /**
+     * Tests that requests larger than the bucket are let through but delay the requests that follow.
+     */
+    @Test
+    public void testBucketDebt() {
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(100);
+        long now = System.nanoTime() + SECOND;
+
+        assertEquals("Oversized request should have been granted", 0, bucket.tryTake(250, 0, now));
+
+        long wait = bucket.tryTake(1, 0, now);
+        assertTrue("Caller should have to wait for the debt to be repaid", wait > SECOND);
+    }
+
+    /**
+     * Tests that a zero rate disables the bucket.
+     */
+    @Test
+    public void testBucketUnlimited() {
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(0);
+        long now = System.nanoTime();
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("Permit should have been granted", 0, bucket.tryTake(1, 0.5, now));
+        }
+    }
+}
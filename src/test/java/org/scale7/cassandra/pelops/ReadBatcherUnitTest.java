@@ -0,0 +1,145 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+
+/**
+ * Tests the {@link org.scale7.cassandra.pelops.ReadBatcher} class.
+ */
+public class ReadBatcherUnitTest {
+    private static final String KEYSPACE = "keyspace";
+    private static final ColumnParent COLUMN_PARENT = new ColumnParent("CF");
+    private static final SlicePredicate PREDICATE = Selector.newColumnsPredicateAll(false);
+
+    /**
+     * Tests that concurrent reads are combined into a single multiget and that each reader gets its own row.
+     */
+    @Test
+    public void testConcurrentReadsAreBatched() throws Exception {
+        final ReadBatcher readBatcher = new ReadBatcher(3, 5000000);
+        final List<List<ByteBuffer>> multiGets = new CopyOnWriteArrayList<List<ByteBuffer>>();
+        final ReadBatcher.IMultiGet multiGet = new ReadBatcher.IMultiGet() {
+            @Override
+            public Map<ByteBuffer, List<ColumnOrSuperColumn>> execute(List<ByteBuffer> rowKeys) throws PelopsException {
+                multiGets.add(rowKeys);
+                Map<ByteBuffer, List<ColumnOrSuperColumn>> result = new HashMap<ByteBuffer, List<ColumnOrSuperColumn>>();
+                for (ByteBuffer rowKey : rowKeys) {
+                    result.put(rowKey, Arrays.asList(new ColumnOrSuperColumn().setColumn(new Column(rowKey.duplicate()))));
+                }
+                return result;
+            }
+        };
+
+        final Map<String, List<ColumnOrSuperColumn>> results = new HashMap<String, List<ColumnOrSuperColumn>>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final String key : new String[] {"a", "b", "c"}) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    List<ColumnOrSuperColumn> columns = readBatcher.read(KEYSPACE, COLUMN_PARENT, Bytes.fromUTF8(key).getBytes(), PREDICATE, ConsistencyLevel.ONE, multiGet);
+                    synchronized (results) {
+                        results.put(key, columns);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals("All reads should have been combined into a single multiget", 1, multiGets.size());
+        assertEquals("Wrong number of keys in the multiget", 3, multiGets.get(0).size());
+        assertEquals("Wrong number of batched reads", 3, readBatcher.getReadsBatched());
+        for (String key : new String[] {"a", "b", "c"}) {
+            List<ColumnOrSuperColumn> columns = results.get(key);
+            assertEquals("Wrong number of columns for row " + key, 1, columns.size());
+            assertEquals("Reader got the wrong row", Bytes.fromUTF8(key), Bytes.fromByteBuffer(columns.get(0).getColumn().name));
+        }
+    }
+
+    /**
+     * Tests that concurrent reads of different keyspaces aren't combined.
+     */
+    @Test
+    public void testReadsOfDifferentKeyspacesAreNotBatched() throws Exception {
+        final ReadBatcher readBatcher = new ReadBatcher(2, 200000);
+        final List<List<ByteBuffer>> multiGets = new CopyOnWriteArrayList<List<ByteBuffer>>();
+        final ReadBatcher.IMultiGet multiGet = new ReadBatcher.IMultiGet() {
+            @Override
+            public Map<ByteBuffer, List<ColumnOrSuperColumn>> execute(List<ByteBuffer> rowKeys) throws PelopsException {
+                multiGets.add(rowKeys);
+                return new HashMap<ByteBuffer, List<ColumnOrSuperColumn>>();
+            }
+        };
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final String keyspace : new String[] {"keyspace1", "keyspace2"}) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readBatcher.read(keyspace, COLUMN_PARENT, Bytes.fromUTF8("a").getBytes(), PREDICATE, ConsistencyLevel.ONE, multiGet);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals("Reads of different keyspaces should not have been combined", 2, multiGets.size());
+        assertEquals(1, multiGets.get(0).size());
+        assertEquals(1, multiGets.get(1).size());
+    }
+
+    /**
+     * Tests that a read that isn't joined by any other read is executed once the wait time has elapsed.
+     */
+    @Test
+    public void testLoneReadIsExecuted() {
+        ReadBatcher readBatcher = new ReadBatcher(10, 1000);
+        final List<List<ByteBuffer>> multiGets = new ArrayList<List<ByteBuffer>>();
+        List<ColumnOrSuperColumn> columns = readBatcher.read(KEYSPACE, COLUMN_PARENT, Bytes.fromUTF8("a").getBytes(), PREDICATE, ConsistencyLevel.ONE, new ReadBatcher.IMultiGet() {
+            @Override
+            public Map<ByteBuffer, List<ColumnOrSuperColumn>> execute(List<ByteBuffer> rowKeys) throws PelopsException {
+                multiGets.add(rowKeys);
+                return new HashMap<ByteBuffer, List<ColumnOrSuperColumn>>();
+            }
+        });
+
+        assertEquals("The read should have been executed", 1, multiGets.size());
+        assertTrue("Missing rows should result in no columns", columns.isEmpty());
+    }
+
+    /**
+     * Tests that a failed multiget is reported to the reader.
+     */
+    @Test(expected = PelopsException.class)
+    public void testFailureIsPropagated() {
+        ReadBatcher readBatcher = new ReadBatcher(10, 1000);
+        readBatcher.read(KEYSPACE, COLUMN_PARENT, Bytes.fromUTF8("a").getBytes(), PREDICATE, ConsistencyLevel.ONE, new ReadBatcher.IMultiGet() {
+            @Override
+            public Map<ByteBuffer, List<ColumnOrSuperColumn>> execute(List<ByteBuffer> rowKeys) throws PelopsException {
+                throw new PelopsException("failed");
+            }
+        });
+    }
+}
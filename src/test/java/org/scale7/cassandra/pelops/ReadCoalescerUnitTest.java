@@ -0,0 +1,137 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.exceptions.PelopsException;
+
+/**
+ * Tests the {@link org.scale7.cassandra.pelops.ReadCoalescer} class.
+ */
+public class ReadCoalescerUnitTest {
+
+    /**
+     * Tests that identical keys are equal and that modifying the parts afterwards doesn't affect the key.
+     */
+    @Test
+    public void testNewKey() {
+        ColumnParent colParent = new ColumnParent("CF");
+        Object key = ReadCoalescer.newKey("get_slice", colParent, Bytes.fromUTF8("row").getBytes(), ConsistencyLevel.ONE);
+        Object other = ReadCoalescer.newKey("get_slice", new ColumnParent("CF"), Bytes.fromUTF8("row").getBytes(), ConsistencyLevel.ONE);
+        assertEquals("Keys should be equal", key, other);
+        assertEquals("Hash codes should be equal", key.hashCode(), other.hashCode());
+
+        colParent.setColumn_family("Other");
+        assertEquals("Key should not have been affected by the change", other, key);
+    }
+
+    /**
+     * Tests that concurrent reads with the same key share a single execution and receive their own copies of the result.
+     */
+    @Test
+    public void testConcurrentReadsAreCoalesced() throws Exception {
+        final ReadCoalescer readCoalescer = new ReadCoalescer();
+        final Object key = ReadCoalescer.newKey("get_slice", "row");
+        final AtomicInteger executions = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<ColumnOrSuperColumn> result = Arrays.asList(new ColumnOrSuperColumn().setColumn(new Column(Bytes.fromUTF8("name").getBytes())));
+
+        final ReadCoalescer.IRead<List<ColumnOrSuperColumn>> read = new ReadCoalescer.IRead<List<ColumnOrSuperColumn>>() {
+            @Override
+            public List<ColumnOrSuperColumn> execute() throws PelopsException {
+                executions.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new PelopsException(e);
+                }
+                return result;
+            }
+
+            @Override
+            public List<ColumnOrSuperColumn> copy(List<ColumnOrSuperColumn> result) {
+                return ReadCoalescer.copy(result);
+            }
+        };
+
+        final List<List<ColumnOrSuperColumn>> results = new ArrayList<List<ColumnOrSuperColumn>>();
+        Thread leader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<ColumnOrSuperColumn> value = readCoalescer.read(key, read);
+                synchronized (results) {
+                    results.add(0, value);
+                }
+            }
+        });
+        leader.start();
+        if (!started.await(5, TimeUnit.SECONDS))
+            fail("The leading read never started");
+
+        Thread follower = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<ColumnOrSuperColumn> value = readCoalescer.read(key, read);
+                synchronized (results) {
+                    results.add(value);
+                }
+            }
+        });
+        follower.start();
+
+        // give the follower a chance to join the in flight read
+        while (readCoalescer.getReadsCoalesced() == 0 && follower.isAlive())
+            Thread.sleep(1);
+        release.countDown();
+        leader.join();
+        follower.join();
+
+        assertEquals("The read should only have been executed once", 1, executions.get());
+        assertEquals("Wrong number of coalesced reads", 1, readCoalescer.getReadsCoalesced());
+        assertEquals("Wrong number of results", 2, results.size());
+        assertNotSame("The leader should receive a copy of the result", result, results.get(0));
+        assertNotSame("The follower should receive a copy of the result", result, results.get(1));
+        assertNotSame("The leader and follower should not share a copy", results.get(0).get(0), results.get(1).get(0));
+        assertEquals("The copy should equal the original result", result, results.get(0));
+        assertEquals("The copy should equal the original result", result, results.get(1));
+    }
+
+    /**
+     * Tests that reads are only shared while they are in flight.
+     */
+    @Test
+    public void testSequentialReadsAreNotCoalesced() {
+        ReadCoalescer readCoalescer = new ReadCoalescer();
+        final AtomicInteger executions = new AtomicInteger();
+        ReadCoalescer.IRead<String> read = new ReadCoalescer.IRead<String>() {
+            @Override
+            public String execute() throws PelopsException {
+                return "result-" + executions.incrementAndGet();
+            }
+
+            @Override
+            public String copy(String result) {
+                return result;
+            }
+        };
+
+        assertEquals("result-1", readCoalescer.read("key", read));
+        assertEquals("result-2", readCoalescer.read("key", read));
+        assertEquals("Wrong number of coalesced reads", 0, readCoalescer.getReadsCoalesced());
+    }
+}
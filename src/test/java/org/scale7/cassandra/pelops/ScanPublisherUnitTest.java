@@ -0,0 +1,140 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link ScanPublisher} class.
+ */
+public class ScanPublisherUnitTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static class RecordingSubscriber implements ScanPublisher.ISubscriber<Integer> {
+        private ScanPublisher.ISubscription subscription;
+        private final List<Integer> elements = new ArrayList<Integer>();
+        private Throwable error;
+        private boolean complete = false;
+
+        @Override
+        public void onSubscribe(ScanPublisher.ISubscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Integer element) {
+            elements.add(element);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onComplete() {
+            complete = true;
+        }
+    }
+
+    private ScanPublisher<Integer> newPublisher(final AtomicInteger pulled, final Integer... elements) {
+        return new ScanPublisher<Integer>(new ScanPublisher.IIteratorFactory<Integer>() {
+            @Override
+            public Iterator<Integer> newIterator() {
+                final Iterator<Integer> iterator = Arrays.asList(elements).iterator();
+                return new Iterator<Integer>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Integer next() {
+                        pulled.incrementAndGet();
+                        return iterator.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        }, DIRECT);
+    }
+
+    @Test
+    public void testDeliversOnlyWhatIsRequested() {
+        AtomicInteger pulled = new AtomicInteger();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        newPublisher(pulled, 1, 2, 3, 4, 5).subscribe(subscriber);
+
+        assertEquals(0, pulled.get());
+        subscriber.subscription.request(2);
+        assertEquals(Arrays.asList(1, 2), subscriber.elements);
+        assertEquals(2, pulled.get());
+        assertFalse(subscriber.complete);
+
+        subscriber.subscription.request(10);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), subscriber.elements);
+        assertTrue(subscriber.complete);
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void testCancelStopsTheScan() {
+        AtomicInteger pulled = new AtomicInteger();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        newPublisher(pulled, 1, 2, 3).subscribe(subscriber);
+
+        subscriber.subscription.request(1);
+        subscriber.subscription.cancel();
+        subscriber.subscription.request(5);
+
+        assertEquals(Arrays.asList(1), subscriber.elements);
+        assertEquals(1, pulled.get());
+        assertFalse(subscriber.complete);
+    }
+
+    @Test
+    public void testInvalidRequestIsSignalled() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        newPublisher(new AtomicInteger(), 1).subscribe(subscriber);
+
+        subscriber.subscription.request(0);
+
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertTrue(subscriber.elements.isEmpty());
+    }
+
+    @Test
+    public void testScanFailureIsSignalled() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        new ScanPublisher<Integer>(new ScanPublisher.IIteratorFactory<Integer>() {
+            @Override
+            public Iterator<Integer> newIterator() {
+                throw new IllegalStateException("boom");
+            }
+        }, DIRECT).subscribe(subscriber);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        assertTrue(subscriber.error instanceof IllegalStateException);
+        assertFalse(subscriber.complete);
+    }
+}
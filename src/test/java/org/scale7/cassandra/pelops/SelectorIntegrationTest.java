@@ -17,6 +17,7 @@ import static org.scale7.cassandra.pelops.ColumnFamilyManager.CFDEF_VALIDATION_C
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -495,6 +496,41 @@ public class SelectorIntegrationTest extends AbstractIntegrationTest {
         }
     }
 
+    @Test
+    public void testGetColumnsFromRowsWithHandler() {
+        final Set<Bytes> keys = new HashSet<Bytes>(100);
+        int count = createSelector().getColumnsFromRows(CF_KEY_ITERATOR, Selector.newKeyRange(Bytes.EMPTY, Bytes.EMPTY, 1000),
+                Selector.newColumnsPredicateAll(false), ConsistencyLevel.ONE, new IRowHandler<Column>() {
+            @Override
+            public void handle(Bytes rowKey, List<Column> columns) {
+                keys.add(rowKey);
+            }
+        });
+
+        assertEquals("Not all rows were processed", 100, count);
+
+        for (long i = 0; i < 100; i++) {
+            final Bytes key = Bytes.fromLong(i);
+            assertTrue(String.format("Key %s was missing from the results", i), keys.contains(key));
+        }
+    }
+
+    @Test
+    public void testGetIndexedColumnsWithHandler() throws Exception {
+        final Map<Bytes, List<Column>> rows = new HashMap<Bytes, List<Column>>();
+        int count = createSelector().getIndexedColumns(CF_INDEXED,
+                Selector.newIndexClause(Bytes.EMPTY, 3, Selector.newIndexExpression("age", IndexOperator.EQ, Bytes.fromLong(1))),
+                Selector.newColumnsPredicateAll(true, 3), ConsistencyLevel.ONE, new IRowHandler<Column>() {
+            @Override
+            public void handle(Bytes rowKey, List<Column> columns) {
+                rows.put(rowKey, columns);
+            }
+        });
+
+        assertEquals("Wrong number of keys returned", 1, count);
+        assertEquals("Wrong number of columns in key returned", 2, rows.get(Bytes.fromLong(1)).size());
+    }
+
     @Test
     public void testGetColumnsFromRowsOrdering() {
         List<Bytes> keys = Lists.newArrayList(fromLong(5), fromLong(6), fromLong(8), fromLong(9), fromLong(7)); // out of order on purpose
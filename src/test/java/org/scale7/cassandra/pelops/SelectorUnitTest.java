@@ -0,0 +1,404 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.IndexClause;
+import org.apache.cassandra.thrift.IndexExpression;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.TokenRange;
+import org.apache.cassandra.thrift.UnavailableException;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.exceptions.PartialFailureException;
+import org.scale7.cassandra.pelops.support.RingPool;
+import org.scale7.cassandra.pelops.support.StubPool;
+
+/**
+ * Tests the {@link org.scale7.cassandra.pelops.Selector} class.
+ */
+public class SelectorUnitTest {
+    private static final String CF = "CF";
+
+    /**
+     * Tests that the keys are read in chunks of the configured size and that the rows are returned in the order
+     * requested.
+     */
+    @Test
+    public void testMultigetInChunks() {
+        MultigetPool pool = new MultigetPool(new OperandPolicy().setMultigetChunkSize(2));
+        List<Bytes> rowKeys = rowKeys("e", "d", "c", "b", "a");
+
+        LinkedHashMap<Bytes, List<Column>> rows = pool.createSelector().getColumnsFromRows(CF, rowKeys, Selector.newColumnsPredicateAll(false), ConsistencyLevel.ONE);
+
+        assertEquals(3, pool.getRequests().size());
+        for (List<Bytes> request : pool.getRequests())
+            assertTrue("Chunk too large: " + request, request.size() <= 2);
+        assertEquals(new HashSet<Bytes>(rowKeys), allRequested(pool));
+        assertEquals(rowKeys, new ArrayList<Bytes>(rows.keySet()));
+        for (Map.Entry<Bytes, List<Column>> row : rows.entrySet())
+            assertEquals(row.getKey(), Bytes.fromByteBuffer(row.getValue().get(0).bufferForName()));
+    }
+
+    /**
+     * Tests that the keys aren't chunked when there are no more than the chunk size.
+     */
+    @Test
+    public void testMultigetNotChunkedWithinChunkSize() {
+        MultigetPool pool = new MultigetPool(new OperandPolicy().setMultigetChunkSize(5));
+
+        pool.createSelector().getColumnsFromRows(CF, rowKeys("a", "b", "c", "d", "e"), Selector.newColumnsPredicateAll(false), ConsistencyLevel.ONE);
+
+        assertEquals(1, pool.getRequests().size());
+    }
+
+    /**
+     * Tests that the chunks are grouped by their primary replica and sent to it.
+     */
+    @Test
+    public void testMultigetChunksGroupedByReplica() {
+        TokenRing ring = new TokenRing(TokenRing.BYTE_ORDERED_PARTITIONER, Arrays.asList(
+                new TokenRange("", "6d", Arrays.asList("node1", "node2")),
+                new TokenRange("6d", "", Arrays.asList("node2", "node1"))
+        ));
+        // the pool would use node2 if the chunks weren't steered
+        MultigetPool pool = new MultigetPool(new OperandPolicy().setMultigetChunkSize(2).setTokenRing(ring), "node2", "node1");
+
+        pool.createSelector().getColumnsFromRows(CF, rowKeys("apple", "zebra", "banana", "yak"), Selector.newColumnsPredicateAll(false), ConsistencyLevel.ONE);
+
+        assertEquals(2, pool.getRequests().size());
+        for (int i = 0; i < 2; i++) {
+            List<Bytes> request = pool.getRequests().get(i);
+            if (pool.getRequestNodes().get(i).equals("node1"))
+                assertEquals(new HashSet<Bytes>(rowKeys("apple", "banana")), new HashSet<Bytes>(request));
+            else
+                assertEquals(new HashSet<Bytes>(rowKeys("zebra", "yak")), new HashSet<Bytes>(request));
+        }
+    }
+
+    /**
+     * Tests that the rows of the chunks that failed are reported along with the rows that were read.
+     */
+    @Test
+    public void testMultigetPartialFailure() {
+        MultigetPool pool = new MultigetPool(new OperandPolicy().setMultigetChunkSize(2).setMaxOpRetries(0));
+        pool.failingKey = Bytes.fromUTF8("c");
+
+        try {
+            pool.createSelector().getColumnsFromRows(CF, rowKeys("a", "b", "c", "d", "e"), Selector.newColumnsPredicateAll(false), ConsistencyLevel.ONE);
+            fail("The chunk containing 'c' should have failed");
+        } catch (PartialFailureException e) {
+            List<Bytes> failedChunk = null;
+            for (List<Bytes> request : pool.getRequests())
+                if (request.contains(pool.failingKey))
+                    failedChunk = request;
+
+            assertEquals(new HashSet<Bytes>(failedChunk), e.getFailedRowKeys());
+            Set<Bytes> succeeded = new HashSet<Bytes>(rowKeys("a", "b", "c", "d", "e"));
+            succeeded.removeAll(failedChunk);
+            assertEquals(succeeded, e.getSucceededRowKeys());
+            assertTrue(e.getFailures().get(pool.failingKey) instanceof org.scale7.cassandra.pelops.exceptions.UnavailableException);
+        }
+    }
+
+    /**
+     * Tests that single row reads go through the negative cache and then the near cache, and that the caches shared by
+     * the pools of different keyspaces keep their rows apart.
+     */
+    @Test
+    public void testReadsThroughCaches() {
+        NegativeCache negativeCache = new NegativeCache("testReadsThroughCaches", 100);
+        NearCache nearCache = new NearCache("testReadsThroughCaches", 100, 1024 * 1024);
+        try {
+            negativeCache.setColumnFamilyTtlMillis(CF, 60000);
+            nearCache.setColumnFamilyTtlMillis(CF, 60000);
+            OperandPolicy policy = new OperandPolicy().setNegativeCache(negativeCache).setNearCache(nearCache);
+            SlicePool pool = new SlicePool("Keyspace1", policy);
+            SlicePool otherPool = new SlicePool("Keyspace2", policy);
+            SlicePredicate predicate = Selector.newColumnsPredicateAll(false);
+
+            List<Column> columns = pool.createSelector().getColumnsFromRow(CF, Bytes.fromUTF8("row"), predicate, ConsistencyLevel.ONE);
+            assertEquals("Keyspace1", Bytes.fromByteBuffer(columns.get(0).bufferForValue()).toUTF8());
+            pool.createSelector().getColumnsFromRow(CF, Bytes.fromUTF8("row"), predicate, ConsistencyLevel.ONE);
+            assertEquals("The second read should have been cached", 1, pool.reads.get());
+
+            columns = otherPool.createSelector().getColumnsFromRow(CF, Bytes.fromUTF8("row"), predicate, ConsistencyLevel.ONE);
+            assertEquals("Keyspace2", Bytes.fromByteBuffer(columns.get(0).bufferForValue()).toUTF8());
+            assertEquals(1, otherPool.reads.get());
+
+            assertTrue(pool.createSelector().getColumnsFromRow(CF, Bytes.fromUTF8("empty"), predicate, ConsistencyLevel.ONE).isEmpty());
+            assertTrue(pool.createSelector().getColumnsFromRow(CF, Bytes.fromUTF8("empty"), predicate, ConsistencyLevel.ONE).isEmpty());
+            assertEquals("The second read of the absent row should have been answered by the negative cache", 2, pool.reads.get());
+            assertEquals(1, negativeCache.getHits());
+
+            new Mutator(otherPool).deleteColumn(CF, "row", "col");
+            assertNotNull(nearCache.get(NearCache.newKey("Keyspace1", new ColumnParent(CF), Bytes.fromUTF8("row").getBytes(), predicate)));
+        } finally {
+            negativeCache.decommission();
+            nearCache.decommission();
+        }
+    }
+
+    /**
+     * Tests that each range of the ring is split into contiguous sub-ranges of about the split size that keep the
+     * endpoints of their range.
+     */
+    @Test
+    public void testGetTokenRangeSplits() {
+        RingPool pool = new RingPool(new OperandPolicy(), Arrays.asList(
+                new TokenRange("", token("e"), Arrays.asList("node1")),
+                new TokenRange(token("e"), "", Arrays.asList("node2"))
+        ), "a", "b", "c", "d", "e", "f", "g");
+
+        List<TokenRange> splits = pool.createSelector().getTokenRangeSplits(CF, 2);
+
+        List<String> boundaries = new ArrayList<String>();
+        for (TokenRange split : splits) {
+            boundaries.add(split.getStart_token());
+            assertEquals(split.getEnd_token().isEmpty() || split.getEnd_token().compareTo(token("e")) > 0 ? Arrays.asList("node2") : Arrays.asList("node1"), split.getEndpoints());
+        }
+        assertEquals(Arrays.asList("", token("b"), token("d"), token("e"), token("g")), boundaries);
+        for (int i = 1; i < splits.size(); i++)
+            assertEquals(splits.get(i - 1).getEnd_token(), splits.get(i).getStart_token());
+        assertEquals("", splits.get(splits.size() - 1).getEnd_token());
+    }
+
+    /**
+     * Tests that the endpoints of the splits are reported using the names the nodes of the pool were configured with
+     * rather than the addresses reported by the ring.
+     */
+    @Test
+    public void testGetTokenRangeSplitsReportsNodeNames() {
+        RingPool pool = new RingPool(new OperandPolicy(), Arrays.asList(
+                new TokenRange("", token("e"), Arrays.asList("127.0.0.1")),
+                new TokenRange(token("e"), "", Arrays.asList("127.0.0.2"))
+        ), Arrays.asList("localhost", "127.0.0.2"), "a", "b", "c", "d", "e", "f", "g");
+
+        List<TokenRange> splits = pool.createSelector().getTokenRangeSplits(CF, 2);
+
+        assertTrue("Expected the ring to be split", splits.size() > 2);
+        for (TokenRange split : splits)
+            assertEquals(split.getEnd_token().isEmpty() || split.getEnd_token().compareTo(token("e")) > 0 ? Arrays.asList("127.0.0.2") : Arrays.asList("localhost"), split.getEndpoints());
+    }
+
+    /**
+     * Tests that the ranges the nodes fail to split are returned as a whole.
+     */
+    @Test
+    public void testGetTokenRangeSplitsUnavailable() {
+        List<TokenRange> ring = Arrays.asList(
+                new TokenRange("", token("e"), Arrays.asList("node1")),
+                new TokenRange(token("e"), "", Arrays.asList("node2")));
+        RingPool pool = new RingPool(new OperandPolicy().setMaxOpRetries(0), ring, "a", "b", "c", "d", "e", "f", "g");
+        pool.setSplitsAvailable(false);
+
+        List<TokenRange> splits = pool.createSelector().getTokenRangeSplits(CF, 2);
+
+        assertEquals(ring, splits);
+    }
+
+    /**
+     * Tests that the rows of a key range are handed over page by page, each page resuming from the last row of the
+     * previous page without handing it over twice.
+     */
+    @Test
+    public void testHandlerReadsKeyRangeInPages() {
+        RingPool pool = new RingPool(new OperandPolicy().setRangePageSize(3), "a", "b", "c", "d", "e", "f", "g");
+        KeyRange keyRange = new KeyRange(100).setStart_key(Bytes.EMPTY.getBytes()).setEnd_key(Bytes.EMPTY.getBytes());
+        CollectingHandler handler = new CollectingHandler();
+
+        int rows = pool.createSelector().getColumnsFromRows(CF, keyRange, Selector.newColumnsPredicateAll(false), ConsistencyLevel.ONE, handler);
+
+        assertEquals(7, rows);
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f", "g"), handler.rowKeys);
+        assertEquals(3, pool.getKeyRanges().size());
+        assertEquals(3, pool.getKeyRanges().get(0).getCount());
+        assertEquals(Bytes.fromUTF8("c"), Bytes.fromByteBuffer(pool.getKeyRanges().get(1).bufferForStart_key()));
+        assertEquals(4, pool.getKeyRanges().get(1).getCount());
+        assertEquals(Bytes.fromUTF8("f"), Bytes.fromByteBuffer(pool.getKeyRanges().get(2).bufferForStart_key()));
+    }
+
+    /**
+     * Tests that no more rows than the count of the key range are handed over, whatever the page size.
+     */
+    @Test
+    public void testHandlerStopsAtKeyRangeCount() {
+        RingPool pool = new RingPool(new OperandPolicy().setRangePageSize(3), "a", "b", "c", "d", "e", "f", "g");
+        KeyRange keyRange = new KeyRange(5).setStart_key(Bytes.EMPTY.getBytes()).setEnd_key(Bytes.EMPTY.getBytes());
+        CollectingHandler handler = new CollectingHandler();
+
+        int rows = pool.createSelector().getColumnsFromRows(CF, keyRange, Selector.newColumnsPredicateAll(false), ConsistencyLevel.ONE, handler);
+
+        assertEquals(5, rows);
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), handler.rowKeys);
+        assertEquals(2, pool.getKeyRanges().size());
+    }
+
+    /**
+     * Tests that the pages of a token range resume after the token of the last row of the previous page.
+     */
+    @Test
+    public void testHandlerReadsTokenRangeInPages() {
+        RingPool pool = new RingPool(new OperandPolicy().setRangePageSize(3), "a", "b", "c", "d", "e", "f", "g");
+        KeyRange keyRange = new KeyRange(100).setStart_token("").setEnd_token("");
+        CollectingHandler handler = new CollectingHandler();
+
+        int rows = pool.createSelector().getColumnsFromRows(CF, keyRange, Selector.newColumnsPredicateAll(false), ConsistencyLevel.ONE, handler);
+
+        assertEquals(7, rows);
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f", "g"), handler.rowKeys);
+        assertEquals(3, pool.getKeyRanges().size());
+        assertEquals(token("c"), pool.getKeyRanges().get(1).getStart_token());
+        assertEquals(3, pool.getKeyRanges().get(1).getCount());
+        assertEquals(token("f"), pool.getKeyRanges().get(2).getStart_token());
+    }
+
+    /**
+     * Tests that the rows matching an index clause are handed over page by page.
+     */
+    @Test
+    public void testHandlerReadsIndexedRowsInPages() {
+        RingPool pool = new RingPool(new OperandPolicy().setRangePageSize(2), "a", "b", "c", "d", "e");
+        IndexClause indexClause = new IndexClause(new ArrayList<IndexExpression>(), Bytes.EMPTY.getBytes(), 100);
+        CollectingHandler handler = new CollectingHandler();
+
+        int rows = pool.createSelector().getIndexedColumns(CF, indexClause, Selector.newColumnsPredicateAll(false), ConsistencyLevel.ONE, handler);
+
+        assertEquals(5, rows);
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), handler.rowKeys);
+        assertEquals(3, pool.getIndexClauses().size());
+        assertEquals(Bytes.fromUTF8("b"), Bytes.fromByteBuffer(pool.getIndexClauses().get(1).bufferForStart_key()));
+        assertEquals(3, pool.getIndexClauses().get(1).getCount());
+        assertEquals(Bytes.fromUTF8("d"), Bytes.fromByteBuffer(pool.getIndexClauses().get(2).bufferForStart_key()));
+    }
+
+    private static String token(String rowKey) {
+        return RingPool.toToken(Bytes.fromUTF8(rowKey));
+    }
+
+    private static List<Bytes> rowKeys(String... rowKeys) {
+        List<Bytes> keys = new ArrayList<Bytes>(rowKeys.length);
+        for (String rowKey : rowKeys)
+            keys.add(Bytes.fromUTF8(rowKey));
+        return keys;
+    }
+
+    private static Set<Bytes> allRequested(MultigetPool pool) {
+        Set<Bytes> keys = new HashSet<Bytes>();
+        for (List<Bytes> request : pool.getRequests())
+            keys.addAll(request);
+        return keys;
+    }
+
+    /**
+     * Collects the keys of the rows handed over.
+     */
+    private static class CollectingHandler implements IRowHandler<Column> {
+        private final List<String> rowKeys = new ArrayList<String>();
+
+        @Override
+        public void handle(Bytes rowKey, List<Column> columns) {
+            rowKeys.add(rowKey.toUTF8());
+        }
+    }
+
+    /**
+     * A pool whose get_slice returns a single column whose value is the keyspace of the pool, except for the row
+     * "empty" which has no columns.
+     */
+    private static class SlicePool extends StubPool {
+        private final AtomicInteger reads = new AtomicInteger();
+        private final Cassandra.Client client;
+
+        private SlicePool(final String keyspace, OperandPolicy operandPolicy) {
+            super(keyspace, operandPolicy, null);
+            client = new Cassandra.Client(null) {
+                @Override
+                public List<ColumnOrSuperColumn> get_slice(ByteBuffer key, ColumnParent columnParent, SlicePredicate predicate, ConsistencyLevel consistencyLevel) {
+                    reads.incrementAndGet();
+                    List<ColumnOrSuperColumn> result = new ArrayList<ColumnOrSuperColumn>();
+                    if (!Bytes.fromByteBuffer(key).toUTF8().equals("empty")) {
+                        Column column = new Column(Bytes.fromUTF8("col").getBytes()).setValue(Bytes.fromUTF8(keyspace).getBytes()).setTimestamp(1);
+                        result.add(new ColumnOrSuperColumn().setColumn(column));
+                    }
+                    return result;
+                }
+
+                @Override
+                public void batch_mutate(Map<ByteBuffer, Map<String, List<Mutation>>> mutationMap, ConsistencyLevel consistencyLevel) {
+                }
+            };
+        }
+
+        @Override
+        protected Cassandra.Client getClient() {
+            return client;
+        }
+    }
+
+    /**
+     * A pool whose multiget_slice returns a single column named after each row key and records the keys requested.
+     */
+    private static class MultigetPool extends StubPool {
+        private final List<List<Bytes>> requests = new ArrayList<List<Bytes>>();
+        private final List<String> requestNodes = new ArrayList<String>();
+        private volatile Bytes failingKey;
+        private final Cassandra.Client client = new Cassandra.Client(null) {
+            @Override
+            public Map<ByteBuffer, List<ColumnOrSuperColumn>> multiget_slice(List<ByteBuffer> keys, ColumnParent columnParent, SlicePredicate predicate, ConsistencyLevel consistencyLevel) throws UnavailableException {
+                List<Bytes> request = new ArrayList<Bytes>();
+                for (ByteBuffer key : keys)
+                    request.add(Bytes.fromByteBuffer(key));
+                synchronized (requests) {
+                    requests.add(request);
+                    requestNodes.add(getCurrentNode());
+                }
+                if (failingKey != null && request.contains(failingKey))
+                    throw new UnavailableException();
+
+                Map<ByteBuffer, List<ColumnOrSuperColumn>> result = new HashMap<ByteBuffer, List<ColumnOrSuperColumn>>();
+                for (ByteBuffer key : keys) {
+                    Column column = new Column(key).setValue(key).setTimestamp(1);
+                    result.put(key, new ArrayList<ColumnOrSuperColumn>(Arrays.asList(new ColumnOrSuperColumn().setColumn(column))));
+                }
+                return result;
+            }
+        };
+
+        private MultigetPool(OperandPolicy operandPolicy, String... nodes) {
+            super(KEYSPACE, operandPolicy, null, nodes);
+        }
+
+        @Override
+        protected Cassandra.Client getClient() {
+            return client;
+        }
+
+        private List<List<Bytes>> getRequests() {
+            return requests;
+        }
+
+        private List<String> getRequestNodes() {
+            return requestNodes;
+        }
+    }
+}
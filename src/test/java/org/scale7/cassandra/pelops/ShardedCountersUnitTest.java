@@ -0,0 +1,195 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.CounterColumn;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.support.StubPool;
+import org.scale7.cassandra.pelops.types.CompositeType;
+
+/**
+ * Tests the {@link org.scale7.cassandra.pelops.ShardedCounters} class.
+ */
+public class ShardedCountersUnitTest {
+    private static final String CF = "CF";
+
+    /**
+     * Tests that the shard key is the composite of the key and the shard, and that the shards of keys that look like
+     * shard keys don't collide.
+     */
+    @Test
+    public void testShardKey() {
+        List<byte[]> parts = CompositeType.parse(ShardedCounters.getShardKey(Bytes.fromUTF8("row"), 3));
+        assertEquals(2, parts.size());
+        assertEquals(Bytes.fromUTF8("row"), Bytes.fromByteArray(parts.get(0)));
+        assertEquals(3, Bytes.fromByteArray(parts.get(1)).toInt());
+
+        assertFalse(ShardedCounters.getShardKey(Bytes.fromUTF8("row#3"), 0).equals(ShardedCounters.getShardKey(Bytes.fromUTF8("row"), 3)));
+        assertFalse(ShardedCounters.getShardKey(Bytes.fromUTF8("row"), 0).equals(Bytes.fromUTF8("row")));
+    }
+
+    /**
+     * Tests that increments are spread over shard rows and that reads sum the shards.
+     */
+    @Test
+    public void testShardByRows() {
+        ShardedCounters counters = new ShardedCounters(new ShardedCounters.Policy()
+                .setShards(CF, 4)
+                .setShardSelection(ShardedCounters.ShardSelection.HASH));
+        Store store = new Store();
+        Mutator mutator = new Mutator(new StubPool());
+        for (int i = 0; i < 100; i++) {
+            counters.writeCounterColumn(mutator, CF, "row1", "views", 1);
+            counters.writeCounterColumn(mutator, CF, "row2", "views", 2);
+        }
+        store.apply(mutator);
+
+        assertEquals(8, store.rows.size());
+        StoreSelector selector = new StoreSelector(store);
+        assertEquals(100, counters.getCounterColumnValue(selector, CF, Bytes.fromUTF8("row1"), Bytes.fromUTF8("views"), ConsistencyLevel.ONE));
+        assertEquals(1, selector.requests);
+
+        Map<Bytes, Long> values = counters.getCounterColumnValues(selector, CF,
+                Arrays.asList(Bytes.fromUTF8("row1"), Bytes.fromUTF8("row2"), Bytes.fromUTF8("row3")), Bytes.fromUTF8("views"), ConsistencyLevel.ONE);
+        assertEquals(Arrays.asList(100L, 200L, 0L), new ArrayList<Long>(values.values()));
+        assertEquals(2, selector.requests);
+    }
+
+    /**
+     * Tests that increments are spread over shard columns and that reads sum the shards.
+     */
+    @Test
+    public void testShardByColumns() {
+        ShardedCounters counters = new ShardedCounters(new ShardedCounters.Policy()
+                .setDefaultShards(4)
+                .setDefaultShardBy(ShardedCounters.ShardBy.COLUMNS)
+                .setShardSelection(ShardedCounters.ShardSelection.HASH));
+        Store store = new Store();
+        Mutator mutator = new Mutator(new StubPool());
+        for (int i = 0; i < 100; i++) {
+            counters.writeCounterColumn(mutator, CF, "row1", "views", 1);
+            counters.writeCounterColumn(mutator, CF, "row1", "clicks", 3);
+        }
+        store.apply(mutator);
+
+        assertEquals(1, store.rows.size());
+        assertEquals(8, store.rows.get(Bytes.fromUTF8("row1")).size());
+        StoreSelector selector = new StoreSelector(store);
+        Map<Bytes, Long> values = counters.getCounterColumnValues(selector, CF, Bytes.fromUTF8("row1"),
+                Arrays.asList(Bytes.fromUTF8("views"), Bytes.fromUTF8("clicks"), Bytes.fromUTF8("other")), ConsistencyLevel.ONE);
+        assertEquals(Arrays.asList(100L, 300L, 0L), new ArrayList<Long>(values.values()));
+        assertEquals(1, selector.requests);
+    }
+
+    /**
+     * Tests that each column family is sharded as configured.
+     */
+    @Test
+    public void testShardByPerColumnFamily() {
+        ShardedCounters.Policy policy = new ShardedCounters.Policy()
+                .setDefaultShards(4)
+                .setShardBy(CF, ShardedCounters.ShardBy.COLUMNS)
+                .setShardSelection(ShardedCounters.ShardSelection.HASH);
+        assertEquals(ShardedCounters.ShardBy.COLUMNS, policy.getShardBy(CF));
+        assertEquals(ShardedCounters.ShardBy.ROWS, policy.getShardBy("Other"));
+
+        ShardedCounters counters = new ShardedCounters(policy);
+        Store store = new Store();
+        Mutator mutator = new Mutator(new StubPool());
+        for (int i = 0; i < 100; i++)
+            counters.writeCounterColumn(mutator, CF, "row1", "views", 1);
+        store.apply(mutator);
+
+        assertEquals(1, store.rows.size());
+        assertEquals(4, store.rows.get(Bytes.fromUTF8("row1")).size());
+        assertEquals(100, counters.getCounterColumnValue(new StoreSelector(store), CF, Bytes.fromUTF8("row1"), Bytes.fromUTF8("views"), ConsistencyLevel.ONE));
+    }
+
+    /**
+     * Tests that the same thread always increments the same shard.
+     */
+    @Test
+    public void testThreadShardSelection() {
+        ShardedCounters counters = new ShardedCounters(null);
+        Store store = new Store();
+        Mutator mutator = new Mutator(new StubPool());
+        for (int i = 0; i < 10; i++)
+            counters.writeCounterColumn(mutator, CF, "row1", "views", 1);
+        store.apply(mutator);
+
+        assertEquals(1, store.rows.size());
+        assertEquals(10, counters.getCounterColumnValue(new StoreSelector(store), CF, Bytes.fromUTF8("row1"), Bytes.fromUTF8("views"), ConsistencyLevel.ONE));
+    }
+
+    /**
+     * Sums counter mutations by row and column.
+     */
+    private static class Store {
+        private final Map<Bytes, Map<Bytes, Long>> rows = new HashMap<Bytes, Map<Bytes, Long>>();
+
+        private void apply(Mutator mutator) {
+            for (Map.Entry<ByteBuffer, Map<String, List<Mutation>>> row : mutator.getBatch().entrySet()) {
+                Bytes rowKey = Bytes.fromByteBuffer(row.getKey());
+                Map<Bytes, Long> columns = rows.get(rowKey);
+                if (columns == null)
+                    rows.put(rowKey, columns = new HashMap<Bytes, Long>());
+                for (Mutation mutation : row.getValue().get(CF)) {
+                    CounterColumn column = mutation.getColumn_or_supercolumn().getCounter_column();
+                    Bytes colName = Bytes.fromByteBuffer(column.bufferForName());
+                    Long value = columns.get(colName);
+                    columns.put(colName, (value != null ? value : 0) + column.getValue());
+                }
+            }
+        }
+
+        private List<CounterColumn> slice(Bytes rowKey, SlicePredicate predicate) {
+            List<CounterColumn> columns = new ArrayList<CounterColumn>();
+            Map<Bytes, Long> row = rows.get(rowKey);
+            if (row == null)
+                return columns;
+            for (ByteBuffer name : predicate.getColumn_names()) {
+                Long value = row.get(Bytes.fromByteBuffer(name));
+                if (value != null)
+                    columns.add(new CounterColumn(name, value));
+            }
+            return columns;
+        }
+    }
+
+    private static class StoreSelector extends Selector {
+        private final Store store;
+        private int requests;
+
+        private StoreSelector(Store store) {
+            super(new StubPool());
+            this.store = store;
+        }
+
+        @Override
+        public List<CounterColumn> getCounterColumnsFromRow(String columnFamily, Bytes rowKey, SlicePredicate colPredicate, ConsistencyLevel cLevel) {
+            requests++;
+            return store.slice(rowKey, colPredicate);
+        }
+
+        @Override
+        public LinkedHashMap<Bytes, List<CounterColumn>> getCounterColumnsFromRows(String columnFamily, List<Bytes> rowKeys, SlicePredicate colPredicate, ConsistencyLevel cLevel) {
+            requests++;
+            LinkedHashMap<Bytes, List<CounterColumn>> result = new LinkedHashMap<Bytes, List<CounterColumn>>();
+            for (Bytes rowKey : rowKeys)
+                result.put(rowKey, store.slice(rowKey, colPredicate));
+            return result;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.CounterColumn;
+import org.apache.cassandra.thrift.SuperColumn;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.support.TempDirectory;
+
+/**
+ * Tests the {@link SpillingRowBuffer} class.
+ */
+public class SpillingRowBufferUnitTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = TempDirectory.create("pelops-spill");
+    }
+
+    @After
+    public void tearDown() {
+        TempDirectory.delete(directory);
+    }
+
+    private SpillingRowBuffer.Policy newPolicy() {
+        SpillingRowBuffer.Policy policy = new SpillingRowBuffer.Policy();
+        policy.setMaxHeapBytes(500);
+        policy.setSegmentSize(1024);
+        policy.setDirectory(directory);
+        return policy;
+    }
+
+    private SpillingRowBuffer<Column> newBuffer() {
+        return SpillingRowBuffer.newColumnBuffer(newPolicy());
+    }
+
+    private List<Column> newColumns(int row) {
+        Column column = new Column(Bytes.fromUTF8("name").getBytes());
+        column.setValue(Bytes.fromInt(row).getBytes());
+        column.setTimestamp(row);
+        return Arrays.asList(column);
+    }
+
+    private int valueOf(List<Column> columns) {
+        return Bytes.fromByteBuffer(columns.get(0).bufferForValue()).toInt();
+    }
+
+    @Test
+    public void testSpillsBeyondHeapBudget() {
+        SpillingRowBuffer<Column> buffer = newBuffer();
+        try {
+            for (int i = 0; i < 100; i++)
+                buffer.put(Bytes.fromInt(i), newColumns(i));
+
+            assertEquals(100, buffer.size());
+            assertTrue(buffer.getSpilledRowCount() > 0);
+            assertTrue(buffer.getHeapBytes() <= 500);
+            assertTrue(directory.listFiles().length > 1);
+
+            for (int i = 0; i < 100; i++)
+                assertEquals(i, valueOf(buffer.get(Bytes.fromInt(i))));
+            assertNull(buffer.get(Bytes.fromInt(100)));
+            assertFalse(buffer.containsKey(Bytes.fromInt(100)));
+        } finally {
+            buffer.close();
+        }
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void testIteratesInInsertionOrder() {
+        SpillingRowBuffer<Column> buffer = newBuffer();
+        try {
+            for (int i = 0; i < 100; i++)
+                buffer.handle(Bytes.fromInt(i), newColumns(i));
+            buffer.put(Bytes.fromInt(99), newColumns(1000));
+
+            for (int pass = 0; pass < 2; pass++) {
+                List<Integer> keys = new ArrayList<Integer>();
+                for (Map.Entry<Bytes, List<Column>> row : buffer) {
+                    keys.add(row.getKey().toInt());
+                    assertEquals(row.getKey().toInt() == 99 ? 1000 : row.getKey().toInt(), valueOf(row.getValue()));
+                    assertEquals(row.getKey().toInt() == 99 ? 1000 : row.getKey().toInt(), row.getValue().get(0).getTimestamp());
+                }
+                assertEquals(100, keys.size());
+                for (int i = 0; i < 100; i++)
+                    assertEquals(i, keys.get(i).intValue());
+            }
+        } finally {
+            buffer.close();
+        }
+    }
+
+    @Test
+    public void testSpillsSuperColumns() {
+        SpillingRowBuffer<SuperColumn> buffer = SpillingRowBuffer.newSuperColumnBuffer(newPolicy());
+        try {
+            for (int i = 0; i < 50; i++) {
+                SuperColumn superColumn = new SuperColumn(Bytes.fromInt(i).getBytes(), newColumns(i));
+                buffer.put(Bytes.fromInt(i), Arrays.asList(superColumn, new SuperColumn(Bytes.fromUTF8("empty").getBytes(), new ArrayList<Column>())));
+            }
+
+            assertTrue(buffer.getSpilledRowCount() > 0);
+            int rows = 0;
+            for (Map.Entry<Bytes, List<SuperColumn>> row : buffer) {
+                int i = row.getKey().toInt();
+                assertEquals(rows++, i);
+                assertEquals(2, row.getValue().size());
+                SuperColumn superColumn = row.getValue().get(0);
+                assertEquals(Bytes.fromInt(i), Bytes.fromByteBuffer(superColumn.bufferForName()));
+                assertEquals(i, valueOf(superColumn.getColumns()));
+                assertEquals(i, superColumn.getColumns().get(0).getTimestamp());
+                assertEquals(Bytes.fromUTF8("empty"), Bytes.fromByteBuffer(row.getValue().get(1).bufferForName()));
+                assertTrue(row.getValue().get(1).getColumns().isEmpty());
+            }
+            assertEquals(50, rows);
+        } finally {
+            buffer.close();
+        }
+    }
+
+    @Test
+    public void testSpillsCounterColumns() {
+        SpillingRowBuffer<CounterColumn> buffer = SpillingRowBuffer.newCounterColumnBuffer(newPolicy());
+        try {
+            for (int i = 0; i < 100; i++)
+                buffer.handle(Bytes.fromInt(i), Arrays.asList(new CounterColumn(Bytes.fromUTF8("count").getBytes(), i * 10L)));
+
+            assertTrue(buffer.getSpilledRowCount() > 0);
+            for (int i = 0; i < 100; i++) {
+                CounterColumn column = buffer.get(Bytes.fromInt(i)).get(0);
+                assertEquals(Bytes.fromUTF8("count"), Bytes.fromByteBuffer(column.bufferForName()));
+                assertEquals(i * 10L, column.getValue());
+            }
+        } finally {
+            buffer.close();
+        }
+    }
+}
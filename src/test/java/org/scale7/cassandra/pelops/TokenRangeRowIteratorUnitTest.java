@@ -0,0 +1,103 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.TokenRange;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.support.RingPool;
+
+/**
+ * Tests the {@link org.scale7.cassandra.pelops.TokenRangeRowIterator} class.
+ */
+public class TokenRangeRowIteratorUnitTest {
+    private static final String CF = "CF";
+    private static final String[] ROWS = {"a", "b", "c", "d", "e", "f", "g", "h", "i", "j"};
+
+    /**
+     * Tests that each page starts after the token of the last row of the previous page, so that no row is returned
+     * twice, and that the range is exhausted by a short page.
+     */
+    @Test
+    public void testPagesResumeAfterLastRow() {
+        RingPool pool = new RingPool(new OperandPolicy(), ROWS);
+        Selector selector = pool.createSelector();
+        TokenRangeRowIterator iterator = selector.iterateColumnsFromTokenRanges(CF,
+                Arrays.asList(new TokenRange("", "", Arrays.asList("localhost"))), Selector.newColumnsPredicateAll(false), 3, ConsistencyLevel.ONE);
+
+        assertEquals(Arrays.asList(ROWS), consume(iterator));
+        assertEquals(4, pool.getKeyRanges().size());
+        assertEquals("", pool.getKeyRanges().get(0).getStart_token());
+        assertEquals(token("c"), pool.getKeyRanges().get(1).getStart_token());
+        assertEquals(token("f"), pool.getKeyRanges().get(2).getStart_token());
+        assertEquals(token("i"), pool.getKeyRanges().get(3).getStart_token());
+        for (int i = 0; i < 4; i++)
+            assertEquals("", pool.getKeyRanges().get(i).getEnd_token());
+    }
+
+    /**
+     * Tests that a full page whose last row is the end of the range ends the range without another request.
+     */
+    @Test
+    public void testPageEndingAtEndOfRange() {
+        RingPool pool = new RingPool(new OperandPolicy(), ROWS);
+        TokenRangeRowIterator iterator = pool.createSelector().iterateColumnsFromTokenRanges(CF,
+                Arrays.asList(new TokenRange("", token("c"), Arrays.asList("localhost"))), Selector.newColumnsPredicateAll(false), 3, ConsistencyLevel.ONE);
+
+        assertEquals(Arrays.asList("a", "b", "c"), consume(iterator));
+        assertEquals(1, pool.getKeyRanges().size());
+    }
+
+    /**
+     * Tests that splitting hands half of the pending ranges over to the new iterator and that together the iterators
+     * return every row once.
+     */
+    @Test
+    public void testTrySplit() {
+        RingPool pool = new RingPool(new OperandPolicy(), ROWS);
+        TokenRangeRowIterator iterator = pool.createSelector().iterateColumnsFromTokenRanges(CF, Arrays.asList(
+                new TokenRange("", token("c"), Arrays.asList("localhost")),
+                new TokenRange(token("c"), token("f"), Arrays.asList("localhost")),
+                new TokenRange(token("f"), token("h"), Arrays.asList("localhost")),
+                new TokenRange(token("h"), "", Arrays.asList("localhost"))
+        ), Selector.newColumnsPredicateAll(false), 2, ConsistencyLevel.ONE);
+
+        TokenRangeRowIterator split = iterator.trySplit();
+        assertEquals(2, iterator.getPendingRangeCount());
+        assertEquals(2, split.getPendingRangeCount());
+
+        TokenRangeRowIterator splitOfSplit = split.trySplit();
+        assertEquals(1, split.getPendingRangeCount());
+        assertNull("A single range can't be split", split.trySplit());
+
+        assertEquals(Arrays.asList("g", "h"), consume(split));
+        assertEquals(Arrays.asList("i", "j"), consume(splitOfSplit));
+
+        // only the ranges that haven't been started can be handed over
+        assertEquals("a", iterator.next().getKey().toUTF8());
+        assertEquals(1, iterator.getPendingRangeCount());
+        assertNull(iterator.trySplit());
+        assertEquals(Arrays.asList("b", "c", "d", "e", "f"), consume(iterator));
+    }
+
+    private static List<String> consume(TokenRangeRowIterator iterator) {
+        List<String> rowKeys = new ArrayList<String>();
+        while (iterator.hasNext()) {
+            Map.Entry<Bytes, List<Column>> row = iterator.next();
+            assertEquals(row.getKey(), Bytes.fromByteBuffer(row.getValue().get(0).bufferForValue()));
+            rowKeys.add(row.getKey().toUTF8());
+        }
+        return rowKeys;
+    }
+
+    private static String token(String rowKey) {
+        return RingPool.toToken(Bytes.fromUTF8(rowKey));
+    }
+}
@@ -0,0 +1,121 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.TokenRange;
+import org.junit.Test;
+
+/**
+ * Tests the {@link org.scale7.cassandra.pelops.TokenRing} class.
+ */
+public class TokenRingUnitTest {
+    /**
+     * Tests that the murmur3 hash matches the values calculated by Cassandra.
+     */
+    @Test
+    public void testMurmur3() {
+        assertEquals(-8839064797231613815L, murmur3("a"));
+        assertEquals(-3758069500696749310L, murmur3("hello"));
+        assertEquals(5467490433528156583L, murmur3("0123456789abcdef"));
+        assertEquals(-8555461455748673368L, murmur3("the quick brown fox"));
+    }
+
+    /**
+     * Tests that rows are mapped to the range that owns their token, including the range that wraps around the ring.
+     */
+    @Test
+    public void testGetReplicas() {
+        TokenRing ring = new TokenRing(TokenRing.MURMUR3_PARTITIONER, Arrays.asList(
+                new TokenRange("-3000000000000000000", "3000000000000000000", Arrays.asList("node2", "node3")),
+                new TokenRange("3000000000000000000", "-9000000000000000000", Arrays.asList("node3", "node1")),
+                new TokenRange("-9000000000000000000", "-3000000000000000000", Arrays.asList("node1", "node2"))
+        ));
+
+        // token -8839064797231613815
+        assertEquals(Arrays.asList("node1", "node2"), ring.getReplicas(Bytes.fromUTF8("a")));
+        // token -8555461455748673368
+        assertEquals(Arrays.asList("node1", "node2"), ring.getReplicas(Bytes.fromUTF8("the quick brown fox")));
+        // token -3758069500696749310
+        assertEquals(Arrays.asList("node1", "node2"), ring.getReplicas(Bytes.fromUTF8("hello")));
+        // token 5467490433528156583
+        assertEquals(Arrays.asList("node3", "node1"), ring.getReplicas(Bytes.fromUTF8("0123456789abcdef")));
+        // the empty key has the minimum token, which belongs to the wrapping range
+        assertEquals(Arrays.asList("node3", "node1"), ring.getReplicas(Bytes.fromUTF8("")));
+
+        assertEquals(3, ring.getEndpoints().size());
+    }
+
+    /**
+     * Tests that rows are ordered by their unsigned bytes when using the byte ordered partitioner.
+     */
+    @Test
+    public void testByteOrderedPartitioner() {
+        TokenRing ring = new TokenRing(TokenRing.BYTE_ORDERED_PARTITIONER, Arrays.asList(
+                new TokenRange("", "6D", Arrays.asList("node1")),
+                new TokenRange("6D", "", Arrays.asList("node2"))
+        ));
+
+        assertEquals(Arrays.asList("node1"), ring.getReplicas(Bytes.fromUTF8("apple")));
+        assertEquals(Arrays.asList("node1"), ring.getReplicas(Bytes.fromUTF8("m")));
+        assertEquals(Arrays.asList("node2"), ring.getReplicas(Bytes.fromUTF8("zebra")));
+        assertEquals(Arrays.asList("node2"), ring.getReplicas(Bytes.fromByteArray(new byte[] {(byte) 0xff})));
+    }
+
+    /**
+     * Tests that row keys are grouped by their primary replica.
+     */
+    @Test
+    public void testGroupByPrimaryReplica() {
+        TokenRing ring = new TokenRing(TokenRing.BYTE_ORDERED_PARTITIONER, Arrays.asList(
+                new TokenRange("", "6d", Arrays.asList("node1", "node2")),
+                new TokenRange("6d", "", Arrays.asList("node2", "node1"))
+        ));
+
+        ByteBuffer apple = Bytes.fromUTF8("apple").getBytes();
+        ByteBuffer zebra = Bytes.fromUTF8("zebra").getBytes();
+        ByteBuffer banana = Bytes.fromUTF8("banana").getBytes();
+        Map<String, List<ByteBuffer>> groups = ring.groupByPrimaryReplica(Arrays.asList(apple, zebra, banana));
+
+        assertEquals(2, groups.size());
+        assertEquals(Arrays.asList(apple, banana), groups.get("node1"));
+        assertEquals(Arrays.asList(zebra), groups.get("node2"));
+    }
+
+    /**
+     * Tests that the endpoints are reported using the node names that resolve to them, so that operations can be
+     * steered to nodes configured by host name.
+     */
+    @Test
+    public void testEndpointsMappedToNodeNames() {
+        TokenRing ring = new TokenRing(TokenRing.BYTE_ORDERED_PARTITIONER, Arrays.asList(
+                new TokenRange("", "6d", Arrays.asList("127.0.0.1", "10.255.255.1")),
+                new TokenRange("6d", "", Arrays.asList("10.255.255.1", "127.0.0.1"))
+        ), Arrays.asList("localhost"));
+
+        assertEquals(Arrays.asList("localhost", "10.255.255.1"), ring.getReplicas(Bytes.fromUTF8("apple")));
+        assertEquals(new HashSet<String>(Arrays.asList("localhost", "10.255.255.1")), ring.getEndpoints());
+        assertEquals(Collections.singleton("10.255.255.1"), ring.getEndpointsExcept(Arrays.asList("localhost")));
+    }
+
+    /**
+     * Tests that partitioners the client can't calculate tokens for are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedPartitioner() {
+        new TokenRing("org.apache.cassandra.dht.OrderPreservingPartitioner", Arrays.asList(
+                new TokenRange("", "m", Arrays.asList("node1"))
+        ));
+    }
+
+    private static long murmur3(String key) {
+        ByteBuffer buffer = Bytes.fromUTF8(key).getBytes();
+        return TokenRing.murmur3(buffer, buffer.position(), buffer.remaining(), 0)[0];
+    }
+}
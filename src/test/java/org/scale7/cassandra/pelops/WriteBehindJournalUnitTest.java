@@ -0,0 +1,91 @@
+package org.scale7.cassandra.pelops;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.support.RecordingPool;
+import org.scale7.cassandra.pelops.support.TempDirectory;
+
+/**
+ * Tests the {@link org.scale7.cassandra.pelops.WriteBehindJournal} class.
+ */
+public class WriteBehindJournalUnitTest {
+    private static final String CF = "CF";
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = TempDirectory.create("pelops-journal");
+    }
+
+    @After
+    public void tearDown() {
+        TempDirectory.delete(directory);
+    }
+
+    /**
+     * Tests that appended batches are sent to the pool.
+     */
+    @Test
+    public void testAppendedBatchesAreSent() throws Exception {
+        RecordingPool pool = new RecordingPool();
+        WriteBehindJournal journal = new WriteBehindJournal("testAppendedBatchesAreSent", pool, directory, null);
+        try {
+            for (int i = 0; i < 10; i++)
+                createMutator(pool, "row" + i).execute(ConsistencyLevel.QUORUM, journal);
+
+            assertTrue("The journal wasn't drained", journal.awaitEmpty(10, TimeUnit.SECONDS));
+            assertEquals(10, pool.getBatches().size());
+            assertEquals(10, journal.getRecordsAppended());
+            assertEquals(10, journal.getRecordsSent());
+            assertEquals(0, journal.getBacklogBytes());
+            assertEquals(0, journal.getLagMillis());
+        } finally {
+            journal.close();
+        }
+    }
+
+    /**
+     * Tests that batches that weren't sent before the journal was closed are sent when it's reopened.
+     */
+    @Test
+    public void testUnsentBatchesAreReplayed() throws Exception {
+        RecordingPool pool = new RecordingPool();
+        pool.setAvailable(false);
+        WriteBehindJournal.Policy policy = new WriteBehindJournal.Policy();
+        policy.setSegmentSize(256);
+        policy.setRetryDelayMillis(10);
+        WriteBehindJournal journal = new WriteBehindJournal("testUnsentBatchesAreReplayed", pool, directory, policy);
+        for (int i = 0; i < 20; i++)
+            createMutator(pool, "row" + i).execute(ConsistencyLevel.ONE, journal);
+        assertEquals(20, journal.getBacklogRecords());
+        assertTrue("The journal should have rotated", journal.getSegmentCount() > 1);
+        journal.close();
+        assertEquals(0, pool.getBatches().size());
+
+        pool.setAvailable(true);
+        journal = new WriteBehindJournal("testUnsentBatchesAreReplayed", pool, directory, policy);
+        try {
+            assertTrue("The journal wasn't drained", journal.awaitEmpty(10, TimeUnit.SECONDS));
+            assertEquals(20, pool.getBatches().size());
+            assertEquals(1, journal.getSegmentCount());
+        } finally {
+            journal.close();
+        }
+    }
+
+    private Mutator createMutator(RecordingPool pool, String rowKey) {
+        Mutator mutator = new Mutator(pool, 1, false, Mutator.NO_TTL);
+        mutator.writeColumn(CF, Bytes.fromUTF8(rowKey), mutator.newColumn("name", "value"));
+        return mutator;
+    }
+}
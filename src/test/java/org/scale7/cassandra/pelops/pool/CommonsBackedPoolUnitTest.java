@@ -0,0 +1,125 @@
+package org.scale7.cassandra.pelops.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.scale7.cassandra.pelops.TrafficClass;
+
+/**
+ * Tests the priority lanes of the {@link CommonsBackedPool} class.
+ */
+public class CommonsBackedPoolUnitTest {
+    /**
+     * Tests that batch traffic can't consume the connections reserved for interactive traffic, while interactive
+     * traffic can use the unreserved connections too.
+     */
+    @Test
+    public void testReservedLanesNotConsumedByBatchTraffic() {
+        PooledNode node = newNode("testReservedLanesNotConsumedByBatchTraffic");
+        try {
+            int[] reserved = reserved(3, 0);
+            for (int i = 0; i < 7; i++)
+                assertTrue("Batch traffic should be able to use the unreserved capacity", node.tryAcquireLane(TrafficClass.BATCH, 10, reserved));
+            assertFalse("Batch traffic should not be able to use the reserved capacity", node.tryAcquireLane(TrafficClass.BATCH, 10, reserved));
+            assertEquals(7, node.getNumActive(TrafficClass.BATCH));
+
+            for (int i = 0; i < 3; i++)
+                assertTrue("Interactive traffic should be able to use its reserved capacity", node.tryAcquireLane(TrafficClass.INTERACTIVE, 10, reserved));
+            assertFalse("The node should be at capacity", node.tryAcquireLane(TrafficClass.INTERACTIVE, 10, reserved));
+
+            node.releaseLane(TrafficClass.BATCH);
+            assertTrue("Interactive traffic should be able to use the unreserved capacity", node.tryAcquireLane(TrafficClass.INTERACTIVE, 10, reserved));
+            assertEquals(4, node.getNumActive(TrafficClass.INTERACTIVE));
+            assertFalse("The node should be at capacity", node.tryAcquireLane(TrafficClass.BATCH, 10, reserved));
+        } finally {
+            node.decommission();
+        }
+    }
+
+    /**
+     * Tests that a class of traffic using less than its reservation keeps the rest of it free, and that there's no
+     * limit when the max active connections is negative.
+     */
+    @Test
+    public void testUnusedReservationsAreKeptFree() {
+        PooledNode node = newNode("testUnusedReservationsAreKeptFree");
+        try {
+            int[] reserved = reserved(2, 2);
+            for (int i = 0; i < 4; i++)
+                assertTrue(node.tryAcquireLane(TrafficClass.BATCH, 6, reserved));
+            assertFalse("Two connections should be kept free for interactive traffic", node.tryAcquireLane(TrafficClass.BATCH, 6, reserved));
+            assertTrue(node.tryAcquireLane(TrafficClass.INTERACTIVE, 6, reserved));
+            assertTrue(node.tryAcquireLane(TrafficClass.INTERACTIVE, 6, reserved));
+            assertFalse(node.tryAcquireLane(TrafficClass.INTERACTIVE, 6, reserved));
+
+            for (int i = 0; i < 100; i++)
+                assertTrue("There should be no limit", node.tryAcquireLane(TrafficClass.BATCH, -1, reserved));
+        } finally {
+            node.decommission();
+        }
+    }
+
+    /**
+     * Tests that waiters are woken in priority order regardless of the order they started waiting in.
+     */
+    @Test
+    public void testWaitersWokenInPriorityOrder() throws Exception {
+        CommonsBackedPool.PriorityWaiters waiters = new CommonsBackedPool.PriorityWaiters();
+        List<TrafficClass> woken = new CopyOnWriteArrayList<TrafficClass>();
+
+        Thread batch = startWaiter(waiters, TrafficClass.BATCH, woken);
+        assertFalse("Nothing should be waiting ahead of interactive traffic", waiters.hasHigherPriorityWaiters(TrafficClass.INTERACTIVE));
+        Thread interactive = startWaiter(waiters, TrafficClass.INTERACTIVE, woken);
+        assertTrue("Interactive traffic should be waiting ahead of batch traffic", waiters.hasHigherPriorityWaiters(TrafficClass.BATCH));
+
+        waiters.signal();
+        interactive.join(10000);
+        assertFalse("The interactive waiter should have been woken", interactive.isAlive());
+        assertTrue("The batch waiter should still be waiting", batch.isAlive());
+
+        waiters.signal();
+        batch.join(10000);
+        assertFalse("The batch waiter should have been woken", batch.isAlive());
+        assertEquals(TrafficClass.INTERACTIVE, woken.get(0));
+        assertEquals(TrafficClass.BATCH, woken.get(1));
+        assertFalse(waiters.hasHigherPriorityWaiters(TrafficClass.BATCH));
+    }
+
+    private static Thread startWaiter(final CommonsBackedPool.PriorityWaiters waiters, final TrafficClass trafficClass,
+                                      final List<TrafficClass> woken) throws InterruptedException {
+        waiters.add(trafficClass);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    waiters.await(trafficClass, 60000);
+                    woken.add(trafficClass);
+                } finally {
+                    waiters.remove(trafficClass);
+                }
+            }
+        });
+        thread.start();
+        long timeout = System.currentTimeMillis() + 10000;
+        while (thread.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < timeout)
+            Thread.sleep(1);
+        return thread;
+    }
+
+    private static PooledNode newNode(String address) {
+        return new PooledNode(Mockito.mock(CommonsBackedPool.class), address);
+    }
+
+    private static int[] reserved(int interactive, int batch) {
+        int[] reserved = new int[TrafficClass.values().length];
+        reserved[TrafficClass.INTERACTIVE.ordinal()] = interactive;
+        reserved[TrafficClass.BATCH.ordinal()] = batch;
+        return reserved;
+    }
+}
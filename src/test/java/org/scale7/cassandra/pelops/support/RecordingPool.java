@@ -0,0 +1,76 @@
+package org.scale7.cassandra.pelops.support;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.InvalidRequestException;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.TimedOutException;
+import org.apache.cassandra.thrift.UnavailableException;
+import org.apache.thrift.TException;
+import org.scale7.cassandra.pelops.OperandPolicy;
+
+/**
+ * A pool that records the batches it is sent and the node each was sent to.  While the pool is unavailable batches
+ * fail with an {@link UnavailableException}.
+ */
+public class RecordingPool extends StubPool {
+    private final List<Map<ByteBuffer, Map<String, List<Mutation>>>> batches = new CopyOnWriteArrayList<Map<ByteBuffer, Map<String, List<Mutation>>>>();
+    private final List<String> batchNodes = new CopyOnWriteArrayList<String>();
+    private volatile boolean available = true;
+    private final Cassandra.Client client = new Cassandra.Client(null) {
+        @Override
+        public void batch_mutate(Map<ByteBuffer, Map<String, List<Mutation>>> mutation_map, ConsistencyLevel consistency_level) throws InvalidRequestException, UnavailableException, TimedOutException, TException {
+            if (!available)
+                throw new UnavailableException();
+            onBatch(mutation_map, getCurrentNode());
+            synchronized (batches) {
+                batches.add(mutation_map);
+                batchNodes.add(getCurrentNode());
+            }
+        }
+    };
+
+    public RecordingPool(String... nodes) {
+        this(new OperandPolicy(), nodes);
+    }
+
+    public RecordingPool(OperandPolicy operandPolicy, String... nodes) {
+        super(KEYSPACE, operandPolicy, null, nodes);
+    }
+
+    @Override
+    protected Cassandra.Client getClient() {
+        return client;
+    }
+
+    /**
+     * Called before a batch is recorded, throw to fail the batch.
+     * @param batch the batch
+     * @param node the node the batch was sent to
+     */
+    protected void onBatch(Map<ByteBuffer, Map<String, List<Mutation>>> batch, String node) throws InvalidRequestException, UnavailableException, TimedOutException, TException {
+    }
+
+    /**
+     * The batches that succeeded, in the order they were sent.
+     */
+    public List<Map<ByteBuffer, Map<String, List<Mutation>>>> getBatches() {
+        return batches;
+    }
+
+    /**
+     * The nodes the batches returned by {@link #getBatches()} were sent to.
+     */
+    public List<String> getBatchNodes() {
+        return batchNodes;
+    }
+
+    public void setAvailable(boolean available) {
+        this.available = available;
+    }
+}
@@ -0,0 +1,205 @@
+package org.scale7.cassandra.pelops.support;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.CfSplit;
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.IndexClause;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.TimedOutException;
+import org.apache.cassandra.thrift.TokenRange;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.OperandPolicy;
+import org.scale7.cassandra.pelops.TokenRing;
+
+/**
+ * A pool backed by an in memory column family on a byte ordered ring, the token of a row being the hex of its key.
+ * Each row has a single column named "col" whose value is the row key.
+ * <p>The pool answers the range reads (by token or key), the indexed reads (which match every row) and the ring
+ * queries used to split the ring, records the key ranges requested (and the nodes they were sent to) and can be told
+ * to fail range reads.
+ */
+public class RingPool extends StubPool {
+    public static final Bytes COLUMN_NAME = Bytes.fromUTF8("col");
+
+    private final TreeMap<String, Bytes> rows = new TreeMap<String, Bytes>();
+    private final List<TokenRange> ring;
+    private final List<KeyRange> keyRanges = new CopyOnWriteArrayList<KeyRange>();
+    private final List<String> keyRangeNodes = new CopyOnWriteArrayList<String>();
+    private final List<IndexClause> indexClauses = new CopyOnWriteArrayList<IndexClause>();
+    private final AtomicInteger failuresRemaining = new AtomicInteger();
+    private volatile boolean splitsAvailable = true;
+    private final Cassandra.Client client = new Cassandra.Client(null) {
+        @Override
+        public String describe_partitioner() {
+            return TokenRing.BYTE_ORDERED_PARTITIONER;
+        }
+
+        @Override
+        public List<TokenRange> describe_ring(String keyspace) {
+            return ring;
+        }
+
+        @Override
+        public List<CfSplit> describe_splits_ex(String columnFamily, String startToken, String endToken, int keysPerSplit) throws TException {
+            if (!splitsAvailable)
+                throw new TTransportException("Timed out splitting the range");
+
+            List<CfSplit> splits = new ArrayList<CfSplit>();
+            String splitStart = startToken;
+            int count = 0;
+            for (String token : tokensIn(startToken, endToken)) {
+                if (++count == keysPerSplit) {
+                    splits.add(new CfSplit(splitStart, token, count));
+                    splitStart = token;
+                    count = 0;
+                }
+            }
+            if (splits.isEmpty() || !splitStart.equals(endToken))
+                splits.add(new CfSplit(splitStart, endToken, count));
+            return splits;
+        }
+
+        @Override
+        public List<KeySlice> get_range_slices(ColumnParent columnParent, SlicePredicate predicate, KeyRange keyRange, ConsistencyLevel consistencyLevel) throws TimedOutException {
+            synchronized (keyRanges) {
+                keyRanges.add(new KeyRange(keyRange));
+                keyRangeNodes.add(getCurrentNode());
+            }
+            if (failuresRemaining.getAndDecrement() > 0)
+                throw new TimedOutException();
+
+            Iterable<String> tokens;
+            if (keyRange.getStart_token() != null) {
+                tokens = tokensIn(keyRange.getStart_token(), keyRange.getEnd_token());
+            } else {
+                // start key inclusive
+                String start = toToken(Bytes.fromByteBuffer(keyRange.bufferForStart_key()));
+                String end = keyRange.bufferForEnd_key() != null && keyRange.bufferForEnd_key().remaining() > 0 ? toToken(Bytes.fromByteBuffer(keyRange.bufferForEnd_key())) : null;
+                tokens = end != null ? rows.subMap(start, true, end, true).keySet() : rows.tailMap(start, true).keySet();
+            }
+            return slices(tokens, keyRange.getCount());
+        }
+
+        @Override
+        public List<KeySlice> get_indexed_slices(ColumnParent columnParent, IndexClause indexClause, SlicePredicate predicate, ConsistencyLevel consistencyLevel) {
+            indexClauses.add(new IndexClause(indexClause));
+            String start = toToken(Bytes.fromByteBuffer(indexClause.bufferForStart_key()));
+            return slices(rows.tailMap(start, true).keySet(), indexClause.getCount());
+        }
+    };
+
+    /**
+     * Creates a pool whose ring is a single range owned by a node.
+     * @param operandPolicy the policy of the pool
+     * @param rowKeys the keys of the rows of the column family
+     */
+    public RingPool(OperandPolicy operandPolicy, String... rowKeys) {
+        this(operandPolicy, Arrays.asList(new TokenRange("", "", Arrays.asList("localhost"))), rowKeys);
+    }
+
+    /**
+     * Creates a pool.
+     * @param operandPolicy the policy of the pool
+     * @param ring the token ranges returned by describe_ring
+     * @param rowKeys the keys of the rows of the column family
+     */
+    public RingPool(OperandPolicy operandPolicy, List<TokenRange> ring, String... rowKeys) {
+        this(operandPolicy, ring, Arrays.asList("localhost"), rowKeys);
+    }
+
+    /**
+     * Creates a pool.
+     * @param operandPolicy the policy of the pool
+     * @param ring the token ranges returned by describe_ring
+     * @param nodes the names of the nodes of the pool
+     * @param rowKeys the keys of the rows of the column family
+     */
+    public RingPool(OperandPolicy operandPolicy, List<TokenRange> ring, List<String> nodes, String... rowKeys) {
+        super(KEYSPACE, operandPolicy, null, nodes.toArray(new String[nodes.size()]));
+        this.ring = ring;
+        for (String rowKey : rowKeys)
+            rows.put(toToken(Bytes.fromUTF8(rowKey)), Bytes.fromUTF8(rowKey));
+    }
+
+    @Override
+    protected Cassandra.Client getClient() {
+        return client;
+    }
+
+    /**
+     * The key ranges of the range reads, in the order they were requested.
+     */
+    public List<KeyRange> getKeyRanges() {
+        return keyRanges;
+    }
+
+    /**
+     * The nodes the range reads returned by {@link #getKeyRanges()} were sent to.
+     */
+    public List<String> getKeyRangeNodes() {
+        return keyRangeNodes;
+    }
+
+    /**
+     * The index clauses of the indexed reads, in the order they were requested.
+     */
+    public List<IndexClause> getIndexClauses() {
+        return indexClauses;
+    }
+
+    /**
+     * Fails the next range reads.
+     * @param failures the number of reads to fail
+     */
+    public void failNextRangeReads(int failures) {
+        failuresRemaining.set(failures);
+    }
+
+    public void setSplitsAvailable(boolean splitsAvailable) {
+        this.splitsAvailable = splitsAvailable;
+    }
+
+    /**
+     * The token of a row key.
+     */
+    public static String toToken(Bytes rowKey) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : rowKey.toByteArray())
+            sb.append(String.format("%02x", b & 0xff));
+        return sb.toString();
+    }
+
+    // the tokens of the rows in (start, end], the empty token being the start and end of the ring
+    private Iterable<String> tokensIn(String startToken, String endToken) {
+        Map<String, Bytes> range = endToken.isEmpty() ? rows.tailMap(startToken, false) : rows.subMap(startToken, false, endToken, true);
+        return new ArrayList<String>(range.keySet());
+    }
+
+    private List<KeySlice> slices(Iterable<String> tokens, int count) {
+        List<KeySlice> slices = new ArrayList<KeySlice>();
+        for (String token : tokens) {
+            if (slices.size() == count)
+                break;
+            ByteBuffer key = rows.get(token).getBytes();
+            Column column = new Column(COLUMN_NAME.getBytes()).setValue(key).setTimestamp(1);
+            slices.add(new KeySlice(key, new ArrayList<ColumnOrSuperColumn>(Arrays.asList(new ColumnOrSuperColumn().setColumn(column)))));
+        }
+        return slices;
+    }
+}
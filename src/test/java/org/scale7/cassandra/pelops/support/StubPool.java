@@ -0,0 +1,185 @@
+package org.scale7.cassandra.pelops.support;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ColumnPath;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.CounterColumn;
+import org.apache.cassandra.thrift.Mutation;
+import org.scale7.cassandra.pelops.Cluster;
+import org.scale7.cassandra.pelops.IConnection;
+import org.scale7.cassandra.pelops.OperandPolicy;
+import org.scale7.cassandra.pelops.pool.ThriftPoolBase;
+
+/**
+ * A pool for unit tests whose connections all use the same stubbed {@link Cassandra.Client}.  Override the client
+ * methods the test needs, the others fail as the client isn't connected (see {@link #DISCARDING_CLIENT} for a client
+ * that accepts writes).
+ * <p>The pool can pretend to have several nodes, a connection is to the first node that isn't avoided and
+ * {@link #getCurrentNode()} tells the client which node a call was sent to.
+ */
+public class StubPool extends ThriftPoolBase {
+    public static final String KEYSPACE = "keyspace";
+
+    /**
+     * A client that accepts and discards all writes.
+     */
+    public static final Cassandra.Client DISCARDING_CLIENT = new Cassandra.Client(null) {
+        @Override
+        public void batch_mutate(Map<ByteBuffer, Map<String, List<Mutation>>> mutation_map, ConsistencyLevel consistency_level) {
+        }
+
+        @Override
+        public void atomic_batch_mutate(Map<ByteBuffer, Map<String, List<Mutation>>> mutation_map, ConsistencyLevel consistency_level) {
+        }
+
+        @Override
+        public void insert(ByteBuffer key, ColumnParent column_parent, Column column, ConsistencyLevel consistency_level) {
+        }
+
+        @Override
+        public void add(ByteBuffer key, ColumnParent column_parent, CounterColumn column, ConsistencyLevel consistency_level) {
+        }
+
+        @Override
+        public void remove(ByteBuffer key, ColumnPath column_path, long timestamp, ConsistencyLevel consistency_level) {
+        }
+
+        @Override
+        public void remove_counter(ByteBuffer key, ColumnPath path, ConsistencyLevel consistency_level) {
+        }
+
+        @Override
+        public void truncate(String cfname) {
+        }
+    };
+
+    private final String keyspace;
+    private final OperandPolicy operandPolicy;
+    private final Cassandra.Client client;
+    private final List<String> nodes;
+    private final ThreadLocal<String> currentNode = new ThreadLocal<String>();
+
+    /**
+     * Creates a pool whose client accepts and discards all writes.
+     */
+    public StubPool() {
+        this(DISCARDING_CLIENT);
+    }
+
+    /**
+     * Creates a pool with a single node whose connections use the client.
+     */
+    public StubPool(Cassandra.Client client) {
+        this(KEYSPACE, new OperandPolicy(), client);
+    }
+
+    /**
+     * Creates a pool whose connections use the client.
+     * @param keyspace the keyspace of the pool
+     * @param operandPolicy the policy of the pool
+     * @param client the client
+     * @param nodes the addresses of the nodes of the pool, defaults to a single node
+     */
+    public StubPool(String keyspace, OperandPolicy operandPolicy, Cassandra.Client client, String... nodes) {
+        this.keyspace = keyspace;
+        this.operandPolicy = operandPolicy;
+        this.client = client;
+        this.nodes = nodes.length > 0 ? Arrays.asList(nodes) : Arrays.asList("localhost");
+    }
+
+    /**
+     * The client used by all the connections of the pool.
+     */
+    protected Cassandra.Client getClient() {
+        return client;
+    }
+
+    /**
+     * The node of the connection the calling thread is using.
+     */
+    public String getCurrentNode() {
+        return currentNode.get();
+    }
+
+    @Override
+    public IPooledConnection getConnection() {
+        return getConnectionExcept(null);
+    }
+
+    @Override
+    public IPooledConnection getConnectionExcept(Set<String> avoidNodes) {
+        for (String node : nodes) {
+            if (avoidNodes == null || !avoidNodes.contains(node))
+                return new StubConnection(node);
+        }
+        return new StubConnection(nodes.get(0));
+    }
+
+    @Override
+    public Collection<String> getNodeNames() {
+        return nodes;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public OperandPolicy getOperandPolicy() {
+        return operandPolicy;
+    }
+
+    @Override
+    public String getKeyspace() {
+        return keyspace;
+    }
+
+    private class StubConnection implements IPooledConnection {
+        private final Cluster.Node node;
+
+        private StubConnection(String address) {
+            this.node = new Cluster.Node(address, new IConnection.Config(9160, true, 0));
+        }
+
+        @Override
+        public Cassandra.Client getAPI() {
+            currentNode.set(node.getAddress());
+            return getClient();
+        }
+
+        @Override
+        public Cluster.Node getNode() {
+            return node;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public void corrupted() {
+        }
+    }
+}
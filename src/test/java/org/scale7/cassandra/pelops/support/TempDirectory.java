@@ -0,0 +1,39 @@
+package org.scale7.cassandra.pelops.support;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Creates and deletes the temporary directories used by unit tests of classes that keep their data in files.
+ */
+public class TempDirectory {
+    private TempDirectory() {
+    }
+
+    /**
+     * Creates a new empty directory in the system's temporary directory.
+     * @param prefix the prefix of the name of the directory
+     * @return the directory
+     */
+    public static File create(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("Failed to create the directory " + directory);
+        return directory;
+    }
+
+    /**
+     * Deletes the directory and the files it contains.
+     * @param directory the directory, may be null
+     */
+    public static void delete(File directory) {
+        if (directory == null)
+            return;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+}